@@ -29,10 +29,14 @@ import org.gradle.api.tasks.TaskAction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 
 /**
  * A task that will (re)write the filter.xml file with bundle files.
@@ -51,6 +55,8 @@ public class AddBundlesToFilterXmlTask extends DefaultTask {
 
     private @MonotonicNonNull CreatePackageTask createPackageTask;
 
+    private boolean coalesceBundleFilters = false;
+
 
     @SuppressWarnings("method.invocation.invalid")
     public AddBundlesToFilterXmlTask() {
@@ -74,8 +80,12 @@ public class AddBundlesToFilterXmlTask extends DefaultTask {
 
         File outFile = getOutFile();
 
-        FilterXmlWriter xmlWriter = new FilterXmlWriter(new FileReader(inFile), filterDefinition, bundleInstallRoot, new FileWriter(outFile));
-        xmlWriter.run();
+        try (Reader reader = new BufferedReader(new FileReader(inFile));
+             Writer writer = new BufferedWriter(new FileWriter(outFile))) {
+            FilterXmlWriter xmlWriter = new FilterXmlWriter(reader, filterDefinition, bundleInstallRoot, writer,
+                coalesceBundleFilters);
+            xmlWriter.run();
+        }
     }
 
 
@@ -176,6 +186,24 @@ public class AddBundlesToFilterXmlTask extends DefaultTask {
     }
 
 
+    /**
+     * Should the bundles share one filter (rooted at the bundle install root, with an "include" rule that matches
+     * just the bundles) rather than each having their own? That makes for a much smaller filter.xml when there
+     * are a lot of bundles. Defaults to false.
+     *
+     * @see CoalescedBundleFilter
+     */
+    @Input
+    public boolean isCoalesceBundleFilters() {
+        return coalesceBundleFilters;
+    }
+
+
+    public void setCoalesceBundleFilters(boolean coalesceBundleFilters) {
+        this.coalesceBundleFilters = coalesceBundleFilters;
+    }
+
+
     @Internal
     public @Nullable CreatePackageTask getCreatePackageTask() {
         if (createPackageTask == null) {
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * A {@link PollingPolicy} that retries quickly once, and then waits exponentially longer between polls up to a
+ * maximum. Each wait is randomly adjusted by up to {@link #jitter} of itself so that servers (or builds) that
+ * started together do not keep polling in lock-step.
+ * <p>
+ * With the defaults the waits are about 100ms, 250ms, 500ms, 1s, 2s, 4s, 5s, 5s, ...
+ */
+@CompileStatic
+class BackoffPollingPolicy implements PollingPolicy {
+    /**
+     * The wait after the first poll, since very often the server is ready almost immediately. Defaults to 100ms.
+     */
+    long firstRetryMs = 100
+
+    /**
+     * The wait after the second poll, which is then multiplied by {@link #multiplier} for each poll after that.
+     * Defaults to 250ms.
+     */
+    long initialDelayMs = 250
+
+    /**
+     * Defaults to 2.0
+     */
+    double multiplier = 2.0d
+
+    /**
+     * The longest to wait between polls. Defaults to 5 seconds.
+     */
+    long maxDelayMs = 5_000
+
+    /**
+     * The fraction (from 0 to 1) of each wait to randomly add or remove. Defaults to 0.2 (i.e., +/- 20%).
+     */
+    double jitter = 0.2d
+
+
+    @Override
+    long delayMs(int polls) {
+        if (polls < 1) throw new IllegalArgumentException("polls must be at least 1: " + polls)
+
+        final double delay = polls == 1 ? firstRetryMs :
+            Math.min((double)maxDelayMs, initialDelayMs * Math.pow(multiplier, polls - 2))
+
+        final double jittered = jitter <= 0d ? delay :
+            delay * (1d + ThreadLocalRandom.current().nextDouble(-jitter, jitter))
+
+        return Math.max(0L, Math.min(maxDelayMs, Math.round(jittered)))
+    }
+
+
+    @Override
+    String toString() {
+        return "backoff(first: ${firstRetryMs}ms, initial: ${initialDelayMs}ms, multiplier: ${multiplier}, " +
+            "max: ${maxDelayMs}ms, jitter: ${jitter})"
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import com.twcable.gradle.http.HttpResponse;
+import com.twcable.gradle.sling.SlingServerConfiguration;
+import com.twcable.gradle.sling.SlingSupport;
+import com.twcable.gradle.sling.osgi.BundleServerConfiguration;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Stops and uninstalls a group of bundles on a server as a batch: first all of the bundles are stopped, then
+ * all of them are uninstalled, and then the framework is asked to refresh its packages once.
+ * <p>
+ * Doing one bundle at a time makes the framework work out the wiring again after each change; doing them as a
+ * batch means it only has to do that once. Within each step, up to "parallelism" bundles are worked on at the
+ * same time.
+ * <p>
+ * The responses are combined with {@link CqPackageHelper#and(HttpResponse, HttpResponse, boolean)}, in the
+ * order of the bundles, with a missing (404) bundle counting as OK. If stopping the bundles fails, they are not
+ * uninstalled.
+ */
+public final class BundleBatch {
+    private static final Logger LOG = LoggerFactory.getLogger(BundleBatch.class);
+
+    private final SlingSupport slingSupport;
+    private final int parallelism;
+
+
+    /**
+     * @param slingSupport the server to work on
+     * @param parallelism  the maximum number of bundles to work on at the same time
+     */
+    public BundleBatch(SlingSupport slingSupport, int parallelism) {
+        if (slingSupport == null) throw new IllegalArgumentException("slingSupport == null");
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1: " + parallelism);
+        this.slingSupport = slingSupport;
+        this.parallelism = parallelism;
+    }
+
+
+    /**
+     * Stops, then uninstalls, the bundles, and then refreshes the framework's packages
+     *
+     * @param symbolicNames the bundles to remove
+     * @return the "aggregate" HTTP response
+     */
+    @Nonnull
+    public HttpResponse stopAndUninstall(List<String> symbolicNames) {
+        if (symbolicNames.isEmpty()) return new HttpResponse(HTTP_OK, "");
+
+        final String serverName = slingSupport.getServerConf().getName();
+
+        LOG.info("Stopping {} bundles on {}", symbolicNames.size(), serverName);
+        HttpResponse httpResponse = all(symbolicNames, "stop");
+        if (CqPackageHelper.isBadResponse(httpResponse.getCode(), true)) return httpResponse;
+
+        LOG.info("Uninstalling {} bundles on {}", symbolicNames.size(), serverName);
+        httpResponse = CqPackageHelper.and(httpResponse, all(symbolicNames, "uninstall"), true);
+        if (CqPackageHelper.isBadResponse(httpResponse.getCode(), true)) return httpResponse;
+
+        LOG.info("Refreshing packages on {}", serverName);
+        final HttpResponse refreshResp = slingSupport.doPost(bundlesUri(null), Collections.singletonMap("action", "refreshPackages"));
+        return CqPackageHelper.and(httpResponse, refreshResp, true);
+    }
+
+
+    /**
+     * Does "action" to each of the bundles, combining the responses in the order of the bundles
+     */
+    private HttpResponse all(List<String> symbolicNames, String action) {
+        final List<HttpResponse> responses = forEachBundle(symbolicNames, parallelism, action,
+            symbolicName -> bundleAction(symbolicName, action));
+
+        HttpResponse httpResponse = new HttpResponse(HTTP_OK, "");
+        for (HttpResponse resp : responses) {
+            httpResponse = CqPackageHelper.and(httpResponse, resp, true);
+        }
+        return httpResponse;
+    }
+
+
+    /**
+     * Calls "action" for each of the bundles, with up to "parallelism" of them at the same time.
+     *
+     * @param description what is being done, for naming the threads
+     * @return the responses, in the same order as "symbolicNames"
+     */
+    static List<HttpResponse> forEachBundle(List<String> symbolicNames, int parallelism, String description,
+                                            Function<String, HttpResponse> action) {
+        if (parallelism == 1 || symbolicNames.size() <= 1) return forEachBundle(symbolicNames, null, description, action);
+
+        final ExecutorService executor = newExecutor(Math.min(parallelism, symbolicNames.size()), description);
+        try {
+            return forEachBundle(symbolicNames, executor, description, action);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Calls "action" for each of the bundles using "executor", so that a caller that does this many times (such
+     * as while polling) can keep using the same threads.
+     *
+     * @param executor if null, or there is only one bundle, the bundles are done one at a time on this thread
+     * @param description what is being done, for error messages
+     * @return the responses, in the same order as "symbolicNames"
+     */
+    static List<HttpResponse> forEachBundle(List<String> symbolicNames, @Nullable ExecutorService executor,
+                                            String description, Function<String, HttpResponse> action) {
+        if (executor == null || symbolicNames.size() <= 1) {
+            final List<HttpResponse> responses = new ArrayList<>(symbolicNames.size());
+            for (String symbolicName : symbolicNames) {
+                responses.add(action.apply(symbolicName));
+            }
+            return responses;
+        }
+
+        final List<Future<HttpResponse>> futures = new ArrayList<>(symbolicNames.size());
+        try {
+            for (String symbolicName : symbolicNames) {
+                futures.add(executor.submit(() -> action.apply(symbolicName)));
+            }
+
+            final List<HttpResponse> responses = new ArrayList<>(symbolicNames.size());
+            for (Future<HttpResponse> future : futures) {
+                try {
+                    responses.add(future.get());
+                }
+                catch (ExecutionException exp) {
+                    final Throwable cause = exp.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                    throw new GradleException("Could not " + description + " bundles", cause);
+                }
+            }
+            return responses;
+        }
+        catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while trying to " + description + " bundles", exp);
+        }
+        finally {
+            for (Future<HttpResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * An executor with "threads" daemon threads for working on bundles; the caller has to shut it down
+     *
+     * @param description what is being done, for naming the threads
+     */
+    static ExecutorService newExecutor(int threads, String description) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "cq-bundle-" + description + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    private HttpResponse bundleAction(String symbolicName, String action) {
+        LOG.debug("{} {} on {}", action, symbolicName, slingSupport.getServerConf().getName());
+        return slingSupport.doPost(bundlesUri(symbolicName), Collections.singletonMap("action", action));
+    }
+
+    /**
+     * The web console URI for a bundle, or for all the bundles if "symbolicName" is null
+     */
+    @SuppressWarnings("argument.type.incompatible")
+    private URI bundlesUri(@Nullable String symbolicName) {
+        final SlingServerConfiguration serverConf = slingSupport.getServerConf();
+        final URI base = serverConf.getBaseUri();
+        final String path = BundleServerConfiguration.getBUNDLE_CONTROL_BASE_PATH() +
+            (symbolicName != null ? "/" + symbolicName : "");
+        try {
+            return new URI(base.getScheme(), base.getUserInfo(), base.getHost(), base.getPort(), path, null, null);
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Could not create bundle URI from " + serverConf, e);
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The dependencies between bundles, based on the packages they import and export (the "Import-Package" and
+ * "Export-Package" headers of their manifests).
+ * <p>
+ * This is used to start bundles in "waves" (see {@link #waves(List)}): a bundle is only started after the bundles
+ * that export the packages it needs, and the bundles in a wave do not depend on each other so they can be started
+ * at the same time.
+ */
+public final class BundleGraph {
+    private static final Logger LOG = LoggerFactory.getLogger(BundleGraph.class);
+
+    static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+    static final String IMPORT_PACKAGE = "Import-Package";
+    static final String EXPORT_PACKAGE = "Export-Package";
+
+    private final Map<String, Set<String>> importsByBundle = new HashMap<>();
+    private final Map<String, Set<String>> exportsByBundle = new HashMap<>();
+
+
+    /**
+     * Creates a graph from the manifests of the bundle files. Files that are not bundles (or do not exist) are
+     * ignored.
+     */
+    @Nonnull
+    public static BundleGraph fromFiles(Iterable<File> files) throws IOException {
+        val graph = new BundleGraph();
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            try (val jar = new JarFile(file)) {
+                @Nullable val manifest = jar.getManifest();
+                if (manifest != null) graph.add(manifest);
+            }
+        }
+        return graph;
+    }
+
+
+    /**
+     * Adds the bundle described by the manifest. Does nothing if it is not a bundle.
+     */
+    public void add(Manifest manifest) {
+        final Attributes attributes = manifest.getMainAttributes();
+        @Nullable final String symbolicNameHeader = attributes.getValue(BUNDLE_SYMBOLIC_NAME);
+        if (symbolicNameHeader == null) return;
+
+        final String symbolicName = symbolicNameHeader.split(";", 2)[0].trim();
+        importsByBundle.put(symbolicName, packageNames(attributes.getValue(IMPORT_PACKAGE), true));
+        exportsByBundle.put(symbolicName, packageNames(attributes.getValue(EXPORT_PACKAGE), false));
+    }
+
+
+    public boolean contains(String symbolicName) {
+        return importsByBundle.containsKey(symbolicName);
+    }
+
+
+    public int size() {
+        return importsByBundle.size();
+    }
+
+
+    /**
+     * Splits the bundles into waves to start them in. Every bundle in a wave only depends on bundles in earlier
+     * waves (or on bundles that are not in "symbolicNames", which are assumed to be taken care of already).
+     * <p>
+     * Bundles that are not in this graph come in a last wave of their own, since what they need is not known.
+     * If some bundles depend on each other in a cycle, they are put together in one wave after the ones that
+     * could be ordered.
+     *
+     * @param symbolicNames the bundles to start; the order is kept within each wave
+     * @return the waves, in the order to start them in
+     */
+    @Nonnull
+    public List<List<String>> waves(List<String> symbolicNames) {
+        final Map<String, Set<String>> remaining = new LinkedHashMap<>();
+        final List<String> unknown = new ArrayList<>();
+        for (String symbolicName : symbolicNames) {
+            if (contains(symbolicName)) remaining.put(symbolicName, new HashSet<>());
+            else unknown.add(symbolicName);
+        }
+
+        // which of the bundles to start does each of them need?
+        for (Map.Entry<String, Set<String>> entry : remaining.entrySet()) {
+            final Set<String> imports = importsByBundle.getOrDefault(entry.getKey(), Collections.emptySet());
+            for (String other : remaining.keySet()) {
+                if (other.equals(entry.getKey())) continue;
+                final Set<String> exports = exportsByBundle.getOrDefault(other, Collections.emptySet());
+                if (!Collections.disjoint(imports, exports)) entry.getValue().add(other);
+            }
+        }
+
+        final List<List<String>> waves = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            final List<String> wave = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> entry : remaining.entrySet()) {
+                if (entry.getValue().isEmpty()) wave.add(entry.getKey());
+            }
+
+            if (wave.isEmpty()) {
+                LOG.warn("These bundles depend on each other, so they can not be ordered: {}", remaining.keySet());
+                waves.add(new ArrayList<>(remaining.keySet()));
+                break;
+            }
+
+            waves.add(wave);
+            remaining.keySet().removeAll(wave);
+            remaining.values().forEach(deps -> deps.removeAll(wave));
+        }
+
+        if (!unknown.isEmpty()) waves.add(unknown);
+        return waves;
+    }
+
+    /**
+     * Returns the package names in an "Import-Package" or "Export-Package" header
+     *
+     * @param header       the value of the header; may be null
+     * @param skipOptional leave out the packages with "resolution:=optional"
+     */
+    @Nonnull
+    static Set<String> packageNames(@Nullable String header, boolean skipOptional) {
+        final Set<String> packageNames = new LinkedHashSet<>();
+        if (header == null) return packageNames;
+
+        for (String clause : split(header, ',')) {
+            final List<String> packagesInClause = new ArrayList<>();
+            boolean optional = false;
+            for (String part : split(clause, ';')) {
+                final String trimmed = part.trim();
+                if (trimmed.isEmpty()) continue;
+                if (trimmed.contains("=")) {
+                    final String normalized = trimmed.replaceAll("\\s", "");
+                    if (normalized.equals("resolution:=optional") || normalized.equals("resolution:=\"optional\""))
+                        optional = true;
+                }
+                else {
+                    packagesInClause.add(trimmed);
+                }
+            }
+            if (!(skipOptional && optional)) packageNames.addAll(packagesInClause);
+        }
+        return packageNames;
+    }
+
+    /**
+     * Splits "str" on "separator" when it is not inside quotes (version ranges like "[1.0,2)" are quoted)
+     */
+    private static List<String> split(String str, char separator) {
+        final List<String> parts = new ArrayList<>();
+        final StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+            if (c == '"') quoted = !quoted;
+            if (c == separator && !quoted) {
+                parts.add(current.toString());
+                current.setLength(0);
+            }
+            else {
+                current.append(c);
+            }
+        }
+        parts.add(current.toString());
+        return parts;
+    }
+
+
+    @Override
+    public String toString() {
+        return "BundleGraph{" + importsByBundle.size() + " bundles}";
+    }
+
+}
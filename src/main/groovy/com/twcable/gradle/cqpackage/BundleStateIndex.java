@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.twcable.gradle.sling.osgi.BundleState.ACTIVE;
+import static com.twcable.gradle.sling.osgi.BundleState.FRAGMENT;
+import static com.twcable.gradle.sling.osgi.BundleState.INSTALLED;
+import static com.twcable.gradle.sling.osgi.BundleState.MISSING;
+import static com.twcable.gradle.sling.osgi.BundleState.RESOLVED;
+
+/**
+ * Keeps track of the states of bundles on a server while waiting for them to become ACTIVE.
+ * <p>
+ * Each {@link #update(String, long) update} scans the server's "bundles.json" without building a tree for it
+ * (only the symbolic name and state of each bundle are read), and the states are kept in a hash so looking a
+ * bundle up does not depend on how many there are. Only the changes in state are logged, and the time it took
+ * each bundle to become ACTIVE is recorded.
+ * <p>
+ * A bundle is waited for while it is INSTALLED, RESOLVED or MISSING. Fragments count as being ACTIVE, since they
+ * can not be started. Not thread-safe.
+ */
+final class BundleStateIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(BundleStateIndex.class);
+
+    private final String serverName;
+    @Nullable
+    private final Set<String> watched;
+    private final long startMs;
+
+    private final Map<String, String> states = new LinkedHashMap<>();
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final Map<String, Long> timeToActiveMs = new LinkedHashMap<>();
+    private boolean updated = false;
+
+
+    /**
+     * @param symbolicNames the bundles to watch; if null, every bundle on the server is watched
+     * @param serverName    the server the bundles are on, for logging
+     * @param startMs       when the waiting started, for the time to become ACTIVE
+     */
+    BundleStateIndex(@Nullable Collection<String> symbolicNames, String serverName, long startMs) {
+        if (serverName == null) throw new IllegalArgumentException("serverName == null");
+        this.serverName = serverName;
+        this.startMs = startMs;
+        if (symbolicNames == null) {
+            this.watched = null;
+        }
+        else {
+            this.watched = new HashSet<>(symbolicNames);
+            this.pending.addAll(symbolicNames);
+        }
+    }
+
+
+    /**
+     * Updates the states from the body of a "bundles.json" response
+     *
+     * @param bundlesJson the server's list of bundles
+     * @param nowMs       when the list was retrieved
+     * @return are none of the watched bundles being waited for any more?
+     * @throws IllegalStateException if the JSON is malformed
+     */
+    boolean update(String bundlesJson, long nowMs) {
+        final Set<String> seen = watched == null ? Collections.emptySet() : new HashSet<>();
+
+        final JsonScanner scanner = new JsonScanner(bundlesJson);
+        scanner.beginObject();
+        String key;
+        while ((key = scanner.nextKey()) != null) {
+            if (!key.equals("data")) {
+                scanner.skipValue();
+                continue;
+            }
+
+            scanner.beginArray();
+            while (scanner.hasNextElement()) {
+                final String[] bundle = readBundle(scanner);
+                final String symbolicName = bundle[0];
+                if (symbolicName == null || (watched != null && !watched.contains(symbolicName))) continue;
+                if (watched != null) seen.add(symbolicName);
+                setState(symbolicName, bundle[1] == null ? MISSING.getStateString() : bundle[1], nowMs);
+            }
+        }
+
+        if (watched != null && seen.size() < watched.size()) {
+            for (String symbolicName : watched) {
+                if (!seen.contains(symbolicName)) setState(symbolicName, MISSING.getStateString(), nowMs);
+            }
+        }
+
+        updated = true;
+        return allActive();
+    }
+
+
+    /**
+     * Updates the state of one bundle from the body of the web console's response for just that bundle
+     * (".../bundles/&lt;symbolicName&gt;.json"), which has the same layout as "bundles.json"
+     *
+     * @param symbolicName the bundle that was asked for
+     * @param bundleJson   the response, or null if the server does not have the bundle
+     * @param nowMs        when the response was retrieved
+     * @return are none of the watched bundles being waited for any more?
+     * @throws IllegalStateException if the JSON is malformed
+     */
+    boolean updateBundle(String symbolicName, @Nullable String bundleJson, long nowMs) {
+        String state = null;
+        if (bundleJson != null) {
+            final JsonScanner scanner = new JsonScanner(bundleJson);
+            scanner.beginObject();
+            String key;
+            while ((key = scanner.nextKey()) != null) {
+                if (!key.equals("data")) {
+                    scanner.skipValue();
+                    continue;
+                }
+
+                scanner.beginArray();
+                while (scanner.hasNextElement()) {
+                    final String[] bundle = readBundle(scanner);
+                    if (symbolicName.equals(bundle[0])) state = bundle[1];
+                }
+            }
+        }
+
+        setState(symbolicName, state == null ? MISSING.getStateString() : state, nowMs);
+        updated = true;
+        return allActive();
+    }
+
+
+    /**
+     * Reads the symbolic name and state of a bundle from an element of the "data" array
+     */
+    private static String[] readBundle(JsonScanner scanner) {
+        String symbolicName = null;
+        String state = null;
+        scanner.beginObject();
+        String key;
+        while ((key = scanner.nextKey()) != null) {
+            if (key.equals("symbolicName")) symbolicName = scanner.nextScalar();
+            else if (key.equals("state")) state = scanner.nextScalar();
+            else scanner.skipValue();
+        }
+        return new String[]{symbolicName, state};
+    }
+
+
+    private void setState(String symbolicName, String state, long nowMs) {
+        final String previous = states.put(symbolicName, state);
+        if (state.equals(previous)) return;
+
+        final boolean active = isActive(state);
+        if (active && !timeToActiveMs.containsKey(symbolicName)) timeToActiveMs.put(symbolicName, nowMs - startMs);
+        if (isInactive(state)) pending.add(symbolicName);
+        else pending.remove(symbolicName);
+
+        if (previous == null) {
+            if (!isInactive(state)) LOG.debug("bundle {} IS active on {}", symbolicName, serverName);
+            else LOG.info("bundle {} NOT active on {}: {}", symbolicName, serverName, state);
+        }
+        else if (active) {
+            LOG.info("bundle {} on {}: {} -> {} after {}ms", symbolicName, serverName, previous, state, nowMs - startMs);
+        }
+        else {
+            LOG.info("bundle {} on {}: {} -> {}", symbolicName, serverName, previous, state);
+        }
+    }
+
+
+    private static boolean isActive(String state) {
+        return state.equals(ACTIVE.getStateString()) || state.equals(FRAGMENT.getStateString());
+    }
+
+
+    private static boolean isInactive(String state) {
+        return state.equals(INSTALLED.getStateString()) ||
+            state.equals(RESOLVED.getStateString()) ||
+            state.equals(MISSING.getStateString());
+    }
+
+
+    /**
+     * Are none of the watched bundles being waited for any more? False until there has been an update.
+     */
+    boolean allActive() {
+        return updated && pending.isEmpty();
+    }
+
+
+    /**
+     * The watched bundles that are still being waited for
+     */
+    @Nonnull
+    List<String> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+
+    /**
+     * The last known state of each watched bundle
+     */
+    @Nonnull
+    Map<String, String> getStates() {
+        return Collections.unmodifiableMap(states);
+    }
+
+
+    /**
+     * How long after the start it was first seen that each bundle was ACTIVE
+     */
+    @Nonnull
+    Map<String, Long> getTimeToActiveMs() {
+        return Collections.unmodifiableMap(timeToActiveMs);
+    }
+
+}
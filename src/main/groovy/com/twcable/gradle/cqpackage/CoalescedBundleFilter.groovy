@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import org.gradle.api.GradleException
+
+import javax.annotation.Nonnull
+import java.util.regex.Pattern
+
+/**
+ * A single filter for all of the bundles in the package, in place of a filter for each bundle.
+ * <p>
+ * The filter's root is the bundle install root, and it has one "include" rule that matches each of the bundles
+ * (and everything under them) and nothing else. The bundle names are put into a trie, so names with the same
+ * start (such as "mycompany-core-1.0.jar" and "mycompany-web-1.0.jar") share that part of the pattern.
+ * Because an include rule means that nothing else under the root is part of the filter, this has the same effect
+ * as a filter for each bundle, but the package manager has one root to check rather than hundreds.
+ *
+ * @see FilterXmlWriter
+ */
+@CompileStatic
+class CoalescedBundleFilter {
+    private static final String REGEX_SPECIAL_CHARS = '\\.[]{}()<>*+-=!?^$|'
+
+    /**
+     * The root of the filter, which is the bundle install root
+     */
+    final String root
+
+    /**
+     * The regex for the "include" rule
+     */
+    final String includePattern
+
+    private final Collection<String> jarNames
+    private final Pattern compiledPattern
+
+
+    private CoalescedBundleFilter(String root, String includePattern, Collection<String> jarNames) {
+        this.root = root
+        this.includePattern = includePattern
+        this.jarNames = jarNames
+        this.compiledPattern = Pattern.compile(includePattern)
+    }
+
+    /**
+     * Creates the filter for "jarNames" in "bundleInstallRoot"
+     */
+    @Nonnull
+    static CoalescedBundleFilter create(String bundleInstallRoot, Collection<String> jarNames) {
+        if (bundleInstallRoot == null) throw new IllegalArgumentException("bundleInstallRoot == null")
+        if (jarNames == null || jarNames.isEmpty()) throw new IllegalArgumentException("jarNames == null or empty")
+
+        final names = new TreeSet<String>(jarNames).toList()
+        final pattern = escape(childPath(bundleInstallRoot, '')) + trie(names) + '(/.*)?'
+        return new CoalescedBundleFilter(bundleInstallRoot, pattern, names)
+    }
+
+    /**
+     * Is "path" part of this filter?
+     */
+    boolean contains(String path) {
+        return compiledPattern.matcher(path).matches()
+    }
+
+    /**
+     * Would "path" be part of the filter if there were a filter for each bundle instead?
+     */
+    boolean containedByBundleRoots(String path) {
+        return jarNames.any { String jarName ->
+            final jarPath = childPath(root, jarName)
+            path == jarPath || path.startsWith(jarPath + '/')
+        }
+    }
+
+    /**
+     * Checks that this filter has the same paths in it as a filter for each bundle would. Every bundle, the nodes
+     * under it, and the paths that are "close" to a bundle without being one (the install root itself, the start
+     * of a bundle's name, a bundle's name with more after it, etc.) are checked.
+     *
+     * @throws GradleException if they are not the same
+     */
+    void verify() {
+        final mismatches = probePaths().findAll { String path -> contains(path) != containedByBundleRoots(path) }
+        if (!mismatches.isEmpty()) {
+            throw new GradleException("The coalesced filter for ${root} (${includePattern}) does not match the " +
+                "same paths as a filter for each bundle: ${mismatches}")
+        }
+    }
+
+
+    private Collection<String> probePaths() {
+        final Set<String> paths = new LinkedHashSet<>()
+        paths.add(root)
+        paths.add(childPath(root, ''))
+        paths.add(root + 'x')
+        jarNames.each { String jarName ->
+            final jarPath = childPath(root, jarName)
+            paths.add(jarPath)
+            paths.add(jarPath + '/')
+            paths.add(jarPath + '/jcr:content')
+            paths.add(jarPath + 'x')
+            paths.add(jarPath + '.bak')
+            paths.add(jarPath.substring(0, jarPath.length() - 1))
+            paths.add(childPath(root, 'x' + jarName))
+            paths.add(childPath(root, 'x/' + jarName))
+            paths.add(childPath(root + 'x', jarName))
+        }
+        return paths
+    }
+
+
+    @Override
+    String toString() {
+        return "CoalescedBundleFilter{root=${root}, includePattern=${includePattern}}"
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    private static String childPath(String root, String name) {
+        return root.endsWith('/') ? root + name : root + '/' + name
+    }
+
+    /**
+     * A regex matching exactly "words" (which are sorted), sharing the common starts of them
+     */
+    private static String trie(List<String> words) {
+        final optional = words.contains('')
+
+        final Map<Character, List<String>> byFirstChar = new TreeMap<>()
+        for (String word : words) {
+            if (word.isEmpty()) continue
+            List<String> group = byFirstChar.get(word.charAt(0))
+            if (group == null) {
+                group = []
+                byFirstChar.put(word.charAt(0), group)
+            }
+            group.add(word)
+        }
+        if (byFirstChar.isEmpty()) return ''
+
+        final alternatives = byFirstChar.values().collect { List<String> group ->
+            final prefix = commonPrefix(group)
+            escape(prefix) + trie(group.collect { String word -> word.substring(prefix.length()) })
+        }
+        if (alternatives.size() == 1 && !optional) return alternatives[0]
+        return '(?:' + alternatives.join('|') + ')' + (optional ? '?' : '')
+    }
+
+
+    private static String commonPrefix(List<String> words) {
+        String prefix = words[0]
+        for (String word : words) {
+            int i = 0
+            while (i < prefix.length() && i < word.length() && prefix.charAt(i) == word.charAt(i)) i++
+            prefix = prefix.substring(0, i)
+        }
+        return prefix
+    }
+
+
+    private static String escape(String literal) {
+        final escaped = new StringBuilder(literal.length() + 8)
+        for (int i = 0; i < literal.length(); i++) {
+            final char c = literal.charAt(i)
+            if (REGEX_SPECIAL_CHARS.indexOf((int)c) >= 0) escaped.append('\\')
+            escaped.append(c)
+        }
+        return escaped.toString()
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * How to compress each of the entries in a package, by glob patterns on the entries' paths (such as
+ * "jcr_root/apps/**" or "**&#47;*.jar"). The first rule that matches an entry is used. If none do, the entry is
+ * deflated at {@link #getDefaultLevel()}, or, if {@link #isAutoByDefault()}, it is treated like {@link #auto(String...)}.
+ * Case does not matter in the patterns.
+ * <p>
+ * Bundles and media (see {@link #ALREADY_COMPRESSED}) are already compressed, so deflating them again takes time
+ * without making them any smaller; {@link #withDefaults()} stores them as they are. For example:
+ * <pre>
+ * createPackage {
+ *     compression {
+ *         deflate 9, '**&#47;*.xml'
+ *         auto 'jcr_root/content/dam/**'
+ *     }
+ * }
+ * </pre>
+ *
+ * @see PackageZipCopyAction
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompressionPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of files that are (nearly always) already compressed
+     */
+    public static final List<String> ALREADY_COMPRESSED = Collections.unmodifiableList(Arrays.asList(
+        "**/*.jar", "**/*.zip", "**/*.gz", "**/*.png", "**/*.jpg", "**/*.jpeg", "**/*.gif", "**/*.webp",
+        "**/*.pdf", "**/*.mp3", "**/*.mp4", "**/*.mov", "**/*.woff", "**/*.woff2"));
+
+    private final List<Rule> rules = new ArrayList<>();
+    private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean autoByDefault = false;
+    private int sampleBytes = 64 * 1024;
+    private int minSavingsPercent = 10;
+
+
+    /**
+     * A policy that stores {@link #ALREADY_COMPRESSED} entries and deflates everything else
+     */
+    @Nonnull
+    public static CompressionPolicy withDefaults() {
+        final CompressionPolicy policy = new CompressionPolicy();
+        policy.store(ALREADY_COMPRESSED.toArray(new String[0]));
+        return policy;
+    }
+
+
+    /**
+     * A policy that does the same thing to every entry
+     *
+     * @param method {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+     */
+    @Nonnull
+    public static CompressionPolicy uniform(int method) {
+        final CompressionPolicy policy = new CompressionPolicy();
+        if (method == ZipEntry.STORED) policy.store("**");
+        return policy;
+    }
+
+
+    /**
+     * Entries matching the patterns are stored without being compressed
+     */
+    public void store(String... patterns) {
+        addRules(Compression.STORED, false, patterns);
+    }
+
+
+    /**
+     * Entries matching the patterns are deflated at "level" (0-9)
+     */
+    public void deflate(int level, String... patterns) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("level must be between 0 and 9: " + level);
+        addRules(Compression.deflated(level), false, patterns);
+    }
+
+
+    /**
+     * Entries matching the patterns are deflated at {@link #getDefaultLevel()}, unless deflating a sample of the
+     * start of them (see {@link #getSampleBytes()}) saves less than {@link #getMinSavingsPercent()}, in which case
+     * they are stored
+     */
+    public void auto(String... patterns) {
+        addRules(null, true, patterns);
+    }
+
+
+    private void addRules(Compression compression, boolean auto, String... patterns) {
+        if (patterns == null || patterns.length == 0) throw new IllegalArgumentException("No patterns given");
+        for (String pattern : patterns) {
+            rules.add(new Rule(pattern, compression, auto));
+        }
+    }
+
+
+    /**
+     * How to compress the entry at "path"
+     *
+     * @param sample the start of the entry's content; only used if it needs to be sampled
+     */
+    @Nonnull
+    public Compression compressionFor(String path, Supplier<byte[]> sample) {
+        return compressionFor(path, sample, null);
+    }
+
+
+    /**
+     * How to compress the entry at "path", where "previous" is how the same content was compressed the last time.
+     * If the entry would be sampled, and "previous" is what sampling can give, it is used without sampling again.
+     *
+     * @param sample   the start of the entry's content; only used if it needs to be sampled
+     * @param previous how the entry was compressed the last time, if its content has not changed since then
+     */
+    @Nonnull
+    public Compression compressionFor(String path, Supplier<byte[]> sample, @Nullable Compression previous) {
+        for (Rule rule : rules) {
+            if (rule.matches(path)) {
+                if (rule.auto) return sampled(sample, previous);
+                return rule.compression;
+            }
+        }
+        return autoByDefault ? sampled(sample, previous) : Compression.deflated(defaultLevel);
+    }
+
+
+    private Compression sampled(Supplier<byte[]> sample, @Nullable Compression previous) {
+        final Compression deflated = Compression.deflated(defaultLevel);
+        if (Compression.STORED.equals(previous) || deflated.equals(previous)) return previous;
+        return worthDeflating(sample.get(), sampleBytes, minSavingsPercent) ? deflated : Compression.STORED;
+    }
+
+
+    /**
+     * Does (quickly) deflating the first "sampleBytes" of "content" make it at least "minSavingsPercent" smaller?
+     */
+    static boolean worthDeflating(byte[] content, int sampleBytes, int minSavingsPercent) {
+        final int length = Math.min(content.length, sampleBytes);
+        if (length == 0) return false;
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+            try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater)) {
+                deflaterOut.write(content, 0, length);
+            }
+            final long savedPercent = (length - out.size()) * 100L / length;
+            return savedPercent >= minSavingsPercent;
+        }
+        catch (IOException exp) {
+            throw new UncheckedIOException(exp);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * The deflate level (0-9, or -1 for the JDK's default) for entries that do not say otherwise.
+     * Defaults to {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public int getDefaultLevel() {
+        return defaultLevel;
+    }
+
+
+    public void setDefaultLevel(int defaultLevel) {
+        if (defaultLevel < Deflater.DEFAULT_COMPRESSION || defaultLevel > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("defaultLevel must be between -1 and 9: " + defaultLevel);
+        this.defaultLevel = defaultLevel;
+    }
+
+
+    /**
+     * Are the entries that no rule matches decided the same way as {@link #auto(String...)}? Defaults to false.
+     */
+    public boolean isAutoByDefault() {
+        return autoByDefault;
+    }
+
+
+    public void setAutoByDefault(boolean autoByDefault) {
+        this.autoByDefault = autoByDefault;
+    }
+
+
+    /**
+     * How many bytes from the start of an entry are deflated to see if it is worth deflating. Defaults to 64K.
+     */
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+
+    public void setSampleBytes(int sampleBytes) {
+        if (sampleBytes < 1) throw new IllegalArgumentException("sampleBytes must be at least 1: " + sampleBytes);
+        this.sampleBytes = sampleBytes;
+    }
+
+
+    /**
+     * The percentage that deflating the sample has to save for an entry to be deflated. Defaults to 10.
+     */
+    public int getMinSavingsPercent() {
+        return minSavingsPercent;
+    }
+
+
+    public void setMinSavingsPercent(int minSavingsPercent) {
+        if (minSavingsPercent < 0 || minSavingsPercent > 100)
+            throw new IllegalArgumentException("minSavingsPercent must be between 0 and 100: " + minSavingsPercent);
+        this.minSavingsPercent = minSavingsPercent;
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other == null || getClass() != other.getClass()) return false;
+        final CompressionPolicy policy = (CompressionPolicy)other;
+        return defaultLevel == policy.defaultLevel && autoByDefault == policy.autoByDefault &&
+            sampleBytes == policy.sampleBytes && minSavingsPercent == policy.minSavingsPercent &&
+            rules.equals(policy.rules);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rules, defaultLevel, autoByDefault, sampleBytes, minSavingsPercent);
+    }
+
+
+    @Override
+    public String toString() {
+        return "CompressionPolicy{rules=" + rules + ", defaultLevel=" + defaultLevel + ", autoByDefault=" +
+            autoByDefault + ", sampleBytes=" + sampleBytes + ", minSavingsPercent=" + minSavingsPercent + '}';
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    /**
+     * Turns an Ant-style glob ("**" for any number of directories, "*" and "?" within a name) into a regex
+     */
+    static Pattern globPattern(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            }
+            else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            }
+            else {
+                final char c = glob.charAt(i);
+                if (c == '*') regex.append("[^/]*");
+                else if (c == '?') regex.append("[^/]");
+                else regex.append(Pattern.quote(String.valueOf(c)));
+                i++;
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * How an entry is compressed: its zip method, and (if it is deflated) the deflate level
+     */
+    public static final class Compression implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public static final Compression STORED = new Compression(ZipEntry.STORED, 0);
+
+        private final int method;
+        private final int level;
+
+
+        private Compression(int method, int level) {
+            this.method = method;
+            this.level = level;
+        }
+
+
+        @Nonnull
+        public static Compression deflated(int level) {
+            return new Compression(ZipEntry.DEFLATED, level);
+        }
+
+
+        /**
+         * {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+         */
+        public int getMethod() {
+            return method;
+        }
+
+
+        public int getLevel() {
+            return level;
+        }
+
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Compression)) return false;
+            final Compression compression = (Compression)other;
+            return method == compression.method && level == compression.level;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return 31 * method + level;
+        }
+
+
+        @Override
+        public String toString() {
+            return method == ZipEntry.STORED ? "STORED" : "DEFLATED(" + level + ")";
+        }
+    }
+
+    private static final class Rule implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String glob;
+        final Pattern pattern;
+        final Compression compression;
+        final boolean auto;
+
+
+        Rule(String glob, Compression compression, boolean auto) {
+            this.glob = glob;
+            this.pattern = globPattern(glob);
+            this.compression = compression;
+            this.auto = auto;
+        }
+
+
+        boolean matches(String path) {
+            return pattern.matcher(path).matches();
+        }
+
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Rule)) return false;
+            final Rule rule = (Rule)other;
+            return auto == rule.auto && glob.equals(rule.glob) && Objects.equals(compression, rule.compression);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(glob, compression, auto);
+        }
+
+
+        @Override
+        public String toString() {
+            return glob + " -> " + (auto ? "auto" : compression);
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import com.twcable.gradle.sling.SlingServerConfiguration;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Runs an action against a collection of servers, either one server at a time or concurrently with a bounded
+ * number of threads.
+ * <p>
+ * Results are always returned in the same order as the servers were provided so that they can be "and"-ed
+ * together exactly the same way the sequential loops do (see {@link CqPackageHelper#and(com.twcable.gradle.http.HttpResponse, com.twcable.gradle.http.HttpResponse, boolean)}
+ * and {@link CqPackageHelper#and(Status, Status)}).
+ * <p>
+ * When the "stop" predicate matches a result, or an action throws an exception, any servers that have not
+ * started yet are skipped. Actions that are already running are allowed to finish so a server is never left
+ * in the middle of a command.
+ */
+public class ConcurrentServerRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentServerRunner.class);
+
+    /**
+     * A runner that does one server at a time in the calling thread
+     */
+    public static final ConcurrentServerRunner SEQUENTIAL = new ConcurrentServerRunner(1);
+
+    private final int parallelism;
+
+
+    /**
+     * @param parallelism the maximum number of servers to work on at the same time; 1 means sequentially
+     */
+    public ConcurrentServerRunner(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+
+    /**
+     * Runs "action" for every server in "servers". Only an exception will stop it from running on every server.
+     *
+     * @see #run(Iterable, ServerAction, Predicate)
+     */
+    @Nonnull
+    public <T> List<ServerResult<T>> run(Iterable<SlingServerConfiguration> servers, ServerAction<T> action) {
+        return run(servers, action, result -> false);
+    }
+
+
+    /**
+     * Runs "action" for every server in "servers".
+     *
+     * @param servers  the servers to run against
+     * @param action   the action to run for each server
+     * @param stopWhen if this returns true for a result, servers that have not been started are skipped
+     * @return the results in the same order as "servers"; servers that were skipped are not included
+     * @throws RuntimeException the first (in server order) exception thrown by an action
+     */
+    @Nonnull
+    public <T> List<ServerResult<T>> run(Iterable<SlingServerConfiguration> servers,
+                                         ServerAction<T> action,
+                                         Predicate<? super T> stopWhen) {
+        if (servers == null) throw new IllegalArgumentException("servers == null");
+        if (action == null) throw new IllegalArgumentException("action == null");
+        if (stopWhen == null) throw new IllegalArgumentException("stopWhen == null");
+
+        final List<SlingServerConfiguration> serverList = new ArrayList<>();
+        servers.forEach(serverList::add);
+
+        if (parallelism == 1 || serverList.size() <= 1) {
+            return runSequentially(serverList, action, stopWhen);
+        }
+        return runConcurrently(serverList, action, stopWhen);
+    }
+
+
+    private static <T> List<ServerResult<T>> runSequentially(List<SlingServerConfiguration> servers,
+                                                             ServerAction<T> action,
+                                                             Predicate<? super T> stopWhen) {
+        final List<ServerResult<T>> results = new ArrayList<>(servers.size());
+        for (SlingServerConfiguration server : servers) {
+            final ServerResult<T> result = timed(server, action);
+            results.add(result);
+            if (stopWhen.test(result.getValue())) break;
+        }
+        return results;
+    }
+
+
+    private <T> List<ServerResult<T>> runConcurrently(List<SlingServerConfiguration> servers,
+                                                      ServerAction<T> action,
+                                                      Predicate<? super T> stopWhen) {
+        final int threads = Math.min(parallelism, servers.size());
+        LOG.info("Running against {} servers using {} threads", servers.size(), threads);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ServerThreadFactory());
+        final CompletionService<ServerResult<T>> completionService = new ExecutorCompletionService<>(executor);
+        final List<Future<ServerResult<T>>> futures = new ArrayList<>(servers.size());
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        try {
+            for (SlingServerConfiguration server : servers) {
+                // anything that has not started by the time "stopped" is set is skipped (returns null)
+                futures.add(completionService.submit(() -> stopped.get() ? null : timed(server, action)));
+            }
+
+            for (int done = 0; done < servers.size() && !stopped.get(); done++) {
+                final Future<ServerResult<T>> future = completionService.take();
+                try {
+                    final ServerResult<T> result = future.get();
+                    if (result != null && stopWhen.test(result.getValue())) stopped.set(true);
+                }
+                catch (ExecutionException exp) {
+                    stopped.set(true);
+                }
+            }
+
+            // let anything that is in-flight finish
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            final List<ServerResult<T>> results = new ArrayList<>(servers.size());
+            for (Future<ServerResult<T>> future : futures) {
+                try {
+                    final ServerResult<T> result = future.get();
+                    if (result != null) results.add(result);
+                }
+                catch (ExecutionException exp) {
+                    throw rethrow(exp.getCause());
+                }
+            }
+            return results;
+        }
+        catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while running against " + servers, exp);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private static <T> ServerResult<T> timed(SlingServerConfiguration server, ServerAction<T> action) {
+        final long start = System.currentTimeMillis();
+        final T value = action.run(server);
+        return new ServerResult<>(server, value, System.currentTimeMillis() - start);
+    }
+
+
+    private static RuntimeException rethrow(Throwable throwable) {
+        if (throwable instanceof RuntimeException) return (RuntimeException)throwable;
+        if (throwable instanceof Error) throw (Error)throwable;
+        return new GradleException(throwable.getMessage(), throwable);
+    }
+
+
+    @Override
+    public String toString() {
+        return "ConcurrentServerRunner{parallelism=" + parallelism + '}';
+    }
+
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+
+    /**
+     * The action to run against a single server
+     */
+    public interface ServerAction<T> {
+        T run(SlingServerConfiguration serverConfig);
+    }
+
+    /**
+     * The result of running a {@link ServerAction} against a server
+     */
+    public static final class ServerResult<T> {
+        private final SlingServerConfiguration serverConfig;
+        private final @Nullable T value;
+        private final long elapsedMs;
+
+
+        public ServerResult(SlingServerConfiguration serverConfig, @Nullable T value, long elapsedMs) {
+            this.serverConfig = serverConfig;
+            this.value = value;
+            this.elapsedMs = elapsedMs;
+        }
+
+
+        public SlingServerConfiguration getServerConfig() {
+            return serverConfig;
+        }
+
+
+        public @Nullable T getValue() {
+            return value;
+        }
+
+
+        /**
+         * How long, in milliseconds, the action took for this server
+         */
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+
+        @Override
+        public String toString() {
+            return "ServerResult{" + serverConfig.getName() + ": " + value + " in " + elapsedMs + "ms}";
+        }
+    }
+
+    private static final class ServerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+        private final int poolNumber = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "cq-package-" + poolNumber + "-server-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
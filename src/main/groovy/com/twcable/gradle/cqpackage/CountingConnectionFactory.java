@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultHttpResponseParserFactory;
+import org.apache.http.impl.conn.DefaultManagedHttpClientConnection;
+import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the connections for a server's HTTP client so that every byte they send and receive (headers, chunking
+ * and all) is added to the server's {@link RequestStats}.
+ * <p>
+ * The connections are set up the same way as HttpClient's own, except that they do not write to the
+ * "org.apache.http.wire" and "org.apache.http.headers" logs.
+ *
+ * @see HttpClientPool
+ */
+final class CountingConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final RequestStats stats;
+
+
+    CountingConnectionFactory(RequestStats stats) {
+        if (stats == null) throw new IllegalArgumentException("stats == null");
+        this.stats = stats;
+    }
+
+
+    @Override
+    public ManagedHttpClientConnection create(HttpRoute route, @Nullable ConnectionConfig config) {
+        final ConnectionConfig connectionConfig = config != null ? config : ConnectionConfig.DEFAULT;
+
+        CharsetDecoder charDecoder = null;
+        CharsetEncoder charEncoder = null;
+        final Charset charset = connectionConfig.getCharset();
+        if (charset != null) {
+            final CodingErrorAction malformedInputAction = connectionConfig.getMalformedInputAction() != null ?
+                connectionConfig.getMalformedInputAction() : CodingErrorAction.REPORT;
+            final CodingErrorAction unmappableInputAction = connectionConfig.getUnmappableInputAction() != null ?
+                connectionConfig.getUnmappableInputAction() : CodingErrorAction.REPORT;
+            charDecoder = charset.newDecoder().
+                onMalformedInput(malformedInputAction).
+                onUnmappableCharacter(unmappableInputAction);
+            charEncoder = charset.newEncoder().
+                onMalformedInput(malformedInputAction).
+                onUnmappableCharacter(unmappableInputAction);
+        }
+
+        return new CountingConnection("cq-http-" + COUNTER.incrementAndGet(), connectionConfig, charDecoder,
+            charEncoder, stats);
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    private static final class CountingConnection extends DefaultManagedHttpClientConnection {
+        private final RequestStats stats;
+
+
+        CountingConnection(String id, ConnectionConfig config, @Nullable CharsetDecoder charDecoder,
+                           @Nullable CharsetEncoder charEncoder, RequestStats stats) {
+            super(id, config.getBufferSize(), config.getFragmentSizeHint(), charDecoder, charEncoder,
+                config.getMessageConstraints(), null, null, DefaultHttpRequestWriterFactory.INSTANCE,
+                DefaultHttpResponseParserFactory.INSTANCE);
+            this.stats = stats;
+        }
+
+
+        @Override
+        protected InputStream getSocketInputStream(Socket socket) throws IOException {
+            return new CountingInputStream(super.getSocketInputStream(socket), stats);
+        }
+
+
+        @Override
+        protected OutputStream getSocketOutputStream(Socket socket) throws IOException {
+            return new CountingOutputStream(super.getSocketOutputStream(socket), stats);
+        }
+    }
+
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final RequestStats stats;
+
+
+        CountingInputStream(InputStream in, RequestStats stats) {
+            super(in);
+            this.stats = stats;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) stats.addBytesReceived(1);
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count > 0) stats.addBytesReceived(count);
+            return count;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long count = super.skip(n);
+            if (count > 0) stats.addBytesReceived(count);
+            return count;
+        }
+    }
+
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final RequestStats stats;
+
+
+        CountingOutputStream(OutputStream out, RequestStats stats) {
+            super(out);
+            this.stats = stats;
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            stats.addBytesSent(1);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            stats.addBytesSent(len);
+        }
+    }
+
+}
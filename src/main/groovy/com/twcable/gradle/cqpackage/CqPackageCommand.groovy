@@ -17,7 +17,6 @@ package com.twcable.gradle.cqpackage
 
 import com.twcable.gradle.http.HttpResponse
 import com.twcable.gradle.sling.SlingServerConfiguration
-import com.twcable.gradle.sling.SlingSupport
 import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
@@ -25,6 +24,7 @@ import org.apache.jackrabbit.vault.packaging.PackageId
 import org.gradle.api.GradleException
 
 import javax.annotation.Nonnull
+import javax.annotation.Nullable
 
 import static com.twcable.gradle.cqpackage.SuccessOrFailure.success
 import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
@@ -56,6 +56,27 @@ class CqPackageCommand {
         return doCommand(commandName, packageName, slingPackageSupport, EMPTY_MAP, successFalseHandler)
     }
 
+    /**
+     * Send a command to the server.
+     *
+     * @param commandName the command to send
+     * @param packageId the package to act on; its group and version (when it has them) pick which of the packages
+     *                  with its name on the server to act on
+     * @param slingPackageSupport the configuration of the server to talk to
+     * @param successFalseHandler if the JSON returned has "success: false" then "successFalseHandler" will be
+     *                            invoked to try to recover; if successFalseHandler returns UNKNOWN then
+     *                            a GradleException is thrown
+     *
+     * @return the Status of invoking the command
+     */
+    @Nonnull
+    static Status doCommand(String commandName,
+                            PackageId packageId,
+                            SlingPackageSupport slingPackageSupport,
+                            SuccessFalseHandler successFalseHandler) {
+        return doCommand(commandName, packageId, slingPackageSupport, EMPTY_MAP, successFalseHandler)
+    }
+
     /**
      * Send a command to the server.
      *
@@ -75,24 +96,71 @@ class CqPackageCommand {
                             SlingPackageSupport slingPackageSupport,
                             Map postParams,
                             SuccessFalseHandler successFalseHandler) {
-        if (!slingPackageSupport.active) throw new IllegalArgumentException("The server configuration for ${slingPackageSupport.packageServerConf.serverConf.name} is not active")
+        return doCommand(commandName, PackageId.fromString(packageName), slingPackageSupport, postParams, successFalseHandler)
+    }
 
-        final packageUriSF = packageURI(commandName, packageName, slingPackageSupport)
-        if (packageUriSF.failed()) return packageUriSF.error
-        final URI uri = packageUriSF.value
+    /**
+     * Send a command to the server.
+     *
+     * @param commandName the command to send
+     * @param packageId the package to act on; its group and version (when it has them) pick which of the packages
+     *                  with its name on the server to act on
+     * @param slingPackageSupport the configuration of the server to talk to
+     * @param postParams the fields to pass in the POST
+     * @param successFalseHandler if the JSON returned has "success: false" then "successFalseHandler" will be
+     *                            invoked to try to recover; if successFalseHandler returns UNKNOWN then
+     *                            a GradleException is thrown
+     *
+     * @return the Status of invoking the command
+     */
+    @Nonnull
+    static Status doCommand(String commandName,
+                            PackageId packageId,
+                            SlingPackageSupport slingPackageSupport,
+                            Map postParams,
+                            SuccessFalseHandler successFalseHandler) {
+        final packageName = packageId.name
+        final serverConf = slingPackageSupport.packageServerConf.serverConf
+        final serverHealth = slingPackageSupport.serverHealth
+        if (serverHealth != null && !serverHealth.allowRequest(serverConf)) {
+            log.warn "Skipping ${commandName} of ${packageName} on ${serverConf.name}: it is not responding"
+            return Status.SERVER_TIMEOUT
+        }
 
-        final resp = blockAndPost(slingPackageSupport, uri, postParams)
+        try {
+            if (!slingPackageSupport.active) throw new IllegalArgumentException("The server configuration for ${serverConf.name} is not active")
 
-        if (resp.code == HTTP_OK) {
-            return handleHttpOk(commandName, packageName, resp, slingPackageSupport.packageServerConf.serverConf, successFalseHandler)
-        }
-        else if (resp.code == HTTP_CLIENT_TIMEOUT) {
-            log.error(resp.body)
-            slingPackageSupport.active = false
-            return Status.SERVER_TIMEOUT
+            // the package on the server that is acted on, which is the latest version if there is not an exact match
+            RuntimePackageProperties packageInfo = null
+            if (commandName != "upload") {
+                final packageInfoSF = RuntimePackageProperties.packageProperties(slingPackageSupport, packageId)
+                if (packageInfoSF.failed()) return packageInfoSF.error
+                packageInfo = packageInfoSF.value
+            }
+            final URI uri = commandURI(commandName, packageInfo, slingPackageSupport)
+
+            final resp = blockAndPost(commandName, slingPackageSupport, uri, postParams)
+
+            if (resp.code == HTTP_OK) {
+                serverHealth?.recordSuccess(serverConf)
+                final status = handleHttpOk(commandName, packageName, resp, serverConf, successFalseHandler)
+                updatePackageListCache(commandName, packageInfo?.id ?: packageId, slingPackageSupport, status)
+                return status
+            }
+            else if (resp.code == HTTP_CLIENT_TIMEOUT) {
+                log.error(resp.body)
+                if (serverHealth != null) serverHealth.recordFailure(serverConf)
+                else slingPackageSupport.active = false
+                return Status.SERVER_TIMEOUT
+            }
+            else {
+                serverHealth?.recordFailure(serverConf)
+                throw new GradleException("Could not ${commandName} '${packageName}': ${resp.code} - ${resp.body}")
+            }
         }
-        else {
-            throw new GradleException("Could not ${commandName} '${packageName}': ${resp.code} - ${resp.body}")
+        finally {
+            // for when it returned or threw before hearing back from the server
+            serverHealth?.release(serverConf)
         }
     }
 
@@ -100,17 +168,60 @@ class CqPackageCommand {
     static SuccessOrFailure<URI> packageURI(String commandName,
                                             String packageName,
                                             SlingPackageSupport slingPackageSupport) {
-        def packageServerConfig = slingPackageSupport.packageServerConf
+        return packageURI(commandName, PackageId.fromString(packageName), slingPackageSupport)
+    }
 
+
+    static SuccessOrFailure<URI> packageURI(String commandName,
+                                            PackageId packageId,
+                                            SlingPackageSupport slingPackageSupport) {
         if (commandName != "upload") {
-            final packageInfoSF = RuntimePackageProperties.packageProperties(slingPackageSupport, PackageId.fromString(packageName))
+            final packageInfoSF = RuntimePackageProperties.packageProperties(slingPackageSupport, packageId)
             if (packageInfoSF.failed()) return SuccessOrFailure.failure(packageInfoSF.error)
-            def packageInfo = packageInfoSF.value
+            return success(commandURI(commandName, packageInfoSF.value, slingPackageSupport))
+        }
+        else {
+            return success(commandURI(commandName, null, slingPackageSupport))
+        }
+    }
+
+
+    /**
+     * The URI to send the command to: the package's own path, or the package manager itself when there is no
+     * package on the server yet (for an upload)
+     */
+    private static URI commandURI(String commandName,
+                                  @Nullable RuntimePackageProperties packageInfo,
+                                  SlingPackageSupport slingPackageSupport) {
+        def packageServerConfig = slingPackageSupport.packageServerConf
+
+        if (packageInfo != null) {
+            return URI.create("${packageServerConfig.packageControlUri}${packageInfo.path}?cmd=${commandName}")
+        }
+        else {
+            return URI.create("${packageServerConfig.packageControlUri}?cmd=${commandName}")
+        }
+    }
+
+
+    /**
+     * Keeps the build's cache of the server's packages in sync with what the command did to the server.
+     * A successful delete is applied to the cached listing directly; every other command causes the listing to be
+     * retrieved again the next time it is needed.
+     */
+    private static void updatePackageListCache(String commandName,
+                                               PackageId packageId,
+                                               SlingPackageSupport slingPackageSupport,
+                                               Status status) {
+        final cache = slingPackageSupport.packageListCache
+        if (cache == null) return
 
-            return success(URI.create("${packageServerConfig.packageControlUri}${packageInfo.path}?cmd=${commandName}"))
+        final packageListUri = slingPackageSupport.packageServerConf.packageListUri
+        if (commandName == "delete" && status == Status.OK) {
+            cache.removePackage(packageListUri, packageId)
         }
         else {
-            return success(URI.create("${packageServerConfig.packageControlUri}?cmd=${commandName}"))
+            cache.invalidate(packageListUri)
         }
     }
 
@@ -136,19 +247,20 @@ class CqPackageCommand {
     }
 
 
-    private static HttpResponse blockAndPost(SlingPackageSupport packageSupport,
+    private static HttpResponse blockAndPost(String commandName, SlingPackageSupport packageSupport,
                                              URI uri, Map postParams) {
         def packageServerConf = packageSupport.packageServerConf
-        def maxWaitMs = packageServerConf.maxWaitMs
-        def retryWaitMs = packageServerConf.retryWaitMs
 
         HttpResponse resp
 
-        SlingSupport.block(
-            maxWaitMs,
+        Polling.poll(
+            commandName,
+            packageServerConf.serverConf.name,
+            packageServerConf.maxWaitMs,
+            packageServerConf.pollingPolicy,
+            packageSupport.pollStats,
             { ![HTTP_OK, HTTP_CLIENT_TIMEOUT].contains(resp?.code) },
-            { resp = doPost(packageSupport, uri, postParams) },
-            retryWaitMs
+            { resp = doPost(packageSupport, uri, postParams) }
         )
         return resp
     }
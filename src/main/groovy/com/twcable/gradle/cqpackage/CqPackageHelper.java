@@ -16,7 +16,6 @@
 package com.twcable.gradle.cqpackage;
 
 import com.twcable.gradle.http.HttpResponse;
-import com.twcable.gradle.sling.SimpleSlingSupportFactory;
 import com.twcable.gradle.sling.SlingServerConfiguration;
 import com.twcable.gradle.sling.SlingServersConfiguration;
 import com.twcable.gradle.sling.SlingSupport;
@@ -26,12 +25,9 @@ import com.twcable.gradle.sling.osgi.SlingBundleConfiguration;
 import com.twcable.gradle.sling.osgi.SlingBundleSupport;
 import groovy.json.JsonSlurper;
 import lombok.val;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.jackrabbit.vault.packaging.PackageId;
 import org.apache.jackrabbit.vault.packaging.PackageManager;
 import org.apache.jackrabbit.vault.packaging.PackageProperties;
@@ -48,35 +44,40 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
-import static com.twcable.gradle.sling.osgi.BundleState.ACTIVE;
-import static com.twcable.gradle.sling.osgi.BundleState.FRAGMENT;
-import static com.twcable.gradle.sling.osgi.BundleState.INSTALLED;
-import static com.twcable.gradle.sling.osgi.BundleState.MISSING;
 import static com.twcable.gradle.sling.osgi.BundleState.RESOLVED;
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_OK;
@@ -89,13 +90,40 @@ public class CqPackageHelper {
     private static final Logger LOG = LoggerFactory.getLogger(CqPackageHelper.class);
 
     public static final String NAME = "cqPkgHelper";
+    private static final long DOWNLOAD_WATCHDOG_INTERVAL_MS = 100;
     private final Project project;
     private PackageManager packageManager = new PackageManagerImpl();
+    private int serverParallelism = 1;
+    private boolean narrowPackageListQueries = true;
+    private boolean skipUnchangedPackages = false;
+    private final Map<String, Boolean> unchangedServers = new ConcurrentHashMap<>();
+    private @Nullable String packageDigest;
+    private int uploadAttempts = 3;
+    private final Map<String, UploadProgress> uploadResults = new ConcurrentHashMap<>();
+    private final Map<String, PackageId> packageIds = new ConcurrentHashMap<>();
+    private int symbolicNamesCacheSize = 1000;
+    private @Nullable PollingPolicy pollingPolicy;
+    private final Map<String, PollingPolicy> serverPollingPolicies = new ConcurrentHashMap<>();
+    private final List<PollStats> pollStats = Collections.synchronizedList(new ArrayList<>());
+    private @Nullable File deploymentHistoryDir;
+    private final List<RolloutWave> rolloutWaves = Collections.synchronizedList(new ArrayList<>());
+    private boolean batchBundleUninstalls = false;
+    private int bundleParallelism = 4;
+    private int perBundlePollingLimit = 20;
+    private long validationTimeoutMs = 0;
+    private @Nullable CreateDeltaPackageTask deltaPackageTask;
+    private @Nullable SymbolicNamesCache symbolicNamesCache;
+    private final PackageListCache packageListCache;
+    private final HttpClientPool httpClientPool;
+    private final ServerHealthRegistry serverHealth;
 
 
     public CqPackageHelper(Project project) {
         if (project == null) throw new GradleException("project == null");
         this.project = project;
+        this.packageListCache = PackageListCache.forProject(project);
+        this.httpClientPool = HttpClientPool.forProject(project);
+        this.serverHealth = ServerHealthRegistry.forProject(project);
     }
 
 
@@ -105,25 +133,361 @@ public class CqPackageHelper {
 
 
     /**
-     * Returns the package name. Uses the project's name.
+     * Returns the package name. Uses the project's name, or the name of its delta if one is being created (see
+     * {@link #getDeltaPackageTask()}).
      */
     public String getPackageName() {
-        return project.getName();
+        if (deltaPackageTask == null) return project.getName();
+        return deltaPackageTask.getDeltaPackageName();
+    }
+
+
+    /**
+     * Returns the id of the package, read from the package file (see {@link UploadPackage#getThePackageFile(Project)})
+     * so that it has the package's group and version. Without those, a server with packages of the same name in
+     * other groups, or other versions, could have one of those acted on instead. If there is no package file to read,
+     * only {@link #getPackageName()} is used.
+     */
+    public PackageId getPackageId() {
+        final File packageFile;
+        try {
+            packageFile = UploadPackage.getThePackageFile(project);
+        }
+        catch (IllegalStateException exp) {
+            LOG.info("Looking up {} by name only: {}", getPackageName(), exp.getMessage());
+            return PackageId.fromString(getPackageName());
+        }
+        return packageIdOf(packageFile);
+    }
+
+
+    /**
+     * The id of the package in "packageFile". The ids are remembered for the build, for as long as the file stays
+     * the same.
+     */
+    private PackageId packageIdOf(File packageFile) {
+        final String key = packageFile.getAbsolutePath() + '@' + packageFile.lastModified() + '/' + packageFile.length();
+        final PackageId cached = packageIds.get(key);
+        if (cached != null) return cached;
+
+        try {
+            final PackageId packageId = packageId(packageFile);
+            packageIds.put(key, packageId);
+            return packageId;
+        }
+        catch (IOException exp) {
+            LOG.info("Looking up {} by name only, since {} could not be read: {}", getPackageName(), packageFile, exp.toString());
+            return PackageId.fromString(getPackageName());
+        }
+    }
+
+
+    /**
+     * Is "packageName" one of the project's deltas? (see {@link CreateDeltaPackageTask})
+     */
+    public boolean isDelta(String packageName) {
+        return packageName.startsWith(DeltaPackage.deltaPrefix(project.getName()));
     }
 
 
     public void installPackage(SlingPackageSupportFactory factory) {
-        InstallPackage.install(getPackageName(), slingServersConfiguration(), factory);
+        final String packageName = getPackageName();
+        final SlingPackageSupportFactory buildScopedFactory = buildScoped(factory);
+        deltaInstalled(packageName, InstallPackage.install(getPackageId(), serversToChange(factory, "install"),
+            buildScopedFactory, getServerRunner()), buildScopedFactory);
     }
 
 
+    /**
+     * Uninstalls the package from the servers. A delta is not uninstalled: uninstalling it would put back what was
+     * there before it was first installed, undoing the deltas installed since then.
+     */
     public void uninstallPackage(SlingPackageSupportFactory factory) {
-        UninstallPackage.uninstall(getPackageName(), slingServersConfiguration(), factory);
+        final String packageName = getPackageName();
+        if (isDelta(packageName)) {
+            project.getLogger().lifecycle("Not uninstalling {}: uninstalling a delta would undo the deltas installed after it", packageName);
+            return;
+        }
+        UninstallPackage.uninstall(getPackageId(), serversToChange(factory, "uninstall"), buildScoped(factory), getServerRunner());
     }
 
 
     public void deletePackage(SlingPackageSupportFactory factory) {
-        DeletePackage.delete(getPackageName(), slingServersConfiguration(), factory);
+        DeletePackage.delete(getPackageId(), serversToChange(factory, "delete"), buildScoped(factory), getServerRunner());
+    }
+
+
+    /**
+     * Rolls the package out to the servers in the waves given by "plan". For each wave, the package is uninstalled,
+     * removed, uploaded and installed on its servers, and then the bundles in "gateBundles" have to become ACTIVE
+     * on all of them before the next wave is started. A delta is not uninstalled (see
+     * {@link #uninstallPackage(SlingPackageSupportFactory)}).
+     * <p>
+     * How long each wave took is logged, and is available from {@link #getRolloutWaves()}.
+     *
+     * @param factory     strategy for creating SlingPackageSupport instances
+     * @param plan        how to split the servers into waves
+     * @param gateBundles the symbolic names of the bundles to check after each wave; if null then all the bundles
+     *                    on the servers are checked
+     * @return how each wave went
+     * @throws GradleException if a wave could not be uploaded to, or its bundles did not become ACTIVE (including a
+     *                         server that timed out, unless {@link RolloutPlan#isTimedOutServersPass()}); the waves
+     *                         after it are not started
+     */
+    public List<RolloutWave> rolloutPackage(SlingPackageSupportFactory factory, RolloutPlan plan,
+                                            @Nullable Collection<String> gateBundles) {
+        if (factory == null) throw new IllegalArgumentException("factory == null");
+        if (plan == null) throw new IllegalArgumentException("plan == null");
+        final File sourceFile = UploadPackage.getThePackageFile(project);
+        final String packageName = getPackageName();
+        final PackageId packageId = packageIdOf(sourceFile);
+
+        final SlingPackageSupportFactory buildScopedFactory = buildScoped(factory);
+        final ConcurrentServerRunner serverRunner = plan.getParallelism() == 1 ?
+            ConcurrentServerRunner.SEQUENTIAL : new ConcurrentServerRunner(plan.getParallelism());
+
+        uploadResults.clear();
+        rolloutWaves.clear();
+        final List<ConcurrentServerRunner.ServerResult<Status>> installResults = new ArrayList<>();
+        final List<List<SlingServerConfiguration>> waves = plan.waves(serversToChange(factory, "rollout"));
+        logUnchangedServers(sourceFile);
+        project.getLogger().lifecycle("Rolling out {} in {} wave(s) using {}", sourceFile.getName(), waves.size(), plan);
+
+        for (int i = 0; i < waves.size(); i++) {
+            final List<SlingServerConfiguration> wave = waves.get(i);
+            final List<String> serverNames = wave.stream().
+                map(SlingServerConfiguration::getName).
+                collect(Collectors.toList());
+
+            final long deployStart = System.currentTimeMillis();
+            if (!isDelta(packageName)) UninstallPackage.uninstall(packageId, wave, buildScopedFactory, serverRunner);
+            DeletePackage.delete(packageId, wave, buildScopedFactory, serverRunner);
+            final Status uploadStatus = upload(sourceFile, wave, buildScopedFactory, serverRunner);
+            if (!Status.OK.equals(uploadStatus)) {
+                throw new GradleException("Stopping the rollout of " + packageName + ": could not upload to wave " +
+                    (i + 1) + " " + serverNames + ": " + uploadStatus.getName());
+            }
+            installResults.addAll(InstallPackage.install(packageId, wave, buildScopedFactory, serverRunner));
+            final long deployMs = System.currentTimeMillis() - deployStart;
+
+            final long validateStart = System.currentTimeMillis();
+            final List<ConcurrentServerRunner.ServerResult<HttpResponse>> results = serverRunner.run(wave, serverConfig ->
+                validateGate(gateBundles, serverConfig, buildScopedFactory));
+            HttpResponse gate = new HttpResponse(HTTP_OK, "");
+            for (ConcurrentServerRunner.ServerResult<HttpResponse> result : results) {
+                HttpResponse resp = result.getValue();
+                if (resp.getCode() == HTTP_CLIENT_TIMEOUT && !plan.isTimedOutServersPass()) {
+                    resp = new HttpResponse(HTTP_GATEWAY_TIMEOUT, result.getServerConfig().getName() + " did not answer: " + resp.getBody());
+                }
+                gate = and(gate, resp, false);
+            }
+            final long validateMs = System.currentTimeMillis() - validateStart;
+
+            final RolloutWave rolloutWave = new RolloutWave(i + 1, serverNames, deployMs, validateMs, !isBadResponse(gate.getCode(), false));
+            rolloutWaves.add(rolloutWave);
+            project.getLogger().lifecycle("Rolled out {} to {}", packageName, rolloutWave);
+
+            if (!rolloutWave.isBundlesActive()) {
+                throw new GradleException("Stopping the rollout of " + packageName + " after wave " + (i + 1) +
+                    ": " + gate.getBody());
+            }
+        }
+
+        deltaInstalled(packageName, installResults, buildScopedFactory);
+        return getRolloutWaves();
+    }
+
+
+    /**
+     * If a delta is being used (see {@link #getDeltaPackageTask()}), tidies up after installing it: the older deltas
+     * are removed from the servers it was installed on (if {@link CreateDeltaPackageTask#isRemoveOldDeltas()}), and if
+     * it was installed on all of them, the package becomes the reference for the next delta (if
+     * {@link CreateDeltaPackageTask#isUpdateReference()}).
+     */
+    private void deltaInstalled(String packageName, List<ConcurrentServerRunner.ServerResult<Status>> installResults,
+                                SlingPackageSupportFactory factory) {
+        final CreateDeltaPackageTask deltaTask = deltaPackageTask;
+        if (deltaTask == null) return;
+
+        boolean installedEverywhere = true;
+        for (ConcurrentServerRunner.ServerResult<Status> result : installResults) {
+            if (!Status.OK.equals(result.getValue())) {
+                installedEverywhere = false;
+            }
+            else if (deltaTask.isRemoveOldDeltas()) {
+                removeOldDeltas(packageName, factory.create(result.getServerConfig()));
+            }
+        }
+
+        if (!deltaTask.isUpdateReference()) return;
+        if (installedEverywhere) {
+            deltaTask.makePackageTheReference();
+        }
+        else {
+            project.getLogger().warn("{} was not installed on every server, so the reference package was not " +
+                "updated; the next delta will still have everything in this one", packageName);
+        }
+    }
+
+
+    /**
+     * Removes the deltas other than "packageName" from the server. They are not uninstalled first, so what they
+     * installed stays in place.
+     */
+    private void removeOldDeltas(String packageName, SlingPackageSupport packageSupport) {
+        final SlingServerConfiguration serverConf = packageSupport.getPackageServerConf().serverConf;
+        final SuccessOrFailure<PackageListing> listingSF = ListPackages.packageListing(packageSupport);
+        if (listingSF.failed()) {
+            LOG.warn("Could not list the packages on {} to remove the old deltas: {}", serverConf.getName(), listingSF.getError());
+            return;
+        }
+
+        // only the ids are needed, so the full properties of every package on the server are not built
+        for (PackageId packageId : listingSF.getValue().getPackageIds()) {
+            final String name = packageId.getName();
+            if (isDelta(name) && !name.equals(packageName)) {
+                LOG.info("Removing the old delta {} from {}", name, serverConf.getName());
+                DeletePackage.consumeStatus(DeletePackage.delete(packageId, packageSupport), name, serverConf);
+            }
+        }
+    }
+
+
+    /**
+     * Checks that the bundles are ACTIVE on a server in a rollout wave, going through the
+     * {@link ServerHealthRegistry} like the other requests to the server
+     *
+     * @return HTTP_CLIENT_TIMEOUT (408) if the server did not answer or is not responding
+     */
+    private HttpResponse validateGate(@Nullable Collection<String> gateBundles, SlingServerConfiguration serverConfig,
+                                      SlingPackageSupportFactory factory) {
+        if (!serverHealth.allowRequest(serverConfig)) {
+            LOG.warn("Could not check the bundles on {}: it is not responding", serverConfig.getName());
+            return new HttpResponse(HTTP_CLIENT_TIMEOUT, serverConfig.getName() + " is not responding");
+        }
+
+        try {
+            final boolean wasActive = SlingPackageSupport.isActive(serverConfig);
+            final HttpResponse resp = validateAllBundles(gateBundles, factory.create(serverConfig).getSlingSupport(),
+                pollingPolicy(serverConfig), pollStats, perBundlePollingLimit, bundleParallelism);
+            recordHealth(serverConfig, serverHealth, wasActive, resp);
+            return resp;
+        }
+        catch (RuntimeException exp) {
+            recordHealth(serverConfig, serverHealth, exp);
+            throw exp;
+        }
+        finally {
+            serverHealth.release(serverConfig);
+        }
+    }
+
+
+    /**
+     * Calls {@link #rolloutPackage(SlingPackageSupportFactory, RolloutPlan, Collection)} with the symbolic names
+     * of the bundles in "bundleFiles"
+     */
+    public List<RolloutWave> rolloutPackage(SlingPackageSupportFactory factory, RolloutPlan plan, FileCollection bundleFiles) {
+        return rolloutPackage(factory, plan, symbolicNames(bundleFiles));
+    }
+
+
+    /**
+     * How each wave of the last {@link #rolloutPackage(SlingPackageSupportFactory, RolloutPlan, Collection) rollout}
+     * went
+     */
+    public List<RolloutWave> getRolloutWaves() {
+        synchronized (rolloutWaves) {
+            return new ArrayList<>(rolloutWaves);
+        }
+    }
+
+
+    /**
+     * Wraps "factory" so that the {@link SlingPackageSupport} instances it creates share the build's state, such as
+     * the {@link PackageListCache}.
+     */
+    private SlingPackageSupportFactory buildScoped(SlingPackageSupportFactory factory) {
+        return serverConfig -> buildScoped(factory.create(serverConfig));
+    }
+
+
+    private SlingPackageSupport buildScoped(SlingPackageSupport packageSupport) {
+        packageSupport.setPackageListCache(packageListCache);
+        packageSupport.setNarrowPackageListQueries(narrowPackageListQueries);
+        packageSupport.setPollStats(pollStats);
+        packageSupport.setServerHealth(serverHealth);
+        val packageServerConf = packageSupport.getPackageServerConf();
+        packageServerConf.setPollingPolicy(pollingPolicy(packageServerConf.serverConf));
+        return packageSupport;
+    }
+
+
+    /**
+     * Returns the servers that the package should be changed on.
+     * <p>
+     * That is every server, unless {@link #isSkipUnchangedPackages()} is set and the package is being uploaded in
+     * this build, in which case the servers that already have exactly the same package installed are left out.
+     * That is decided once per build, before anything is changed, so that uninstalling the bundles, uninstall,
+     * delete, upload and install all skip the same servers.
+     *
+     * @param factory used to check the servers
+     * @param action what is going to be done to the package, for reporting the servers that are skipped
+     */
+    private Iterable<SlingServerConfiguration> serversToChange(SlingPackageSupportFactory factory, String action) {
+        final SlingServersConfiguration servers = slingServersConfiguration();
+        if (!skipUnchangedPackages || !isUploadingPackage()) return servers;
+
+        final File packageFile;
+        final PackageId packageId;
+        try {
+            packageFile = UploadPackage.getThePackageFile(project);
+            packageId = packageId(packageFile);
+        }
+        catch (IllegalStateException | IOException exp) {
+            LOG.info("Can not check for unchanged servers: {}", exp.getMessage());
+            return servers;
+        }
+
+        final List<SlingServerConfiguration> serversToChange = new ArrayList<>();
+        for (SlingServerConfiguration serverConfig : servers) {
+            final boolean unchanged = unchangedServers.computeIfAbsent(serverConfig.getName(), name ->
+                UnchangedPackages.isUnchanged(packageFile, packageId, packageDigest(packageFile), buildScoped(factory.create(serverConfig))));
+            if (unchanged) {
+                project.getLogger().lifecycle("Skipping {} of {} on {}: it is unchanged", action, packageId, serverConfig.getName());
+            }
+            else {
+                serversToChange.add(serverConfig);
+            }
+        }
+        return serversToChange;
+    }
+
+
+    private synchronized String packageDigest(File packageFile) {
+        if (packageDigest == null) packageDigest = PackageDigest.digest(packageFile);
+        return packageDigest;
+    }
+
+
+    private boolean isUploadingPackage() {
+        val taskGraph = project.getGradle().getTaskGraph();
+        return project.getTasks().withType(UploadPackageTask.class).stream().anyMatch(taskGraph::hasTask) ||
+            project.getTasks().withType(RolloutPackageTask.class).stream().anyMatch(taskGraph::hasTask);
+    }
+
+
+    /**
+     * The names of the servers that were skipped because they already had the package.
+     *
+     * @see #isSkipUnchangedPackages()
+     */
+    public List<String> getUnchangedServers() {
+        return unchangedServers.entrySet().stream().
+            filter(Map.Entry::getValue).
+            map(Map.Entry::getKey).
+            sorted().
+            collect(Collectors.toList());
     }
 
 
@@ -133,13 +497,12 @@ public class CqPackageHelper {
      * @return null only if the server timed out (in which case "active" is disabled on the passed serverConfig)
      */
     public @Nullable Collection<RuntimePackageProperties> listPackages(SlingPackageSupport slingPackageSupport) {
-        SlingServerConfiguration serverConf = slingPackageSupport.getPackageServerConf().serverConf;
-        if (!serverConf.getActive()) return null;
+        if (!slingPackageSupport.isActive()) return null;
 
         final SuccessOrFailure<Collection<RuntimePackageProperties>> packagesSF = ListPackages.listPackages(slingPackageSupport);
         if (packagesSF.getError() != null) {
             if (Status.SERVER_TIMEOUT.equals(packagesSF.getError())) {
-                serverConf.setActive(false);
+                slingPackageSupport.setActive(false);
                 return null;
             }
             else {
@@ -153,6 +516,8 @@ public class CqPackageHelper {
 
     /**
      * Uploads the Package for the current Project to all the servers.
+     * <p>
+     * Servers are done {@link #getServerParallelism()} at a time.
      *
      * @param factory strategy for creating SlingPackageSupport instances
      * @return the "aggregated" status: {@link Status#OK}, {@link PackageStatus#UNRESOLVED_DEPENDENCIES} or {@link PackageStatus#NO_PACKAGE}
@@ -162,21 +527,84 @@ public class CqPackageHelper {
         if (factory == null) throw new IllegalArgumentException("factory == null");
         File sourceFile = UploadPackage.getThePackageFile(project);
 
-        final SlingServersConfiguration slingServersConfiguration = slingServersConfiguration();
+        uploadResults.clear();
+        final Iterable<SlingServerConfiguration> servers = serversToChange(factory, "upload");
+        logUnchangedServers(sourceFile);
+
+        return upload(sourceFile, servers, buildScoped(factory), getServerRunner());
+    }
+
+
+    private void logUnchangedServers(File sourceFile) {
+        if (skipUnchangedPackages) {
+            val unchanged = getUnchangedServers();
+            project.getLogger().lifecycle("Servers skipped because they already have {}: {}", sourceFile.getName(),
+                unchanged.isEmpty() ? "none" : String.join(", ", unchanged));
+        }
+    }
+
+
+    private Status upload(File sourceFile, Iterable<SlingServerConfiguration> servers,
+                          SlingPackageSupportFactory buildScopedFactory, ConcurrentServerRunner serverRunner) {
+        final List<ConcurrentServerRunner.ServerResult<Status>> results = serverRunner.run(servers,
+            serverConfig -> upload(sourceFile, buildScopedFactory.create(serverConfig)),
+            uploadStatus -> !Status.OK.equals(and(Status.OK, uploadStatus)));
 
         Status status = PackageStatus.OK;
-        Iterator<SlingServerConfiguration> serversIter = slingServersConfiguration.iterator();
-        while (serversIter.hasNext() && status.equals(Status.OK)) {
-            SlingServerConfiguration serverConfig = serversIter.next();
-            Status uploadStatus = UploadPackage.upload(sourceFile, false, factory.create(serverConfig), packageManager);
-            if (uploadStatus.equals(PackageStatus.UNRESOLVED_DEPENDENCIES) || uploadStatus.equals(PackageStatus.NO_PACKAGE))
-                status = uploadStatus;
+        for (ConcurrentServerRunner.ServerResult<Status> result : results) {
+            val progress = uploadResults.get(result.getServerConfig().getName());
+            if (progress != null && progress.getAttempts() > 0) {
+                project.getLogger().lifecycle("Uploaded {} to {}: {}", sourceFile.getName(), progress.getServerName(), progress.summary());
+            }
+            status = and(status, result.getValue());
         }
+        return status;
+    }
+
 
+    private Status upload(File sourceFile, SlingPackageSupport packageSupport) {
+        final UploadPackage.UploadResult uploadResult = UploadPackage.upload(sourceFile, false, packageSupport,
+            packageManager, uploadAttempts, project);
+        uploadResults.put(uploadResult.getProgress().getServerName(), uploadResult.getProgress());
+
+        final Status status = uploadResult.getStatus();
+        if (skipUnchangedPackages && Status.OK.equals(status)) {
+            try {
+                UnchangedPackages.recordDigest(packageId(sourceFile), packageDigest(sourceFile), packageSupport);
+            }
+            catch (IOException exp) {
+                LOG.warn("Could not store the digest of " + sourceFile + ": " + exp);
+            }
+        }
         return status;
     }
 
 
+    /**
+     * How each server's upload went in the last call to {@link #uploadPackage(SlingPackageSupportFactory)},
+     * keyed by the name of the server. Servers that were not uploaded to are not included.
+     */
+    public Map<String, UploadProgress> getUploadResults() {
+        return Collections.unmodifiableMap(uploadResults);
+    }
+
+
+    /**
+     * Combines the status of uploading to two servers.
+     * <p>
+     * Once the first status is not {@link Status#OK} it "wins." Otherwise the second status is returned if it is
+     * {@link PackageStatus#UNRESOLVED_DEPENDENCIES} or {@link PackageStatus#NO_PACKAGE}. Anything else
+     * (such as a server not being available) is not considered to be a failure.
+     */
+    public static Status and(@Nullable Status first, @Nullable Status second) {
+        if (first == null) first = Status.OK;
+        if (!Status.OK.equals(first)) return first;
+        if (PackageStatus.UNRESOLVED_DEPENDENCIES.equals(second) || PackageStatus.NO_PACKAGE.equals(second))
+            return second;
+        return first;
+    }
+
+
     /**
      * Returns the properties (name, version, dependencies, etc.) for the provided VLT package file
      *
@@ -221,7 +649,29 @@ public class CqPackageHelper {
      * it came across
      */
     public HttpResponse startInactiveBundles() {
-        return doAcrossServers(false, slingSupport -> startInactiveBundles(slingSupport));
+        @Nullable final BundleGraph bundleGraph = bundleGraph();
+        return doAcrossServers(false, slingSupport -> startInactiveBundles(slingSupport, bundleGraph, bundleParallelism));
+    }
+
+
+    /**
+     * The dependencies between the bundles in this project's package, or null if there are none to go by.
+     */
+    @Nullable
+    private BundleGraph bundleGraph() {
+        final List<File> bundleFiles = new ArrayList<>();
+        for (CreatePackageTask createPackageTask : project.getTasks().withType(CreatePackageTask.class)) {
+            bundleFiles.addAll(createPackageTask.getBundleFiles());
+        }
+
+        try {
+            final BundleGraph bundleGraph = BundleGraph.fromFiles(bundleFiles);
+            return bundleGraph.size() == 0 ? null : bundleGraph;
+        }
+        catch (IOException exp) {
+            LOG.warn("Could not read the bundles' dependencies, so they will be started one at a time: {}", exp.toString());
+            return null;
+        }
     }
 
 
@@ -235,22 +685,18 @@ public class CqPackageHelper {
      * it came across
      */
     private HttpResponse doAcrossServers(boolean missingIsOk, ServerAction serverAction) {
-        return doAcrossServers(slingServersConfiguration(), missingIsOk, serverAction);
+        return doAcrossServers(slingServersConfiguration(), httpClientPool, serverHealth, missingIsOk, serverAction);
     }
 
 
     /**
-     * Runs the given server action across all the provided active servers
+     * Runs the given server action across the given servers that are active
      *
-     * @param servers      the collection of servers to run the action across
-     * @param missingIsOk  is a 404 response considered OK? If false, it counts as an error
-     * @param serverAction the action to run against the bundle on the server
-     * @return the "aggregate" HTTP response: if all the calls are in the >= 200 and <400 range, or
-     * a 408 (timeout, server not running) the returns an empty HTTP_OK; otherwise returns the first error response
-     * it came across
+     * @see #doAcrossServers(boolean, ServerAction)
      */
-    private static HttpResponse doAcrossServers(SlingServersConfiguration servers, boolean missingIsOk, ServerAction serverAction) {
-        return doAcrossServers(servers, SimpleSlingSupportFactory.INSTANCE, missingIsOk, serverAction);
+    private HttpResponse doAcrossServers(Iterable<SlingServerConfiguration> servers, boolean missingIsOk,
+                                         ServerAction serverAction) {
+        return doAcrossServers(servers, httpClientPool, serverHealth, missingIsOk, serverAction);
     }
 
 
@@ -259,20 +705,39 @@ public class CqPackageHelper {
      *
      * @param servers             the collection of servers to run the action across
      * @param slingSupportFactory the factory for creating the connection helper
+     * @param serverHealth        servers that it says are not responding are treated as having timed out
      * @param missingIsOk         is a 404 response considered OK? If false, it counts as an error
      * @param serverAction        the action to run against the bundle on the server
      * @return the "aggregate" HTTP response: if all the calls are in the >= 200 and <400 range, or
      * a 408 (timeout, server not running) the returns an empty HTTP_OK; otherwise returns the first error response
      * it came across
      */
-    private static HttpResponse doAcrossServers(SlingServersConfiguration servers, SlingSupportFactory slingSupportFactory, boolean missingIsOk, ServerAction serverAction) {
+    private static HttpResponse doAcrossServers(Iterable<SlingServerConfiguration> servers, SlingSupportFactory slingSupportFactory,
+                                                ServerHealthRegistry serverHealth, boolean missingIsOk, ServerAction serverAction) {
         HttpResponse httpResponse = new HttpResponse(HTTP_OK, "");
 
         Iterator<SlingServerConfiguration> activeServers = servers.iterator();
         while (activeServers.hasNext() && !isBadResponse(httpResponse.getCode(), missingIsOk)) {
             SlingServerConfiguration serverConfig = activeServers.next();
-            SlingSupport slingSupport = slingSupportFactory.create(serverConfig);
-            HttpResponse resp = serverAction.run(slingSupport);
+            if (!serverHealth.allowRequest(serverConfig)) {
+                LOG.warn("Skipping {}: it is not responding", serverConfig.getName());
+                continue;
+            }
+
+            final HttpResponse resp;
+            try {
+                final boolean wasActive = SlingPackageSupport.isActive(serverConfig);
+                SlingSupport slingSupport = slingSupportFactory.create(serverConfig);
+                resp = serverAction.run(slingSupport);
+                recordHealth(serverConfig, serverHealth, wasActive, resp);
+            }
+            catch (RuntimeException exp) {
+                recordHealth(serverConfig, serverHealth, exp);
+                throw exp;
+            }
+            finally {
+                serverHealth.release(serverConfig);
+            }
 
             httpResponse = and(httpResponse, resp, missingIsOk);
         }
@@ -281,6 +746,101 @@ public class CqPackageHelper {
     }
 
 
+    /**
+     * Tells "serverHealth" how a server did with a bundle action or validation. Only a server that did not answer
+     * counts against it: any other response, such as the bundles not being ACTIVE or failing to start, is about the
+     * bundles and not about whether the server is responding, so it counts as the server answering.
+     */
+    private static void recordHealth(SlingServerConfiguration serverConfig, ServerHealthRegistry serverHealth,
+                                     boolean wasActive, HttpResponse resp) {
+        if (resp.getCode() == HTTP_CLIENT_TIMEOUT) {
+            // leave it to the registry to decide if the server should be marked as not active
+            if (wasActive) SlingPackageSupport.setActive(serverConfig, true);
+            serverHealth.recordFailure(serverConfig);
+        }
+        else {
+            serverHealth.recordSuccess(serverConfig);
+        }
+    }
+
+
+    /**
+     * Tells "serverHealth" about a bundle action or validation that failed with "exp": it counts against the server
+     * if it could not be talked to.
+     */
+    private static void recordHealth(SlingServerConfiguration serverConfig, ServerHealthRegistry serverHealth,
+                                     RuntimeException exp) {
+        if (exp.getCause() instanceof IOException) serverHealth.recordFailure(serverConfig);
+    }
+
+
+    /**
+     * Runs the given validation against the servers, as many at the same time as {@link #getServerParallelism()}
+     * allows. They all share one deadline (see
+     * {@link #getValidationTimeoutMs()}), and as soon as any server gives a bad response (see
+     * {@link #isBadResponse(int, boolean)}) the others are told to stop polling.
+     *
+     * @return the "aggregate" HTTP response, the same as {@link #doAcrossServers(boolean, ServerAction)}
+     */
+    private HttpResponse validateAcrossServers(ValidationAction validation) {
+        final List<SlingServerConfiguration> servers = new ArrayList<>();
+        slingServersConfiguration().forEach(servers::add);
+        if (servers.isEmpty()) return new HttpResponse(HTTP_OK, "");
+
+        final long timeoutMs = validationTimeoutMs > 0 ? validationTimeoutMs :
+            servers.stream().mapToLong(SlingServerConfiguration::getMaxWaitMs).max().orElse(0L);
+        final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicInteger remaining = new AtomicInteger(servers.size());
+
+        final List<ConcurrentServerRunner.ServerResult<HttpResponse>> results =
+            getServerRunner().run(servers, serverConfig -> {
+                if (!serverHealth.allowRequest(serverConfig)) {
+                    LOG.warn("Skipping {}: it is not responding", serverConfig.getName());
+                    remaining.decrementAndGet();
+                    return new HttpResponse(HTTP_CLIENT_TIMEOUT, serverConfig.getName());
+                }
+
+                final long start = System.currentTimeMillis();
+                final boolean wasActive = SlingPackageSupport.isActive(serverConfig);
+                final HttpResponse resp;
+                try {
+                    resp = validation.run(httpClientPool.create(serverConfig), deadlineMs, cancelled::get);
+
+                    if (isBadResponse(resp.getCode(), false)) cancelled.set(true);
+                    // a server that was told to stop says nothing about its health
+                    if (!(cancelled.get() && resp.getCode() == HTTP_CLIENT_TIMEOUT))
+                        recordHealth(serverConfig, serverHealth, wasActive, resp);
+                }
+                catch (RuntimeException exp) {
+                    cancelled.set(true);
+                    recordHealth(serverConfig, serverHealth, exp);
+                    throw exp;
+                }
+                finally {
+                    serverHealth.release(serverConfig);
+                }
+
+                LOG.info("{} {} after {}ms ({} server(s) still validating)", serverConfig.getName(),
+                    readiness(resp), System.currentTimeMillis() - start, remaining.decrementAndGet());
+                return resp;
+            });
+
+        HttpResponse httpResponse = new HttpResponse(HTTP_OK, "");
+        for (ConcurrentServerRunner.ServerResult<HttpResponse> result : results) {
+            httpResponse = and(httpResponse, result.getValue(), false);
+        }
+        return httpResponse;
+    }
+
+
+    private static String readiness(HttpResponse resp) {
+        if (resp.getCode() == HTTP_OK) return "is ready";
+        if (resp.getCode() == HTTP_CLIENT_TIMEOUT) return "was not checked: " + resp.getBody();
+        return "is NOT ready: " + resp.getCode() + " - " + resp.getBody();
+    }
+
+
     /**
      * Does the given http code indicate there was an error?
      * <p>
@@ -311,8 +871,27 @@ public class CqPackageHelper {
      * a 408 (timeout, server not running) the returns an empty HTTP_OK; otherwise returns the first error response
      * it came across
      */
-    @SuppressWarnings("unchecked")
     public static HttpResponse startInactiveBundles(SlingSupport slingSupport) {
+        return startInactiveBundles(slingSupport, null, 1);
+    }
+
+
+    /**
+     * For the server pointed to by "slingSupport" this asks the server for all of its bundles. For every bundle that
+     * is RESOLVED, this will call "start" on it.
+     * <p>
+     * If there is a "bundleGraph", the bundles are started in the waves given by {@link BundleGraph#waves(List)}:
+     * the bundles in a wave are started at the same time (up to "parallelism" of them), and the next wave is
+     * only started once they are all done. Otherwise they are started one at a time.
+     *
+     * @param bundleGraph the dependencies between the bundles; may be null
+     * @param parallelism the maximum number of bundles to start at the same time
+     * @return the "aggregate" HTTP response: if all the calls are in the >= 200 and <400 range, or
+     * a 408 (timeout, server not running) the returns an empty HTTP_OK; otherwise returns the first error response
+     * it came across
+     */
+    @SuppressWarnings("unchecked")
+    public static HttpResponse startInactiveBundles(SlingSupport slingSupport, @Nullable BundleGraph bundleGraph, int parallelism) {
         SlingServerConfiguration serverConf = slingSupport.getServerConf();
         HttpResponse resp = slingSupport.doGet(getBundlesControlUri(serverConf));
 
@@ -325,13 +904,45 @@ public class CqPackageHelper {
                 map(it -> (@NonNull String)it.get("symbolicName")).
                 collect(Collectors.<String>toList());
 
-            return startBundles(inactiveBundles, slingSupport);
+            if (bundleGraph == null) return startBundles(inactiveBundles, slingSupport);
+            return startBundlesInWaves(bundleGraph.waves(inactiveBundles), slingSupport, parallelism);
         }
 
         return resp;
     }
 
 
+    private static HttpResponse startBundlesInWaves(List<List<String>> waves, SlingSupport slingSupport, int parallelism) {
+        SlingServerConfiguration serverConf = slingSupport.getServerConf();
+        BundleServerConfiguration bundleServerConfiguration = new BundleServerConfiguration(serverConf);
+        if (!waves.isEmpty()) {
+            LOG.info("Starting the inactive bundles on {} in {} wave(s): {}", serverConf.getName(), waves.size(), waves);
+        }
+
+        HttpResponse httpResponse = new HttpResponse(HTTP_OK, "");
+        Iterator<List<String>> wavesIter = waves.iterator();
+        int waveNumber = 0;
+
+        while (wavesIter.hasNext() && !isBadResponse(httpResponse.getCode(), false)) {
+            final List<String> wave = wavesIter.next();
+            waveNumber++;
+            final long start = System.currentTimeMillis();
+            final List<HttpResponse> responses = BundleBatch.forEachBundle(wave, parallelism, "start", symbolicName -> {
+                SlingBundleConfiguration bundleConfiguration = new SlingBundleConfiguration(symbolicName, "");
+                LOG.info("Trying to start inactive bundle: " + symbolicName);
+                return new SlingBundleSupport(bundleConfiguration, bundleServerConfiguration, slingSupport).startBundle();
+            });
+            for (HttpResponse startResp : responses) {
+                httpResponse = and(httpResponse, startResp, false);
+            }
+            LOG.info("Started wave {} of {} on {} ({} bundle(s)) in {}ms", waveNumber, waves.size(),
+                serverConf.getName(), wave.size(), System.currentTimeMillis() - start);
+        }
+
+        return httpResponse;
+    }
+
+
     private static HttpResponse startBundles(List<String> inactiveBundles, SlingSupport slingSupport) {
         SlingServerConfiguration serverConf = slingSupport.getServerConf();
         BundleServerConfiguration bundleServerConfiguration = new BundleServerConfiguration(serverConf);
@@ -366,9 +977,24 @@ public class CqPackageHelper {
     }
 
 
+    /**
+     * Returns the URL to get the status of a single bundle.
+     */
+    @SuppressWarnings("argument.type.incompatible")
+    public static URI getBundleControlUri(SlingServerConfiguration serverConf, String symbolicName) {
+        final URI base = serverConf.getBaseUri();
+        try {
+            return new URI(base.getScheme(), base.getUserInfo(), base.getHost(), base.getPort(), BundleServerConfiguration.getBUNDLE_CONTROL_BASE_PATH() + "/" + symbolicName + ".json", null, null);
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Could not create bundle control URI for " + symbolicName + " from " + serverConf);
+        }
+    }
+
+
     /**
      * Calls {@link CqPackageHelper#validateAllBundles(Collection, SlingSupport)} for
-     * each server in {@link SlingServersConfiguration} and all the bundles in the configuration
+     * all the servers in {@link SlingServersConfiguration} at the same time and all the bundles in the configuration
      *
      * @param configuration the Gradle Configuration such as "compile" to retrieve the list of bundles from
      * @return HTTP_INTERNAL_ERROR if there are inactive bundles, otherwise the "aggregate" HTTP response: if all
@@ -378,13 +1004,13 @@ public class CqPackageHelper {
     public HttpResponse validateBundles(Configuration configuration) {
         ResolvedConfiguration resolvedConfiguration = configuration.getResolvedConfiguration();
         final List<String> symbolicNamesList = symbolicNames(resolvedConfiguration);
-        return doAcrossServers(false, slingSupport -> validateAllBundles(symbolicNamesList, slingSupport));
+        return validateAcrossServers((slingSupport, deadlineMs, cancelled) -> validateAllBundles(symbolicNamesList, slingSupport, pollingPolicy(slingSupport.getServerConf()), pollStats, perBundlePollingLimit, bundleParallelism, deadlineMs, cancelled));
     }
 
 
     /**
      * Calls {@link CqPackageHelper#validateAllBundles(Collection, SlingSupport)} for
-     * each server in {@link SlingServersConfiguration} and all the bundles
+     * all the servers in {@link SlingServersConfiguration} at the same time and all the bundles
      *
      * @param files the list of bundles
      * @return HTTP_INTERNAL_ERROR if there are inactive bundles, otherwise the "aggregate" HTTP response: if all
@@ -393,7 +1019,7 @@ public class CqPackageHelper {
      */
     public HttpResponse validateBundles(FileCollection files) {
         final List<String> symbolicNamesList = symbolicNames(files);
-        return doAcrossServers(false, slingSupport -> validateAllBundles(symbolicNamesList, slingSupport));
+        return validateAcrossServers((slingSupport, deadlineMs, cancelled) -> validateAllBundles(symbolicNamesList, slingSupport, pollingPolicy(slingSupport.getServerConf()), pollStats, perBundlePollingLimit, bundleParallelism, deadlineMs, cancelled));
     }
 
 
@@ -427,7 +1053,7 @@ public class CqPackageHelper {
 
     /**
      * Calls {@link CqPackageHelper#validateAllBundles(Collection, SlingSupport)} for
-     * each server in {@link SlingServersConfiguration} and all the bundles in the package file downloaded from
+     * all the servers in {@link SlingServersConfiguration} (up to {@link #getServerParallelism()} at the same time) and all the bundles in the package file downloaded from
      * that server
      *
      * @return HTTP_INTERNAL_ERROR if there are inactive bundles, otherwise the "aggregate" HTTP response: if all
@@ -435,16 +1061,22 @@ public class CqPackageHelper {
      * otherwise returns the first error response it came across
      */
     public HttpResponse validateRemoteBundles() {
-        return doAcrossServers(false, slingSupport -> {
+        return validateAcrossServers((slingSupport, deadlineMs, cancelled) -> {
             PackageServerConfiguration packageServerConf = new PackageServerConfiguration(slingSupport.getServerConf());
-            SlingPackageSupport packageSupport = new SlingPackageSupport(packageServerConf, slingSupport);
+            SlingPackageSupport packageSupport = buildScoped(new SlingPackageSupport(packageServerConf, slingSupport));
+            final List<String> namesFromDownloadedPackage;
             try {
-                List<String> namesFromDownloadedPackage = symbolicNamesFromDownloadedPackage(packageSupport);
-                return validateAllBundles(namesFromDownloadedPackage, slingSupport);
+                namesFromDownloadedPackage = symbolicNamesFromDownloadedPackage(packageSupport, deadlineMs, cancelled);
             }
-            catch (URISyntaxException | IOException e) {
+            catch (IOException e) {
+                final String serverName = slingSupport.getServerConf().getName();
+                if (cancelled.getAsBoolean())
+                    return new HttpResponse(HTTP_CLIENT_TIMEOUT, "Stopped downloading the package from " + serverName);
+                if (System.currentTimeMillis() >= deadlineMs)
+                    return new HttpResponse(HTTP_INTERNAL_ERROR, "Could not download the package from " + serverName + " in time");
                 throw new IllegalStateException("Problem validating bundles: " + packageSupport, e);
             }
+            return validateAllBundles(namesFromDownloadedPackage, slingSupport, pollingPolicy(slingSupport.getServerConf()), pollStats, perBundlePollingLimit, bundleParallelism, deadlineMs, cancelled);
         });
     }
 
@@ -459,37 +1091,125 @@ public class CqPackageHelper {
      * the calls are in the >= 200 and <400 range, or a 408 (timeout, server not running) the returns an
      * empty HTTP_OK; otherwise returns the first error response it came across
      */
-    @SuppressWarnings("PointlessBooleanExpression")
     public static HttpResponse validateAllBundles(@Nullable final Collection<String> symbolicNames, final SlingSupport slingSupport) {
-        final SlingServerConfiguration serverConf = slingSupport.getServerConf();
-        final String serverName = serverConf.getName();
-        LOG.info("Checking for NON-ACTIVE bundles on " + serverName);
-
-        final DotPrinter pollingTxt = new DotPrinter();
-        final boolean[] bundlesActive = new boolean[]{false};
-        final HttpResponse[] theResp = new HttpResponse[]{new HttpResponse(HTTP_OK, "")};
+        return validateAllBundles(symbolicNames, slingSupport, PollingPolicy.fixed(slingSupport.getServerConf().getRetryWaitMs()), null);
+    }
 
-        SlingSupport.block(serverConf.getMaxWaitMs(),
-            () -> serverConf.getActive() && bundlesActive[0] == false && theResp[0].getCode() == HTTP_OK,
-            () -> {
-                LOG.info(pollingTxt.increment());
 
-                HttpResponse resp = slingSupport.doGet(getBundlesControlUri(serverConf));
-                if (resp.getCode() == HTTP_OK) {
-                    bundlesActive[0] = bundlesAreActive(symbolicNames, resp.getBody());
-                }
-                else {
-                    if (resp.getCode() == HTTP_CLIENT_TIMEOUT) serverConf.setActive(false);
-                    theResp[0] = resp;
-                }
-            },
-            serverConf.getRetryWaitMs());
+    /**
+     * Same as {@link #validateAllBundles(Collection, SlingSupport)}, but polls the server according to
+     * "pollingPolicy" while waiting for the bundles to become ACTIVE
+     *
+     * @param pollStats if not null, how the polling went is added to it
+     */
+    public static HttpResponse validateAllBundles(@Nullable final Collection<String> symbolicNames, final SlingSupport slingSupport,
+                                                  PollingPolicy pollingPolicy, @Nullable Collection<PollStats> pollStats) {
+        return validateAllBundles(symbolicNames, slingSupport, pollingPolicy, pollStats, 0, 1);
+    }
+
+
+    /**
+     * Same as {@link #validateAllBundles(Collection, SlingSupport, PollingPolicy, Collection)}, but while no more
+     * than "perBundlePollingLimit" of the bundles are still not ACTIVE, only those bundles are asked about (up to
+     * "parallelism" of them at the same time) instead of getting the list of every bundle on the server.
+     *
+     * @param perBundlePollingLimit the most bundles to ask about one at a time; 0 always gets the whole list
+     * @param parallelism           the maximum number of bundles to ask about at the same time
+     */
+    public static HttpResponse validateAllBundles(@Nullable final Collection<String> symbolicNames, final SlingSupport slingSupport,
+                                                  PollingPolicy pollingPolicy, @Nullable Collection<PollStats> pollStats,
+                                                  int perBundlePollingLimit, int parallelism) {
+        return validateAllBundles(symbolicNames, slingSupport, pollingPolicy, pollStats, perBundlePollingLimit, parallelism,
+            Long.MAX_VALUE, () -> false);
+    }
+
+
+    /**
+     * Same as {@link #validateAllBundles(Collection, SlingSupport, PollingPolicy, Collection, int, int)}, but
+     * gives up waiting at "deadlineMs" if that comes before the server's maxWaitMs is used up, and stops
+     * polling as soon as "cancelled" returns true.
+     *
+     * @param deadlineMs the time (as {@link System#currentTimeMillis()}) to stop waiting at
+     * @param cancelled  has something else already decided how the validation turns out?
+     * @return the same as {@link #validateAllBundles(Collection, SlingSupport)}, except that if it was cancelled
+     * before the bundles were ACTIVE it returns HTTP_CLIENT_TIMEOUT (408) so it does not count as an error
+     */
+    @SuppressWarnings("PointlessBooleanExpression")
+    public static HttpResponse validateAllBundles(@Nullable final Collection<String> symbolicNames, final SlingSupport slingSupport,
+                                                  PollingPolicy pollingPolicy, @Nullable Collection<PollStats> pollStats,
+                                                  int perBundlePollingLimit, int parallelism,
+                                                  long deadlineMs, BooleanSupplier cancelled) {
+        if (cancelled == null) throw new IllegalArgumentException("cancelled == null");
+        final SlingServerConfiguration serverConf = slingSupport.getServerConf();
+        final String serverName = serverConf.getName();
+        LOG.info("Checking for NON-ACTIVE bundles on " + serverName);
+
+        if (symbolicNames != null && symbolicNames.isEmpty()) {
+            if (SlingPackageSupport.isActive(serverConf) == false) return new HttpResponse(HTTP_CLIENT_TIMEOUT, serverName);
+            LOG.info("There are no bundles to wait for on " + serverName);
+            return new HttpResponse(HTTP_OK, "");
+        }
+
+        final long maxWaitMs = Math.min(serverConf.getMaxWaitMs(), Math.max(0L, deadlineMs - System.currentTimeMillis()));
+
+        final DotPrinter pollingTxt = new DotPrinter();
+        final BundleStateIndex bundleStates = new BundleStateIndex(symbolicNames, serverName, System.currentTimeMillis());
+        final boolean[] bundlesActive = new boolean[]{false};
+        final HttpResponse[] theResp = new HttpResponse[]{new HttpResponse(HTTP_OK, "")};
 
-        if (serverConf.getActive() == false) return new HttpResponse(HTTP_CLIENT_TIMEOUT, serverName);
+        // the same threads are used for every poll that asks about the bundles one at a time
+        final int threads = symbolicNames == null ? 1 : Math.min(parallelism, Math.min(perBundlePollingLimit, symbolicNames.size()));
+        final @Nullable ExecutorService executor = threads > 1 ? BundleBatch.newExecutor(threads, "status") : null;
+        try {
+            Polling.poll("bundles active", serverName, maxWaitMs, pollingPolicy, pollStats,
+                () -> SlingPackageSupport.isActive(serverConf) && bundlesActive[0] == false && theResp[0].getCode() == HTTP_OK &&
+                    cancelled.getAsBoolean() == false,
+                () -> {
+                    LOG.info(pollingTxt.increment());
+
+                    final List<String> pending = bundleStates.getPending();
+                    if (symbolicNames != null && pending.size() <= perBundlePollingLimit) {
+                        final HttpResponse resp = pollEachBundle(pending, slingSupport, bundleStates, executor);
+                        if (resp.getCode() == HTTP_OK) {
+                            bundlesActive[0] = bundleStates.allActive();
+                        }
+                        else {
+                            if (resp.getCode() == HTTP_CLIENT_TIMEOUT) SlingPackageSupport.setActive(serverConf, false);
+                            theResp[0] = resp;
+                        }
+                        return;
+                    }
+
+                    HttpResponse resp = slingSupport.doGet(getBundlesControlUri(serverConf));
+                    if (resp.getCode() == HTTP_OK) {
+                        try {
+                            bundlesActive[0] = bundleStates.update(resp.getBody(), System.currentTimeMillis());
+                        }
+                        catch (RuntimeException exp) {
+                            throw new GradleException("Problem parsing \"" + resp.getBody() + "\"", exp);
+                        }
+                    }
+                    else {
+                        if (resp.getCode() == HTTP_CLIENT_TIMEOUT) SlingPackageSupport.setActive(serverConf, false);
+                        theResp[0] = resp;
+                    }
+                });
+        }
+        finally {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        if (SlingPackageSupport.isActive(serverConf) == false) return new HttpResponse(HTTP_CLIENT_TIMEOUT, serverName);
 
         if (theResp[0].getCode() != HTTP_OK) return theResp[0];
 
+        if (bundlesActive[0] == false && cancelled.getAsBoolean()) {
+            LOG.info("Stopped waiting for bundles on {}: {}", serverName, bundleStates.getPending());
+            return new HttpResponse(HTTP_CLIENT_TIMEOUT, "Stopped waiting for bundles on " + serverName);
+        }
+
         if (bundlesActive[0] == false) {
+            LOG.info("Still waiting for bundles on {}: {}", serverName, bundleStates.getPending());
             if (symbolicNames == null)
                 return new HttpResponse(HTTP_INTERNAL_ERROR, "Not all bundles are ACTIVE on " + serverName);
             else
@@ -497,106 +1217,71 @@ public class CqPackageHelper {
         }
         else {
             LOG.info("Bundles are ACTIVE on " + serverName);
+            if (LOG.isDebugEnabled()) bundleStates.getTimeToActiveMs().forEach((symbolicName, ms) ->
+                LOG.debug("bundle {} was ACTIVE on {} after {}ms", symbolicName, serverName, ms));
             return theResp[0];
         }
     }
 
 
-    @SuppressWarnings({"unchecked", "RedundantCast"})
-    private static Boolean bundlesAreActive(@Nullable final Collection<String> symbolicNames, final String body) {
-        try {
-            Map<String, Object> json = (Map<String, Object>)new JsonSlurper().parseText(body);
-            List<Map<String, Object>> data = (@NonNull List<Map<String, Object>>)json.get("data");
-
-            List<Map<String, Object>> allBundles;
-            if (symbolicNames != null) {
-                allBundles = bundlesAreActive(data, symbolicNames);
+    /**
+     * Asks the server for the state of each of the bundles, updating "bundleStates"
+     *
+     * @param executor where to ask about the bundles at the same time; if null, they are asked about one at a time
+     * @return HTTP_OK if all the bundles' states were retrieved (a bundle the server does not have is MISSING),
+     * otherwise the first error response
+     */
+    private static HttpResponse pollEachBundle(List<String> symbolicNames, SlingSupport slingSupport,
+                                               BundleStateIndex bundleStates, @Nullable ExecutorService executor) {
+        final SlingServerConfiguration serverConf = slingSupport.getServerConf();
+        final List<HttpResponse> responses = BundleBatch.forEachBundle(symbolicNames, executor, "status",
+            symbolicName -> slingSupport.doGet(getBundleControlUri(serverConf, symbolicName)));
+
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < responses.size(); i++) {
+            final HttpResponse resp = responses.get(i);
+            if (resp.getCode() == HTTP_NOT_FOUND) {
+                bundleStates.updateBundle(symbolicNames.get(i), null, now);
             }
-            else {
-                allBundles = data;
+            else if (resp.getCode() == HTTP_OK) {
+                try {
+                    bundleStates.updateBundle(symbolicNames.get(i), resp.getBody(), now);
+                }
+                catch (RuntimeException exp) {
+                    throw new GradleException("Problem parsing \"" + resp.getBody() + "\"", exp);
+                }
             }
-
-            if (!hasAnInactiveBundle(allBundles)) {
-                if (LOG.isDebugEnabled())
-                    allBundles.forEach(b -> LOG.debug("Active bundle: " + b.get("symbolicName")));
-                return true;
+            else {
+                return resp;
             }
-
-            return false;
-        }
-        catch (Exception exp) {
-            throw new GradleException("Problem parsing \"" + body + "\"", exp);
         }
-
-    }
-
-
-    private static List<Map<String, Object>> bundlesAreActive(List<Map<String, Object>> data, Collection<String> symbolicNames) {
-        val knownBundles = data.stream().
-            filter(b -> symbolicNames.contains((@NonNull String)b.get("symbolicName"))).
-            collect(Collectors.<Map<String, Object>>toList());
-        val knownBundleNames = knownBundles.stream().
-            map(b -> (@NonNull String)b.get("symbolicName")).
-            collect(Collectors.<String>toList());
-
-        val missingBundleNames = new ArrayList<String>(symbolicNames);
-        missingBundleNames.removeAll(knownBundleNames);
-
-        val missingBundles = missingBundleNames.stream().map(name -> {
-            Map<String, Object> bundle = new HashMap<>();
-            bundle.put("symbolicName", name);
-            bundle.put("state", MISSING.getStateString());
-            return bundle;
-        }).collect(Collectors.<Map<String, Object>>toList());
-
-        val allBundles = new ArrayList<Map<String, Object>>(knownBundles);
-        allBundles.addAll(missingBundles);
-        return allBundles;
-    }
-
-
-    private static boolean hasAnInactiveBundle(final Collection<Map<String, Object>> knownBundles) {
-        final List<Map<String, Object>> activeBundles = knownBundles.stream().
-            filter(bundle -> {
-                    val state = (@NonNull String)bundle.get("state");
-                    return state.equals(ACTIVE.getStateString()) || state.equals(FRAGMENT.getStateString());
-                }
-            ).collect(Collectors.<Map<String, Object>>toList());
-
-        final Collection<Map<String, Object>> inactiveBundles = inactiveBundles(knownBundles);
-
-        if (LOG.isInfoEnabled()) inactiveBundles.forEach(it ->
-            LOG.info("bundle " + it.get("symbolicName") + " NOT active: " + it.get("state"))
-        );
-        if (LOG.isDebugEnabled()) activeBundles.forEach(it ->
-            LOG.debug("bundle " + it.get("symbolicName") + " IS active")
-        );
-
-        return !inactiveBundles.isEmpty();
+        return new HttpResponse(HTTP_OK, "");
     }
 
 
     /**
      * Calls {@link CqPackageHelper#uninstallAllBundles(List, SlingSupport, UninstallBundlePredicate)} for
      * each server in {@link SlingServersConfiguration} and all the bundles in the package file downloaded from
-     * that server
+     * that server. The servers that {@link #isSkipUnchangedPackages()} leaves out of uninstalling and installing
+     * the package are left alone too, since their bundles would not be put back.
      *
      * @return the "aggregate" HTTP response: if all the calls are in the >= 200 and <400 range, or a
      * 404 (not installed) or a 408 (timeout, server not running) the returns an empty HTTP_OK;
      * otherwise returns the first error response it came across
      */
     public HttpResponse uninstallBundles(final UninstallBundlePredicate bundlePredicate) {
-        return doAcrossServers(true, slingSupport -> {
+        final Iterable<SlingServerConfiguration> servers = serversToChange(getSlingPackageSupportFactory(), "uninstall of the bundles");
+        return doAcrossServers(servers, true, slingSupport -> {
             final SlingServerConfiguration serverConf = slingSupport.getServerConf();
             PackageServerConfiguration packageServerConfiguration = new PackageServerConfiguration(serverConf);
-            SlingPackageSupport slingPackageSupport = new SlingPackageSupport(packageServerConfiguration, slingSupport);
-            SuccessOrFailure<RuntimePackageProperties> packageInfo = RuntimePackageProperties.packageProperties(slingPackageSupport, PackageId.fromString(getPackageName()));
+            SlingPackageSupport slingPackageSupport = buildScoped(new SlingPackageSupport(packageServerConfiguration, slingSupport));
+            SuccessOrFailure<RuntimePackageProperties> packageInfo = RuntimePackageProperties.packageProperties(slingPackageSupport, getPackageId());
             if (packageInfo.succeeded()) { // package is installed
                 try {
-                    List<String> namesFromDownloadedPackage = symbolicNamesFromDownloadedPackage(slingPackageSupport);
+                    List<String> namesFromDownloadedPackage = symbolicNamesFromDownloadedPackage(slingPackageSupport, Long.MAX_VALUE, () -> false);
                     return uninstallAllBundles(namesFromDownloadedPackage, slingSupport, bundlePredicate);
                 }
-                catch (URISyntaxException | IOException e) {
+                catch (IOException e) {
                     throw new IllegalStateException("Problem getting symbolic names from " + packageInfo.getValue().getDownloadName(), e);
                 }
             }
@@ -621,6 +1306,13 @@ public class CqPackageHelper {
     public HttpResponse uninstallAllBundles(final List<String> symbolicNames, final SlingSupport slingSupport, @Nullable UninstallBundlePredicate predicate) {
         LOG.info("Uninstalling/removing bundles on " + slingSupport.getServerConf().getName() + ": " + symbolicNames);
 
+        if (batchBundleUninstalls) {
+            final List<String> toUninstall = symbolicNames.stream().
+                filter(symbolicName -> predicate != null && predicate.eval(symbolicName)).
+                collect(Collectors.<String>toList());
+            return new BundleBatch(slingSupport, bundleParallelism).stopAndUninstall(toUninstall);
+        }
+
         HttpResponse httpResponse = new HttpResponse(HTTP_OK, "");
 
         Iterator<String> symbolicNameIter = symbolicNames.iterator();
@@ -669,96 +1361,153 @@ public class CqPackageHelper {
     }
 
 
-    private static Collection<Map<String, Object>> inactiveBundles(Collection<Map<String, Object>> knownBundles) {
-        return knownBundles.stream().filter(bundle -> {
-            val state = (@NonNull String)bundle.get("state");
-            return state.equals(INSTALLED.getStateString()) ||
-                state.equals(RESOLVED.getStateString()) ||
-                state.equals(MISSING.getStateString());
-        }).collect(Collectors.<Map<String, Object>>toList());
-    }
-
-
     /**
-     * Downloads this package from the server contained in "slingPackageSupport", then extracts the bundles it contains
-     * and returns the list of symbolic names for those bundles
+     * Returns the list of symbolic names for the bundles in this package on the server contained in
+     * "slingPackageSupport". The package is only downloaded if its bundles are not already known from this
+     * or an earlier build (see {@link #getSymbolicNamesCacheSize()}).
      *
      * @param slingPackageSupport the package/server combination to get the package file from
+     * @param deadlineMs          the time (as {@link System#currentTimeMillis()}) to give up downloading at
+     * @param cancelled           when this returns true the download is given up
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private List<String> symbolicNamesFromDownloadedPackage(final SlingPackageSupport slingPackageSupport) throws URISyntaxException, IOException {
-        final File downloadDir = new File(project.getBuildDir() + "/tmp");
-        downloadDir.mkdirs();
-        final SuccessOrFailure<RuntimePackageProperties> packageInfoSF = RuntimePackageProperties.packageProperties(slingPackageSupport, PackageId.fromString(getPackageName()));
+    private List<String> symbolicNamesFromDownloadedPackage(final SlingPackageSupport slingPackageSupport, long deadlineMs,
+                                                            BooleanSupplier cancelled) throws IOException {
+        final SuccessOrFailure<RuntimePackageProperties> packageInfoSF = RuntimePackageProperties.packageProperties(slingPackageSupport, getPackageId());
         if (packageInfoSF.failed())
             throw new IllegalStateException("Could not get package information: " + packageInfoSF.getError());
         final RuntimePackageProperties packageInfo = packageInfoSF.getValue();
-        LOG.info("Download filename " + packageInfo.getDownloadName());
-        final String packageFilename = downloadDir + "/" + packageInfo.getDownloadName();
+
+        final SymbolicNamesCache cache = symbolicNamesCache();
+        if (cache == null) return downloadSymbolicNames(slingPackageSupport, packageInfo, deadlineMs, cancelled);
+        return cache.symbolicNames(packageInfo, () -> downloadSymbolicNames(slingPackageSupport, packageInfo, deadlineMs, cancelled));
+    }
+
+
+    /**
+     * Downloads the package and returns the list of symbolic names for the bundles it contains.
+     * <p>
+     * The package is read as it is downloaded, and only the manifest of each bundle is read, so nothing is
+     * written to disk.
+     * <p>
+     * The download is aborted (with an IOException) if "deadlineMs" passes or "cancelled" returns true before it
+     * has finished.
+     */
+    private List<String> downloadSymbolicNames(SlingPackageSupport slingPackageSupport, RuntimePackageProperties packageInfo,
+                                               long deadlineMs, BooleanSupplier cancelled) throws IOException {
         final String path = packageInfo.getPath();
 
         final PackageServerConfiguration packageServerConf = slingPackageSupport.getPackageServerConf();
         final URI zipUri = URI.create(packageServerConf.getPackageDownloadUri() + "?_charset_=utf-8&path=" + path);
 
-        LOG.info("Filename from package list: {}", packageFilename);
         LOG.info("Filepath from package list: {}", path);
         LOG.info("Zip URI from package list: {}", zipUri);
 
-        val file = downloadFile(packageFilename, zipUri, packageServerConf.serverConf);
-        val zipFile = new ZipFile(file);
-        val zipEntries = Collections.list(zipFile.entries()).stream().
-            filter(entry -> entry.getName().endsWith(".jar")).
-            collect(Collectors.<ZipEntry>toList());
+        final HttpGet httpGet = new HttpGet(zipUri);
+        final @Nullable ScheduledExecutorService watchdog = deadlineMs == Long.MAX_VALUE ? null :
+            abortWhenDone(httpGet, deadlineMs, cancelled);
+        try (CloseableHttpResponse httpResponse = httpClientPool.clientFor(packageServerConf.serverConf).execute(httpGet)) {
+            final int code = httpResponse.getStatusLine().getStatusCode();
+            if (code != HTTP_OK || httpResponse.getEntity() == null)
+                throw new IOException("Could not download " + zipUri + ": " + code);
+
+            try (InputStream is = httpResponse.getEntity().getContent()) {
+                final List<String> symbolicNames = symbolicNames(is, zipUri.toString());
+                LOG.info("Bundles from downloaded package: {}", symbolicNames);
+                return symbolicNames;
+            }
+        }
+        finally {
+            if (watchdog != null) watchdog.shutdownNow();
+        }
+    }
+
 
+    /**
+     * Aborts "request" as soon as "deadlineMs" has passed or "cancelled" returns true
+     *
+     * @return the watchdog that does it, which needs to be shut down once the request has finished
+     */
+    private static ScheduledExecutorService abortWhenDone(HttpUriRequest request, long deadlineMs, BooleanSupplier cancelled) {
+        final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cq-package-download-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(() -> {
+            if (!request.isAborted() && (cancelled.getAsBoolean() || System.currentTimeMillis() >= deadlineMs)) {
+                LOG.info("Aborting {} {}", request.getMethod(), request.getURI());
+                request.abort();
+            }
+        }, 0, DOWNLOAD_WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return watchdog;
+    }
+
+
+    /**
+     * The cache of the symbolic names of the bundles in the packages on the servers, kept in the Gradle user home
+     *
+     * @return null if {@link #getSymbolicNamesCacheSize()} is 0
+     */
+    private synchronized @Nullable SymbolicNamesCache symbolicNamesCache() {
+        if (symbolicNamesCacheSize == 0) return null;
+        if (symbolicNamesCache == null || symbolicNamesCache.getMaxEntries() != symbolicNamesCacheSize) {
+            val directory = new File(project.getGradle().getGradleUserHomeDir(), "caches/cq-package/symbolic-names");
+            symbolicNamesCache = new SymbolicNamesCache(directory, symbolicNamesCacheSize);
+        }
+        return symbolicNamesCache;
+    }
+
+
+    /**
+     * Returns the symbolic names of the OSGi bundles in a package, reading it from "packageStream" in a single
+     * pass. Only the start of each bundle is read, until its manifest is found.
+     *
+     * @param packageStream the contents of the package (zip) file; this does not close it
+     * @param source        where the package came from, for logging
+     */
+    public static List<String> symbolicNames(InputStream packageStream, String source) throws IOException {
         final List<String> symbolicNames = new ArrayList<>();
-        zipEntries.forEach(it -> {
-            String filename = it.getName();
-            try {
-                val filenameParts = filename.split("/");
-                val actualFileName = filenameParts[filenameParts.length - 1];
-                val entry = (@NonNull ZipEntry)zipFile.getEntry(filename);
-                LOG.debug("Unzipping to " + project.getBuildDir() + "/tmp/" + actualFileName + "...");
-                val jarFile = new File(project.getBuildDir() + "/tmp/" + actualFileName);
-
-                try (val is = (@NonNull InputStream)zipFile.getInputStream(entry); val out = new FileOutputStream(jarFile)) {
-                    IOUtils.copy(is, out);
-                }
+        final ZipInputStream zipStream = new ZipInputStream(packageStream);
 
-                val bundleSymbolicName = getSymbolicName(jarFile);
-                if (bundleSymbolicName != null) {
-                    symbolicNames.add(bundleSymbolicName);
-                }
-                else {
-                    LOG.warn("{} contains a non-OSGi jar file: {}", file, jarFile);
-                }
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            if (entry.isDirectory() || !entry.getName().endsWith(".jar")) continue;
 
-                LOG.debug("Cleaning up. Deleting {}", jarFile);
-                jarFile.delete();
+            val bundleSymbolicName = getSymbolicName(zipStream);
+            if (bundleSymbolicName != null) {
+                symbolicNames.add(bundleSymbolicName);
             }
-            catch (IOException e) {
-                throw new IllegalStateException("Problem handling " + filename + " in " + zipUri, e);
+            else {
+                LOG.warn("{} contains a non-OSGi jar file: {}", source, entry.getName());
             }
-        });
-        LOG.info("Bundles from downloaded zipfile: {}", symbolicNames);
-        LOG.debug("Cleaning up. Deleting {}", file);
-        file.delete();
+        }
         return symbolicNames;
     }
 
 
-    private File downloadFile(String filename, URI uri, SlingServerConfiguration serverConfig) throws IOException {
-        HttpGet httpGet = new HttpGet(uri);
-        httpGet.addHeader(BasicScheme.authenticate(new UsernamePasswordCredentials(serverConfig.getUsername(), serverConfig.getPassword()), "UTF-8", false));
-
-        HttpClient client = new DefaultHttpClient();
-        org.apache.http.HttpResponse httpResponse = client.execute(httpGet);
-        File file = new File(filename);
-
-        try (InputStream is = httpResponse.getEntity().getContent(); OutputStream out = new FileOutputStream(file)) {
-            IOUtils.copy(is, out);
+    /**
+     * Get the OSGi bundle symbolic name from the manifest of the jar being read from "jarStream". Reading stops as
+     * soon as the manifest has been read.
+     *
+     * @param jarStream the contents of the jar file; this does not close it
+     * @return null if the jar is not an OSGi bundle
+     */
+    public static @Nullable String getSymbolicName(InputStream jarStream) throws IOException {
+        // not closed, since that would close "jarStream"
+        final JarInputStream jar = new JarInputStream(jarStream, false);
+        @Nullable Manifest manifest = jar.getManifest();
+        if (manifest == null) {
+            // JarInputStream only finds the manifest at the start of the jar, which is where it normally is
+            JarEntry jarEntry;
+            while ((jarEntry = jar.getNextJarEntry()) != null) {
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(jarEntry.getName())) {
+                    manifest = new Manifest(jar);
+                    break;
+                }
+            }
         }
-
-        return file;
+        if (manifest == null) return null;
+        return manifest.getMainAttributes().getValue("Bundle-SymbolicName");
     }
 
 
@@ -799,6 +1548,308 @@ public class CqPackageHelper {
     }
 
 
+    /**
+     * The maximum number of servers to run package commands (upload, install, uninstall, delete) against, or to
+     * validate the bundles of, at the same time. Defaults to 1, which works on the servers one at a time.
+     */
+    public int getServerParallelism() {
+        return serverParallelism;
+    }
+
+
+    /**
+     * @see #getServerParallelism()
+     */
+    public void setServerParallelism(int serverParallelism) {
+        if (serverParallelism < 1)
+            throw new IllegalArgumentException("serverParallelism must be at least 1: " + serverParallelism);
+        this.serverParallelism = serverParallelism;
+    }
+
+
+    /**
+     * Should looking up a single package only ask the server for the packages that match its name, rather than
+     * retrieving every package on the server? Defaults to true.
+     */
+    public boolean isNarrowPackageListQueries() {
+        return narrowPackageListQueries;
+    }
+
+
+    /**
+     * @see #isNarrowPackageListQueries()
+     */
+    public void setNarrowPackageListQueries(boolean narrowPackageListQueries) {
+        this.narrowPackageListQueries = narrowPackageListQueries;
+    }
+
+
+    /**
+     * Should servers that already have exactly the same package installed be skipped when uploading it?
+     * Defaults to false.
+     * <p>
+     * When uploading, the SHA-256 digest of the package is stored with the package on the server. In later builds
+     * that upload the package, a server is skipped for uninstall, delete, upload and install if it has the package
+     * with the same id and size, it is installed, and it has the same stored digest.
+     */
+    public boolean isSkipUnchangedPackages() {
+        return skipUnchangedPackages;
+    }
+
+
+    /**
+     * @see #isSkipUnchangedPackages()
+     */
+    public void setSkipUnchangedPackages(boolean skipUnchangedPackages) {
+        this.skipUnchangedPackages = skipUnchangedPackages;
+    }
+
+
+    /**
+     * The maximum number of times to send the package to a server when the upload times out. The package
+     * manager can not resume an upload, so each attempt sends the whole package; before trying again the server
+     * is checked in case the package made it there anyway. Defaults to 3.
+     */
+    public int getUploadAttempts() {
+        return uploadAttempts;
+    }
+
+
+    /**
+     * @see #getUploadAttempts()
+     */
+    public void setUploadAttempts(int uploadAttempts) {
+        if (uploadAttempts < 1)
+            throw new IllegalArgumentException("uploadAttempts must be at least 1: " + uploadAttempts);
+        this.uploadAttempts = uploadAttempts;
+    }
+
+
+    /**
+     * How many packages to remember the bundles of, across builds, so that {@code uninstallBundles} and
+     * {@code validateRemoteBundles} only download a package from a server if they have not seen exactly that package
+     * before. The least recently used packages are forgotten first. 0 turns this off. Defaults to 1000.
+     */
+    public int getSymbolicNamesCacheSize() {
+        return symbolicNamesCacheSize;
+    }
+
+
+    /**
+     * @see #getSymbolicNamesCacheSize()
+     */
+    public void setSymbolicNamesCacheSize(int symbolicNamesCacheSize) {
+        if (symbolicNamesCacheSize < 0)
+            throw new IllegalArgumentException("symbolicNamesCacheSize can not be negative: " + symbolicNamesCacheSize);
+        this.symbolicNamesCacheSize = symbolicNamesCacheSize;
+    }
+
+
+    /**
+     * Where the history of each task's runs is kept for the deployment reports (see {@link DeploymentReport}).
+     * It needs to outlive the build directory, and be kept between CI builds, for the percentiles in the reports to
+     * mean anything. Defaults to "caches/cq-package/deployment-history/&lt;root project name&gt;" in the Gradle
+     * user home.
+     */
+    public File getDeploymentHistoryDir() {
+        if (deploymentHistoryDir != null) return deploymentHistoryDir;
+        return new File(project.getGradle().getGradleUserHomeDir(),
+            "caches/cq-package/deployment-history/" + project.getRootProject().getName());
+    }
+
+
+    /**
+     * @see #getDeploymentHistoryDir()
+     */
+    public void setDeploymentHistoryDir(@Nullable File deploymentHistoryDir) {
+        this.deploymentHistoryDir = deploymentHistoryDir;
+    }
+
+
+    /**
+     * How to wait between polls of a server that is not ready yet, for the servers that have not been given
+     * their own policy with {@link #pollingPolicy(String, PollingPolicy)}. If this is null (the default), each
+     * server is polled every {@link SlingServerConfiguration#getRetryWaitMs()}.
+     *
+     * @see PollingPolicy#backoff()
+     */
+    public @Nullable PollingPolicy getPollingPolicy() {
+        return pollingPolicy;
+    }
+
+
+    /**
+     * @see #getPollingPolicy()
+     */
+    public void setPollingPolicy(@Nullable PollingPolicy pollingPolicy) {
+        this.pollingPolicy = pollingPolicy;
+    }
+
+
+    /**
+     * Sets how to wait between polls of the server named "serverName"
+     *
+     * @see #getPollingPolicy()
+     */
+    public void pollingPolicy(String serverName, PollingPolicy pollingPolicy) {
+        if (serverName == null) throw new IllegalArgumentException("serverName == null");
+        if (pollingPolicy == null) throw new IllegalArgumentException("pollingPolicy == null");
+        serverPollingPolicies.put(serverName, pollingPolicy);
+    }
+
+
+    /**
+     * Returns how to wait between polls of the server
+     */
+    public PollingPolicy pollingPolicy(SlingServerConfiguration serverConf) {
+        @Nullable PollingPolicy policy = serverPollingPolicies.get(serverConf.getName());
+        if (policy == null) policy = pollingPolicy;
+        return policy != null ? policy : PollingPolicy.fixed(serverConf.getRetryWaitMs());
+    }
+
+
+    /**
+     * How each time a server was polled until it was ready (e.g., for a package to install or bundles to become
+     * ACTIVE) went: the number of polls and how long was spent waiting
+     */
+    public List<PollStats> getPollStats() {
+        synchronized (pollStats) {
+            return new ArrayList<>(pollStats);
+        }
+    }
+
+
+    /**
+     * Should {@code uninstallBundles} remove the bundles from a server as a batch: stop all of them, then
+     * uninstall all of them, then refresh the framework's packages once? Otherwise each bundle is stopped and
+     * uninstalled in turn. Defaults to false.
+     *
+     * @see #getBundleParallelism()
+     * @see BundleBatch
+     */
+    public boolean isBatchBundleUninstalls() {
+        return batchBundleUninstalls;
+    }
+
+
+    /**
+     * @see #isBatchBundleUninstalls()
+     */
+    public void setBatchBundleUninstalls(boolean batchBundleUninstalls) {
+        this.batchBundleUninstalls = batchBundleUninstalls;
+    }
+
+
+    /**
+     * The maximum number of bundles on a server to start at the same time (see {@link #startInactiveBundles()}),
+     * to ask the status of at the same time (see {@link #getPerBundlePollingLimit()}), or, when
+     * {@link #isBatchBundleUninstalls()}, to stop or uninstall at the same time. Defaults to 4.
+     */
+    public int getBundleParallelism() {
+        return bundleParallelism;
+    }
+
+
+    /**
+     * @see #getBundleParallelism()
+     */
+    public void setBundleParallelism(int bundleParallelism) {
+        if (bundleParallelism < 1)
+            throw new IllegalArgumentException("bundleParallelism must be at least 1: " + bundleParallelism);
+        this.bundleParallelism = bundleParallelism;
+    }
+
+
+    /**
+     * While waiting for bundles to become ACTIVE, when no more than this many of them are not ACTIVE yet, only
+     * those bundles are asked about (each with its own request) rather than getting the list of every bundle on
+     * the server. Checking every bundle on the server always uses the list. 0 always uses the list. Defaults to 20.
+     */
+    public int getPerBundlePollingLimit() {
+        return perBundlePollingLimit;
+    }
+
+
+    /**
+     * @see #getPerBundlePollingLimit()
+     */
+    public void setPerBundlePollingLimit(int perBundlePollingLimit) {
+        if (perBundlePollingLimit < 0)
+            throw new IllegalArgumentException("perBundlePollingLimit can not be negative: " + perBundlePollingLimit);
+        this.perBundlePollingLimit = perBundlePollingLimit;
+    }
+
+
+    /**
+     * How long, in milliseconds, {@link #validateBundles(FileCollection)} and {@link #validateRemoteBundles()}
+     * wait in total for the bundles to become ACTIVE, including the time to download the package from each server
+     * for {@link #validateRemoteBundles()}. Up to {@link #getServerParallelism()} servers are checked at the same
+     * time, each of them for no longer than its own maxWaitMs. 0 (the default) uses the longest maxWaitMs of the servers.
+     */
+    public long getValidationTimeoutMs() {
+        return validationTimeoutMs;
+    }
+
+
+    /**
+     * @see #getValidationTimeoutMs()
+     */
+    public void setValidationTimeoutMs(long validationTimeoutMs) {
+        if (validationTimeoutMs < 0)
+            throw new IllegalArgumentException("validationTimeoutMs can not be negative: " + validationTimeoutMs);
+        this.validationTimeoutMs = validationTimeoutMs;
+    }
+
+
+    /**
+     * The build's record of which servers are responding
+     */
+    public ServerHealthRegistry getServerHealth() {
+        return serverHealth;
+    }
+
+
+    /**
+     * The task creating a delta of the package in this build, if there is one. When it is set, the delta is what
+     * gets uploaded, installed, uninstalled and removed instead of the full package.
+     */
+    public @Nullable CreateDeltaPackageTask getDeltaPackageTask() {
+        return deltaPackageTask;
+    }
+
+
+    /**
+     * @see #getDeltaPackageTask()
+     */
+    public void setDeltaPackageTask(@Nullable CreateDeltaPackageTask deltaPackageTask) {
+        this.deltaPackageTask = deltaPackageTask;
+    }
+
+
+    /**
+     * The build's HTTP clients for talking to the servers
+     */
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+
+
+    /**
+     * The factory that the package tasks use, which makes its requests with {@link #getHttpClientPool()}
+     */
+    public SimpleSlingPackageSupportFactory getSlingPackageSupportFactory() {
+        return new SimpleSlingPackageSupportFactory(httpClientPool);
+    }
+
+
+    /**
+     * The runner to use for fanning out across servers, based on {@link #getServerParallelism()}
+     */
+    public ConcurrentServerRunner getServerRunner() {
+        return serverParallelism == 1 ? ConcurrentServerRunner.SEQUENTIAL : new ConcurrentServerRunner(serverParallelism);
+    }
+
+
     // **********************************************************************
     //
     // HELPER CLASSES
@@ -810,6 +1861,13 @@ public class CqPackageHelper {
         HttpResponse run(SlingSupport slingSupport);
     }
 
+    /**
+     * Functional interface for {@link #validateAcrossServers(ValidationAction)}
+     */
+    private interface ValidationAction {
+        HttpResponse run(SlingSupport slingSupport, long deadlineMs, BooleanSupplier cancelled);
+    }
+
     /**
      * Functional interface for {@link #uninstallAllBundles(List, SlingSupport, UninstallBundlePredicate)}
      */
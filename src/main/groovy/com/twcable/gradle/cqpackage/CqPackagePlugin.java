@@ -20,12 +20,14 @@ import com.twcable.gradle.sling.SlingServersConfiguration;
 import lombok.val;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.internal.artifacts.publish.ArchivePublishArtifact;
 import org.gradle.api.internal.plugins.DefaultArtifactPublicationSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * <h1>Plugin name</h1>
@@ -75,16 +77,40 @@ public class CqPackagePlugin implements Plugin<Project> {
         val validateBundles = tasks.create("validateBundles", ValidateBundlesTask.class);
         val validateRemoteBundles = tasks.create("validateRemoteBundles", ValidateRemoteBundlesTask.class);
         val startInactiveBundles = tasks.create("startInactiveBundles", StartInactiveBundlesTask.class);
+        val rolloutPackage = tasks.create("rolloutPackage", RolloutPackageTask.class);
+        val createDeltaPackage = tasks.create("createDeltaPackage", CreateDeltaPackageTask.class);
 
         removePackage.dependsOn(uninstallPackage);
         uploadPackage.dependsOn(removePackage);
 
-        uninstallPackage.mustRunAfter(uninstallBundles);
-        uploadPackage.mustRunAfter(createPackage, uninstallPackage);
+        uninstallPackage.mustRunAfter(uninstallBundles, createPackage);
+        uploadPackage.mustRunAfter(createPackage, uninstallPackage, createDeltaPackage);
         installPackage.mustRunAfter(uploadPackage, uninstallPackage);
         startInactiveBundles.mustRunAfter(installPackage, uninstallPackage);
+        rolloutPackage.mustRunAfter(createPackage, uninstallBundles);
+        createDeltaPackage.dependsOn(createPackage);
+
+        final List<Task> serverTasks = Arrays.asList(uninstallBundles, uninstallPackage, removePackage, uploadPackage,
+            installPackage, validateRemoteBundles, startInactiveBundles, rolloutPackage);
+        project.getGradle().getTaskGraph().whenReady(taskGraph -> {
+            if (taskGraph.hasTask(createDeltaPackage) && System.getProperty("package") == null) {
+                cqPackageHelper(project).setDeltaPackageTask(createDeltaPackage);
+            }
+
+            if (serverTasks.stream().anyMatch(taskGraph::hasTask)) {
+                val packageHelper = cqPackageHelper(project);
+                val servers = project.getExtensions().getByType(SlingServersConfiguration.class);
+                if (packageHelper.getServerHealth().isProbeOnStart()) {
+                    packageHelper.getServerHealth().probe(servers, packageHelper.getHttpClientPool());
+                }
+                else {
+                    packageHelper.getHttpClientPool().warmUp(servers);
+                }
+            }
+        });
 
         validateBundles.bundles(createPackage.getConfiguration());
+        rolloutPackage.bundles(createPackage.getConfiguration());
 
         addBundlesToFilterXml.setCreatePackageTask(createPackage);
 
@@ -93,7 +119,7 @@ public class CqPackagePlugin implements Plugin<Project> {
 
         Arrays.asList(verifyBundles, addBundlesToFilterXml, validateBundles, installPackage, uploadPackage,
             validateRemoteBundles, startInactiveBundles, removePackage, uninstallBundles, uninstallPackage,
-            createPackage
+            createPackage, rolloutPackage, createDeltaPackage
         ).forEach(task -> task.setGroup("CQ"));
 
         LOG.debug("Finished adding tasks for " + this.getClass().getName() + " to " + project);
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.TaskAction
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Creates a package with only what changed since the reference package (see {@link DeltaPackage}), along with a
+ * list of the paths it removes. When this task is run, "uploadPackage" and "installPackage" use the delta instead
+ * of the full package. For example:
+ * <pre>
+ * gradle createDeltaPackage uploadPackage installPackage
+ * </pre>
+ * By default the reference is the last package whose delta was installed on every server, so the delta has what
+ * changed since then. Set {@link #setReferencePackage(File)} to a copy of what is deployed to compare with that
+ * instead.
+ * <p>
+ * Each delta has a different name (see {@link DeltaPackage#deltaName(String, String, String)}), so a delta is never
+ * uninstalled to make way for the next one. Once a delta is installed on a server, the older deltas are removed
+ * from it (see {@link #isRemoveOldDeltas()}).
+ */
+class CreateDeltaPackageTask extends DefaultTask {
+    private File _packageFile
+    private File _referencePackage
+    private File _deltaFile
+
+    /**
+     * Once the delta has been installed on every server, should the package become the reference for the next
+     * one? If it could not be installed on some server, the reference is left alone so that the next delta still
+     * has everything that server is missing. Defaults to true.
+     */
+    @Internal
+    boolean updateReference = true
+
+    /**
+     * Once the delta has been installed on a server, should the older deltas of the package be removed from it?
+     * Removing a package does not change the content it installed, but it can no longer be uninstalled.
+     * Defaults to true.
+     */
+    @Internal
+    boolean removeOldDeltas = true
+
+    private DeltaPackage _delta
+
+
+    CreateDeltaPackageTask() {
+        description = "Creates a CQ Package with only the changes since the reference package"
+    }
+
+
+    @TaskAction
+    @SuppressWarnings("GroovyUnusedDeclaration")
+    void createDelta() {
+        _delta = DeltaPackage.create(packageFile, referencePackage, deltaFile)
+        deletionsFile.setText(_delta.deletedPaths.collect { "${it}\n" }.join(''), 'UTF-8')
+    }
+
+    /**
+     * Copies the package to the reference package, so that the next delta is made against it. Called once the
+     * delta has been installed on every server, if {@link #isUpdateReference()}.
+     */
+    void makePackageTheReference() {
+        logger.lifecycle("Using ${packageFile.name} as the reference for the next delta")
+        referencePackage.parentFile.mkdirs()
+        Files.copy(packageFile.toPath(), referencePackage.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    /**
+     * The package to make the delta of. Defaults to the output of "createPackage".
+     */
+    @InputFile
+    File getPackageFile() {
+        return _packageFile ?: CreatePackageTask.from(project).archivePath
+    }
+
+
+    void setPackageFile(File packageFile) {
+        this._packageFile = packageFile
+    }
+
+    /**
+     * The package to compare with. Defaults to "build/cq-package/reference/" and the name of the package.
+     * If it does not exist, the delta is the whole package.
+     */
+    @Internal
+    File getReferencePackage() {
+        return _referencePackage ?: new File(project.buildDir, "cq-package/reference/${packageFile.name}")
+    }
+
+
+    void setReferencePackage(File referencePackage) {
+        this._referencePackage = referencePackage
+    }
+
+
+    @InputFiles
+    @SuppressWarnings("unused") // lets Gradle know when to not skip the task
+    FileCollection getReferencePackageFiles() {
+        return project.files(referencePackage.exists() ? [referencePackage] : [])
+    }
+
+    /**
+     * Where to write the delta. Defaults to the name of the package with "-delta" added to it.
+     */
+    @OutputFile
+    File getDeltaFile() {
+        return _deltaFile ?: new File(packageFile.parentFile, packageFile.name.replaceFirst(/(\.zip)?$/, '-delta.zip'))
+    }
+
+
+    void setDeltaFile(File deltaFile) {
+        this._deltaFile = deltaFile
+    }
+
+    /**
+     * The name of the delta package, once it has been created
+     */
+    @Internal
+    String getDeltaPackageName() {
+        if (!deltaFile.isFile()) throw new IllegalStateException("${deltaFile} has not been created")
+        return DeltaPackage.packageName(deltaFile)
+    }
+
+    /**
+     * The repository paths that installing the delta removes, one per line
+     */
+    @OutputFile
+    File getDeletionsFile() {
+        return new File(deltaFile.parentFile, deltaFile.name.replaceFirst(/(\.zip)?$/, '-deletions.txt'))
+    }
+
+    /**
+     * What is in the delta, once it has been created
+     */
+    @Internal
+    DeltaPackage getDelta() {
+        return _delta
+    }
+
+}
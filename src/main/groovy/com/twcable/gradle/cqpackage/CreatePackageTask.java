@@ -15,19 +15,28 @@
  */
 package com.twcable.gradle.cqpackage;
 
+import groovy.lang.Closure;
 import lombok.val;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.file.FileCollection;
+import org.gradle.api.internal.file.copy.CopyAction;
 import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputDirectory;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.SkipWhenEmpty;
 import org.gradle.api.tasks.bundling.Zip;
+import org.gradle.api.tasks.bundling.ZipEntryCompression;
 import org.gradle.jvm.tasks.Jar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,16 +48,46 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
 
 import static com.twcable.gradle.cqpackage.CreatePackageTask.CopyBundlesMode.ALL;
 import static com.twcable.gradle.cqpackage.CreatePackageTask.CopyBundlesMode.NONE;
 import static com.twcable.gradle.cqpackage.CreatePackageTask.CopyBundlesMode.NON_PROJECT_ONLY;
 import static com.twcable.gradle.cqpackage.CreatePackageTask.CopyBundlesMode.PROJECT_ONLY;
-
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.gradle.api.tasks.PathSensitivity.RELATIVE;
+
+/**
+ * Creates the CQ Package zip file.
+ * <p>
+ * The entries are in a fixed order (unless {@link #setReproducibleFileOrder(boolean)} says otherwise), and only
+ * the project properties that the package metadata refers to are inputs (see {@link #getExpandProperties()}), so
+ * the package can be taken from the build cache rather than built again. The entries keep the timestamps of their
+ * files, since the repository uses them (for "jcr:lastModified", client library caching, etc.); with
+ * {@link #setPreserveFileTimestamps(boolean)} set to false they have a fixed timestamp instead, and the package is
+ * the same, byte for byte, whenever its inputs are.
+ */
+@CacheableTask
 @SuppressWarnings({"Convert2MethodRef", "WeakerAccess"})
 public class CreatePackageTask extends Zip {
     private static final Logger LOG = LoggerFactory.getLogger(CreatePackageTask.class);
 
+    /**
+     * The files that are expanded as templates with {@link #getExpandProperties()}
+     */
+    static final Collection<String> TEMPLATE_PATHS = Collections.unmodifiableList(Arrays.asList(
+        "META-INF/vault/properties.xml", "META-INF/vault/definition/.content.xml"));
+
+    private static final Pattern TEMPLATE_EXPRESSION = Pattern.compile("\\$\\{([^}]*)}|<%=?(.*?)%>|\\$([A-Za-z_]\\w*(?:\\.[A-Za-z_]\\w*)*)", Pattern.DOTALL);
+    private static final Pattern PROPERTY_PATH = Pattern.compile("[A-Za-z_]\\w*(?:\\s*\\.\\s*[A-Za-z_]\\w*)*");
+
     private String _bundleInstallRoot = "/apps/install";
     private File _contentSrc;
     private Configuration _configuration;
@@ -64,6 +103,11 @@ public class CreatePackageTask extends Zip {
 
     private CopyBundlesMode copyBundlesMode = ALL;
 
+    private boolean incremental = false;
+    private int compressionThreads = 1;
+    private @Nullable CompressionPolicy compression;
+    private @Nullable Map<String, ?> expandProperties;
+
     public enum CopyBundlesMode {
         ALL, PROJECT_ONLY, NON_PROJECT_ONLY, NONE
     }
@@ -104,6 +148,7 @@ public class CreatePackageTask extends Zip {
 
     private void setDefaults() {
         setDescription("Creates the CQ Package zip file");
+        setReproducibleFileOrder(true);
 
         getProject().getTasks().
             matching(it -> it instanceof VerifyBundlesTask || it instanceof AddBundlesToFilterXmlTask).
@@ -204,6 +249,7 @@ public class CreatePackageTask extends Zip {
      * Defaults to `project.file("src/main/content")`
      */
     @InputDirectory
+    @PathSensitive(RELATIVE)
     public File getContentSrc() {
         return _contentSrc;
     }
@@ -241,6 +287,7 @@ public class CreatePackageTask extends Zip {
 
 
     @InputFiles
+    @PathSensitive(RELATIVE)
     @SuppressWarnings("unused") // lets Gradle know when to not skip the task
     public FileCollection getDependencyFiles() {
         return getProject().files(getConfiguration().getResolvedConfiguration().getFiles());
@@ -258,13 +305,181 @@ public class CreatePackageTask extends Zip {
 
         this.into("META-INF/vault", it -> {
             it.from(new File(contentSrc, "META-INF/vault/properties.xml"));
-            it.expand(getProject().getProperties());
+            it.expand(getExpandProperties());
         });
 
         this.into("META-INF/vault/definition", it -> {
             it.from(new File(contentSrc, "META-INF/vault/definition/.content.xml"));
-            it.expand(getProject().getProperties());
+            it.expand(getExpandProperties());
+        });
+    }
+
+
+    /**
+     * The properties that "META-INF/vault/properties.xml" and "META-INF/vault/definition/.content.xml" are
+     * expanded with. Defaults to the project properties that those files refer to (such as "version" for
+     * "${version}"), so that changing any other project property does not change the inputs of this task.
+     * <p>
+     * A property that is dereferenced in the files (such as "project" in "${project.version}") is passed in
+     * as it is, but the task's inputs are what is dereferenced from it (see {@link #getExpandPropertyValues()}).
+     * If the files use a property in a way that is not seen, set this explicitly.
+     */
+    @Internal
+    public Map<String, ?> getExpandProperties() {
+        if (expandProperties != null) return expandProperties;
+
+        final Map<String, ?> projectProperties = getProject().getProperties();
+        final Map<String, Object> properties = new TreeMap<>();
+        for (String name : templateReferences()) {
+            if (projectProperties.containsKey(name)) properties.put(name, projectProperties.get(name));
+        }
+        return properties;
+    }
+
+
+    public void setExpandProperties(@Nullable Map<String, ?> expandProperties) {
+        this.expandProperties = expandProperties;
+    }
+
+
+    /**
+     * The values of {@link #getExpandProperties()}, as the task's inputs. A property whose value is not a plain
+     * value (such as "project" or "rootProject") is recorded by what the templates dereference from it, such as
+     * "project.version"; if nothing is dereferenced from a project that way (as in "${project.findProperty('a')}"),
+     * its version and every one of its properties that is a string, number or boolean are recorded.
+     */
+    @Input
+    @SuppressWarnings("unused") // lets Gradle know when to not skip the task
+    public Map<String, String> getExpandPropertyValues() {
+        final Set<String> paths = templatePropertyPaths();
+        final Map<String, String> values = new TreeMap<>();
+        getExpandProperties().forEach((key, value) -> {
+            if (isPlainValue(value)) values.put(key, String.valueOf(value));
+            else values.putAll(dereferencedValues(key, value, paths));
         });
+        return values;
+    }
+
+
+    /**
+     * The values that "paths" (such as "rootProject.version") dereference from "value", which is the property
+     * "name"
+     */
+    private static Map<String, String> dereferencedValues(String name, Object value, Set<String> paths) {
+        final Map<String, String> values = new TreeMap<>();
+        final List<String> namePaths = paths.stream().
+            filter(path -> path.startsWith(name + ".")).
+            collect(Collectors.toCollection(ArrayList::new));
+        if (namePaths.isEmpty()) namePaths.add(name);
+
+        for (String path : namePaths) {
+            Object current = value;
+            String resolved = name;
+            for (String segment : path.substring(name.length()).split("\\.")) {
+                if (segment.isEmpty()) continue;
+                if (isPlainValue(current)) break;
+                try {
+                    current = InvokerHelper.getProperty(current, segment);
+                }
+                catch (RuntimeException exp) {
+                    break; // a method, such as "findProperty" in "project.findProperty('a')"
+                }
+                resolved = resolved + "." + segment;
+            }
+
+            if (current instanceof Project) {
+                final Project project = (Project)current;
+                for (Map.Entry<String, ?> property : project.getProperties().entrySet()) {
+                    final Object propertyValue = property.getValue();
+                    if (propertyValue instanceof CharSequence || propertyValue instanceof Number || propertyValue instanceof Boolean) {
+                        values.put(resolved + "." + property.getKey(), String.valueOf(propertyValue));
+                    }
+                }
+                values.put(resolved + ".version", String.valueOf(project.getVersion()));
+            }
+            else {
+                values.put(resolved, String.valueOf(current));
+            }
+        }
+        return values;
+    }
+
+
+    /**
+     * Does the String value of "value" say what it is? A project's does not, and neither does that of an object
+     * without its own toString().
+     */
+    private static boolean isPlainValue(@Nullable Object value) {
+        if (value == null || value instanceof CharSequence || value instanceof Number || value instanceof Boolean) return true;
+        if (value instanceof Project) return false;
+        try {
+            return value.getClass().getMethod("toString").getDeclaringClass() != Object.class;
+        }
+        catch (NoSuchMethodException exp) {
+            return false;
+        }
+    }
+
+
+    /**
+     * The names that the templates in {@link #TEMPLATE_PATHS} refer to
+     */
+    private Set<String> templateReferences() {
+        final Set<String> names = new TreeSet<>();
+        for (String path : templatePropertyPaths()) {
+            names.addAll(Arrays.asList(path.split("\\.")));
+        }
+        return names;
+    }
+
+
+    /**
+     * The property paths that the templates in {@link #TEMPLATE_PATHS} refer to
+     */
+    private Set<String> templatePropertyPaths() {
+        final Set<String> paths = new TreeSet<>();
+        for (String path : TEMPLATE_PATHS) {
+            val file = new File(getContentSrc(), path);
+            if (!file.isFile()) continue;
+
+            try {
+                paths.addAll(templatePropertyPaths(new String(Files.readAllBytes(file.toPath()), UTF_8)));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Could not read " + file, e);
+            }
+        }
+        return paths;
+    }
+
+
+    /**
+     * The names that "template" refers to, as a {@link groovy.text.SimpleTemplateEngine} template: "$name", and
+     * every identifier inside of "${...}" and "<%...%>"
+     */
+    static Set<String> templateReferences(String template) {
+        final Set<String> names = new TreeSet<>();
+        for (String path : templatePropertyPaths(template)) {
+            names.addAll(Arrays.asList(path.split("\\.")));
+        }
+        return names;
+    }
+
+
+    /**
+     * The property paths that "template" refers to, as a {@link groovy.text.SimpleTemplateEngine} template: such
+     * as "name" for "$name", and "project.version" for "${project.version}" or "$project.version"
+     */
+    static Set<String> templatePropertyPaths(String template) {
+        final Set<String> paths = new TreeSet<>();
+        val matcher = TEMPLATE_EXPRESSION.matcher(template);
+        while (matcher.find()) {
+            val expression = matcher.group(3) != null ? matcher.group(3) :
+                matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            val pathMatcher = PROPERTY_PATH.matcher(expression);
+            while (pathMatcher.find()) paths.add(pathMatcher.group().replaceAll("\\s", ""));
+        }
+        return paths;
     }
 
 
@@ -311,6 +526,7 @@ public class CreatePackageTask extends Zip {
 
 
     @InputFile
+    @PathSensitive(RELATIVE)
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public File getFilterXmlFile() throws IOException {
         val inFile = new File(getContentSrc(), "META-INF/vault/filter.xml");
@@ -338,6 +554,7 @@ public class CreatePackageTask extends Zip {
 
 
     @InputFiles
+    @PathSensitive(RELATIVE)
     public Collection<File> getBundleFiles() {
         switch (copyBundlesMode) {
             case ALL:
@@ -439,4 +656,93 @@ public class CreatePackageTask extends Zip {
         this.copyBundlesMode = copyBundlesMode;
     }
 
+
+    /**
+     * Only compress the entries that changed since the last time the package was built, copying the rest from
+     * the last package as they are. Defaults to false.
+     *
+     * @see PackageZipCopyAction
+     */
+    @Input
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+
+    /**
+     * How many threads to compress the entries of the package with. The entries are always in the same order no
+     * matter how many threads are used, but with just one (and without {@link #isIncremental()} or a compression
+     * policy) the zip is written by Gradle, so its bytes are different. Defaults to 1.
+     *
+     * @see PackageZipCopyAction
+     */
+    @Internal
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1)
+            throw new IllegalArgumentException("compressionThreads must be at least 1: " + compressionThreads);
+        this.compressionThreads = compressionThreads;
+    }
+
+
+    /**
+     * How to compress each of the entries of the package, by their paths. If this is not set, every entry is
+     * compressed as {@link #getEntryCompression()} says.
+     *
+     * @see #compression(Closure)
+     */
+    @Input
+    @Optional
+    public @Nullable CompressionPolicy getCompression() {
+        return compression;
+    }
+
+
+    public void setCompression(@Nullable CompressionPolicy compression) {
+        this.compression = compression;
+    }
+
+
+    /**
+     * Configures {@link #getCompression()}, starting with {@link CompressionPolicy#withDefaults()} (which stores
+     * bundles and media without compressing them again) if it has not been set.
+     */
+    public void compression(Closure closure) {
+        if (compression == null) compression = CompressionPolicy.withDefaults();
+        getProject().configure(compression, closure);
+    }
+
+
+    /**
+     * Overridden so that moving the project does not change the inputs of this task
+     */
+    @Override
+    @InputFiles
+    @SkipWhenEmpty
+    @Optional
+    @PathSensitive(RELATIVE)
+    public FileCollection getSource() {
+        return super.getSource();
+    }
+
+
+    @Override
+    protected CopyAction createCopyAction() {
+        if (!incremental && compressionThreads == 1 && compression == null) return super.createCopyAction();
+
+        val policy = compression != null ? compression :
+            CompressionPolicy.uniform(getEntryCompression() == ZipEntryCompression.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        return new PackageZipCopyAction(getArchivePath(), policy, incremental, compressionThreads,
+            isPreserveFileTimestamps());
+    }
+
 }
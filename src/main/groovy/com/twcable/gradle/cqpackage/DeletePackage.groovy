@@ -19,6 +19,7 @@ import com.twcable.gradle.sling.SlingServerConfiguration
 import com.twcable.gradle.sling.SlingServersConfiguration
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
 
 import javax.annotation.Nonnull
 
@@ -45,10 +46,23 @@ class DeletePackage {
      * @see #consumeStatus(Status, String, SlingServerConfiguration)
      */
     static void delete(String packageName, SlingServersConfiguration serversConfiguration, SlingPackageSupportFactory factory) {
-        serversConfiguration.each { serverConfig ->
-            def status = delete(packageName, factory.create(serverConfig))
-            consumeStatus(status, packageName, serverConfig)
-        }
+        delete(PackageId.fromString(packageName), serversConfiguration, factory, ConcurrentServerRunner.SEQUENTIAL)
+    }
+
+    /**
+     * Iterates through all of the servers in "servers" and deletes the given package on them,
+     * using "runner" to determine how many servers are worked on at the same time.
+     *
+     * @see #delete(PackageId, SlingPackageSupport)
+     * @see #consumeStatus(Status, String, SlingServerConfiguration)
+     */
+    static void delete(PackageId packageId, Iterable<SlingServerConfiguration> servers, SlingPackageSupportFactory factory,
+                       ConcurrentServerRunner runner) {
+        runner.run(servers, { SlingServerConfiguration serverConfig ->
+            def status = delete(packageId, factory.create(serverConfig))
+            consumeStatus(status, packageId.name, serverConfig)
+            return status
+        } as ConcurrentServerRunner.ServerAction<Status>)
     }
 
     /**
@@ -80,7 +94,21 @@ class DeletePackage {
      */
     @Nonnull
     static Status delete(String packageName, SlingPackageSupport packageSupport) {
-        return CqPackageCommand.doCommand("delete", packageName, packageSupport, falseStatusHandler)
+        return delete(PackageId.fromString(packageName), packageSupport)
+    }
+
+    /**
+     * Deletes the given package using the provided server configuration.
+     *
+     * @param packageId the package to delete; its group and version (when it has them) pick which of the packages
+     *                  with its name on the server is used
+     * @param packageSupport the configuration of the server to delete from
+     *
+     * @return the {@link PackageStatus} of doing the delete
+     */
+    @Nonnull
+    static Status delete(PackageId packageId, SlingPackageSupport packageSupport) {
+        return CqPackageCommand.doCommand("delete", packageId, packageSupport, falseStatusHandler)
     }
 
 }
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.gradle.api.GradleException
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamReader
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT
+
+/**
+ * A package that has only what changed in a package since a reference copy of it, such as the last one that was
+ * built or a copy of what is deployed.
+ * <p>
+ * The entries of the two packages are compared by their CRC and size, which come from the zips' directories, so
+ * nothing is decompressed to compare them. The delta has:
+ * <ul>
+ * <li>the entries under "jcr_root" that were changed or added, plus any other entries the filter covers</li>
+ * <li>a filter.xml that only covers those, plus the paths that were removed (so installing the delta removes them
+ * from the server too)</li>
+ * <li>the rest of META-INF from the package, except for the "definition" (which has a copy of the full filter)</li>
+ * </ul>
+ * A changed ".content.xml" covers its own node and the nodes it has inline (such as a page's "jcr:content" or a
+ * component's "cq:dialog"), so the node's children that are in their own folders are left alone. Because
+ * installing the delta replaces everything its filter covers, the entries for anything under those inline nodes
+ * (such as an asset's renditions) are copied into the delta too, even if they did not change.
+ * <p>
+ * The delta is given its own name (see {@link #deltaName(String, String, String)}) so that uploading it does not
+ * replace the full package or an earlier delta on the server, and uninstalling some other package first does not
+ * undo what it changes.
+ */
+@Slf4j
+@CompileStatic
+class DeltaPackage {
+    static final String JCR_ROOT = 'jcr_root'
+    static final String FILTER_XML = 'META-INF/vault/filter.xml'
+    static final String PROPERTIES_XML = 'META-INF/vault/properties.xml'
+    static final String DEFINITION_DIR = 'META-INF/vault/definition/'
+    static final String CONTENT_XML = '.content.xml'
+
+    /**
+     * The entries under "jcr_root" that are different in the package than in the reference
+     */
+    final List<String> changedEntries
+
+    /**
+     * The entries under "jcr_root" that are in the package but not in the reference
+     */
+    final List<String> addedEntries
+
+    /**
+     * The entries under "jcr_root" that are in the reference but not in the package
+     */
+    final List<String> removedEntries
+
+    /**
+     * The repository paths that installing the delta removes
+     */
+    final List<String> deletedPaths
+
+    /**
+     * If there was no reference to compare against, the "delta" is a copy of the whole package
+     */
+    final boolean full
+
+
+    private DeltaPackage(List<String> changedEntries, List<String> addedEntries, List<String> removedEntries,
+                         List<String> deletedPaths, boolean full) {
+        this.changedEntries = changedEntries
+        this.addedEntries = addedEntries
+        this.removedEntries = removedEntries
+        this.deletedPaths = deletedPaths
+        this.full = full
+    }
+
+    /**
+     * Compares "packageFile" with "referenceFile", writing the delta to "deltaFile".
+     *
+     * @param referenceFile if null or it does not exist, "packageFile" is copied as it is
+     */
+    @Nonnull
+    static DeltaPackage create(File packageFile, @Nullable File referenceFile, File deltaFile) {
+        if (packageFile == null) throw new IllegalArgumentException("packageFile == null")
+        if (deltaFile == null) throw new IllegalArgumentException("deltaFile == null")
+
+        deltaFile.parentFile?.mkdirs()
+
+        if (referenceFile == null || !referenceFile.isFile()) {
+            log.warn "There is no reference package ${referenceFile ?: ''} to compare ${packageFile.name} with, so the whole package is used"
+            Files.copy(packageFile.toPath(), deltaFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            final entries = new ArrayList<String>(contentEntries(packageFile).keySet())
+            return new DeltaPackage([], entries, [], [], true)
+        }
+
+        final start = System.currentTimeMillis()
+        final Map<String, Stamp> packageEntries = contentEntries(packageFile)
+        final Map<String, Stamp> referenceEntries = contentEntries(referenceFile)
+
+        final List<String> changed = []
+        final List<String> added = []
+        packageEntries.each { String name, Stamp stamp ->
+            final referenceStamp = referenceEntries.get(name)
+            if (referenceStamp == null) added.add(name)
+            else if (referenceStamp != stamp) changed.add(name)
+        }
+        final List<String> removed = referenceEntries.keySet().findAll { !packageEntries.containsKey(it) }.toList()
+
+        final Map<String, FilterRoot> roots = filterRoots(packageFile, changed + added)
+        final List<String> deleted = deletedPaths(removed, packageEntries.keySet())
+        deleted.each { roots.put(it, FilterRoot.SUBTREE) }
+
+        final Set<String> covered = coveredEntries(roots, packageEntries.keySet())
+        final int unchangedCovered = covered.size() - changed.size() - added.size()
+
+        final delta = new DeltaPackage(changed, added, removed, deleted, false)
+        delta.write(packageFile, PackageDigest.digest(referenceFile), roots, covered, deltaFile)
+
+        if (unchangedCovered > 0) {
+            log.info "${deltaFile.name}: ${unchangedCovered} entries that did not change are in it too, since its filter covers them"
+        }
+        log.info "${deltaFile.name}: ${changed.size()} changed, ${added.size()} added and ${removed.size()} " +
+            "removed of ${packageEntries.size()} entries in ${packageFile.name}; " +
+            "${deltaFile.length()} bytes instead of ${packageFile.length()} " +
+            "(compared in ${System.currentTimeMillis() - start}ms)"
+        return delta
+    }
+
+    /**
+     * The name for the delta of the package named "packageName". It includes the start of the digests of both
+     * the reference and the package, so a delta made against a different reference (such as after the last one was
+     * installed) has a different name than the delta before it.
+     */
+    @Nonnull
+    static String deltaName(String packageName, String referenceDigest, String packageDigest) {
+        return "${deltaPrefix(packageName)}${referenceDigest.take(8)}-${packageDigest.take(8)}".toString()
+    }
+
+    /**
+     * What the names of the deltas of the package named "packageName" start with
+     */
+    @Nonnull
+    static String deltaPrefix(String packageName) {
+        return "${packageName}-delta-".toString()
+    }
+
+    /**
+     * The name of the package in "packageFile", from its {@value #PROPERTIES_XML}
+     */
+    @Nonnull
+    static String packageName(File packageFile) {
+        if (packageFile == null) throw new IllegalArgumentException("packageFile == null")
+        return new ZipFile(packageFile).withCloseable { ZipFile zip -> requiredName(zip, readProperties(zip)) }
+    }
+
+    /**
+     * The repository path for an entry under "jcr_root": a ".content.xml" is for the folder it is in, a ".dir"
+     * folder is for the file next to it, and escaped names (such as "_jcr_content") are unescaped.
+     */
+    @Nonnull
+    static String jcrPath(String entryName) {
+        if (!entryName.startsWith(JCR_ROOT + '/')) throw new IllegalArgumentException("Not under ${JCR_ROOT}: ${entryName}")
+
+        String path = entryName.substring(JCR_ROOT.length())
+        if (path.endsWith('/' + CONTENT_XML)) path = path.substring(0, path.length() - CONTENT_XML.length() - 1)
+
+        final names = path.split('/').findAll { !it.isEmpty() }.collect { String name -> unescape(name) }
+        return '/' + names.join('/')
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    private static String unescape(String name) {
+        String theName = name.endsWith('.dir') ? name.substring(0, name.length() - '.dir'.length()) : name
+
+        if (theName.startsWith('__')) theName = theName.substring(1)
+        else if (theName ==~ /_[a-zA-Z0-9]+_.+/) theName = theName.replaceFirst(/_([a-zA-Z0-9]+)_/, '$1:')
+
+        return theName.contains('%') ? URLDecoder.decode(theName, 'UTF-8') : theName
+    }
+
+    /**
+     * The filter roots for the given entries. A ".content.xml" only covers its own node and the nodes it has inline;
+     * anything else covers everything under it.
+     */
+    private static Map<String, FilterRoot> filterRoots(File packageFile, Collection<String> entries) {
+        final Map<String, FilterRoot> roots = new TreeMap<>()
+        new ZipFile(packageFile).withCloseable { ZipFile zip ->
+            final xmlInputFactory = xmlInputFactory()
+            entries.each { String entry ->
+                final path = jcrPath(entry)
+                if (roots.get(path)?.subtree) return
+
+                if (!entry.endsWith('/' + CONTENT_XML)) {
+                    roots.put(path, FilterRoot.SUBTREE)
+                    return
+                }
+
+                final inlineNodes = inlineNodes(zip, xmlInputFactory, entry, path)
+                final root = roots.get(path)
+                if (inlineNodes == null) roots.put(path, FilterRoot.SUBTREE)
+                else if (root == null) roots.put(path, new FilterRoot(false, inlineNodes))
+                else root.inlineNodes.addAll(inlineNodes)
+            }
+        }
+        return roots
+    }
+
+
+    /**
+     * The paths of the nodes that the ".content.xml" in "entry" (for the node at "path") has inside its root
+     * element, or null if it is not a document view that can be read (in which case it is treated as covering
+     * everything under "path").
+     */
+    @Nullable
+    private static SortedSet<String> inlineNodes(ZipFile zip, XMLInputFactory xmlInputFactory, String entry, String path) {
+        final SortedSet<String> nodes = new TreeSet<>()
+        try {
+            zip.getInputStream(zip.getEntry(entry)).withCloseable { InputStream inputStream ->
+                final XMLStreamReader xmlReader = xmlInputFactory.createXMLStreamReader(inputStream)
+                try {
+                    int depth = 0
+                    while (xmlReader.hasNext()) {
+                        final event = xmlReader.next()
+                        if (event == START_ELEMENT) {
+                            depth++
+                            if (depth == 2) {
+                                final name = xmlReader.prefix ? "${xmlReader.prefix}:${xmlReader.localName}" : xmlReader.localName
+                                nodes.add((path == '/' ? '' : path) + '/' + decodeName(name.toString()))
+                            }
+                        }
+                        else if (event == END_ELEMENT) {
+                            depth--
+                        }
+                    }
+                }
+                finally {
+                    xmlReader.close()
+                }
+            }
+        }
+        catch (Exception exp) {
+            log.info "Could not read the nodes in ${entry}, so the delta covers everything under ${path}: ${exp}"
+            return null
+        }
+        return nodes
+    }
+
+
+    /**
+     * Element names in a document view escape what XML does not allow in a name (such as a leading digit) as
+     * "_xHHHH_"
+     */
+    private static String decodeName(String name) {
+        if (!name.contains('_x')) return name
+        return name.replaceAll(/_x([0-9a-fA-F]{4})_/) { List<String> match ->
+            String.valueOf((char)Integer.parseInt(match[1], 16))
+        }
+    }
+
+
+    private static XMLInputFactory xmlInputFactory() {
+        final factory = XMLInputFactory.newInstance()
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true)
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+        return factory
+    }
+
+
+    /**
+     * The entries in the package that the filter covers. Installing the delta replaces everything under its filter,
+     * so anything that is covered but left out of the delta would be removed from the server.
+     */
+    private static Set<String> coveredEntries(Map<String, FilterRoot> roots, Collection<String> packageEntries) {
+        final Set<String> subtrees = new HashSet<>()
+        roots.each { String path, FilterRoot root ->
+            if (root.subtree) subtrees.add(path)
+            else subtrees.addAll(root.inlineNodes)
+        }
+
+        return packageEntries.findAll { String entry ->
+            final path = jcrPath(entry)
+            return roots.containsKey(path) || isUnder(path, subtrees)
+        }.toSet()
+    }
+
+
+    /**
+     * Is "path", or one of its ancestors, in "subtrees"?
+     */
+    private static boolean isUnder(String path, Set<String> subtrees) {
+        String ancestor = path
+        while (true) {
+            if (subtrees.contains(ancestor)) return true
+            if (ancestor == '/') return false
+            final slash = ancestor.lastIndexOf('/')
+            ancestor = slash == 0 ? '/' : ancestor.substring(0, slash)
+        }
+    }
+
+    /**
+     * The repository paths that go away. A folder's ".content.xml" that is gone is only removed if nothing is left
+     * in the folder, since removing it would remove everything under it.
+     */
+    private static List<String> deletedPaths(Collection<String> removedEntries, Collection<String> packageEntries) {
+        return removedEntries.findAll { String entry ->
+            if (!entry.endsWith('/' + CONTENT_XML)) return true
+
+            final folder = entry.substring(0, entry.length() - CONTENT_XML.length())
+            if (packageEntries.any { it.startsWith(folder) }) {
+                log.info "Not removing ${jcrPath(entry)}: its ${CONTENT_XML} is gone, but there is still content in it"
+                return false
+            }
+            return true
+        }.collect { jcrPath(it) }.unique()
+    }
+
+
+    private static Map<String, Stamp> contentEntries(File file) {
+        final Map<String, Stamp> entries = new LinkedHashMap<>()
+        new ZipFile(file).withCloseable { ZipFile zip ->
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory() && entry.name.startsWith(JCR_ROOT + '/')) {
+                    entries.put(entry.name, new Stamp(entry.crc, entry.size))
+                }
+            }
+        }
+        return entries
+    }
+
+
+    private void write(File packageFile, String referenceDigest, Map<String, FilterRoot> roots,
+                       Set<String> contentToCopy, File deltaFile) {
+        final packageDigest = PackageDigest.digest(packageFile)
+
+        new ZipFile(packageFile).withCloseable { ZipFile zip ->
+            new ZipOutputStream(deltaFile.newOutputStream()).withCloseable { ZipOutputStream out ->
+                out.putNextEntry(new ZipEntry(PROPERTIES_XML))
+                out.write(properties(zip, referenceDigest, packageDigest))
+                out.closeEntry()
+
+                out.putNextEntry(new ZipEntry(FILTER_XML))
+                out.write(filterXml(roots).getBytes('UTF-8'))
+                out.closeEntry()
+
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    if (entry.isDirectory() || entry.name == PROPERTIES_XML || entry.name == FILTER_XML ||
+                        entry.name.startsWith(DEFINITION_DIR)) continue
+
+                    if (entry.name.startsWith('META-INF/') || contentToCopy.contains(entry.name)) {
+                        final copy = new ZipEntry(entry.name)
+                        copy.time = entry.time
+                        out.putNextEntry(copy)
+                        zip.getInputStream(entry).withCloseable { InputStream inputStream -> out << inputStream }
+                        out.closeEntry()
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static byte[] properties(ZipFile zip, String referenceDigest, String packageDigest) {
+        final properties = readProperties(zip)
+        final packageName = requiredName(zip, properties)
+
+        properties.setProperty('name', deltaName(packageName, referenceDigest, packageDigest))
+        properties.setProperty('description', "The changes to ${packageName} since the last package".toString())
+
+        final out = new ByteArrayOutputStream()
+        properties.storeToXML(out, null, 'UTF-8')
+        return out.toByteArray()
+    }
+
+
+    private static Properties readProperties(ZipFile zip) {
+        final entry = zip.getEntry(PROPERTIES_XML)
+        if (entry == null) throw new GradleException("There is no ${PROPERTIES_XML} in ${zip.name}")
+
+        final properties = new Properties()
+        zip.getInputStream(entry).withCloseable { InputStream inputStream -> properties.loadFromXML(inputStream) }
+        return properties
+    }
+
+
+    private static String requiredName(ZipFile zip, Properties properties) {
+        final packageName = properties.getProperty('name')
+        if (packageName == null) throw new GradleException("There is no package name in ${PROPERTIES_XML} in ${zip.name}")
+        return packageName
+    }
+
+
+    private static String filterXml(Map<String, FilterRoot> roots) {
+        final workspaceFilter = new Node(null, 'workspaceFilter', [version: '1.0'])
+        roots.each { String path, FilterRoot root ->
+            // creating the Node attaches it to its parent
+            final filter = new Node(workspaceFilter, 'filter', [root: path])
+            if (!root.subtree) {
+                new Node(filter, 'include', [pattern: quote(path)])
+                root.inlineNodes.each { String node ->
+                    new Node(filter, 'include', [pattern: quote(node) + '(/.*)?'])
+                }
+            }
+        }
+
+        final writer = new StringWriter()
+        writer.write('<?xml version="1.0" encoding="UTF-8"?>\n')
+        new XmlNodePrinter(new PrintWriter(writer)).print(workspaceFilter)
+        return writer.toString()
+    }
+
+
+    private static String quote(String path) {
+        return path.replaceAll(/([\\.\[\]{}()*+?^$|])/, '\\\\$1')
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * A filter root: either everything under it, or only the node itself and the given nodes (along with
+     * everything under them)
+     */
+    private static final class FilterRoot {
+        static final FilterRoot SUBTREE = new FilterRoot(true, Collections.<String>emptySortedSet())
+
+        final boolean subtree
+        final SortedSet<String> inlineNodes
+
+
+        FilterRoot(boolean subtree, SortedSet<String> inlineNodes) {
+            this.subtree = subtree
+            this.inlineNodes = inlineNodes
+        }
+    }
+
+
+    private static final class Stamp {
+        final long crc
+        final long size
+
+
+        Stamp(long crc, long size) {
+            this.crc = crc
+            this.size = size
+        }
+
+
+        @Override
+        boolean equals(Object other) {
+            if (!(other instanceof Stamp)) return false
+            final stamp = (Stamp)other
+            return crc == stamp.crc && size == stamp.size
+        }
+
+
+        @Override
+        int hashCode() {
+            return Objects.hash(crc, size)
+        }
+    }
+
+}
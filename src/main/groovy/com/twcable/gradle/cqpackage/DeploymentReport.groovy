@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.gradle.api.Task
+
+import javax.annotation.Nonnull
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Writes a JSON report of how a task that talks to the servers went, to "build/reports/cq-package/&lt;task&gt;.json":
+ * for each server, the time spent in each phase (such as "upload", "install", "list packages" or "bundles active")
+ * with how many polls it took, how many requests were made (and retried by the HTTP client), and how many bytes
+ * went over the network each way.
+ * <p>
+ * The totals of each run are also added to a history of the task's runs (keeping the last {@link #MAX_HISTORY}) in
+ * {@link CqPackageHelper#getDeploymentHistoryDir()}, and the report has the percentiles of those runs so that
+ * changes can be tracked across builds.
+ *
+ * @see #record(Task, Runnable)
+ */
+@Slf4j
+@CompileStatic
+class DeploymentReport {
+    static final String REPORTS_DIR = 'reports/cq-package'
+    static final int MAX_HISTORY = 100
+
+    /**
+     * Runs "action" and writes the report for "task", whether or not the action succeeds. A problem writing the
+     * report is logged but does not fail the task.
+     */
+    static void record(Task task, Runnable action) {
+        final packageHelper = CqPackagePlugin.cqPackageHelper(task.project)
+        final pollStatsBefore = packageHelper.pollStats.size()
+        final requestsBefore = requestCounts(packageHelper.httpClientPool)
+        final uploadsBefore = new HashSet<UploadProgress>(packageHelper.uploadResults.values())
+        final start = System.currentTimeMillis()
+
+        boolean success = false
+        try {
+            action.run()
+            success = true
+        }
+        finally {
+            try {
+                final pollStats = packageHelper.pollStats
+                final uploads = packageHelper.uploadResults.values().findAll { !uploadsBefore.contains(it) }
+                final report = report(task.path, start, System.currentTimeMillis() - start, success,
+                    pollStats.subList(Math.min(pollStatsBefore, pollStats.size()), pollStats.size()),
+                    difference(requestCounts(packageHelper.httpClientPool), requestsBefore), uploads)
+                write(new File(task.project.buildDir, REPORTS_DIR), task.name,
+                    historyFile(packageHelper.deploymentHistoryDir, task.path), report)
+            }
+            catch (Exception exp) {
+                log.warn "Could not write the deployment report for ${task.path}: ${exp}"
+            }
+        }
+    }
+
+    /**
+     * Builds the report for a run of a task
+     *
+     * @param pollStats the polling done while the task ran
+     * @param requests the counts of the requests made while the task ran, by server
+     * @param uploads the uploads done while the task ran
+     */
+    @Nonnull
+    static Map<String, Object> report(String taskPath, long startMs, long elapsedMs, boolean success,
+                                      Collection<PollStats> pollStats,
+                                      Map<String, Map<String, Long>> requests,
+                                      Collection<UploadProgress> uploads) {
+        final servers = new TreeMap<String, Map<String, Object>>()
+
+        for (PollStats stats : pollStats) {
+            final phases = (Map<String, Map<String, Long>>)server(servers, stats.serverName).
+                computeIfAbsent('phases') { new TreeMap<String, Map<String, Long>>() }
+            final phase = phases.computeIfAbsent(stats.operation) {
+                [count: 0L, elapsedMs: 0L, polls: 0L, waitedMs: 0L, gaveUp: 0L] as Map<String, Long>
+            }
+            add(phase, 'count', 1)
+            add(phase, 'elapsedMs', stats.elapsedMs)
+            add(phase, 'polls', stats.polls)
+            add(phase, 'waitedMs', stats.waitedMs)
+            if (!stats.ready) add(phase, 'gaveUp', 1)
+        }
+
+        requests.each { String serverName, Map<String, Long> counts ->
+            if (counts.values().any { it != 0L }) server(servers, serverName).put('requests', counts)
+        }
+
+        for (UploadProgress upload : uploads) {
+            server(servers, upload.serverName).put('upload', [
+                bytesSent: upload.bytesSent,
+                totalBytes: upload.totalBytes,
+                attempts: upload.attempts,
+                retries: Math.max(0, upload.attempts - 1),
+                elapsedMs: upload.elapsedMs,
+                bytesPerSecond: (long)upload.bytesPerSecond
+            ])
+        }
+
+        return [
+            task: taskPath,
+            startedAt: new Date(startMs).format("yyyy-MM-dd'T'HH:mm:ss.SSSZ"),
+            elapsedMs: elapsedMs,
+            success: success,
+            servers: servers
+        ] as Map<String, Object>
+    }
+
+    /**
+     * Writes the report to "&lt;taskName&gt;.json" in "directory", and adds it to the history of the task's runs
+     * in "historyFile"
+     */
+    static void write(File directory, String taskName, File historyFile, Map<String, Object> report) {
+        directory.mkdirs()
+        historyFile.parentFile.mkdirs()
+
+        final history = readHistory(historyFile)
+        history.add(summary(report))
+        while (history.size() > MAX_HISTORY) history.remove(0)
+        writeAtomically(historyFile, JsonOutput.toJson(history))
+
+        final withPercentiles = new LinkedHashMap<String, Object>(report)
+        withPercentiles.put('percentiles', percentiles(history))
+        final reportFile = new File(directory, "${taskName}.json")
+        writeAtomically(reportFile, JsonOutput.prettyPrint(JsonOutput.toJson(withPercentiles)))
+        log.info "Wrote ${reportFile}"
+    }
+
+    /**
+     * The file in "historyDir" for the history of the task at "taskPath". The directory can be shared by all the
+     * projects in the build, so the name comes from the whole path of the task.
+     */
+    @Nonnull
+    static File historyFile(File historyDir, String taskPath) {
+        final name = taskPath.startsWith(':') ? taskPath.substring(1) : taskPath
+        return new File(historyDir, "${name.replace(':', '-')}-history.json")
+    }
+
+    /**
+     * The times of a run to keep in the history: the total, and each phase of each server (as "server/phase")
+     */
+    static Map<String, Object> summary(Map<String, Object> report) {
+        final phases = new TreeMap<String, Long>()
+        ((Map<String, Map<String, Object>>)report.servers).each { String serverName, Map<String, Object> server ->
+            ((Map<String, Map<String, Long>>)server.phases)?.each { String phase, Map<String, Long> stats ->
+                phases.put("${serverName}/${phase}".toString(), stats.elapsedMs)
+            }
+        }
+        return [startedAt: report.startedAt, elapsedMs: report.elapsedMs, success: report.success, phases: phases] as Map<String, Object>
+    }
+
+    /**
+     * The 50th, 90th and 99th percentiles of the total time, and of the time of each phase, across the runs
+     */
+    static Map<String, Object> percentiles(List<Map<String, Object>> history) {
+        final phaseTimes = new TreeMap<String, List<Long>>()
+        for (Map<String, Object> run : history) {
+            ((Map<String, Object>)run.phases)?.each { String phase, Object elapsedMs ->
+                phaseTimes.computeIfAbsent(phase) { new ArrayList<Long>() }.add(((Number)elapsedMs).longValue())
+            }
+        }
+
+        final phases = new TreeMap<String, Object>()
+        phaseTimes.each { String phase, List<Long> times -> phases.put(phase, percentilesOf(times)) }
+
+        return [runs: history.size(),
+                elapsedMs: percentilesOf(history.collect { ((Number)it.elapsedMs).longValue() }),
+                phases: phases] as Map<String, Object>
+    }
+
+
+    static Map<String, Long> percentilesOf(List<Long> values) {
+        final sorted = new ArrayList<Long>(values).sort()
+        return [p50: percentile(sorted, 50), p90: percentile(sorted, 90), p99: percentile(sorted, 99)] as Map<String, Long>
+    }
+
+    /**
+     * The "nearest rank" percentile of the sorted values
+     */
+    static long percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) return 0
+        final rank = (int)Math.ceil(percent / 100d * sorted.size())
+        return sorted.get(Math.max(0, rank - 1))
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    private static void add(Map<String, Long> counts, String key, long amount) {
+        counts.put(key, counts.get(key) + amount)
+    }
+
+
+    private static Map<String, Object> server(Map<String, Map<String, Object>> servers, String serverName) {
+        return servers.computeIfAbsent(serverName) { new LinkedHashMap<String, Object>() }
+    }
+
+
+    private static Map<String, Map<String, Long>> requestCounts(HttpClientPool httpClientPool) {
+        final counts = new TreeMap<String, Map<String, Long>>()
+        httpClientPool.requestStats.each { String serverName, RequestStats stats -> counts.put(serverName, stats.toMap()) }
+        return counts
+    }
+
+
+    private static Map<String, Map<String, Long>> difference(Map<String, Map<String, Long>> after,
+                                                             Map<String, Map<String, Long>> before) {
+        final result = new TreeMap<String, Map<String, Long>>()
+        after.each { String serverName, Map<String, Long> counts ->
+            final previous = before.get(serverName) ?: ([:] as Map<String, Long>)
+            final diff = new LinkedHashMap<String, Long>()
+            counts.each { String key, Long value -> diff.put(key, value - (previous.get(key) ?: 0L)) }
+            result.put(serverName, diff)
+        }
+        return result
+    }
+
+
+    private static List<Map<String, Object>> readHistory(File historyFile) {
+        if (!historyFile.isFile()) return new ArrayList<Map<String, Object>>()
+        try {
+            return new ArrayList<Map<String, Object>>((List<Map<String, Object>>)new JsonSlurper().parse(historyFile))
+        }
+        catch (Exception exp) {
+            log.info "Starting a new history; could not read ${historyFile}: ${exp}"
+            return new ArrayList<Map<String, Object>>()
+        }
+    }
+
+
+    private static void writeAtomically(File file, String text) {
+        final tmpFile = File.createTempFile(file.name, '.tmp', file.parentFile)
+        tmpFile.setText(text, 'UTF-8')
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+}
@@ -17,13 +17,29 @@ package com.twcable.gradle.cqpackage
 
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
-import org.apache.commons.io.IOUtils
 import org.gradle.api.Project
 
 import javax.annotation.Nonnull
+import javax.annotation.Nullable
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamReader
+
+import static javax.xml.stream.XMLStreamConstants.CDATA
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT
+import static javax.xml.stream.XMLStreamConstants.SPACE
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT
 
 /**
  * Provides a way to (re)write the filter.xml file to include the bundles in the package.
+ * <p>
+ * The XML is streamed through (with StAX) rather than being read into memory, with a filter for each of the
+ * bundles added to the end of the root element. It is written out the same way {@link groovy.util.XmlNodePrinter}
+ * would write it: indented by two spaces, without comments, processing instructions or an XML declaration, and
+ * with elements that have no content written as "&lt;name/&gt;".
+ * <p>
+ * If "coalesceBundleFilters" is set, a single {@link CoalescedBundleFilter} is added in place of a filter for each
+ * bundle, after checking that it has the same paths in it.
  *
  * @see FilterXmlWriter#builder(Project)
  * @see FilterXmlWriter#run()
@@ -35,14 +51,22 @@ class FilterXmlWriter {
     private final Writer outWriter
     private final FilterDefinition filterDefinition
     private final String bundleInstallRoot
+    private final boolean coalesceBundleFilters
 
 
     FilterXmlWriter(Reader inReader, FilterDefinition filterDefinition,
                     String bundleInstallRoot, Writer outWriter) {
+        this(inReader, filterDefinition, bundleInstallRoot, outWriter, false)
+    }
+
+
+    FilterXmlWriter(Reader inReader, FilterDefinition filterDefinition,
+                    String bundleInstallRoot, Writer outWriter, boolean coalesceBundleFilters) {
         this.inReader = inReader
         this.filterDefinition = filterDefinition
         this.outWriter = outWriter
         this.bundleInstallRoot = bundleInstallRoot
+        this.coalesceBundleFilters = coalesceBundleFilters
     }
 
     /**
@@ -57,54 +81,222 @@ class FilterXmlWriter {
      * Reads the input, transforms the XML, and writes the output. All options are set on the {@link FilterXmlWriterBuilder}.
      */
     void run() {
-        def newXml = addJarsToXml(inReader, bundleInstallRoot, filterDefinition)
-        writeReader(newXml, outWriter)
+        def theJarPatterns = jarPatterns(filterDefinition.jarNames, bundleInstallRoot)
+        log.debug "theJarPatterns: ${theJarPatterns}"
+
+        final coalescedFilter = coalescedFilter()
+
+        log.info("Writing new XML")
+        final xmlReader = xmlInputFactory().createXMLStreamReader(inReader)
+        try {
+            new Rewriter(xmlReader, outWriter, theJarPatterns, coalescedFilter).run()
+        }
+        finally {
+            xmlReader.close()
+        }
+        outWriter.flush()
     }
 
 
-    private static Reader addJarsToXml(Reader filterXmlReader, String bundleInstallRoot,
-                                       FilterDefinition filterDefinition) {
-        def xml = new XmlParser().parse(filterXmlReader)
-        attachJarsToFilterNode(xml, bundleInstallRoot, filterDefinition)
+    @Nullable
+    private CoalescedBundleFilter coalescedFilter() {
+        if (!coalesceBundleFilters || filterDefinition.jarNames.isEmpty()) return null
 
-        return xmlToReader(xml)
+        final filter = CoalescedBundleFilter.create(bundleInstallRoot, filterDefinition.jarNames)
+        filter.verify()
+        log.info "Using ${filter} for ${filterDefinition.jarNames.size()} bundles"
+        return filter
     }
 
 
-    private static Reader xmlToReader(Node xml) {
-        StringWriter writer = new StringWriter()
-        new XmlNodePrinter(new PrintWriter(writer)).print(xml)
-        return new StringReader(writer.toString())
+    private static XMLInputFactory xmlInputFactory() {
+        final factory = XMLInputFactory.newInstance()
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true)
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true)
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+        return factory
     }
 
 
-    private
-    static void attachJarsToFilterNode(Node filter, String bundleInstallRoot, FilterDefinition filterDefinition) {
-        def theJarPatterns = jarPatterns(filterDefinition.jarNames, bundleInstallRoot)
-        log.debug "theJarPatterns: ${theJarPatterns}"
-        attachFilterNodes(filter, theJarPatterns)
+    private static Collection<String> jarPatterns(Collection<String> jarFiles, String bundleInstallRoot) {
+        jarFiles.collect { String jarFileName ->
+            "${bundleInstallRoot}/${jarFileName}"
+        } as Collection<String>
     }
 
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * Copies the events from "xmlReader" to "out", adding the filters to the end of the root element (either one
+     * for each of "filterRoots", or "coalescedFilter"). Only the text (which XmlParser would have kept as a single
+     * string) and the namespaces in scope are held on to.
+     */
+    private static final class Rewriter {
+        private static final String INDENT = '  '
+
+        private final XMLStreamReader xmlReader
+        private final Writer out
+        private final Collection<String> filterRoots
+        private final @Nullable CoalescedBundleFilter coalescedFilter
+        private final Deque<Map<String, String>> namespaces = new ArrayDeque<>()
+        private final StringBuilder text = new StringBuilder()
+        private int depth = 0
+        private boolean startTagOpen = false
 
-    private static void attachFilterNodes(Node parentNode, Collection<String> filterPatterns) {
-        filterPatterns.each { String filerPattern ->
-            // creating the Node attaches it to its parent
-            new Node(parentNode, 'filter', [root: filerPattern])
+
+        Rewriter(XMLStreamReader xmlReader, Writer out, Collection<String> filterRoots,
+                 @Nullable CoalescedBundleFilter coalescedFilter) {
+            this.xmlReader = xmlReader
+            this.out = out
+            this.filterRoots = filterRoots
+            this.coalescedFilter = coalescedFilter
         }
-    }
 
 
-    private static void writeReader(Reader xmlReader, Writer xmlWriter) {
-        log.info("Writing new XML")
-        IOUtils.copy(xmlReader, (Writer)xmlWriter)
-        xmlWriter.flush()
-    }
+        void run() {
+            while (xmlReader.hasNext()) {
+                switch (xmlReader.next()) {
+                    case START_ELEMENT:
+                        startElement()
+                        break
+                    case END_ELEMENT:
+                        endElement()
+                        break
+                    case CHARACTERS:
+                    case CDATA:
+                    case SPACE:
+                        if (depth > 0) text.append(xmlReader.text)
+                        break
+                    default:
+                        // comments, processing instructions, etc. are dropped, like XmlParser does
+                        break
+                }
+            }
+        }
 
 
-    private static Collection<String> jarPatterns(Collection<String> jarFiles, String bundleInstallRoot) {
-        jarFiles.collect { String jarFileName ->
-            "${bundleInstallRoot}/${jarFileName}"
-        } as Collection<String>
+        private void startElement() {
+            flushText()
+            closeStartTag()
+
+            final Map<String, String> context = namespaces.isEmpty() ? new HashMap<String, String>() :
+                new HashMap<String, String>(namespaces.peek())
+            indent()
+            out.write('<' + qualifiedName(xmlReader.prefix, xmlReader.localName))
+            declareNamespace(context, xmlReader.prefix, xmlReader.namespaceURI)
+            for (int i = 0; i < xmlReader.attributeCount; i++) {
+                out.write(' ' + qualifiedName(xmlReader.getAttributePrefix(i), xmlReader.getAttributeLocalName(i)) +
+                    '="' + escape(xmlReader.getAttributeValue(i), true) + '"')
+                declareNamespace(context, xmlReader.getAttributePrefix(i), xmlReader.getAttributeNamespace(i))
+            }
+            namespaces.push(context)
+
+            startTagOpen = true
+            depth++
+        }
+
+
+        private void endElement() {
+            flushText()
+            if (depth == 1) writeBundleFilters()
+
+            depth--
+            namespaces.pop()
+            if (startTagOpen) {
+                out.write('/>\n')
+                startTagOpen = false
+            }
+            else {
+                indent()
+                out.write('</' + qualifiedName(xmlReader.prefix, xmlReader.localName) + '>\n')
+            }
+        }
+
+
+        private void writeBundleFilters() {
+            if (coalescedFilter != null) {
+                closeStartTag()
+                indent()
+                out.write('<filter root="' + escape(coalescedFilter.root, true) + '">\n')
+                indent()
+                out.write(INDENT + '<include pattern="' + escape(coalescedFilter.includePattern, true) + '"/>\n')
+                indent()
+                out.write('</filter>\n')
+                return
+            }
+
+            for (String filterRoot : filterRoots) {
+                closeStartTag()
+                indent()
+                out.write('<filter root="' + escape(filterRoot, true) + '"/>\n')
+            }
+        }
+
+
+        /**
+         * Writes the text since the last element, unless it is only whitespace
+         */
+        private void flushText() {
+            if (text.length() == 0) return
+            final content = text.toString()
+            text.length = 0
+            if (content.trim().isEmpty()) return
+
+            closeStartTag()
+            indent()
+            out.write(escape(content, false))
+            out.write('\n')
+        }
+
+
+        private void closeStartTag() {
+            if (!startTagOpen) return
+            out.write('>\n')
+            startTagOpen = false
+        }
+
+
+        private void indent() {
+            for (int i = 0; i < depth; i++) out.write(INDENT)
+        }
+
+
+        private void declareNamespace(Map<String, String> context, String prefix, String namespaceUri) {
+            if (namespaceUri == null || namespaceUri.isEmpty()) return
+            final thePrefix = prefix ?: ''
+            if (context.get(thePrefix) == namespaceUri) return
+
+            out.write(' xmlns' + (thePrefix.isEmpty() ? '' : ':' + thePrefix) + '="' + escape(namespaceUri, true) + '"')
+            context.put(thePrefix, namespaceUri)
+        }
+
+
+        private static String qualifiedName(String prefix, String localName) {
+            return prefix ? prefix + ':' + localName : localName
+        }
+
+
+        private static String escape(String value, boolean isAttribute) {
+            final escaped = new StringBuilder(value.length() + 16)
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i)
+                switch (c) {
+                    case (char)'&': escaped.append('&amp;'); break
+                    case (char)'<': escaped.append('&lt;'); break
+                    case (char)'>': escaped.append('&gt;'); break
+                    case (char)'"': escaped.append(isAttribute ? '&quot;' : '"'); break
+                    case (char)'\n': escaped.append(isAttribute ? '&#10;' : '\n'); break
+                    case (char)'\r': escaped.append(isAttribute ? '&#13;' : '\r'); break
+                    default: escaped.append(c)
+                }
+            }
+            return escaped.toString()
+        }
     }
 
 }
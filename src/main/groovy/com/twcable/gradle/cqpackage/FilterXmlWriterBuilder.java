@@ -43,6 +43,7 @@ public class FilterXmlWriterBuilder {
     private Writer outWriter;
     private Configuration configuration;
     private String bundleInstallRoot;
+    private boolean coalesceBundleFilters = false;
 
 
     /**
@@ -85,6 +86,18 @@ public class FilterXmlWriterBuilder {
     }
 
 
+    /**
+     * Should the bundles share one filter rather than each having their own?
+     * Defaults to false.
+     *
+     * @see CoalescedBundleFilter
+     */
+    public FilterXmlWriterBuilder coalesceBundleFilters(boolean coalesceBundleFilters) {
+        this.coalesceBundleFilters = coalesceBundleFilters;
+        return this;
+    }
+
+
     /**
      * Builds an instance of {@link FilterXmlWriter} based on the properties set.
      */
@@ -96,7 +109,7 @@ public class FilterXmlWriterBuilder {
 
         FilterDefinition filterDefinition = createFilterDescription();
 
-        return new FilterXmlWriter(inReader, filterDefinition, bundleInstallRoot, outWriter);
+        return new FilterXmlWriter(inReader, filterDefinition, bundleInstallRoot, outWriter, coalesceBundleFilters);
     }
 
 
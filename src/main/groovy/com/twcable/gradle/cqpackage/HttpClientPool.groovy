@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import com.twcable.gradle.sling.SlingSupport
+import com.twcable.gradle.sling.SlingSupportFactory
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.http.Header
+import org.apache.http.auth.UsernamePasswordCredentials
+import org.apache.http.client.HttpRequestRetryHandler
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpHead
+import org.apache.http.impl.auth.BasicScheme
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
+import org.apache.http.protocol.HttpContext
+import org.gradle.api.Project
+
+import javax.annotation.Nonnull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * The HTTP clients to use for talking to the servers for the length of a build: one pooled, keep-alive client
+ * per server (and user), which sends the server's credentials with every request rather than waiting to be
+ * challenged for them.
+ * <p>
+ * As a {@link SlingSupportFactory} it creates {@link PooledSlingSupport} instances that use these clients.
+ * <p>
+ * The settings need to be made before the first request to a server, and are typically set in the root project:
+ * <pre>
+ * cqHttpClients {
+ *     maxConnectionsPerServer = 8
+ * }
+ * </pre>
+ *
+ * @see #forProject(Project)
+ */
+@Slf4j
+@CompileStatic
+class HttpClientPool implements SlingSupportFactory, Closeable {
+    static final String NAME = 'cqHttpClients'
+
+    /**
+     * The maximum number of connections to keep open to each server. Defaults to 4.
+     */
+    int maxConnectionsPerServer = 4
+
+    /**
+     * How long to wait to connect to a server. Defaults to 10 seconds.
+     */
+    int connectTimeoutMs = 10_000
+
+    /**
+     * How long to wait for data from a server. Installing a large package can take a long time before the server
+     * responds, so this defaults to 10 minutes.
+     */
+    int socketTimeoutMs = 600_000
+
+    private final ConcurrentMap<String, CloseableHttpClient> clients = new ConcurrentHashMap<>()
+    private final Set<String> warmedUp = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+    private final ConcurrentMap<String, RequestStats> requestStats = new ConcurrentHashMap<>()
+    private volatile boolean closed
+
+    /**
+     * Returns the pool for the build that "project" is in, creating it if needed. The pool is closed when the
+     * build finishes.
+     */
+    @Nonnull
+    static HttpClientPool forProject(Project project) {
+        if (project == null) throw new IllegalArgumentException("project == null")
+        def rootProject = project.rootProject
+        def extensions = rootProject.extensions
+        synchronized (extensions) {
+            def pool = extensions.findByType(HttpClientPool)
+            if (pool == null) {
+                pool = extensions.create(NAME, HttpClientPool)
+                final thePool = pool
+                rootProject.gradle.buildFinished { thePool.close() }
+            }
+            return pool
+        }
+    }
+
+
+    @Override
+    SlingSupport create(SlingServerConfiguration serverConf) {
+        if (serverConf == null) throw new IllegalArgumentException("serverConf == null")
+        return new PooledSlingSupport(serverConf, this)
+    }
+
+    /**
+     * Returns the client for the server, creating it if needed.
+     */
+    @Nonnull
+    CloseableHttpClient clientFor(SlingServerConfiguration serverConf) {
+        if (closed) throw new IllegalStateException("The HTTP clients have been closed")
+
+        final key = key(serverConf)
+        def client = clients.get(key)
+        if (client == null) {
+            synchronized (clients) {
+                client = clients.get(key)
+                if (client == null) {
+                    client = createClient(serverConf)
+                    clients.put(key, client)
+                }
+            }
+        }
+        return client
+    }
+
+    /**
+     * The counts of the requests made to the server so far in the build. The bytes sent and received are counted
+     * by the client's connections, so they include the headers and are what actually went over the network.
+     */
+    @Nonnull
+    RequestStats requestStats(SlingServerConfiguration serverConf) {
+        final existing = requestStats.get(serverConf.name)
+        if (existing != null) return existing
+        final stats = new RequestStats(serverConf.name)
+        return requestStats.putIfAbsent(serverConf.name, stats) ?: stats
+    }
+
+    /**
+     * The counts of the requests made to each server so far in the build, by the name of the server
+     */
+    @Nonnull
+    Map<String, RequestStats> getRequestStats() {
+        return Collections.unmodifiableMap(new TreeMap<String, RequestStats>(requestStats))
+    }
+
+    /**
+     * Opens a connection to each of the active servers in the background, so the first real request to each
+     * does not have to wait for the TCP (and TLS) handshake.
+     */
+    void warmUp(Iterable<SlingServerConfiguration> servers) {
+        final toWarm = servers.findAll { SlingServerConfiguration serverConf ->
+            SlingPackageSupport.isActive(serverConf) && warmedUp.add(key(serverConf))
+        }
+        if (toWarm.isEmpty()) return
+
+        final thread = new Thread({
+            for (SlingServerConfiguration serverConf : toWarm) {
+                warmUp(serverConf)
+            }
+        } as Runnable, "cq-http-warm-up")
+        thread.daemon = true
+        thread.start()
+    }
+
+
+    private void warmUp(SlingServerConfiguration serverConf) {
+        try {
+            final head = new HttpHead(serverConf.baseUri)
+            head.config = RequestConfig.custom().
+                setConnectTimeout(connectTimeoutMs).
+                setSocketTimeout(connectTimeoutMs).
+                setRedirectsEnabled(false).
+                build()
+            final CloseableHttpResponse resp = clientFor(serverConf).execute(head)
+            resp.close()
+            log.debug "Warmed up the connection to ${serverConf.name}"
+        }
+        catch (Exception exp) {
+            // the server will be dealt with properly when it is actually used
+            log.debug "Could not warm up the connection to ${serverConf.name}: ${exp}"
+        }
+    }
+
+
+    private CloseableHttpClient createClient(SlingServerConfiguration serverConf) {
+        log.info "Creating an HTTP client for ${serverConf.name} with up to ${maxConnectionsPerServer} connections"
+
+        final stats = requestStats(serverConf)
+        final connectionManager = new PoolingHttpClientConnectionManager(new CountingConnectionFactory(stats))
+        connectionManager.maxTotal = maxConnectionsPerServer
+        connectionManager.defaultMaxPerRoute = maxConnectionsPerServer
+
+        final requestConfig = RequestConfig.custom().
+            setConnectTimeout(connectTimeoutMs).
+            setSocketTimeout(socketTimeoutMs).
+            build()
+
+        final Header authHeader = BasicScheme.authenticate(
+            new UsernamePasswordCredentials(serverConf.username, serverConf.password), "UTF-8", false)
+
+        return HttpClients.custom().
+            setConnectionManager(connectionManager).
+            setDefaultRequestConfig(requestConfig).
+            setDefaultHeaders([authHeader]).
+            setRetryHandler({ IOException exp, int executionCount, HttpContext context ->
+                final retry = DefaultHttpRequestRetryHandler.INSTANCE.retryRequest(exp, executionCount, context)
+                if (retry) stats.retried()
+                return retry
+            } as HttpRequestRetryHandler).
+            build()
+    }
+
+
+    private static String key(SlingServerConfiguration serverConf) {
+        final uri = serverConf.baseUri
+        return "${serverConf.username}@${uri.scheme}://${uri.host}:${uri.port}".toString()
+    }
+
+    /**
+     * Closes all of the clients, and their connections
+     */
+    @Override
+    void close() {
+        closed = true
+        synchronized (clients) {
+            for (CloseableHttpClient client : clients.values()) {
+                try {
+                    client.close()
+                }
+                catch (IOException exp) {
+                    log.debug "Problem closing an HTTP client: ${exp}"
+                }
+            }
+            clients.clear()
+        }
+    }
+
+}
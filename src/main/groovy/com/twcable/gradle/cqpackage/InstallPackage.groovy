@@ -19,6 +19,7 @@ import com.twcable.gradle.sling.SlingServerConfiguration
 import com.twcable.gradle.sling.SlingServersConfiguration
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
 import org.gradle.api.GradleException
 
 import javax.annotation.Nonnull
@@ -46,10 +47,24 @@ class InstallPackage {
      * @see #consumeStatus(Status, String, SlingServerConfiguration)
      */
     static void install(String packageName, SlingServersConfiguration slingServersConfiguration, SlingPackageSupportFactory factory) {
-        slingServersConfiguration.each { serverConfig ->
-            def status = install(packageName, factory.create(serverConfig))
-            consumeStatus(status, packageName, serverConfig)
-        }
+        install(PackageId.fromString(packageName), slingServersConfiguration, factory, ConcurrentServerRunner.SEQUENTIAL)
+    }
+
+    /**
+     * Iterates through all of the servers in "servers" and installs the given package on them,
+     * using "runner" to determine how many servers are worked on at the same time.
+     *
+     * @return the status of the install on each server
+     * @see #install(PackageId, SlingPackageSupport)
+     * @see #consumeStatus(Status, String, SlingServerConfiguration)
+     */
+    static List<ConcurrentServerRunner.ServerResult<Status>> install(PackageId packageId, Iterable<SlingServerConfiguration> servers,
+                                                                     SlingPackageSupportFactory factory, ConcurrentServerRunner runner) {
+        return runner.run(servers, { SlingServerConfiguration serverConfig ->
+            def status = install(packageId, factory.create(serverConfig))
+            consumeStatus(status, packageId.name, serverConfig)
+            return status
+        } as ConcurrentServerRunner.ServerAction<Status>)
     }
 
     /**
@@ -79,7 +94,21 @@ class InstallPackage {
      */
     @Nonnull
     static Status install(String packageName, SlingPackageSupport packageSupport) {
-        return CqPackageCommand.doCommand("install", packageName, packageSupport, falseStatusHandler)
+        return install(PackageId.fromString(packageName), packageSupport)
+    }
+
+    /**
+     * Installs the given package using the provided server configuration.
+     *
+     * @param packageId the package to install; its group and version (when it has them) pick which of the packages
+     *                  with its name on the server is used
+     * @param packageSupport the configuration of the server to install on
+     *
+     * @return the {@link PackageStatus} of doing the install
+     */
+    @Nonnull
+    static Status install(PackageId packageId, SlingPackageSupport packageSupport) {
+        return CqPackageCommand.doCommand("install", packageId, packageSupport, falseStatusHandler)
     }
 
 }
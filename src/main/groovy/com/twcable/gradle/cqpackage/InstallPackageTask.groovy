@@ -27,13 +27,15 @@ class InstallPackageTask extends DefaultTask {
         description = "Installs the CQ Package that has been uploaded"
 
         packageHelper = CqPackagePlugin.cqPackageHelper(project)
-        slingPackageSupportFactory = SimpleSlingPackageSupportFactory.INSTANCE
+        slingPackageSupportFactory = packageHelper.slingPackageSupportFactory
     }
 
 
     @TaskAction
     void install() {
-        packageHelper.installPackage(slingPackageSupportFactory)
+        DeploymentReport.record(this) {
+            packageHelper.installPackage(slingPackageSupportFactory)
+        }
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import javax.annotation.Nullable;
+
+/**
+ * A minimal forward-only JSON scanner that walks through a document without building a tree for it.
+ * <p>
+ * Only the values that are explicitly read are turned into objects; everything else is skipped over. Because it
+ * keeps track of its position, callers can remember where a value starts and ends in the source text and
+ * fully parse just that part later if they need it.
+ * <p>
+ * The scanner is lenient about commas between members and elements. It is not thread-safe.
+ */
+final class JsonScanner {
+    private final CharSequence text;
+    private int pos;
+
+
+    JsonScanner(CharSequence text) {
+        if (text == null) throw new IllegalArgumentException("text == null");
+        this.text = text;
+        this.pos = 0;
+    }
+
+
+    /**
+     * The offset into the text of the next character to be read
+     */
+    int getPosition() {
+        return pos;
+    }
+
+
+    /**
+     * Moves past any whitespace
+     */
+    void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+    }
+
+
+    /**
+     * Consumes the '{' that starts an object
+     */
+    void beginObject() {
+        expect('{');
+    }
+
+
+    /**
+     * Returns the name of the next member of the current object, leaving the scanner positioned at the member's
+     * value. If there are no more members, the closing '}' is consumed and null is returned.
+     */
+    @Nullable
+    String nextKey() {
+        skipWhitespace();
+        if (peek() == ',') {
+            pos++;
+            skipWhitespace();
+        }
+        if (peek() == '}') {
+            pos++;
+            return null;
+        }
+        final String key = readString();
+        expect(':');
+        return key;
+    }
+
+
+    /**
+     * Consumes the '[' that starts an array
+     */
+    void beginArray() {
+        expect('[');
+    }
+
+
+    /**
+     * Returns true if there is another element in the current array, leaving the scanner positioned at it.
+     * If there are no more elements, the closing ']' is consumed and false is returned.
+     */
+    boolean hasNextElement() {
+        skipWhitespace();
+        if (peek() == ',') {
+            pos++;
+            skipWhitespace();
+        }
+        if (peek() == ']') {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Reads a string, number or boolean value as a String. Returns null for a JSON null; objects and arrays are
+     * skipped and also return null.
+     */
+    @Nullable
+    String nextScalar() {
+        skipWhitespace();
+        final char c = peek();
+        if (c == '"') return readString();
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        final String literal = readLiteral();
+        return "null".equals(literal) ? null : literal;
+    }
+
+
+    /**
+     * Moves past the next value, whatever it is
+     */
+    void skipValue() {
+        skipWhitespace();
+        final char c = peek();
+        if (c == '"') {
+            skipString();
+        }
+        else if (c == '{' || c == '[') {
+            skipContainer();
+        }
+        else {
+            readLiteral();
+        }
+    }
+
+
+    private void skipContainer() {
+        int depth = 0;
+        do {
+            final char c = next();
+            if (c == '"') {
+                pos--;
+                skipString();
+            }
+            else if (c == '{' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ']') {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+
+    private String readLiteral() {
+        final int start = pos;
+        while (pos < text.length()) {
+            final char c = text.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+            pos++;
+        }
+        if (start == pos) throw malformed("Expected a value");
+        return text.subSequence(start, pos).toString();
+    }
+
+
+    private void skipString() {
+        expect('"');
+        while (true) {
+            final char c = next();
+            if (c == '"') return;
+            if (c == '\\') next();
+        }
+    }
+
+
+    private String readString() {
+        expect('"');
+        final StringBuilder sb = new StringBuilder();
+        while (true) {
+            final char c = next();
+            if (c == '"') return sb.toString();
+            if (c == '\\') {
+                final char escaped = next();
+                switch (escaped) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) throw malformed("Incomplete unicode escape");
+                        sb.append((char)Integer.parseInt(text.subSequence(pos, pos + 4).toString(), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                }
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+
+    private void expect(char expected) {
+        skipWhitespace();
+        final char c = next();
+        if (c != expected) {
+            pos--;
+            throw malformed("Expected '" + expected + "' but found '" + c + "'");
+        }
+    }
+
+
+    private char peek() {
+        if (pos >= text.length()) throw malformed("Unexpected end of document");
+        return text.charAt(pos);
+    }
+
+
+    private char next() {
+        final char c = peek();
+        pos++;
+        return c;
+    }
+
+
+    private IllegalStateException malformed(String msg) {
+        return new IllegalStateException(msg + " at position " + pos + " of the JSON document");
+    }
+
+}
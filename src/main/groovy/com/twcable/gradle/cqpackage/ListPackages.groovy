@@ -17,16 +17,16 @@ package com.twcable.gradle.cqpackage
 
 import com.twcable.gradle.http.HttpResponse
 import com.twcable.gradle.sling.SlingSupport
-import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
 import org.gradle.api.GradleException
 
 import javax.annotation.Nonnull
+import javax.annotation.Nullable
 
 import static com.twcable.gradle.cqpackage.SuccessOrFailure.failure
 import static com.twcable.gradle.cqpackage.SuccessOrFailure.success
-import static com.twcable.gradle.sling.SlingSupport.block
 import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
 import static java.net.HttpURLConnection.HTTP_OK
 
@@ -36,15 +36,13 @@ class ListPackages {
 
     /**
      * Asks the given server for all of the CQ Packages that it has, returning their information.
+     * <p>
+     * This builds the full properties for every package on the server; use {@link #packageListing(SlingPackageSupport)}
+     * when only their ids are needed, or {@link #packageListing(SlingPackageSupport, PackageId)} for one of them.
      */
     @Nonnull
     static SuccessOrFailure<Collection<RuntimePackageProperties>> listPackages(SlingPackageSupport packageSupport) {
-        def packageServerConf = packageSupport.packageServerConf
-        def serverConf = packageServerConf.serverConf
-
-        if (!packageServerConf.serverConf.active) return failure(Status.SERVER_INACTIVE)
-
-        return listPackages(packageServerConf.packageListUri, packageSupport.slingSupport, serverConf.maxWaitMs, serverConf.retryWaitMs)
+        return packages(packageListing(packageSupport, packageSupport.packageServerConf.packageListUri, null))
     }
 
     /**
@@ -53,22 +51,131 @@ class ListPackages {
     @Nonnull
     static SuccessOrFailure<Collection<RuntimePackageProperties>> listPackages(URI packageListUri, SlingSupport slingSupport,
                                                                                long maxWaitMs, long retryWaitMs) {
+        return packages(packageListing(packageListUri, slingSupport, maxWaitMs, retryWaitMs))
+    }
+
+    /**
+     * Asks the given server for the listing of the CQ Packages that it has. The listing has the ids and paths of
+     * the packages, but not necessarily their full properties (see {@link PackageListing#hasPropertiesOf(String)}).
+     * <p>
+     * If "packageSupport" has a {@link PackageListCache}, the listing is only retrieved from the server if the
+     * cache does not already have it.
+     */
+    @Nonnull
+    static SuccessOrFailure<PackageListing> packageListing(SlingPackageSupport packageSupport) {
+        return packageListing(packageSupport, packageSupport.packageServerConf.packageListUri,
+            Collections.<String> emptySet())
+    }
+
+    /**
+     * Asks the given server for a listing that has at least the packages with the same name as "packageId", along
+     * with their full properties.
+     * <p>
+     * If {@link SlingPackageSupport#narrowPackageListQueries} is set, the server is only asked for the packages
+     * matching the name; otherwise it is asked for all of them. Either way, the listing may have other packages in
+     * it as well, so use {@link PackageListing#find(PackageId)} on it. A cached listing that only has the ids of
+     * those packages is retrieved again.
+     */
+    @Nonnull
+    static SuccessOrFailure<PackageListing> packageListing(SlingPackageSupport packageSupport, PackageId packageId) {
+        final packageServerConf = packageSupport.packageServerConf
+        final packageListUri = packageSupport.narrowPackageListQueries ?
+            packageServerConf.getPackageListUri(packageId.name) : packageServerConf.packageListUri
+        return packageListing(packageSupport, packageListUri, Collections.singleton(packageId.name))
+    }
+
+
+    /**
+     * @param propertiesOf the names of the packages to have the full properties of; null for every package
+     */
+    private static SuccessOrFailure<PackageListing> packageListing(SlingPackageSupport packageSupport, URI packageListUri,
+                                                                   @Nullable Set<String> propertiesOf) {
+        def serverConf = packageSupport.packageServerConf.serverConf
+
+        final serverHealth = packageSupport.serverHealth
+        if (serverHealth != null && !serverHealth.allowRequest(serverConf)) return failure(Status.SERVER_TIMEOUT)
+
+        try {
+            if (!packageSupport.active) return failure(Status.SERVER_INACTIVE)
+
+            final packageServerConf = packageSupport.packageServerConf
+            final Closure<SuccessOrFailure<PackageListing>> loader = { Set<String> names ->
+                final listingSF = packageListing(packageListUri, packageSupport.slingSupport, serverConf.name,
+                    serverConf.maxWaitMs, packageServerConf.pollingPolicy, packageSupport.pollStats, names)
+                if (serverHealth != null) {
+                    if (listingSF.error == Status.SERVER_TIMEOUT) serverHealth.recordFailure(serverConf)
+                    else serverHealth.recordSuccess(serverConf)
+                }
+                return listingSF
+            }
+
+            final cache = packageSupport.packageListCache
+            if (cache == null) return loader.call(propertiesOf)
+            return cache.packageListing(packageListUri, propertiesOf, loader)
+        }
+        finally {
+            // the listing may have come from the cache without asking the server
+            serverHealth?.release(serverConf)
+        }
+    }
+
+    /**
+     * Asks the given server for the listing of the CQ Packages that it has.
+     */
+    @Nonnull
+    static SuccessOrFailure<PackageListing> packageListing(URI packageListUri, SlingSupport slingSupport,
+                                                           long maxWaitMs, long retryWaitMs) {
+        return packageListing(packageListUri, slingSupport, packageListUri.authority, maxWaitMs,
+            PollingPolicy.fixed(retryWaitMs), null)
+    }
+
+    /**
+     * Asks the given server for the listing of the CQ Packages that it has, polling as "pollingPolicy" says
+     * while the server is not able to answer.
+     *
+     * @param serverName the name of the server, for the polling statistics
+     * @param pollStats if not null, how the polling went is added to it
+     */
+    @Nonnull
+    static SuccessOrFailure<PackageListing> packageListing(URI packageListUri, SlingSupport slingSupport,
+                                                           String serverName, long maxWaitMs,
+                                                           PollingPolicy pollingPolicy,
+                                                           @Nullable Collection<PollStats> pollStats) {
+        return packageListing(packageListUri, slingSupport, serverName, maxWaitMs, pollingPolicy, pollStats, null)
+    }
+
+    /**
+     * Asks the given server for the listing of the CQ Packages that it has, polling as "pollingPolicy" says
+     * while the server is not able to answer.
+     *
+     * @param serverName the name of the server, for the polling statistics
+     * @param pollStats if not null, how the polling went is added to it
+     * @param propertiesOf the names of the packages to keep the full properties of; null for every package
+     * @see PackageListing#parse(String, Set)
+     */
+    @Nonnull
+    static SuccessOrFailure<PackageListing> packageListing(URI packageListUri, SlingSupport slingSupport,
+                                                           String serverName, long maxWaitMs,
+                                                           PollingPolicy pollingPolicy,
+                                                           @Nullable Collection<PollStats> pollStats,
+                                                           @Nullable Set<String> propertiesOf) {
         HttpResponse resp
-        block(
+        Polling.poll(
+            'list packages',
+            serverName,
             maxWaitMs,
+            pollingPolicy,
+            pollStats,
             { ![HTTP_OK, HTTP_CLIENT_TIMEOUT].contains(resp?.code) },
             {
                 resp = slingSupport.doGet(packageListUri)
-            },
-            retryWaitMs
+            }
         )
 
         if (resp.code == HTTP_OK) {
-            final String jsonStr = resp.body
-            final JsonSlurper jsonSlurper = new JsonSlurper()
-            return success(((Collection<Map>)(jsonSlurper.parseText(jsonStr) as Map).results).collect {
-                RuntimePackageProperties.fromJson(it)
-            }) as SuccessOrFailure<Collection<RuntimePackageProperties>>
+            final listing = PackageListing.parse(resp.body, propertiesOf)
+            log.debug "Found ${listing.size()} packages on ${packageListUri}"
+            return success(listing)
         }
         else if (resp.code == HTTP_CLIENT_TIMEOUT) {
             return failure(Status.SERVER_TIMEOUT)
@@ -78,4 +185,10 @@ class ListPackages {
         }
     }
 
+
+    private static SuccessOrFailure<Collection<RuntimePackageProperties>> packages(SuccessOrFailure<PackageListing> sf) {
+        if (sf.failed()) return failure(sf.error)
+        return success(sf.value.packages)
+    }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+
+import javax.annotation.Nonnull
+import java.security.MessageDigest
+
+/**
+ * Computes the content digest (SHA-256) of a package file.
+ * <p>
+ * Because packages can be hundreds of megabytes, the digest is remembered in a file next to the package
+ * (with a ".sha256" extension) along with the size and modification time of the package it was computed for,
+ * so it is only computed again when the package changes.
+ */
+@Slf4j
+@CompileStatic
+class PackageDigest {
+    static final String ALGORITHM = 'SHA-256'
+    static final String SIDECAR_EXTENSION = '.sha256'
+
+    private static final int BUFFER_SIZE = 64 * 1024
+
+
+    /**
+     * Returns the hex-encoded SHA-256 digest of the file, using the remembered value if it is still valid.
+     */
+    @Nonnull
+    static String digest(File packageFile) {
+        if (packageFile == null) throw new IllegalArgumentException("packageFile == null")
+
+        final sidecar = new File(packageFile.path + SIDECAR_EXTENSION)
+        final stamp = "${packageFile.length()} ${packageFile.lastModified()}".toString()
+
+        if (sidecar.isFile()) {
+            final lines = sidecar.readLines('UTF-8')
+            if (lines.size() == 2 && lines[1] == stamp) {
+                log.debug "Using the digest of ${packageFile} from ${sidecar}"
+                return lines[0]
+            }
+        }
+
+        final digest = compute(packageFile)
+        try {
+            sidecar.setText("${digest}\n${stamp}\n", 'UTF-8')
+        }
+        catch (IOException exp) {
+            log.debug "Could not write ${sidecar}: ${exp}"
+        }
+        return digest
+    }
+
+    /**
+     * Computes the hex-encoded SHA-256 digest of the file.
+     */
+    @Nonnull
+    static String compute(File file) {
+        if (file == null) throw new IllegalArgumentException("file == null")
+
+        final start = System.currentTimeMillis()
+        final messageDigest = MessageDigest.getInstance(ALGORITHM)
+        final buffer = new byte[BUFFER_SIZE]
+        file.withInputStream { InputStream inputStream ->
+            int read
+            while ((read = inputStream.read(buffer)) >= 0) {
+                messageDigest.update(buffer, 0, read)
+            }
+        }
+        final digest = messageDigest.digest().encodeHex().toString()
+        log.info "Computed the digest of ${file} in ${System.currentTimeMillis() - start}ms"
+        return digest
+    }
+
+}
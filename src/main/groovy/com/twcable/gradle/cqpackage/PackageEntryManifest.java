@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What is in a package file, entry by entry, so that the next time the package is built the entries that have
+ * not changed can be copied from it as they are (see {@link PackageZipCopyAction}).
+ * <p>
+ * It is kept in a file next to the package (with a ".entries" extension). Like {@link PackageDigest}, it
+ * remembers the size and modification time of the package it describes, and is ignored if the package has
+ * changed since then.
+ */
+final class PackageEntryManifest {
+    private static final Logger LOG = LoggerFactory.getLogger(PackageEntryManifest.class);
+
+    static final String SIDECAR_EXTENSION = ".entries";
+    private static final String HEADER = "# cq-package entries 1";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+
+    /**
+     * Adds (or replaces) the entry for "name"
+     */
+    void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+
+    @Nullable
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+
+    int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Reads the manifest for "packageFile". If there is not one, or it is for a different version of the package,
+     * the manifest is empty.
+     */
+    @Nonnull
+    static PackageEntryManifest read(File packageFile) {
+        final PackageEntryManifest manifest = new PackageEntryManifest();
+
+        final File sidecar = sidecar(packageFile);
+        if (!packageFile.isFile() || !sidecar.isFile()) return manifest;
+
+        try {
+            final List<String> lines = Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() < 2 || !lines.get(0).equals(HEADER) || !lines.get(1).equals(stamp(packageFile))) {
+                LOG.info("{} is not for the current {}, so every entry will be compressed", sidecar, packageFile.getName());
+                return manifest;
+            }
+
+            for (String line : lines.subList(2, lines.size())) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 5) throw new IOException("Bad line: " + line);
+                manifest.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+            }
+            return manifest;
+        }
+        catch (IOException | RuntimeException exp) {
+            LOG.info("Could not read {}, so every entry will be compressed: {}", sidecar, exp.toString());
+            return new PackageEntryManifest();
+        }
+    }
+
+
+    /**
+     * Writes the manifest for "packageFile", which must already have been written
+     */
+    void write(File packageFile) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(sidecar(packageFile).toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(stamp(packageFile));
+            writer.write('\n');
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final Entry value = entry.getValue();
+                writer.write(entry.getKey() + '\t' + value.size + '\t' + value.crc + '\t' + value.method + '\t' + value.level);
+                writer.write('\n');
+            }
+        }
+    }
+
+
+    /**
+     * Removes the manifest for "packageFile", if there is one
+     */
+    static void delete(File packageFile) throws IOException {
+        Files.deleteIfExists(sidecar(packageFile).toPath());
+    }
+
+
+    static File sidecar(File packageFile) {
+        return new File(packageFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+
+    private static String stamp(File packageFile) {
+        return packageFile.length() + " " + packageFile.lastModified();
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * An entry in the package: the size and CRC of its (uncompressed) content, and how it was compressed
+     */
+    static final class Entry {
+        final long size;
+        final long crc;
+        final int method;
+        final int level;
+
+
+        Entry(long size, long crc, int method, int level) {
+            this.size = size;
+            this.crc = crc;
+            this.method = method;
+            this.level = level;
+        }
+
+
+        /**
+         * Is this for the same content, compressed the same way?
+         */
+        boolean matches(long size, long crc, int method, int level) {
+            return this.size == size && this.crc == crc && this.method == method && this.level == level;
+        }
+
+
+        @Override
+        public String toString() {
+            return "Entry{size=" + size + ", crc=" + crc + ", method=" + method + ", level=" + level + '}';
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
+import org.gradle.api.Project
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+import static com.twcable.gradle.cqpackage.SuccessOrFailure.success
+
+/**
+ * Remembers the package listing (the results of "list.jsp") of each server for the length of a build, so that
+ * the (potentially very large) listing is only downloaded again when a command has changed what is on the server.
+ * <p>
+ * The listings are kept per server. A server can have more than one listing: the full one, and ones narrowed by
+ * a query (see {@link ListPackages#packageListing(SlingPackageSupport, PackageId)}). Changes to a server
+ * apply to all of its listings. Failures are never cached.
+ *
+ * @see #forProject(Project)
+ * @see ListPackages#packageListing(SlingPackageSupport)
+ */
+@Slf4j
+@CompileStatic
+class PackageListCache {
+    static final String NAME = 'cqPackageListCache'
+
+    private final ConcurrentMap<String, ConcurrentMap<String, PackageListing>> listings = new ConcurrentHashMap<>()
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>()
+
+    /**
+     * Returns the cache for the build that "project" is in, creating it if needed.
+     */
+    @Nonnull
+    static PackageListCache forProject(Project project) {
+        if (project == null) throw new IllegalArgumentException("project == null")
+        def extensions = project.rootProject.extensions
+        synchronized (extensions) {
+            return extensions.findByType(PackageListCache) ?: extensions.create(NAME, PackageListCache)
+        }
+    }
+
+    /**
+     * Returns the cached listing for the URI, or calls "loader" to get it if there is not one or the cached one
+     * does not have the full properties of the packages in "propertiesOf". A listing that is retrieved again
+     * keeps the properties of the packages the cached one had them for, too.
+     * <p>
+     * Only one thread at a time will call the loader for a given server.
+     *
+     * @param packageListUri the URI of the server's package list, including any query
+     * @param propertiesOf the names of the packages that the listing needs the full properties of; null for
+     *                     every package
+     * @param loader given the names of the packages to keep the full properties of (null for every package),
+     *               returns the listing from the server
+     */
+    @Nonnull
+    SuccessOrFailure<PackageListing> packageListing(URI packageListUri, @Nullable Set<String> propertiesOf,
+                                                    Closure<SuccessOrFailure<PackageListing>> loader) {
+        final serverKey = serverKey(packageListUri)
+        final key = packageListUri.toString()
+
+        def listing = serverListings(serverKey).get(key)
+        if (listing != null && hasProperties(listing, propertiesOf)) {
+            log.debug "Using cached package listing for ${key}"
+            return success(listing)
+        }
+
+        synchronized (lockFor(serverKey)) {
+            listing = serverListings(serverKey).get(key)
+            if (listing != null && hasProperties(listing, propertiesOf)) return success(listing)
+
+            Set<String> names = propertiesOf
+            if (listing != null) {
+                log.debug "Retrieving ${key} again for the properties of ${propertiesOf ?: 'every package'}"
+                names = union(listing.propertiesOf, propertiesOf)
+            }
+
+            def sf = loader.call(names)
+            if (sf.succeeded()) {
+                serverListings(serverKey).put(key, sf.value)
+            }
+            return sf
+        }
+    }
+
+    /**
+     * Forget all the listings for the server, so the next request gets them fresh from the server.
+     */
+    void invalidate(URI packageListUri) {
+        final serverKey = serverKey(packageListUri)
+        synchronized (lockFor(serverKey)) {
+            def serverListings = serverListings(serverKey)
+            if (!serverListings.isEmpty()) {
+                serverListings.clear()
+                log.debug "Invalidated cached package listings for ${serverKey}"
+            }
+        }
+    }
+
+    /**
+     * Removes the package from the cached listings for the server (if there are any) without having to retrieve
+     * them again.
+     */
+    void removePackage(URI packageListUri, PackageId packageId) {
+        final serverKey = serverKey(packageListUri)
+        synchronized (lockFor(serverKey)) {
+            def serverListings = serverListings(serverKey)
+            for (String key : new ArrayList<String>(serverListings.keySet())) {
+                serverListings.put(key, serverListings.get(key).without(packageId))
+            }
+            if (!serverListings.isEmpty()) log.debug "Removed ${packageId} from the cached package listings for ${serverKey}"
+        }
+    }
+
+    private static boolean hasProperties(PackageListing listing, @Nullable Set<String> propertiesOf) {
+        if (listing.propertiesOf == null) return true
+        if (propertiesOf == null) return false
+        return listing.propertiesOf.containsAll(propertiesOf)
+    }
+
+
+    @Nullable
+    private static Set<String> union(@Nullable Set<String> first, @Nullable Set<String> second) {
+        if (first == null || second == null) return null
+        final Set<String> names = new HashSet<>(first)
+        names.addAll(second)
+        return names
+    }
+
+    /**
+     * The URI without its query, which is the same for all the listings of a server
+     */
+    private static String serverKey(URI packageListUri) {
+        final uri = packageListUri.toString()
+        final queryStart = uri.indexOf('?')
+        return queryStart < 0 ? uri : uri.substring(0, queryStart)
+    }
+
+
+    private ConcurrentMap<String, PackageListing> serverListings(String serverKey) {
+        def serverListings = new ConcurrentHashMap<String, PackageListing>()
+        def existing = listings.putIfAbsent(serverKey, serverListings)
+        return existing != null ? existing : serverListings
+    }
+
+
+    private Object lockFor(String key) {
+        def lock = new Object()
+        def existing = locks.putIfAbsent(key, lock)
+        return existing != null ? existing : lock
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import org.apache.jackrabbit.vault.packaging.PackageId
+import org.apache.jackrabbit.vault.packaging.Version
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+
+/**
+ * The packages on a server as returned by "list.jsp".
+ * <p>
+ * The response is scanned once, and for most packages only what identifies them (group, name, version and path)
+ * is kept, so a listing of a server with many packages takes little memory for as long as it is cached. The full
+ * {@link RuntimePackageProperties} are only built for the packages that were asked for when the listing was
+ * parsed (see {@link #parse(String, Set)}); to get them for another package, the listing has to be retrieved
+ * again (see {@link ListPackages#packageListing(SlingPackageSupport, PackageId)}).
+ * <p>
+ * The packages are indexed by their {@link PackageId} and by their name, so lookups do not have to walk the
+ * whole listing.
+ */
+@CompileStatic
+class PackageListing {
+    private final List<Entry> entries
+    private final Map<PackageId, Entry> byId
+    private final Map<String, List<Entry>> byName
+    private final @Nullable Set<String> propertiesOf
+
+
+    private PackageListing(List<Entry> entries, @Nullable Set<String> propertiesOf) {
+        this.entries = Collections.unmodifiableList(entries)
+        this.propertiesOf = propertiesOf == null ? null : Collections.unmodifiableSet(propertiesOf)
+        this.byId = new HashMap<>(entries.size() * 2)
+        this.byName = new HashMap<>(entries.size() * 2)
+        for (Entry entry : entries) {
+            byId.put(entry.packageId, entry)
+            def named = byName.get(entry.name)
+            if (named == null) {
+                named = new ArrayList<Entry>(1)
+                byName.put(entry.name, named)
+            }
+            named.add(entry)
+        }
+    }
+
+    /**
+     * Scans the "results" of a "list.jsp" response, keeping only the ids and paths of the packages.
+     *
+     * @throws IllegalStateException if the JSON is malformed
+     */
+    @Nonnull
+    static PackageListing parse(String json) {
+        return parse(json, Collections.<String> emptySet())
+    }
+
+    /**
+     * Scans the "results" of a "list.jsp" response, keeping the ids and paths of the packages, and the full
+     * properties of the packages with one of the names in "propertiesOf".
+     *
+     * @param propertiesOf the names of the packages to keep the full properties of; null for every package
+     * @throws IllegalStateException if the JSON is malformed
+     */
+    @Nonnull
+    static PackageListing parse(String json, @Nullable Set<String> propertiesOf) {
+        if (json == null) throw new IllegalArgumentException("json == null")
+
+        final scanner = new JsonScanner(json)
+        final entries = new ArrayList<Entry>()
+
+        scanner.beginObject()
+        String key
+        while ((key = scanner.nextKey()) != null) {
+            if (key == 'results') {
+                scanner.beginArray()
+                while (scanner.hasNextElement()) {
+                    entries.add(readEntry(scanner, json, propertiesOf))
+                }
+            }
+            else {
+                scanner.skipValue()
+            }
+        }
+        return new PackageListing(entries, propertiesOf == null ? null : new HashSet<String>(propertiesOf))
+    }
+
+
+    private static Entry readEntry(JsonScanner scanner, String json, @Nullable Set<String> propertiesOf) {
+        scanner.skipWhitespace()
+        final start = scanner.position
+
+        String group = null
+        String name = null
+        String version = null
+        String path = null
+
+        scanner.beginObject()
+        String key
+        while ((key = scanner.nextKey()) != null) {
+            switch (key) {
+                case 'group': group = scanner.nextScalar(); break
+                case 'name': name = scanner.nextScalar(); break
+                case 'version': version = scanner.nextScalar(); break
+                case 'path': path = scanner.nextScalar(); break
+                default: scanner.skipValue()
+            }
+        }
+
+        final theName = name ?: ''
+        RuntimePackageProperties packageProperties = null
+        if (propertiesOf == null || propertiesOf.contains(theName)) {
+            packageProperties = RuntimePackageProperties.fromJson(new JsonSlurper().parseText(json.substring(start, scanner.position)) as Map)
+        }
+        return new Entry(group ?: '', theName, version ?: '', path, packageProperties)
+    }
+
+    /**
+     * Does this listing have the full properties of the packages named "name"?
+     */
+    boolean hasPropertiesOf(String name) {
+        return propertiesOf == null || propertiesOf.contains(name)
+    }
+
+    /**
+     * The names of the packages that this listing has the full properties of, or null if it has them for every
+     * package
+     */
+    @Nullable
+    Set<String> getPropertiesOf() {
+        return propertiesOf
+    }
+
+    /**
+     * The number of packages on the server
+     */
+    int size() {
+        return entries.size()
+    }
+
+
+    @Nonnull
+    List<Entry> getEntries() {
+        return entries
+    }
+
+    /**
+     * The ids of all of the packages. This does not require building their properties.
+     */
+    @Nonnull
+    List<PackageId> getPackageIds() {
+        return entries.collect { it.packageId }
+    }
+
+    /**
+     * The properties of all of the packages. Prefer {@link #find(PackageId)} when looking for a specific package.
+     *
+     * @throws IllegalStateException if the listing does not have the properties of every package
+     */
+    @Nonnull
+    Collection<RuntimePackageProperties> getPackages() {
+        return entries.collect { requireProperties(it) }
+    }
+
+    /**
+     * Returns the properties for the package with exactly the same group, name and version as "packageId",
+     * or null if there is not one.
+     *
+     * @throws IllegalStateException if the listing only has the id of the package
+     */
+    @Nullable
+    RuntimePackageProperties get(PackageId packageId) {
+        if (packageId == null) throw new IllegalArgumentException("packageId == null")
+
+        final entry = byId.get(packageId)
+        return entry == null ? null : requireProperties(entry)
+    }
+
+    /**
+     * Returns the packages with the given name and group, in the order the server listed them.
+     *
+     * @param group the group of the package; if empty, packages in any group match
+     * @param name the name of the package
+     */
+    @Nonnull
+    List<Entry> find(String group, String name) {
+        if (group == null) throw new IllegalArgumentException("group == null")
+        if (name == null) throw new IllegalArgumentException("name == null")
+
+        final named = byName.get(name)
+        if (named == null) return Collections.<Entry> emptyList()
+        if (group.isEmpty()) return Collections.unmodifiableList(named)
+        return named.findAll { it.group == group }
+    }
+
+    /**
+     * Returns the properties for the highest version of the package with the given name and group, or null if
+     * there is not one.
+     *
+     * @param group the group of the package; if empty, packages in any group match
+     * @param name the name of the package
+     * @throws IllegalStateException if the listing only has the id of the package
+     */
+    @Nullable
+    RuntimePackageProperties latest(String group, String name) {
+        final matches = find(group, name)
+        if (matches.isEmpty()) return null
+        return requireProperties(matches.max { Entry entry -> entry.packageVersion })
+    }
+
+    /**
+     * Returns the properties for the package that best matches "packageId", or null if there is not one.
+     * <p>
+     * The name always has to match. The group has to match if "packageId" has one. If "packageId" has a version
+     * and that version is on the server it is used, otherwise the latest version on the server is used.
+     *
+     * @throws IllegalStateException if the listing only has the id of the package
+     * @see #hasPropertiesOf(String)
+     */
+    @Nullable
+    RuntimePackageProperties find(PackageId packageId) {
+        if (packageId == null) throw new IllegalArgumentException("packageId == null")
+
+        final matches = find(packageId.group, packageId.name)
+        if (matches.isEmpty()) return null
+
+        final version = packageId.versionString
+        final exact = version.isEmpty() ? null : matches.find { Entry entry -> entry.version == version }
+        return requireProperties(exact ?: matches.max { Entry entry -> entry.packageVersion })
+    }
+
+    /**
+     * Returns a copy of this listing without the packages that match "packageId". The name always has to match;
+     * the group and version have to match if "packageId" has them.
+     */
+    @Nonnull
+    PackageListing without(PackageId packageId) {
+        if (packageId == null) throw new IllegalArgumentException("packageId == null")
+
+        final toRemove = find(packageId.group, packageId.name).findAll { Entry entry ->
+            packageId.versionString.isEmpty() || entry.version == packageId.versionString
+        }
+        if (toRemove.isEmpty()) return this
+        return new PackageListing(entries.findAll { !toRemove.contains(it) }, propertiesOf)
+    }
+
+
+    private static RuntimePackageProperties requireProperties(Entry entry) {
+        if (entry.packageProperties == null) {
+            throw new IllegalStateException("The listing only has the id of ${entry.packageId}, not its properties")
+        }
+        return entry.packageProperties
+    }
+
+
+    @Override
+    String toString() {
+        return "PackageListing{" + packageIds + '}'
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * A package in the listing: what identifies it, and its full properties if they were asked for
+     */
+    static final class Entry {
+        final String group
+        final String name
+        final String version
+        final @Nullable String path
+        final @Nullable RuntimePackageProperties packageProperties
+
+
+        Entry(String group, String name, String version, @Nullable String path,
+              @Nullable RuntimePackageProperties packageProperties) {
+            this.group = group
+            this.name = name
+            this.version = version
+            this.path = path
+            this.packageProperties = packageProperties
+        }
+
+
+        @Nonnull
+        PackageId getPackageId() {
+            return new PackageId(group, name, version)
+        }
+
+
+        @Nonnull
+        Version getPackageVersion() {
+            return Version.create(version)
+        }
+
+
+        @Override
+        String toString() {
+            return "Entry{" + packageId + '}'
+        }
+    }
+
+}
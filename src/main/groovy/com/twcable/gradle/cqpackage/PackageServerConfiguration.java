@@ -16,6 +16,7 @@
 package com.twcable.gradle.cqpackage;
 
 import com.twcable.gradle.sling.SlingServerConfiguration;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -28,6 +29,8 @@ public class PackageServerConfiguration {
 
     public final SlingServerConfiguration serverConf;
 
+    private @Nullable PollingPolicy pollingPolicy;
+
 
     public PackageServerConfiguration(SlingServerConfiguration serverConf) {
         this.serverConf = serverConf;
@@ -54,6 +57,35 @@ public class PackageServerConfiguration {
     }
 
 
+    /**
+     * Returns the URL to list the CQ packages that match "query".
+     * <p>
+     * The package manager does a loose text match on the query, so this narrows the listing rather than
+     * giving an exact answer: the results still need to be checked by the caller.
+     *
+     * @param query the text to search for, typically a package name
+     */
+    @SuppressWarnings("argument.type.incompatible")
+    public URI getPackageListUri(String query) throws URISyntaxException {
+        if (query == null) throw new IllegalArgumentException("query == null");
+        URI base = serverConf.getBaseUri();
+        return new URI(base.getScheme(), base.getUserInfo(), base.getHost(), base.getPort(), PACKAGE_MANAGER_BASE_PATH + "list.jsp", "q=" + query, null);
+    }
+
+
+    /**
+     * Returns the URL of the definition node ("vlt:definition") of a CQ package on the server.
+     *
+     * @param packagePath the path of the package on the server (e.g., "/etc/packages/group/name-1.0.zip")
+     */
+    @SuppressWarnings("argument.type.incompatible")
+    public URI getPackageDefinitionUri(String packagePath) throws URISyntaxException {
+        if (packagePath == null) throw new IllegalArgumentException("packagePath == null");
+        URI base = serverConf.getBaseUri();
+        return new URI(base.getScheme(), base.getUserInfo(), base.getHost(), base.getPort(), packagePath + "/jcr:content/vlt:definition", null, null);
+    }
+
+
     /**
      * Returns the URL to download a CQ package.
      */
@@ -85,4 +117,21 @@ public class PackageServerConfiguration {
         return this.serverConf.getRetryWaitMs();
     }
 
+
+    /**
+     * How to wait between polls of this server. If one has not been set, this always waits
+     * {@link #getRetryWaitMs()}.
+     */
+    public PollingPolicy getPollingPolicy() {
+        return pollingPolicy != null ? pollingPolicy : PollingPolicy.fixed(getRetryWaitMs());
+    }
+
+
+    /**
+     * @see #getPollingPolicy()
+     */
+    public void setPollingPolicy(@Nullable PollingPolicy pollingPolicy) {
+        this.pollingPolicy = pollingPolicy;
+    }
+
 }
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import com.twcable.gradle.cqpackage.CompressionPolicy.Compression;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCopyDetails;
+import org.gradle.api.internal.file.copy.CopyAction;
+import org.gradle.api.internal.file.copy.CopyActionProcessingStream;
+import org.gradle.api.internal.file.copy.ZipCopyAction;
+import org.gradle.api.internal.tasks.SimpleWorkResult;
+import org.gradle.api.tasks.WorkResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the zip file for {@link CreatePackageTask} in place of the one that comes with Gradle's Zip task.
+ * <p>
+ * When "incremental" is set, an entry whose content is the same as it was in the last package (by its size and
+ * CRC, as remembered by {@link PackageEntryManifest}) is copied from the last package as it is, without
+ * decompressing or compressing it again; only the entries that changed are compressed. Modification times are not
+ * trusted to decide that, since the files that are expanded (such as "properties.xml") change without their
+ * source files changing.
+ * <p>
+ * With more than one thread, the entries are read in order, compressed by the threads at the same time, and then
+ * written in the order they were read, so the zip is the same as it would be with one thread. Only so many
+ * entries (and bytes) are waiting to be written at a time. Entries bigger than {@link #LARGE_ENTRY_BYTES} are
+ * streamed by the writing thread.
+ * <p>
+ * How each entry is compressed is decided by a {@link CompressionPolicy}, after its CRC is known, so that an entry
+ * whose content has not changed is not sampled by an "auto" rule again: it keeps the compression it had in the
+ * last package.
+ * <p>
+ * Unless "preserveFileTimestamps" is set, every entry has the same timestamp that Gradle's own zip uses
+ * ({@link ZipCopyAction#CONSTANT_TIME_FOR_ZIP_ENTRIES}); the order of the entries is the order Gradle gives them
+ * in, which is sorted when the task's "reproducibleFileOrder" is set.
+ */
+final class PackageZipCopyAction implements CopyAction {
+    private static final Logger LOG = LoggerFactory.getLogger(PackageZipCopyAction.class);
+
+    /**
+     * Entries bigger than this are streamed into the zip rather than being read into memory first
+     */
+    static final long LARGE_ENTRY_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The most content that is read but not written yet, when compressing with more than one thread
+     */
+    static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final File zipFile;
+    private final CompressionPolicy policy;
+    private final boolean incremental;
+    private final int threads;
+    private final boolean preserveFileTimestamps;
+    private int reusedEntries;
+    private int compressedEntries;
+    private int storedEntries;
+
+
+    /**
+     * @param zipFile     the zip file to write
+     * @param policy      how to compress each of the entries
+     * @param incremental should unchanged entries be copied from the last version of "zipFile"?
+     * @param threads     how many threads to compress with
+     * @param preserveFileTimestamps should the entries have the modification times of their files?
+     */
+    PackageZipCopyAction(File zipFile, CompressionPolicy policy, boolean incremental, int threads,
+                         boolean preserveFileTimestamps) {
+        if (zipFile == null) throw new IllegalArgumentException("zipFile == null");
+        if (policy == null) throw new IllegalArgumentException("policy == null");
+        if (threads < 1) throw new IllegalArgumentException("threads < 1: " + threads);
+        this.zipFile = zipFile;
+        this.policy = policy;
+        this.incremental = incremental;
+        this.threads = threads;
+        this.preserveFileTimestamps = preserveFileTimestamps;
+    }
+
+
+    @Override
+    public WorkResult execute(CopyActionProcessingStream stream) {
+        final long start = System.currentTimeMillis();
+        final PackageEntryManifest previous = incremental ? PackageEntryManifest.read(zipFile) : new PackageEntryManifest();
+        final PackageEntryManifest written = new PackageEntryManifest();
+        final File tmpFile = new File(zipFile.getPath() + ".tmp");
+
+        final ExecutorService executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, new ZipThreadFactory());
+        final EntryWriter entryWriter;
+        try (ZipFile previousZip = previous.size() == 0 ? null : new ZipFile(zipFile);
+             ZipArchiveOutputStream out = new ZipArchiveOutputStream(tmpFile)) {
+            out.setUseZip64(Zip64Mode.AsNeeded);
+            entryWriter = new EntryWriter(out, previousZip, previous, written, executor);
+            stream.process(details -> entryWriter.add(details));
+            entryWriter.finish();
+        }
+        catch (IOException exp) {
+            throw new GradleException("Could not create " + zipFile, exp);
+        }
+        finally {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (incremental) written.write(zipFile);
+            else PackageEntryManifest.delete(zipFile);
+        }
+        catch (IOException exp) {
+            throw new GradleException("Could not create " + zipFile, exp);
+        }
+
+        reusedEntries = entryWriter.reused;
+        compressedEntries = entryWriter.compressed;
+        storedEntries = entryWriter.stored;
+        LOG.info("Wrote {}: {} entries copied from the last package, {} compressed and {} stored using {} thread(s) in {}ms",
+            zipFile.getName(), reusedEntries, compressedEntries, storedEntries, threads, System.currentTimeMillis() - start);
+        return new SimpleWorkResult(true);
+    }
+
+
+    /**
+     * How many entries were copied from the last package the last time this ran
+     */
+    int getReusedEntries() {
+        return reusedEntries;
+    }
+
+
+    /**
+     * How many entries were deflated the last time this ran
+     */
+    int getCompressedEntries() {
+        return compressedEntries;
+    }
+
+
+    /**
+     * How many entries were stored without being compressed the last time this ran
+     */
+    int getStoredEntries() {
+        return storedEntries;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PackageZipCopyAction{" + zipFile + ", policy=" + policy +
+            ", incremental=" + incremental + ", threads=" + threads +
+            ", preserveFileTimestamps=" + preserveFileTimestamps + '}';
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    private long entryTime(FileCopyDetails details) {
+        return preserveFileTimestamps ? details.getLastModified() : ZipCopyAction.CONSTANT_TIME_FOR_ZIP_ENTRIES;
+    }
+
+
+    static byte[] deflate(byte[] content, int level) throws IOException {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, BUFFER_SIZE)) {
+                deflaterOut.write(content);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+
+    private static byte[] read(FileCopyDetails details) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.max(32, details.getSize()));
+        details.copyTo(out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Reads the start of the entry, for {@link CompressionPolicy} to sample
+     */
+    private static byte[] readStart(FileCopyDetails details, int length) {
+        try (InputStream in = details.open()) {
+            final byte[] buffer = new byte[length];
+            final int read = IOUtils.read(in, buffer);
+            return read == length ? buffer : Arrays.copyOf(buffer, read);
+        }
+        catch (IOException exp) {
+            throw new UncheckedIOException(exp);
+        }
+    }
+
+
+    private static byte[] compress(byte[] content, Compression compression) throws IOException {
+        return compression.getMethod() == ZipEntry.STORED ? content : deflate(content, compression.getLevel());
+    }
+
+
+    private static long crc(byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+
+    private ZipArchiveEntry newEntry(String name, FileCopyDetails details) {
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(entryTime(details));
+        entry.setUnixMode(UnixStat.FILE_FLAG | details.getMode());
+        return entry;
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * Takes each of the entries from the copy spec, getting them compressed (possibly by other threads), and writes
+     * them to the zip in the order they were added
+     */
+    private final class EntryWriter {
+        private final ZipArchiveOutputStream out;
+        private final @Nullable ZipFile previousZip;
+        private final PackageEntryManifest previous;
+        private final PackageEntryManifest written;
+        private final @Nullable ExecutorService executor;
+        private final Deque<CompletableFuture<PreparedEntry>> pending = new ArrayDeque<>();
+        private long pendingBytes = 0;
+        int reused = 0;
+        int compressed = 0;
+        int stored = 0;
+
+
+        EntryWriter(ZipArchiveOutputStream out, @Nullable ZipFile previousZip, PackageEntryManifest previous,
+                    PackageEntryManifest written, @Nullable ExecutorService executor) {
+            this.out = out;
+            this.previousZip = previousZip;
+            this.previous = previous;
+            this.written = written;
+            this.executor = executor;
+        }
+
+
+        void add(FileCopyDetails details) {
+            final String name = details.getRelativePath().getPathString();
+            try {
+                if (details.isDirectory() || details.getSize() > LARGE_ENTRY_BYTES) {
+                    pending.add(CompletableFuture.completedFuture(new PreparedEntry(name, details, null, 0L, null, null)));
+                }
+                else {
+                    final byte[] content = read(details);
+                    pendingBytes += content.length;
+                    if (executor == null) {
+                        pending.add(CompletableFuture.completedFuture(prepare(name, details, content)));
+                    }
+                    else {
+                        pending.add(CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return prepare(name, details, content);
+                            }
+                            catch (IOException exp) {
+                                throw new UncheckedIOException(exp);
+                            }
+                        }, executor));
+                    }
+                }
+
+                final int maxPending = executor == null ? 1 : threads * 4;
+                while (pending.size() >= maxPending || (!pending.isEmpty() && pendingBytes > MAX_PENDING_BYTES)) {
+                    writeNext();
+                }
+            }
+            catch (IOException exp) {
+                throw new GradleException("Could not add " + name + " to " + zipFile, exp);
+            }
+        }
+
+
+        /**
+         * Writes everything that has not been written yet
+         */
+        void finish() throws IOException {
+            while (!pending.isEmpty()) writeNext();
+        }
+
+
+        private void writeNext() throws IOException {
+            final PreparedEntry entry;
+            try {
+                entry = pending.removeFirst().join();
+            }
+            catch (CompletionException exp) {
+                if (exp.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)exp.getCause()).getCause();
+                throw exp;
+            }
+
+            if (entry.details.isDirectory()) writeDirectory(entry.name, entry.details);
+            else if (entry.content == null) writeLargeFile(entry.name, entry.details);
+            else writeFile(entry);
+        }
+
+
+        /**
+         * Works out the CRC of the content and how to compress it and, unless it can be copied from the last
+         * package, compresses it. This is safe to call from any thread.
+         */
+        private PreparedEntry prepare(String name, FileCopyDetails details, byte[] content) throws IOException {
+            final long crc = crc(content);
+            final Compression compression = policy.compressionFor(name, () -> content, previousCompression(name, content.length, crc));
+            if (canCopyFromPrevious(name, content.length, crc, compression)) {
+                return new PreparedEntry(name, details, content, crc, compression, null);
+            }
+
+            return new PreparedEntry(name, details, content, crc, compression, compress(content, compression));
+        }
+
+
+        /**
+         * How the entry was compressed in the last package, if it had the same content
+         */
+        private @Nullable Compression previousCompression(String name, long size, long crc) {
+            if (previousZip == null) return null;
+            final PackageEntryManifest.Entry known = previous.get(name);
+            if (known == null || known.size != size || known.crc != crc) return null;
+            return known.method == ZipEntry.STORED ? Compression.STORED : Compression.deflated(known.level);
+        }
+
+
+        private boolean canCopyFromPrevious(String name, long size, long crc, Compression compression) {
+            if (previousZip == null) return false;
+            final PackageEntryManifest.Entry known = previous.get(name);
+            return known != null && known.matches(size, crc, compression.getMethod(), compression.getLevel());
+        }
+
+
+        private void writeDirectory(String name, FileCopyDetails details) throws IOException {
+            final ZipArchiveEntry entry = new ZipArchiveEntry(name + '/');
+            entry.setTime(entryTime(details));
+            entry.setUnixMode(UnixStat.DIR_FLAG | details.getMode());
+            out.putArchiveEntry(entry);
+            out.closeArchiveEntry();
+        }
+
+
+        private void writeFile(PreparedEntry prepared) throws IOException {
+            final byte[] content = prepared.content;
+            pendingBytes -= content.length;
+
+            final Compression compression = prepared.compression;
+            byte[] data = prepared.compressed;
+            if (data == null) {
+                if (copyFromPrevious(prepared.name, prepared.details, content.length, prepared.crc)) return;
+                // the last package did not have what the manifest said it did
+                data = compress(content, compression);
+            }
+
+            final ZipArchiveEntry entry = newEntry(prepared.name, prepared.details);
+            entry.setMethod(compression.getMethod());
+            entry.setCrc(prepared.crc);
+            entry.setSize(content.length);
+            entry.setCompressedSize(data.length);
+            out.addRawArchiveEntry(entry, new ByteArrayInputStream(data));
+
+            written.put(prepared.name, new PackageEntryManifest.Entry(content.length, prepared.crc,
+                compression.getMethod(), compression.getLevel()));
+            count(compression);
+        }
+
+
+        private void writeLargeFile(String name, FileCopyDetails details) throws IOException {
+            final CRC32 crc = new CRC32();
+            final CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+            details.copyTo(new CheckedOutputStream(counter, crc));
+            final long size = counter.getByteCount();
+            final Compression compression = policy.compressionFor(name, () -> readStart(details, policy.getSampleBytes()),
+                previousCompression(name, size, crc.getValue()));
+            if (canCopyFromPrevious(name, size, crc.getValue(), compression) &&
+                copyFromPrevious(name, details, size, crc.getValue())) return;
+
+            final ZipArchiveEntry entry = newEntry(name, details);
+            entry.setMethod(compression.getMethod());
+            if (compression.getMethod() == ZipEntry.STORED) {
+                entry.setCrc(crc.getValue());
+                entry.setSize(size);
+            }
+            else {
+                out.setLevel(compression.getLevel());
+            }
+            out.putArchiveEntry(entry);
+            details.copyTo(out);
+            out.closeArchiveEntry();
+
+            written.put(name, new PackageEntryManifest.Entry(size, crc.getValue(), compression.getMethod(),
+                compression.getLevel()));
+            count(compression);
+        }
+
+
+        private void count(Compression compression) {
+            if (compression.getMethod() == ZipEntry.STORED) stored++;
+            else compressed++;
+        }
+
+
+        /**
+         * If the last package has this entry with the same content, copies it as it is
+         *
+         * @return was it copied?
+         */
+        private boolean copyFromPrevious(String name, FileCopyDetails details, long size, long crc) throws IOException {
+            if (previousZip == null) return false;
+
+            final ZipArchiveEntry previousEntry = previousZip.getEntry(name);
+            if (previousEntry == null || previousEntry.getSize() != size || previousEntry.getCrc() != crc) return false;
+
+            final ZipArchiveEntry entry = newEntry(name, details);
+            entry.setMethod(previousEntry.getMethod());
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(previousEntry.getCompressedSize());
+            try (InputStream raw = previousZip.getRawInputStream(previousEntry)) {
+                out.addRawArchiveEntry(entry, raw);
+            }
+
+            written.put(name, previous.get(name));
+            reused++;
+            return true;
+        }
+    }
+
+    /**
+     * An entry that is ready to be written. "content" and "compression" are null if it is a directory or is too
+     * big to be read into memory, and "compressed" is null if it is to be copied from the last package.
+     */
+    private static final class PreparedEntry {
+        final String name;
+        final FileCopyDetails details;
+        final @Nullable byte[] content;
+        final long crc;
+        final @Nullable Compression compression;
+        final @Nullable byte[] compressed;
+
+
+        PreparedEntry(String name, FileCopyDetails details, @Nullable byte[] content, long crc,
+                      @Nullable Compression compression, @Nullable byte[] compressed) {
+            this.name = name;
+            this.details = details;
+            this.content = content;
+            this.crc = crc;
+            this.compression = compression;
+            this.compressed = compressed;
+        }
+    }
+
+    private static final class ZipThreadFactory implements ThreadFactory {
+        private final int poolNumber = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "cq-package-zip-" + poolNumber + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
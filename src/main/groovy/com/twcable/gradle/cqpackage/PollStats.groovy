@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+
+/**
+ * How an operation that polled a server until it was ready (or gave up) went
+ *
+ * @see Polling
+ */
+@CompileStatic
+class PollStats {
+    /**
+     * What was being waited for, such as "install" or "bundles active"
+     */
+    final String operation
+    final String serverName
+
+    /**
+     * How many times the server was asked
+     */
+    final int polls
+
+    /**
+     * How much of {@link #elapsedMs} was spent waiting between polls
+     */
+    final long waitedMs
+
+    /**
+     * How long the operation took in total
+     */
+    final long elapsedMs
+
+    /**
+     * Did the server become ready (rather than running out of time)?
+     */
+    final boolean ready
+
+
+    PollStats(String operation, String serverName, int polls, long waitedMs, long elapsedMs, boolean ready) {
+        this.operation = operation
+        this.serverName = serverName
+        this.polls = polls
+        this.waitedMs = waitedMs
+        this.elapsedMs = elapsedMs
+        this.ready = ready
+    }
+
+
+    @Override
+    String toString() {
+        return "${operation} on ${serverName}: ${polls} poll(s) in ${elapsedMs}ms, ${waitedMs}ms of it waiting" +
+            (ready ? '' : ' (gave up)')
+    }
+
+}
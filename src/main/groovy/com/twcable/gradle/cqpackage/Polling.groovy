@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+import java.util.function.BooleanSupplier
+
+/**
+ * Polls a server until it is ready, waiting between polls as decided by a {@link PollingPolicy}.
+ * <p>
+ * This takes the place of {@link com.twcable.gradle.sling.SlingSupport#block} (which always waits the same amount
+ * of time), and keeps track of how many polls were made and how long was spent waiting.
+ */
+@Slf4j
+@CompileStatic
+class Polling {
+
+    /**
+     * Calls "body" until "keepPolling" returns false or "maxWaitMs" has passed. "body" is always called at
+     * least once (as long as "keepPolling" starts out true).
+     *
+     * @param operation what is being waited for, for the statistics
+     * @param serverName the server being polled, for the statistics
+     * @param maxWaitMs the maximum amount of time to keep polling
+     * @param policy decides how long to wait between polls
+     * @param record if not null, the statistics are added to it
+     * @param keepPolling is the server not ready yet?
+     * @param body does the poll
+     */
+    @Nonnull
+    static PollStats poll(String operation, String serverName, long maxWaitMs, PollingPolicy policy,
+                          @Nullable Collection<PollStats> record, BooleanSupplier keepPolling, Runnable body) {
+        if (policy == null) throw new IllegalArgumentException("policy == null")
+
+        final start = System.currentTimeMillis()
+        final deadline = start + maxWaitMs
+        int polls = 0
+        long waitedMs = 0
+
+        boolean notReady = keepPolling.getAsBoolean()
+        while (notReady) {
+            body.run()
+            polls++
+
+            notReady = keepPolling.getAsBoolean()
+            if (!notReady) break
+
+            final remainingMs = deadline - System.currentTimeMillis()
+            if (remainingMs <= 0) break
+
+            final delayMs = Math.min(policy.delayMs(polls), remainingMs)
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs)
+                }
+                catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt()
+                    break
+                }
+                waitedMs += delayMs
+            }
+        }
+
+        final stats = new PollStats(operation, serverName, polls, waitedMs, System.currentTimeMillis() - start, !notReady)
+        log.info stats.toString()
+        if (record != null) record.add(stats)
+        return stats
+    }
+
+}
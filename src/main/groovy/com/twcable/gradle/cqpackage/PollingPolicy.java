@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decides how long to wait between polls of a server that is not ready yet (e.g., is busy installing a package
+ * or starting bundles).
+ *
+ * @see #fixed(long)
+ * @see #backoff()
+ * @see Polling
+ */
+@FunctionalInterface
+public interface PollingPolicy {
+
+    /**
+     * How long to wait before polling again.
+     *
+     * @param polls how many polls have been made so far; at least 1
+     * @return the number of milliseconds to wait
+     */
+    long delayMs(int polls);
+
+
+    /**
+     * Always waits the same amount of time between polls. This is how servers are polled if they are not given a
+     * policy, using {@link com.twcable.gradle.sling.SlingServerConfiguration#getRetryWaitMs()}.
+     */
+    @Nonnull
+    static PollingPolicy fixed(long delayMs) {
+        return new Fixed(delayMs);
+    }
+
+
+    /**
+     * Backs off exponentially (with jitter) between polls, after a quick first retry
+     *
+     * @see BackoffPollingPolicy
+     */
+    @Nonnull
+    static BackoffPollingPolicy backoff() {
+        return new BackoffPollingPolicy();
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    final class Fixed implements PollingPolicy {
+        private final long delayMs;
+
+
+        private Fixed(long delayMs) {
+            if (delayMs < 0) throw new IllegalArgumentException("delayMs can not be negative: " + delayMs);
+            this.delayMs = delayMs;
+        }
+
+
+        @Override
+        public long delayMs(int polls) {
+            return delayMs;
+        }
+
+
+        @Override
+        public String toString() {
+            return "fixed(" + delayMs + "ms)";
+        }
+    }
+
+}
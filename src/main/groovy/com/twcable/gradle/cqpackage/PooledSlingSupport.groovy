@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.http.HttpResponse
+import com.twcable.gradle.sling.SlingServerConfiguration
+import com.twcable.gradle.sling.SlingSupport
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.http.NoHttpResponseException
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.client.methods.HttpUriRequest
+import org.apache.http.conn.ConnectTimeoutException
+import org.apache.http.entity.ContentType
+import org.apache.http.entity.mime.MultipartEntityBuilder
+import org.apache.http.entity.mime.content.ContentBody
+import org.apache.http.util.EntityUtils
+import org.gradle.api.GradleException
+
+import javax.annotation.Nonnull
+
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
+
+/**
+ * A {@link SlingSupport} that makes its requests with the build's shared client for the server
+ * (see {@link HttpClientPool}), so connections are reused across requests, tasks and projects.
+ * <p>
+ * As with {@link SlingSupport}, a server that can not be reached (or does not respond in time) results in a
+ * {@link java.net.HttpURLConnection#HTTP_CLIENT_TIMEOUT} response rather than an exception.
+ */
+@Slf4j
+@CompileStatic
+class PooledSlingSupport extends SlingSupport {
+    private static final ContentType TEXT_UTF8 = ContentType.create('text/plain', 'UTF-8')
+
+    private final HttpClientPool pool
+
+
+    PooledSlingSupport(SlingServerConfiguration serverConf, HttpClientPool pool) {
+        super(serverConf)
+        if (pool == null) throw new IllegalArgumentException("pool == null")
+        this.pool = pool
+    }
+
+
+    @Override
+    HttpResponse doGet(URI uri) {
+        return execute(new HttpGet(uri))
+    }
+
+    /**
+     * POSTs the parts as "multipart/form-data". Values that are {@link ContentBody} (such as files) are sent as-is;
+     * anything else is sent as its String value.
+     */
+    @Override
+    HttpResponse doPost(URI uri, Map parts) {
+        final builder = MultipartEntityBuilder.create()
+        parts.each { key, value ->
+            if (value instanceof ContentBody) {
+                builder.addPart(key as String, (ContentBody)value)
+            }
+            else {
+                builder.addTextBody(key as String, value as String, TEXT_UTF8)
+            }
+        }
+
+        final post = new HttpPost(uri)
+        post.entity = builder.build()
+        return execute(post)
+    }
+
+
+    @Nonnull
+    private HttpResponse execute(HttpUriRequest request) {
+        log.debug "${request.method} ${request.URI}"
+        final stats = pool.requestStats(serverConf)
+        final start = System.currentTimeMillis()
+        try {
+            final CloseableHttpResponse resp = pool.clientFor(serverConf).execute(request)
+            try {
+                final code = resp.statusLine.statusCode
+                final body = resp.entity != null ? EntityUtils.toString(resp.entity, 'UTF-8') : ''
+                stats.record(System.currentTimeMillis() - start, false)
+                log.debug "status code: ${code}; ${body}"
+                return new HttpResponse(code, body)
+            }
+            finally {
+                resp.close()
+            }
+        }
+        catch (ConnectException | ConnectTimeoutException | SocketTimeoutException | NoHttpResponseException exp) {
+            stats.record(System.currentTimeMillis() - start, true)
+            log.info "${serverConf.name} did not respond to ${request.method} ${request.URI}: ${exp}"
+            return new HttpResponse(HTTP_CLIENT_TIMEOUT, exp.message ?: exp.class.name)
+        }
+        catch (IOException exp) {
+            throw new GradleException("Problem with ${request.method} ${request.URI}", exp)
+        }
+    }
+
+}
@@ -29,13 +29,13 @@ public class RemovePackageTask extends DefaultTask {
             "the server to begin with.");
 
         packageHelper = CqPackagePlugin.cqPackageHelper(getProject());
-        slingPackageSupportFactory = SimpleSlingPackageSupportFactory.INSTANCE;
+        slingPackageSupportFactory = packageHelper.getSlingPackageSupportFactory();
     }
 
 
     @TaskAction
     public void remove() {
-        packageHelper.deletePackage(slingPackageSupportFactory);
+        DeploymentReport.record(this, () -> packageHelper.deletePackage(slingPackageSupportFactory));
     }
 
 }
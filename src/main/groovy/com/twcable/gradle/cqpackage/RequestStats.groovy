@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts the HTTP requests made to a server, how many of them HttpClient retried, and how many bytes went over the
+ * connections each way (request and status lines, headers and bodies). Safe to update from multiple threads.
+ *
+ * @see HttpClientPool#getRequestStats()
+ */
+@CompileStatic
+class RequestStats {
+    final String serverName
+
+    private final AtomicLong requests = new AtomicLong()
+    private final AtomicLong timeouts = new AtomicLong()
+    private final AtomicLong retries = new AtomicLong()
+    private final AtomicLong bytesSent = new AtomicLong()
+    private final AtomicLong bytesReceived = new AtomicLong()
+    private final AtomicLong requestMs = new AtomicLong()
+
+
+    RequestStats(String serverName) {
+        if (serverName == null) throw new IllegalArgumentException("serverName == null")
+        this.serverName = serverName
+    }
+
+    /**
+     * Records a request
+     *
+     * @param elapsedMs how long the request took
+     * @param timedOut did the server not respond?
+     */
+    void record(long elapsedMs, boolean timedOut) {
+        requests.incrementAndGet()
+        if (timedOut) timeouts.incrementAndGet()
+        requestMs.addAndGet(elapsedMs)
+    }
+
+    /**
+     * Records that HttpClient sent a request again after an I/O error
+     */
+    void retried() {
+        retries.incrementAndGet()
+    }
+
+
+    void addBytesSent(long count) {
+        bytesSent.addAndGet(count)
+    }
+
+
+    void addBytesReceived(long count) {
+        bytesReceived.addAndGet(count)
+    }
+
+
+    long getRequests() {
+        return requests.get()
+    }
+
+    /**
+     * How many of the requests the server did not respond to
+     */
+    long getTimeouts() {
+        return timeouts.get()
+    }
+
+    /**
+     * How many times a request was sent again after an I/O error
+     */
+    long getRetries() {
+        return retries.get()
+    }
+
+
+    long getBytesSent() {
+        return bytesSent.get()
+    }
+
+
+    long getBytesReceived() {
+        return bytesReceived.get()
+    }
+
+    /**
+     * The total time spent on the requests
+     */
+    long getRequestMs() {
+        return requestMs.get()
+    }
+
+    /**
+     * The counts as a map, for reports
+     */
+    Map<String, Long> toMap() {
+        return [requests     : getRequests(),
+                timeouts     : getTimeouts(),
+                retries      : getRetries(),
+                bytesSent    : getBytesSent(),
+                bytesReceived: getBytesReceived(),
+                requestMs    : getRequestMs()] as Map<String, Long>
+    }
+
+
+    @Override
+    String toString() {
+        return "RequestStats{${serverName}: ${toMap()}}"
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Rolls the package out to the servers a wave at a time, checking that the package's bundles are ACTIVE before
+ * going on to the next wave. For example:
+ * <pre>
+ * rolloutPackage {
+ *     plan.canaryServers = 1
+ *     plan.waveSize = 5
+ *     plan.parallelism = 5
+ * }
+ * </pre>
+ *
+ * @see CqPackageHelper#rolloutPackage(SlingPackageSupportFactory, RolloutPlan, FileCollection)
+ */
+class RolloutPackageTask extends DefaultTask {
+    /**
+     * How to split the servers into waves
+     */
+    @Internal
+    final RolloutPlan plan = new RolloutPlan()
+
+    private FileCollection _bundleFiles
+
+
+    RolloutPackageTask() {
+        _bundleFiles = project.files()
+
+        description = "Uninstalls, removes, uploads and installs the CQ Package on the servers a wave at a " +
+            "time, checking that its bundles are ACTIVE after each wave."
+    }
+
+
+    @TaskAction
+    @SuppressWarnings("GroovyUnusedDeclaration")
+    void rollout() {
+        DeploymentReport.record(this) {
+            def packageHelper = CqPackagePlugin.cqPackageHelper(project)
+            packageHelper.rolloutPackage(packageHelper.slingPackageSupportFactory, plan, bundleFiles)
+        }
+    }
+
+
+    void plan(Closure closure) {
+        project.configure(plan, closure)
+    }
+
+    /**
+     * Adds bundles to check after each wave
+     */
+    void bundles(FileCollection sourceFiles) {
+        _bundleFiles = _bundleFiles + sourceFiles
+    }
+
+    /**
+     * The bundles to check after each wave
+     */
+    @Internal
+    FileCollection getBundleFiles() {
+        return _bundleFiles
+    }
+
+    /**
+     * How each wave went
+     */
+    @Internal
+    List<RolloutWave> getRolloutWaves() {
+        return CqPackagePlugin.cqPackageHelper(project).rolloutWaves
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import groovy.transform.CompileStatic
+
+import javax.annotation.Nonnull
+
+/**
+ * How to split the servers into waves when rolling a package out to them: first a "canary" wave of a few servers,
+ * then waves of a fixed size or of a percentage of all the servers.
+ *
+ * @see CqPackageHelper#rolloutPackage(SlingPackageSupportFactory, RolloutPlan, Collection)
+ */
+@CompileStatic
+class RolloutPlan {
+    /**
+     * How many servers are in the first wave. 0 means there is no canary wave. Defaults to 1.
+     */
+    int canaryServers = 1
+
+    /**
+     * How many servers are in each of the waves after the canary. If 0, {@link #wavePercent} is used instead.
+     * Defaults to 0.
+     */
+    int waveSize = 0
+
+    /**
+     * When {@link #waveSize} is 0, the percentage of all the servers to put in each wave after the canary (rounded
+     * up, so there is always at least one server). Defaults to 25.
+     */
+    int wavePercent = 25
+
+    /**
+     * The maximum number of servers in a wave to work on at the same time. Defaults to 1.
+     */
+    int parallelism = 1
+
+    /**
+     * Does a server that times out during the bundle check after a wave (or that is skipped because it is not
+     * responding) let the rollout carry on? Defaults to false, so the rollout stops: nothing is known about
+     * whether the package works on that server.
+     */
+    boolean timedOutServersPass = false
+
+    /**
+     * Splits the servers into waves, keeping them in order
+     */
+    @Nonnull
+    List<List<SlingServerConfiguration>> waves(Iterable<SlingServerConfiguration> servers) {
+        if (canaryServers < 0) throw new IllegalArgumentException("canaryServers can not be negative: ${canaryServers}")
+        if (waveSize < 0) throw new IllegalArgumentException("waveSize can not be negative: ${waveSize}")
+        if (waveSize == 0 && (wavePercent < 1 || wavePercent > 100))
+            throw new IllegalArgumentException("wavePercent must be between 1 and 100: ${wavePercent}")
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1: ${parallelism}")
+
+        final serverList = new ArrayList<SlingServerConfiguration>()
+        servers.each { serverList.add(it) }
+
+        final waves = new ArrayList<List<SlingServerConfiguration>>()
+        final canary = Math.min(canaryServers, serverList.size())
+        if (canary > 0) waves.add(new ArrayList<SlingServerConfiguration>(serverList.subList(0, canary)))
+
+        final size = waveSize > 0 ? waveSize : Math.max(1, (int)Math.ceil(serverList.size() * wavePercent / 100.0d))
+        for (int start = canary; start < serverList.size(); start += size) {
+            waves.add(new ArrayList<SlingServerConfiguration>(serverList.subList(start, Math.min(start + size, serverList.size()))))
+        }
+        return waves
+    }
+
+
+    @Override
+    String toString() {
+        return "RolloutPlan{canaryServers=${canaryServers}, " +
+            (waveSize > 0 ? "waveSize=${waveSize}" : "wavePercent=${wavePercent}") + ", parallelism=${parallelism}" +
+            (timedOutServersPass ? ", timedOutServersPass=true}" : "}")
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+
+/**
+ * How one wave of a rollout went
+ *
+ * @see CqPackageHelper#rolloutPackage(SlingPackageSupportFactory, RolloutPlan, Collection)
+ */
+@CompileStatic
+class RolloutWave {
+    /**
+     * Which wave this was, starting at 1
+     */
+    final int number
+
+    final List<String> serverNames
+
+    /**
+     * How long it took to put the package on the servers in the wave
+     */
+    final long deployMs
+
+    /**
+     * How long it took for the bundles in the wave to become ACTIVE
+     */
+    final long validateMs
+
+    /**
+     * Did the wave pass the bundle check?
+     */
+    final boolean bundlesActive
+
+
+    RolloutWave(int number, List<String> serverNames, long deployMs, long validateMs, boolean bundlesActive) {
+        this.number = number
+        this.serverNames = Collections.unmodifiableList(new ArrayList<String>(serverNames))
+        this.deployMs = deployMs
+        this.validateMs = validateMs
+        this.bundlesActive = bundlesActive
+    }
+
+    /**
+     * How long the wave took in total
+     */
+    long getElapsedMs() {
+        return deployMs + validateMs
+    }
+
+
+    @Override
+    String toString() {
+        return "wave ${number} (${serverNames.join(', ')}): ${elapsedMs}ms (deploy ${deployMs}ms, bundles ${validateMs}ms)" +
+            (bundlesActive ? '' : ' - bundles NOT active')
+    }
+
+}
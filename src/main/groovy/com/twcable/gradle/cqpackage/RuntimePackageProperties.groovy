@@ -41,24 +41,43 @@ class RuntimePackageProperties extends PackagePropertiesImpl {
     static final String FILTER = 'filter'
 
 
+    private final Dependency[] dependencies
+    private final Dependency[] resolvedDependencies
+
+
     RuntimePackageProperties(Properties propertiesMap) {
         this.propertiesMap = propertiesMap
+        this.dependencies = super.getDependencies()
+        def resDeps = propertiesMap.getProperty(RESOLVED_DEPENDENCIES)
+        this.resolvedDependencies = resDeps == null ? Dependency.EMPTY : Dependency.parse(resDeps)
     }
 
 
+    private RuntimePackageProperties(Properties propertiesMap, Dependency[] dependencies,
+                                     Dependency[] resolvedDependencies) {
+        this.propertiesMap = propertiesMap
+        this.dependencies = dependencies
+        this.resolvedDependencies = resolvedDependencies
+    }
+
+    /**
+     * The dependencies of the package. These are parsed once when this is created.
+     */
+    @Override
+    Dependency[] getDependencies() {
+        return dependencies
+    }
+
+    /**
+     * The dependencies of the package that the server was able to find. These are parsed once when this is created.
+     */
     Dependency[] getResolvedDependencies() {
-        def deps = super.getProperty(RESOLVED_DEPENDENCIES)
-        if (deps == null) {
-            return Dependency.EMPTY
-        }
-        else {
-            return Dependency.parse(deps)
-        }
+        return resolvedDependencies
     }
 
 
     boolean hasUnresolvedDependencies() {
-        return getDependencies().length > getResolvedDependencies().length
+        return dependencies.length > resolvedDependencies.length
     }
 
 
@@ -85,14 +104,16 @@ class RuntimePackageProperties extends PackagePropertiesImpl {
 
     static RuntimePackageProperties fromJson(Map json) {
         def props = new Properties()
+        Dependency[] deps = Dependency.EMPTY
+        Dependency[] resDeps = Dependency.EMPTY
         json.each { Object k, Object v ->
             if (v instanceof String || v instanceof Boolean || v instanceof Number) {
                 log.debug "Setting property ${k}: ${v}"
                 props.put(k, v.toString())
             }
             else if (k == 'dependencies') {
-                dependencies(v as Collection<Map>, props)
-                resolvedDependencies(v as Collection<Map>, props)
+                deps = dependencies(v as Collection<Map>, props)
+                resDeps = resolvedDependencies(v as Collection<Map>, props)
             }
             else if (k == 'screenshots') {
                 final str = (v as List).join(',')
@@ -109,11 +130,11 @@ class RuntimePackageProperties extends PackagePropertiesImpl {
                 log.warn("Unknown pair when creating RuntimePackageProperties - ${k}: ${v}")
             }
         }
-        return new RuntimePackageProperties(props)
+        return new RuntimePackageProperties(props, deps, resDeps)
     }
 
 
-    private static void resolvedDependencies(Collection<Map> v, Properties props) {
+    private static Dependency[] resolvedDependencies(Collection<Map> v, Properties props) {
         final resDeps = v.
             findAll { Map dep -> dep.id != null && dep.id != '' }.
             collect { Map dep -> dep.id as String }.
@@ -121,20 +142,24 @@ class RuntimePackageProperties extends PackagePropertiesImpl {
         final resDepsStr = Dependency.toString(resDeps)
         log.debug "Setting property ${RESOLVED_DEPENDENCIES}: ${resDepsStr}"
         props.put(RESOLVED_DEPENDENCIES, resDepsStr)
+        return resDeps
     }
 
 
-    private static void dependencies(Collection<Map> v, Properties props) {
+    private static Dependency[] dependencies(Collection<Map> v, Properties props) {
         final deps = v.
             collect { Map dep -> dep.name as String }.
             collect { String depStr -> Dependency.fromString(depStr) } as Dependency[]
         final depsStr = Dependency.toString(deps)
         log.debug "Setting property ${NAME_DEPENDENCIES}: ${depsStr}"
         props.put(NAME_DEPENDENCIES, depsStr)
+        return deps
     }
 
     /**
-     * Asks the given server for its information for the package identified by "packageId". The version is ignored.
+     * Asks the given server for its information for the package identified by "packageId".
+     * <p>
+     * The group and version are used if "packageId" has them: see {@link PackageListing#find(PackageId)}.
      */
     @Nonnull
     static SuccessOrFailure<RuntimePackageProperties> packageProperties(SlingPackageSupport slingPackageSupport,
@@ -144,19 +169,15 @@ class RuntimePackageProperties extends PackagePropertiesImpl {
 
         if (!slingPackageSupport.active) return failure(Status.SERVER_INACTIVE)
 
-        def sf = ListPackages.listPackages(slingPackageSupport)
+        def sf = ListPackages.packageListing(slingPackageSupport, packageId)
         if (sf.failed()) {
             return failure(sf.error)
         }
 
-        def packagesProps = sf.value
-        def packageProp = packagesProps.find { it.name == packageId.name }
-
-        // TODO: Add filtering by group
-        // requires https://github.com/TWCable/gradle-plugin-cq-package/issues/8
-        // def packageProp = packagesProps.find { it.name == packageId.name && it.id.group == packageId.group }
+        def listing = sf.value
+        def packageProp = listing.find(packageId)
         if (packageProp == null) {
-            log.info "Could not find ${packageId} in ${packagesProps.collect { it.id }}"
+            log.info "Could not find ${packageId} in ${listing.packageIds}"
             return failure(NO_PACKAGE)
         }
         return success(packageProp)
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpHead
+import org.gradle.api.Project
+
+import javax.annotation.Nonnull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps track of which servers are responding for the length of a build, so that a server that is down costs a
+ * few milliseconds instead of a timeout for every request.
+ * <p>
+ * Each server has a "circuit breaker":
+ * <ul>
+ * <li>{@link State#CLOSED}: requests are made as normal. After {@link #getFailureThreshold()} failures in a row
+ * (the server timing out or not being reachable) it is opened.</li>
+ * <li>{@link State#OPEN}: requests are not made; the server is treated as having timed out. After
+ * {@link #getOpenMs()} it becomes half-open.</li>
+ * <li>{@link State#HALF_OPEN}: a single request is let through. If it succeeds the circuit is closed again,
+ * otherwise it is opened again.</li>
+ * </ul>
+ * A caller that is let through has to say how it went ({@link #recordSuccess}/{@link #recordFailure}), or give
+ * the request back with {@link #release} if it did not make it, so it is usually done as
+ * <pre>
+ * if (!serverHealth.allowRequest(serverConf)) return timedOut
+ * try {
+ *     ... make the request, then record how it went ...
+ * }
+ * finally {
+ *     serverHealth.release(serverConf)
+ * }
+ * </pre>
+ * While a server is half-open, the thread that was let through can keep making requests to it (such as
+ * looking up a package before installing it), and if it has not said how it went after {@link #getOpenMs()},
+ * another request is let through.
+ * When a server's circuit opens it is also marked as not being active (as has always been done when a server times
+ * out), and when the server is given another chance it is marked as active again. Servers that were configured as
+ * not being active are never made active.
+ * <p>
+ * When the task graph has tasks that talk to the servers, all of the servers are {@link #probe probed} at the same
+ * time when the build starts, so ones that are down are known before they are needed.
+ * <p>
+ * The settings are typically set in the root project:
+ * <pre>
+ * cqServerHealth {
+ *     failureThreshold = 2
+ * }
+ * </pre>
+ *
+ * @see #forProject(Project)
+ */
+@Slf4j
+@CompileStatic
+class ServerHealthRegistry {
+    static final String NAME = 'cqServerHealth'
+
+    /**
+     * How many failures in a row open a server's circuit. Defaults to 1, which is the same as the server being
+     * marked as not active the first time it times out.
+     */
+    int failureThreshold = 1
+
+    /**
+     * How long a server is skipped once its circuit is open, before it is tried again. Defaults to 60 seconds.
+     */
+    long openMs = 60_000
+
+    /**
+     * Probe the servers when the build starts? Defaults to true.
+     */
+    boolean probeOnStart = true
+
+    /**
+     * How long a probe waits for a server to answer. Defaults to 2 seconds.
+     */
+    int probeTimeoutMs = 2_000
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>()
+    private final ConcurrentMap<String, CountDownLatch> probes = new ConcurrentHashMap<>()
+
+    /**
+     * Returns the registry for the build that "project" is in, creating it if needed.
+     */
+    @Nonnull
+    static ServerHealthRegistry forProject(Project project) {
+        if (project == null) throw new IllegalArgumentException("project == null")
+        def extensions = project.rootProject.extensions
+        synchronized (extensions) {
+            return extensions.findByType(ServerHealthRegistry) ?: extensions.create(NAME, ServerHealthRegistry)
+        }
+    }
+
+    /**
+     * Sends a HEAD request to each of the active servers at the same time, in the background, using the build's
+     * HTTP clients (which also gets their connections ready). A server that can not be reached has its circuit
+     * opened.
+     * <p>
+     * {@link #allowRequest(SlingServerConfiguration)} waits for the server's probe to finish.
+     */
+    void probe(Iterable<SlingServerConfiguration> servers, HttpClientPool httpClientPool) {
+        for (SlingServerConfiguration serverConf : servers) {
+            if (!SlingPackageSupport.isActive(serverConf)) continue
+
+            final latch = new CountDownLatch(1)
+            if (probes.putIfAbsent(serverConf.name, latch) != null) continue
+
+            final thread = new Thread({
+                try {
+                    probe(serverConf, httpClientPool)
+                }
+                finally {
+                    latch.countDown()
+                }
+            } as Runnable, "cq-probe-${serverConf.name}")
+            thread.daemon = true
+            thread.start()
+        }
+    }
+
+
+    private void probe(SlingServerConfiguration serverConf, HttpClientPool httpClientPool) {
+        final start = System.currentTimeMillis()
+        try {
+            final head = new HttpHead(serverConf.baseUri)
+            head.config = RequestConfig.custom().
+                setConnectTimeout(probeTimeoutMs).
+                setSocketTimeout(probeTimeoutMs).
+                setRedirectsEnabled(false).
+                build()
+            final CloseableHttpResponse resp = httpClientPool.clientFor(serverConf).execute(head)
+            resp.close()
+            log.info "${serverConf.name} answered in ${System.currentTimeMillis() - start}ms"
+            recordSuccess(serverConf)
+        }
+        catch (Exception exp) {
+            log.warn "${serverConf.name} could not be reached: ${exp}"
+            open(serverConf, circuit(serverConf.name))
+        }
+    }
+
+    /**
+     * Should a request be made to the server? If this returns false, the server should be treated as having
+     * timed out.
+     * <p>
+     * If the server's circuit is open and it is time to try it again, the circuit becomes half-open and this
+     * returns true for only one caller (see the class description for what that caller has to do).
+     */
+    boolean allowRequest(SlingServerConfiguration serverConf) {
+        awaitProbe(serverConf.name)
+
+        final circuit = circuit(serverConf.name)
+        synchronized (circuit) {
+            final now = System.currentTimeMillis()
+            switch (circuit.state) {
+                case State.CLOSED:
+                    return true
+                case State.OPEN:
+                    if (now - circuit.openedAt < openMs) return false
+                    log.info "Trying ${serverConf.name} again"
+                    halfOpen(serverConf, circuit, now)
+                    return true
+                default: // HALF_OPEN: only the one request is allowed until it is known how it went
+                    if (circuit.tryingThread == Thread.currentThread()) {
+                        circuit.permits++
+                        return true
+                    }
+                    if (now - circuit.halfOpenedAt < openMs) return false
+                    log.info "Did not hear how trying ${serverConf.name} again went, so trying it again"
+                    halfOpen(serverConf, circuit, now)
+                    return true
+            }
+        }
+    }
+
+    /**
+     * Gives back a request that {@link #allowRequest(SlingServerConfiguration)} let through, for when the
+     * caller did not say how it went (because it did not make it after all, such as when the answer was already
+     * in a cache). If that was the request trying the server again, the next caller gets to try it instead.
+     * <p>
+     * Does nothing if the outcome has been recorded, so it is safe to always call it when done.
+     */
+    void release(SlingServerConfiguration serverConf) {
+        final circuit = circuit(serverConf.name)
+        synchronized (circuit) {
+            if (circuit.state != State.HALF_OPEN || circuit.tryingThread != Thread.currentThread()) return
+            if (--circuit.permits > 0) return
+
+            circuit.state = State.OPEN
+            circuit.openedAt = System.currentTimeMillis() - openMs
+            circuit.tryingThread = null
+            if (circuit.reactivated) {
+                circuit.reactivated = false
+                circuit.deactivated = true
+                SlingPackageSupport.setActive(serverConf, false)
+            }
+        }
+    }
+
+    /**
+     * The server answered
+     */
+    void recordSuccess(SlingServerConfiguration serverConf) {
+        final circuit = circuit(serverConf.name)
+        synchronized (circuit) {
+            if (circuit.state != State.CLOSED) log.info "${serverConf.name} is answering again"
+            circuit.state = State.CLOSED
+            circuit.failures = 0
+            circuit.doneTrying()
+        }
+    }
+
+    /**
+     * The server timed out or could not be reached
+     */
+    void recordFailure(SlingServerConfiguration serverConf) {
+        final circuit = circuit(serverConf.name)
+        synchronized (circuit) {
+            circuit.failures++
+            if (circuit.state == State.HALF_OPEN || circuit.failures >= failureThreshold) open(serverConf, circuit)
+        }
+    }
+
+    /**
+     * Closes the server's circuit, for when the caller has decided to try the server again anyway (such as
+     * retrying an upload that timed out)
+     */
+    void reset(SlingServerConfiguration serverConf) {
+        final circuit = circuit(serverConf.name)
+        synchronized (circuit) {
+            circuit.state = State.CLOSED
+            circuit.failures = 0
+            circuit.deactivated = false
+            circuit.doneTrying()
+        }
+    }
+
+
+    @Nonnull
+    State state(String serverName) {
+        final circuit = circuit(serverName)
+        synchronized (circuit) {
+            return circuit.state
+        }
+    }
+
+
+    private void open(SlingServerConfiguration serverConf, Circuit circuit) {
+        synchronized (circuit) {
+            if (circuit.state != State.OPEN) {
+                log.warn "Not sending requests to ${serverConf.name} for the next ${openMs}ms"
+            }
+            circuit.state = State.OPEN
+            circuit.openedAt = System.currentTimeMillis()
+            circuit.doneTrying()
+            synchronized (serverConf) {
+                if (SlingPackageSupport.isActive(serverConf)) {
+                    SlingPackageSupport.setActive(serverConf, false)
+                    circuit.deactivated = true
+                }
+            }
+        }
+    }
+
+
+    private static void halfOpen(SlingServerConfiguration serverConf, Circuit circuit, long now) {
+        circuit.state = State.HALF_OPEN
+        circuit.halfOpenedAt = now
+        circuit.tryingThread = Thread.currentThread()
+        circuit.permits = 1
+        if (circuit.deactivated) {
+            circuit.deactivated = false
+            circuit.reactivated = true
+            SlingPackageSupport.setActive(serverConf, true)
+        }
+    }
+
+
+    private void awaitProbe(String serverName) {
+        final latch = probes.get(serverName)
+        if (latch == null) return
+        try {
+            latch.await(probeTimeoutMs * 2L, TimeUnit.MILLISECONDS)
+        }
+        catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+
+    private Circuit circuit(String serverName) {
+        def circuit = circuits.get(serverName)
+        if (circuit == null) {
+            final newCircuit = new Circuit()
+            circuit = circuits.putIfAbsent(serverName, newCircuit) ?: newCircuit
+        }
+        return circuit
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static class Circuit {
+        State state = State.CLOSED
+        int failures
+        long openedAt
+
+        /**
+         * Was the server marked as not active when the circuit was opened?
+         */
+        boolean deactivated
+
+        long halfOpenedAt
+
+        /**
+         * While half-open, the thread that is trying the server again, and how many of its requests have not
+         * been released yet
+         */
+        Thread tryingThread
+        int permits
+
+        /**
+         * Was the server marked as active again when it was half-opened?
+         */
+        boolean reactivated
+
+
+        void doneTrying() {
+            tryingThread = null
+            permits = 0
+            reactivated = false
+        }
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package com.twcable.gradle.cqpackage
 
+import com.twcable.gradle.sling.SlingServerConfiguration
 import com.twcable.gradle.sling.SlingSupport
 import groovy.transform.TypeChecked
 
@@ -27,6 +28,28 @@ class SlingPackageSupport {
     final PackageServerConfiguration packageServerConf
     final SlingSupport slingSupport
 
+    /**
+     * The build's cache of package listings; if null, listings are always retrieved from the server
+     */
+    PackageListCache packageListCache
+
+    /**
+     * Should looking up a single package ask the server for only the packages that match its name, rather than
+     * for every package on the server? Defaults to false; the plugin turns it on for the packages supports it
+     * creates, as set by {@link CqPackageHelper#setNarrowPackageListQueries(boolean)}.
+     */
+    boolean narrowPackageListQueries = false
+
+    /**
+     * Where to record how polling the server went; if null, it is only logged
+     */
+    Collection<PollStats> pollStats
+
+    /**
+     * The build's record of which servers are responding; if null, a server is only skipped once it is not active
+     */
+    ServerHealthRegistry serverHealth
+
 
     SlingPackageSupport(PackageServerConfiguration packageServerConf, SlingSupport slingSupport) {
         if (packageServerConf == null) throw new IllegalArgumentException("packageServerConf == null")
@@ -37,12 +60,30 @@ class SlingPackageSupport {
 
 
     boolean isActive() {
-        return packageServerConf.serverConf.active
+        return isActive(packageServerConf.serverConf)
     }
 
 
     void setActive(boolean isActive) {
-        packageServerConf.serverConf.active = isActive
+        setActive(packageServerConf.serverConf, isActive)
+    }
+
+    /**
+     * Is the server active? Safe to call while other threads may be changing the flag.
+     */
+    static boolean isActive(SlingServerConfiguration serverConf) {
+        synchronized (serverConf) {
+            return serverConf.active
+        }
+    }
+
+    /**
+     * Sets the "active" flag of the server. Safe to call while other threads may be reading or changing the flag.
+     */
+    static void setActive(SlingServerConfiguration serverConf, boolean isActive) {
+        synchronized (serverConf) {
+            serverConf.active = isActive
+        }
     }
 
 
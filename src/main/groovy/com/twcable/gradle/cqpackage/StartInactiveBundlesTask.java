@@ -32,7 +32,7 @@ public class StartInactiveBundlesTask extends DefaultTask {
 
     @TaskAction
     public void start() {
-        packageHelper.startInactiveBundles();
+        DeploymentReport.record(this, () -> packageHelper.startInactiveBundles());
     }
 
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Remembers the symbolic names of the bundles in the packages on the servers, so that each distinct package is
+ * only downloaded and scanned once, no matter how many servers it is on or how many builds need it.
+ * <p>
+ * A package is identified by its {@link #fingerprint(RuntimePackageProperties) fingerprint}: the id, size, and
+ * creation/modification details the server reports for it in its package listing. That is already known before
+ * anything is downloaded, so a package that has been seen before is not requested from the server at all.
+ * <p>
+ * The names are kept in memory for the build and in a directory (normally in the Gradle user home) across
+ * builds, with a file per package. When there are more than {@link #getMaxEntries()} files, the least recently
+ * used ones are removed.
+ */
+@Slf4j
+@CompileStatic
+class SymbolicNamesCache {
+    private static final String HEADER_PREFIX = '# '
+
+    final File directory
+    final int maxEntries
+
+    private final ConcurrentMap<String, List<String>> inMemory = new ConcurrentHashMap<>()
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>()
+
+
+    SymbolicNamesCache(File directory, int maxEntries) {
+        if (directory == null) throw new IllegalArgumentException("directory == null")
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries)
+        this.directory = directory
+        this.maxEntries = maxEntries
+    }
+
+    /**
+     * Returns the symbolic names of the bundles in the package, calling "loader" (which downloads and scans the
+     * package) only if they are not already known.
+     * <p>
+     * Only one thread at a time will call the loader for a given package.
+     *
+     * @param packageInfo the package as described by the server's package listing
+     * @param loader returns the symbolic names of the bundles in the package
+     */
+    @Nonnull
+    List<String> symbolicNames(RuntimePackageProperties packageInfo, Callable<List<String>> loader) {
+        final fingerprint = fingerprint(packageInfo)
+
+        def names = cached(fingerprint)
+        if (names != null) return names
+
+        synchronized (lockFor(fingerprint)) {
+            names = cached(fingerprint)
+            if (names != null) return names
+
+            names = Collections.unmodifiableList(new ArrayList<String>(loader.call()))
+            inMemory.put(fingerprint, names)
+            store(fingerprint, names)
+            return names
+        }
+    }
+
+    /**
+     * What identifies a particular build of a package on a server, like
+     * "twc/test:fakepackage:1.0.1|size=20|created=...|lastModified=...|buildCount=1"
+     */
+    @Nonnull
+    static String fingerprint(RuntimePackageProperties packageInfo) {
+        final sb = new StringBuilder(packageInfo.id.toString())
+        for (String property : ['size', 'created', 'lastModified', 'buildCount']) {
+            final value = packageInfo.propertiesMap.getProperty(property)
+            if (value != null) sb.append('|').append(property).append('=').append(value)
+        }
+        return sb.toString()
+    }
+
+
+    @Nullable
+    private List<String> cached(String fingerprint) {
+        def names = inMemory.get(fingerprint)
+        if (names != null) {
+            log.debug "Using remembered symbolic names for ${fingerprint}"
+            return names
+        }
+
+        final file = fileFor(fingerprint)
+        if (!file.isFile()) return null
+
+        try {
+            final lines = file.readLines('UTF-8')
+            if (lines.isEmpty() || lines[0] != HEADER_PREFIX + fingerprint) return null
+
+            names = Collections.unmodifiableList(lines.subList(1, lines.size()).findAll { !it.isEmpty() })
+            file.setLastModified(System.currentTimeMillis()) // for picking the least recently used
+            inMemory.put(fingerprint, names)
+            log.info "Using the symbolic names for ${fingerprint} from ${file}"
+            return names
+        }
+        catch (IOException exp) {
+            log.debug "Could not read ${file}: ${exp}"
+            return null
+        }
+    }
+
+
+    private void store(String fingerprint, List<String> names) {
+        final file = fileFor(fingerprint)
+        try {
+            directory.mkdirs()
+            final tmpFile = File.createTempFile(file.name, '.tmp', directory)
+            tmpFile.setText(([HEADER_PREFIX + fingerprint] + names).join('\n') + '\n', 'UTF-8')
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            evict()
+        }
+        catch (IOException exp) {
+            log.debug "Could not write ${file}: ${exp}"
+        }
+    }
+
+    /**
+     * Removes the least recently used files so there are at most {@link #maxEntries}
+     */
+    private void evict() {
+        final files = directory.listFiles({ File dir, String name -> name.endsWith('.txt') } as FilenameFilter)
+        if (files == null || files.length <= maxEntries) return
+
+        final oldestFirst = files.toList().sort { File file -> file.lastModified() }
+        for (File file : oldestFirst.subList(0, files.length - maxEntries)) {
+            log.debug "Removing ${file} from the symbolic name cache"
+            file.delete()
+        }
+    }
+
+
+    private File fileFor(String fingerprint) {
+        final digest = MessageDigest.getInstance('SHA-256').digest(fingerprint.getBytes('UTF-8'))
+        return new File(directory, digest.encodeHex().toString() + '.txt')
+    }
+
+
+    private Object lockFor(String key) {
+        def lock = new Object()
+        def existing = locks.putIfAbsent(key, lock)
+        return existing ?: lock
+    }
+
+}
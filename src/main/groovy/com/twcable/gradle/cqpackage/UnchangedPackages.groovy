@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
+
+import static java.net.HttpURLConnection.HTTP_CREATED
+import static java.net.HttpURLConnection.HTTP_OK
+
+/**
+ * Determines if a package is already on a server, byte-for-byte, and installed.
+ * <p>
+ * The package manager does not keep a digest of the packages it has, so after a package is uploaded its digest
+ * (see {@link PackageDigest}) is stored as the {@link #DIGEST_PROPERTY} property of the package's
+ * "vlt:definition" node. Uploading a package again (by any means) replaces that node, so a stale digest can not
+ * be left behind.
+ * <p>
+ * A package is unchanged on a server if the server has a package with exactly the same id and size, it has been
+ * installed, and its stored digest is the same as the local file's.
+ */
+@Slf4j
+@CompileStatic
+class UnchangedPackages {
+    static final String DIGEST_PROPERTY = 'gradleContentDigest'
+    static final String LAST_UNPACKED = 'lastUnpacked'
+    static final String SIZE = 'size'
+
+
+    /**
+     * Is the package that has "packageId" and "digest" already installed on the server?
+     *
+     * @param packageFile the local package file
+     * @param packageId the id of the local package file
+     * @param digest the digest of the local package file
+     * @param packageSupport the server to check
+     */
+    static boolean isUnchanged(File packageFile, PackageId packageId, String digest, SlingPackageSupport packageSupport) {
+        if (!packageSupport.active) return false
+
+        final packageInfoSF = RuntimePackageProperties.packageProperties(packageSupport, packageId)
+        if (packageInfoSF.failed()) return false
+        final packageInfo = packageInfoSF.value
+
+        final serverName = packageSupport.packageServerConf.serverConf.name
+        if (packageInfo.id != packageId) {
+            log.info "${serverName} has ${packageInfo.id} rather than ${packageId}"
+            return false
+        }
+        if (packageInfo.getProperty(SIZE) != packageFile.length().toString()) {
+            log.info "${packageId} on ${serverName} is ${packageInfo.getProperty(SIZE)} bytes rather than ${packageFile.length()}"
+            return false
+        }
+        if (packageInfo.getProperty(LAST_UNPACKED) == null) {
+            log.info "${packageId} is on ${serverName} but has not been installed"
+            return false
+        }
+
+        final storedDigest = storedDigest(packageSupport, packageInfo)
+        if (storedDigest != digest) {
+            log.info "The digest of ${packageId} on ${serverName} is ${storedDigest} rather than ${digest}"
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Stores the digest of the package on the server so that {@link #isUnchanged} can compare against it later.
+     * Failing to do so is logged but otherwise ignored: it only means the package can not be skipped next time.
+     *
+     * @return true if the digest was stored
+     */
+    static boolean recordDigest(PackageId packageId, String digest, SlingPackageSupport packageSupport) {
+        if (!packageSupport.active) return false
+
+        final packageInfoSF = RuntimePackageProperties.packageProperties(packageSupport, packageId)
+        if (packageInfoSF.failed()) {
+            log.warn "Could not find ${packageId} to store its digest: ${packageInfoSF.error}"
+            return false
+        }
+
+        final definitionUri = packageSupport.packageServerConf.getPackageDefinitionUri(packageInfoSF.value.path)
+        final resp = packageSupport.slingSupport.doPost(definitionUri, [(DIGEST_PROPERTY): digest] as Map)
+        if (resp.code == HTTP_OK || resp.code == HTTP_CREATED) {
+            log.info "Stored the digest of ${packageId} on ${packageSupport.packageServerConf.serverConf.name}"
+            return true
+        }
+        log.warn "Could not store the digest of ${packageId} at ${definitionUri}: ${resp.code} - ${resp.body}"
+        return false
+    }
+
+    /**
+     * Returns the digest that was stored for the package, or null if there is not one
+     */
+    private static String storedDigest(SlingPackageSupport packageSupport, RuntimePackageProperties packageInfo) {
+        final definitionUri = packageSupport.packageServerConf.getPackageDefinitionUri(packageInfo.path)
+        final resp = packageSupport.slingSupport.doGet(URI.create("${definitionUri}.json"))
+        if (resp.code != HTTP_OK) return null
+
+        final json = new JsonSlurper().parseText(resp.body) as Map
+        return json.get(DIGEST_PROPERTY) as String
+    }
+
+}
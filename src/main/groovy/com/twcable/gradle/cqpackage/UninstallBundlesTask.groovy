@@ -48,8 +48,12 @@ class UninstallBundlesTask extends DefaultTask {
     @TaskAction
     @SuppressWarnings("GroovyUnusedDeclaration")
     void uninstallBundles() {
-        def resp = this.packageHelper.uninstallBundles(uninstallBundlesPredicate)
-        if (isBadResponse(resp.code, true)) throw new GradleException("Could not uninstall bundles: ${resp}")
+        final helper = this.packageHelper
+        final predicate = this.uninstallBundlesPredicate
+        DeploymentReport.record(this) {
+            def resp = helper.uninstallBundles(predicate)
+            if (isBadResponse(resp.code, true)) throw new GradleException("Could not uninstall bundles: ${resp}")
+        }
     }
 
 }
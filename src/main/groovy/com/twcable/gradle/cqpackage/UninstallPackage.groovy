@@ -19,6 +19,7 @@ import com.twcable.gradle.sling.SlingServerConfiguration
 import com.twcable.gradle.sling.SlingServersConfiguration
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
+import org.apache.jackrabbit.vault.packaging.PackageId
 
 import javax.annotation.Nonnull
 
@@ -54,10 +55,23 @@ class UninstallPackage {
      * @see #consumeStatus(Status, String, SlingServerConfiguration)
      */
     static void uninstall(String packageName, SlingServersConfiguration slingServersConfiguration, SlingPackageSupportFactory factory) {
-        slingServersConfiguration.each { serverConfig ->
-            def status = uninstall(packageName, factory.create(serverConfig))
-            consumeStatus(status, packageName, serverConfig)
-        }
+        uninstall(PackageId.fromString(packageName), slingServersConfiguration, factory, ConcurrentServerRunner.SEQUENTIAL)
+    }
+
+    /**
+     * Iterates through all of the servers in "servers" and uninstalls the given package on them,
+     * using "runner" to determine how many servers are worked on at the same time.
+     *
+     * @see #uninstall(PackageId, SlingPackageSupport)
+     * @see #consumeStatus(Status, String, SlingServerConfiguration)
+     */
+    static void uninstall(PackageId packageId, Iterable<SlingServerConfiguration> servers, SlingPackageSupportFactory factory,
+                          ConcurrentServerRunner runner) {
+        runner.run(servers, { SlingServerConfiguration serverConfig ->
+            def status = uninstall(packageId, factory.create(serverConfig))
+            consumeStatus(status, packageId.name, serverConfig)
+            return status
+        } as ConcurrentServerRunner.ServerAction<Status>)
     }
 
     /**
@@ -91,7 +105,21 @@ class UninstallPackage {
      */
     @Nonnull
     static Status uninstall(String packageName, SlingPackageSupport packageSupport) {
-        return CqPackageCommand.doCommand("uninstall", packageName, packageSupport, falseStatusHandler)
+        return uninstall(PackageId.fromString(packageName), packageSupport)
+    }
+
+    /**
+     * Uninstalls the given package using the provided server configuration.
+     *
+     * @param packageId the package to uninstall; its group and version (when it has them) pick which of the packages
+     *                  with its name on the server is used
+     * @param packageSupport the configuration of the server to uninstall from
+     *
+     * @return the {@link PackageStatus} of doing the uninstall
+     */
+    @Nonnull
+    static Status uninstall(PackageId packageId, SlingPackageSupport packageSupport) {
+        return CqPackageCommand.doCommand("uninstall", packageId, packageSupport, falseStatusHandler)
     }
 
 }
@@ -28,13 +28,13 @@ public class UninstallPackageTask extends DefaultTask {
             "(i.e., This does not fail if the package is not on the server.)");
 
         packageHelper = CqPackagePlugin.cqPackageHelper(getProject());
-        slingPackageSupportFactory = SimpleSlingPackageSupportFactory.INSTANCE;
+        slingPackageSupportFactory = packageHelper.getSlingPackageSupportFactory();
     }
 
 
     @TaskAction
     public void uninstall() {
-        this.packageHelper.uninstallPackage(slingPackageSupportFactory);
+        DeploymentReport.record(this, () -> this.packageHelper.uninstallPackage(slingPackageSupportFactory));
     }
 
 }
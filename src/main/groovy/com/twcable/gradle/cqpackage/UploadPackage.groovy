@@ -19,7 +19,6 @@ import com.twcable.gradle.sling.SlingServerConfiguration
 import com.twcable.gradle.sling.SlingServersConfiguration
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
-import org.apache.http.entity.mime.content.FileBody
 import org.apache.jackrabbit.vault.packaging.PackageId
 import org.apache.jackrabbit.vault.packaging.PackageManager
 import org.apache.jackrabbit.vault.packaging.impl.PackageManagerImpl
@@ -27,6 +26,7 @@ import org.gradle.api.GradleException
 import org.gradle.api.Project
 
 import javax.annotation.Nonnull
+import javax.annotation.Nullable
 
 import static com.twcable.gradle.cqpackage.PackageStatus.NO_PACKAGE
 import static com.twcable.gradle.cqpackage.PackageStatus.UNKNOWN
@@ -61,12 +61,28 @@ class UploadPackage {
                        SlingServersConfiguration slingServersConfiguration,
                        SlingPackageSupportFactory factory,
                        PackageManager packageManager) {
-        if (packageManager == null) packageManager = new PackageManagerImpl()
+        upload(packageFile, slingServersConfiguration, factory, packageManager, ConcurrentServerRunner.SEQUENTIAL)
+    }
+
+    /**
+     * Iterates through all of the servers in "servers" and uploads the given package to them,
+     * using "runner" to determine how many servers are worked on at the same time.
+     *
+     * @see #upload(File, boolean, SlingPackageSupport, PackageManager)
+     * @see #consumeStatus(Status, String, SlingServerConfiguration)
+     */
+    static void upload(File packageFile,
+                       Iterable<SlingServerConfiguration> servers,
+                       SlingPackageSupportFactory factory,
+                       PackageManager packageManager,
+                       ConcurrentServerRunner runner) {
+        final PackageManager thePackageManager = packageManager ?: new PackageManagerImpl()
 
-        slingServersConfiguration.each { serverConfig ->
-            def status = upload(packageFile, false, factory.create(serverConfig), packageManager)
+        runner.run(servers, { SlingServerConfiguration serverConfig ->
+            def status = upload(packageFile, false, factory.create(serverConfig), thePackageManager)
             consumeStatus(status, packageFile.name, serverConfig)
-        }
+            return status
+        } as ConcurrentServerRunner.ServerAction<Status>)
     }
 
     /**
@@ -97,7 +113,31 @@ class UploadPackage {
      */
     @Nonnull
     static Status upload(File packageFile, boolean force, SlingPackageSupport packageSupport, PackageManager packageManager) {
+        return upload(packageFile, force, packageSupport, packageManager, 1, null).status
+    }
+
+    /**
+     * Uploads the given package using the provided server configuration, reporting the progress as it goes.
+     * <p>
+     * The package manager has no way of resuming a partial upload, so if the upload times out the package is
+     * sent again, up to "maxAttempts" times in total. Before sending it again, the server is checked in case the
+     * upload actually completed and only the response was lost.
+     *
+     * @param packageFile the package to upload
+     * @param force should this overwrite an existing package of exactly the same filename?
+     * @param packageSupport the configuration of the server to upload to
+     * @param packageManager used to read the package file
+     * @param maxAttempts the maximum number of times to send the package
+     * @param project if not null, the project whose console the progress of the upload is shown on
+     *
+     * @return the {@link PackageStatus} of doing the upload, and how the transfer went
+     */
+    @Nonnull
+    static UploadResult upload(File packageFile, boolean force, SlingPackageSupport packageSupport,
+                               PackageManager packageManager, int maxAttempts,
+                               @Nullable Project project) {
         if (packageManager == null) packageManager = new PackageManagerImpl()
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1: ${maxAttempts}")
 
         /*
         force = true, package exists, same version
@@ -149,21 +189,75 @@ in other words, there's no indication it's missing its dependency at this point
 12:16:34.254 [main] DEBUG org.apache.http.wire - << "{"success":false,"msg":"error in opening zip file"}"
 12:16:34.254 [main] DEBUG c.t.g.http.DefaultSimpleHttpClient - status code: 200; {"success":false,"msg":"error in opening zip file"}
          */
-        final packageName = packageManager.open(packageFile).id.name
-        final postParams = ['force': Boolean.toString(force), 'package': new FileBody(packageFile, 'application/zip')]
-        final uploadStatus = CqPackageCommand.doCommand("upload", packageName, packageSupport, postParams, falseStatusHandler)
+        final packageId = packageManager.open(packageFile).id
+        final packageName = packageId.name
+        final serverName = packageSupport.packageServerConf.serverConf.name
+        final progress = new UploadProgress(serverName, packageFile.length(), project)
+
+        Status uploadStatus
+        try {
+            for (int attempt = 1; ; attempt++) {
+                final wasAnswering = isAnswering(packageSupport)
+                final postParams = ['force': Boolean.toString(force), 'package': progress.body(packageFile)]
+                uploadStatus = CqPackageCommand.doCommand("upload", packageId, packageSupport, postParams, falseStatusHandler)
+                if (uploadStatus != SERVER_TIMEOUT || attempt >= maxAttempts) break
+
+                // A server that was already not active, or that was being skipped because it is not responding,
+                // was not sent the package, so it is left the way it is
+                if (!wasAnswering) break
+
+                // doCommand marks the server as inactive when its upload times out, but it is worth trying again
+                packageSupport.serverHealth?.reset(packageSupport.packageServerConf.serverConf)
+                packageSupport.active = true
+                if (isOnServer(packageId, packageFile.length(), packageSupport)) {
+                    log.info "The upload of ${packageName} to ${serverName} timed out, but the package is there"
+                    uploadStatus = OK
+                    break
+                }
+                log.warn "The upload of ${packageName} to ${serverName} timed out after ${progress.describe()}; " +
+                    "sending it again (attempt ${attempt + 1} of ${maxAttempts})"
+            }
+        }
+        finally {
+            progress.finished()
+        }
+
         if (uploadStatus == OK) {
-            final packageInfoSF = RuntimePackageProperties.packageProperties(packageSupport, PackageId.fromString(packageName))
-            if (packageInfoSF.failed()) return packageInfoSF.error
-            return packageInfoSF.value.hasUnresolvedDependencies() ? UNRESOLVED_DEPENDENCIES : OK
+            log.info "Uploaded ${packageName} to ${serverName}: ${progress.summary()}"
+            final packageInfoSF = RuntimePackageProperties.packageProperties(packageSupport, packageId)
+            if (packageInfoSF.failed()) return new UploadResult(packageInfoSF.error, progress)
+            return new UploadResult(packageInfoSF.value.hasUnresolvedDependencies() ? UNRESOLVED_DEPENDENCIES : OK, progress)
         }
-        return uploadStatus
+        return new UploadResult(uploadStatus, progress)
+    }
+
+    /**
+     * Is the server active and, as far as the build knows, responding?
+     */
+    private static boolean isAnswering(SlingPackageSupport packageSupport) {
+        if (!packageSupport.active) return false
+        final serverHealth = packageSupport.serverHealth
+        return serverHealth == null ||
+            serverHealth.state(packageSupport.packageServerConf.serverConf.name) == ServerHealthRegistry.State.CLOSED
+    }
+
+    /**
+     * Does the server have the package, with the same size as the local file?
+     */
+    private static boolean isOnServer(PackageId packageId, long size, SlingPackageSupport packageSupport) {
+        packageSupport.packageListCache?.invalidate(packageSupport.packageServerConf.packageListUri)
+
+        final packageInfoSF = RuntimePackageProperties.packageProperties(packageSupport, packageId)
+        if (packageInfoSF.failed()) return false
+        final packageInfo = packageInfoSF.value
+        return packageInfo.id == packageId && packageInfo.getProperty('size') == size.toString()
     }
 
     /**
      * Returns the CQ Package file to use.
      *
-     * If a System Property of "package" is set, that is used. Otherwise the output of
+     * If a System Property of "package" is set, that is used. Otherwise, if a delta of the package is being
+     * created (see {@link CqPackageHelper#getDeltaPackageTask()}) the delta is used, otherwise the output of
      * the 'createPackage' task is used.
      */
     @Nonnull
@@ -173,6 +267,12 @@ in other words, there's no indication it's missing its dependency at this point
             return new File(packageProperty)
         }
 
+        def deltaPackageTask = project.extensions.findByType(CqPackageHelper)?.deltaPackageTask
+        if (deltaPackageTask != null) {
+            log.info("Using the delta package: ${deltaPackageTask.deltaFile}")
+            return deltaPackageTask.deltaFile
+        }
+
         def file = CreatePackageTask.from(project).archivePath
         if (file.exists()) {
             log.info("No remote package passed in. Using createPackage zip: ${file}")
@@ -183,4 +283,30 @@ in other words, there's no indication it's missing its dependency at this point
         throw new IllegalStateException("The 'package' system property is not set and there is no output from the 'createPackage' task")
     }
 
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * The result of uploading a package to a server
+     */
+    static final class UploadResult {
+        final Status status
+        final UploadProgress progress
+
+
+        UploadResult(Status status, UploadProgress progress) {
+            this.status = status
+            this.progress = progress
+        }
+
+
+        @Override
+        String toString() {
+            return "UploadResult{${status}: ${progress.summary()}}"
+        }
+    }
+
 }
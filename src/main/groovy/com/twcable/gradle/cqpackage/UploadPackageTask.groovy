@@ -17,6 +17,7 @@ package com.twcable.gradle.cqpackage
 
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.TaskAction
 
 class UploadPackageTask extends DefaultTask {
@@ -28,8 +29,19 @@ class UploadPackageTask extends DefaultTask {
 
     @TaskAction
     void upload() {
-        def status = CqPackagePlugin.cqPackageHelper(project).uploadPackage(SimpleSlingPackageSupportFactory.INSTANCE)
-        if (status != Status.OK) throw new GradleException(status.name)
+        DeploymentReport.record(this) {
+            def packageHelper = CqPackagePlugin.cqPackageHelper(project)
+            def status = packageHelper.uploadPackage(packageHelper.slingPackageSupportFactory)
+            if (status != Status.OK) throw new GradleException(status.name)
+        }
+    }
+
+    /**
+     * How each server's upload went (bytes sent, time taken, transfer rate), keyed by the name of the server
+     */
+    @Internal
+    Map<String, UploadProgress> getUploadResults() {
+        return CqPackagePlugin.cqPackageHelper(project).uploadResults
     }
 
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Slf4j
+import org.apache.http.entity.mime.content.FileBody
+import org.gradle.api.Project
+import org.gradle.api.internal.project.ProjectInternal
+import org.gradle.internal.logging.progress.ProgressLogger
+import org.gradle.internal.logging.progress.ProgressLoggerFactory
+
+import javax.annotation.Nonnull
+import javax.annotation.Nullable
+
+/**
+ * Tracks the progress of uploading a package to a server: bytes sent, the transfer rate and the estimated time
+ * remaining. If it has a Gradle {@link ProgressLogger}, the progress is shown on the console as it happens.
+ * <p>
+ * Gradle does not have a public API for progress loggers, so this is the only place that uses its internal one.
+ *
+ * @see #body(File)
+ */
+@Slf4j
+@CompileStatic
+class UploadProgress {
+    private static final double MB = 1024 * 1024
+    private static final long REPORT_INTERVAL_MS = 500
+
+    final String serverName
+    final long totalBytes
+
+    private final @Nullable ProgressLogger progressLogger
+    private volatile long bytesSent
+    private volatile long startMs
+    private volatile long endMs
+    private long lastReportMs
+    private int attempts
+    private boolean completed
+
+
+    /**
+     * @param project if not null, the project whose console the progress is shown on
+     */
+    UploadProgress(String serverName, long totalBytes, @Nullable Project project) {
+        if (serverName == null) throw new IllegalArgumentException("serverName == null")
+        this.serverName = serverName
+        this.totalBytes = totalBytes
+        this.progressLogger = progressLogger(project)
+    }
+
+
+    @Nullable
+    private static ProgressLogger progressLogger(@Nullable Project project) {
+        if (!(project instanceof ProjectInternal)) return null
+        try {
+            return ((ProjectInternal)project).services.get(ProgressLoggerFactory).newOperation(UploadProgress)
+        }
+        catch (Exception | LinkageError exp) {
+            log.debug "Not showing the upload progress on the console: ${exp}"
+            return null
+        }
+    }
+
+    /**
+     * Returns the multipart body for the file that reports to this as it is written.
+     * Each call starts a new attempt at sending the file.
+     */
+    @Nonnull
+    FileBody body(File file) {
+        return new ProgressFileBody(file, 'application/zip', this)
+    }
+
+
+    synchronized void started() {
+        attempts++
+        bytesSent = 0
+        startMs = System.currentTimeMillis()
+        endMs = 0
+        lastReportMs = startMs
+        if (attempts == 1) {
+            progressLogger?.start("Uploading to ${serverName}".toString(), serverName)
+        }
+        else {
+            progressLogger?.progress("${serverName}: restarting upload (attempt ${attempts})".toString())
+        }
+    }
+
+
+    void bytesSent(long count) {
+        bytesSent += count
+        final now = System.currentTimeMillis()
+        if (now - lastReportMs >= REPORT_INTERVAL_MS) {
+            lastReportMs = now
+            progressLogger?.progress("${serverName}: ${describe()}".toString())
+        }
+    }
+
+
+    /**
+     * The upload is done, successfully or not
+     */
+    synchronized void finished() {
+        if (completed) return
+        completed = true
+        endMs = System.currentTimeMillis()
+        if (attempts > 0) progressLogger?.completed()
+    }
+
+
+    long getBytesSent() {
+        return bytesSent
+    }
+
+    /**
+     * How many times the file has been sent, including the current one
+     */
+    int getAttempts() {
+        return attempts
+    }
+
+    /**
+     * How long the last attempt took (or has taken so far)
+     */
+    long getElapsedMs() {
+        if (startMs == 0) return 0
+        return (endMs != 0 ? endMs : System.currentTimeMillis()) - startMs
+    }
+
+
+    double getBytesPerSecond() {
+        final elapsedMs = getElapsedMs()
+        return elapsedMs == 0 ? 0d : bytesSent * 1000d / elapsedMs
+    }
+
+    /**
+     * The estimated time to finish sending the file, or -1 if it is not known yet
+     */
+    long getEtaMs() {
+        final rate = getBytesPerSecond()
+        if (rate == 0d) return -1
+        return (long)((totalBytes - bytesSent) * 1000d / rate)
+    }
+
+    /**
+     * Describes the progress, like "45.0/300.0 MB, 12.3 MB/s, 21s left"
+     */
+    @Nonnull
+    String describe() {
+        final eta = getEtaMs()
+        return String.format('%.1f/%.1f MB, %.1f MB/s, %s left', bytesSent / MB, totalBytes / MB,
+            getBytesPerSecond() / MB, eta < 0 ? '?' : "${(long)Math.ceil(eta / 1000d)}s".toString())
+    }
+
+    /**
+     * Describes the finished upload, like "300.0 MB in 24.4s (12.3 MB/s)"
+     */
+    @Nonnull
+    String summary() {
+        return String.format('%.1f MB in %.1fs (%.1f MB/s)', bytesSent / MB, getElapsedMs() / 1000d, getBytesPerSecond() / MB)
+    }
+
+
+    @Override
+    String toString() {
+        return "UploadProgress{${serverName}: ${describe()}}"
+    }
+
+    // **********************************************************************
+    //
+    // HELPER CLASSES
+    //
+    // **********************************************************************
+
+    /**
+     * A {@link FileBody} that streams the file itself so it can report how much has been written
+     */
+    static class ProgressFileBody extends FileBody {
+        private static final int BUFFER_SIZE = 64 * 1024
+
+        private final UploadProgress progress
+
+
+        ProgressFileBody(File file, String mimeType, UploadProgress progress) {
+            super(file, mimeType)
+            this.progress = progress
+        }
+
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            if (out == null) throw new IllegalArgumentException("out == null")
+
+            progress.started()
+            final buffer = new byte[BUFFER_SIZE]
+            file.withInputStream { InputStream inputStream ->
+                int read
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read)
+                    progress.bytesSent(read)
+                }
+            }
+            out.flush()
+        }
+    }
+
+}
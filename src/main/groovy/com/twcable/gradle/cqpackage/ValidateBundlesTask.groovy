@@ -45,9 +45,11 @@ class ValidateBundlesTask extends DefaultTask {
     @TaskAction
     @SuppressWarnings("GroovyUnusedDeclaration")
     void validate() {
-        def packageHelper = CqPackagePlugin.cqPackageHelper(project)
-        def resp = packageHelper.validateBundles(bundleFiles)
-        if (isBadResponse(resp.code, false)) throw new GradleException("Could not validate bundles: ${resp}")
+        DeploymentReport.record(this) {
+            def packageHelper = CqPackagePlugin.cqPackageHelper(project)
+            def resp = packageHelper.validateBundles(bundleFiles)
+            if (isBadResponse(resp.code, false)) throw new GradleException("Could not validate bundles: ${resp}")
+        }
     }
 
 
@@ -37,9 +37,11 @@ public class ValidateRemoteBundlesTask extends DefaultTask {
 
     @TaskAction
     public void validate() {
-        final HttpResponse resp = this.packageHelper.validateRemoteBundles();
-        if (CqPackageHelper.isBadResponse(resp.getCode(), false))
-            throw new GradleException("Could not validate bundles: " + resp);
+        DeploymentReport.record(this, () -> {
+            final HttpResponse resp = this.packageHelper.validateRemoteBundles();
+            if (CqPackageHelper.isBadResponse(resp.getCode(), false))
+                throw new GradleException("Could not validate bundles: " + resp);
+        });
     }
 
 }
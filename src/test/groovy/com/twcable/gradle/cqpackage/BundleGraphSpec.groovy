@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import spock.lang.Specification
+import spock.lang.Subject
+
+import java.util.jar.Attributes
+import java.util.jar.Manifest
+
+@Subject(BundleGraph)
+class BundleGraphSpec extends Specification {
+
+    def "bundles are started after the bundles they import from"() {
+        def graph = new BundleGraph()
+        graph.add(manifest('app', 'com.app.api,com.core;version="[1.0,2)"', null))
+        graph.add(manifest('core', null, 'com.core;version="1.2"'))
+        graph.add(manifest('app.api', 'com.core', 'com.app.api'))
+        graph.add(manifest('util', null, 'com.util'))
+
+        expect:
+        graph.waves(['app', 'core', 'app.api', 'util', 'other']) == [['core', 'util'], ['app.api'], ['app'], ['other']]
+    }
+
+
+    def "bundles that are already running are not waited for"() {
+        def graph = new BundleGraph()
+        graph.add(manifest('app', 'com.core', null))
+        graph.add(manifest('core', null, 'com.core'))
+
+        expect:
+        graph.waves(['app']) == [['app']]
+    }
+
+
+    def "optional imports do not order bundles"() {
+        def graph = new BundleGraph()
+        graph.add(manifest('app', 'com.core;resolution:=optional', null))
+        graph.add(manifest('core', null, 'com.core'))
+
+        expect:
+        graph.waves(['app', 'core']) == [['app', 'core']]
+    }
+
+
+    def "bundles that depend on each other are started together"() {
+        def graph = new BundleGraph()
+        graph.add(manifest('base', null, 'com.base'))
+        graph.add(manifest('a', 'com.base,com.b', 'com.a'))
+        graph.add(manifest('b', 'com.a', 'com.b'))
+
+        expect:
+        graph.waves(['a', 'b', 'base']) == [['base'], ['a', 'b']]
+    }
+
+
+    def "package names are read from headers"() {
+        expect:
+        BundleGraph.packageNames('a.b;c.d;version="[1.0,2)",e.f;resolution:=optional', skipOptional) as List == names
+
+        where:
+        skipOptional | names
+        false        | ['a.b', 'c.d', 'e.f']
+        true         | ['a.b', 'c.d']
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static Manifest manifest(String symbolicName, String importPackage, String exportPackage) {
+        def manifest = new Manifest()
+        manifest.mainAttributes.put(Attributes.Name.MANIFEST_VERSION, '1.0')
+        manifest.mainAttributes.putValue('Bundle-SymbolicName', symbolicName + ';singleton:=true')
+        if (importPackage != null) manifest.mainAttributes.putValue('Import-Package', importPackage)
+        if (exportPackage != null) manifest.mainAttributes.putValue('Export-Package', exportPackage)
+        return manifest
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.osgi.BundleState
+import groovy.json.JsonOutput
+import spock.lang.Specification
+import spock.lang.Subject
+
+import static com.twcable.gradle.sling.osgi.BundleState.ACTIVE
+import static com.twcable.gradle.sling.osgi.BundleState.FRAGMENT
+import static com.twcable.gradle.sling.osgi.BundleState.MISSING
+import static com.twcable.gradle.sling.osgi.BundleState.RESOLVED
+
+@Subject(BundleStateIndex)
+class BundleStateIndexSpec extends Specification {
+
+    def "waits until the watched bundles are active"() {
+        def index = new BundleStateIndex(['a.b', 'c.d'], 'author', 1000)
+
+        expect:
+        !index.allActive()
+        !index.update(bundlesJson('a.b': ACTIVE, 'c.d': RESOLVED, 'other': RESOLVED), 1100)
+        index.pending == ['c.d']
+        index.update(bundlesJson('a.b': ACTIVE, 'c.d': ACTIVE, 'other': RESOLVED), 1500)
+        index.allActive()
+        index.timeToActiveMs == ['a.b': 100L, 'c.d': 500L]
+        !index.states.containsKey('other')
+    }
+
+
+    def "watched bundles that are not on the server are missing"() {
+        def index = new BundleStateIndex(['a.b', 'c.d'], 'author', 0)
+
+        when:
+        def allActive = index.update(bundlesJson('a.b': FRAGMENT), 10)
+
+        then:
+        !allActive
+        index.pending == ['c.d']
+        index.states == ['a.b': FRAGMENT.stateString, 'c.d': MISSING.stateString]
+    }
+
+
+    def "watches every bundle when no names are given"() {
+        def index = new BundleStateIndex(null, 'author', 0)
+
+        expect:
+        !index.update(bundlesJson('a.b': ACTIVE, 'c.d': RESOLVED), 10)
+        index.pending == ['c.d']
+        index.update(bundlesJson('a.b': ACTIVE, 'c.d': ACTIVE), 20)
+    }
+
+
+    def "a bundle that stops being active is waited for again"() {
+        def index = new BundleStateIndex(['a.b'], 'author', 0)
+
+        expect:
+        index.update(bundlesJson('a.b': ACTIVE), 10)
+        !index.update(bundlesJson('a.b': RESOLVED), 20)
+        index.update(bundlesJson('a.b': ACTIVE), 30)
+        index.timeToActiveMs == ['a.b': 10L]
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static String bundlesJson(Map<String, BundleState> states) {
+        def data = states.collect { name, state ->
+            [id: 1, name: name, fragment: state == FRAGMENT, stateRaw: 32, state: state.stateString,
+             version: '1.0.0', symbolicName: name, category: '', props: [[key: 'x', value: ['y']]]]
+        }
+        return JsonOutput.toJson([status: 'Bundle information: ' + data.size() + ' bundles', s: [data.size(), 0], data: data])
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.lang.Unroll
+
+@Subject(CoalescedBundleFilter)
+class CoalescedBundleFilterSpec extends Specification {
+
+    def "the bundles share the start of the pattern"() {
+        when:
+        def filter = CoalescedBundleFilter.create('/apps/install',
+            ['subproject2-2.3.4.jar', 'groovy-all-2.1.6.jar', 'subproject1-2.3.4.jar'])
+
+        then:
+        filter.root == '/apps/install'
+        filter.includePattern ==
+            '/apps/install/(?:groovy\\-all\\-2\\.1\\.6\\.jar|subproject(?:1\\-2\\.3\\.4\\.jar|2\\-2\\.3\\.4\\.jar))(/.*)?'
+    }
+
+
+    @Unroll
+    def "'#path' is #contained"() {
+        given:
+        def filter = CoalescedBundleFilter.create('/apps/install', ['a.jar', 'a.jar.jar', 'b(1)+.jar'])
+
+        expect:
+        filter.contains(path) == contained
+        filter.containedByBundleRoots(path) == contained
+
+        where:
+        path                                   | contained
+        '/apps/install'                        | false
+        '/apps/install/a.jar'                  | true
+        '/apps/install/a.jar/jcr:content'      | true
+        '/apps/install/a.jar.jar'              | true
+        '/apps/install/a.jarx'                 | false
+        '/apps/install/aXjar'                  | false
+        '/apps/install/b(1)+.jar'              | true
+        '/apps/install/c.jar'                  | false
+        '/apps/installx/a.jar'                 | false
+    }
+
+
+    def "a random set of bundles is the same as a filter for each"() {
+        given:
+        def random = new Random(42)
+        def names = (1..300).collect {
+            "com.mycompany.${['core', 'web', 'api', 'util'][random.nextInt(4)]}-${random.nextInt(3)}.${random.nextInt(12)}.jar".toString()
+        }
+
+        when:
+        CoalescedBundleFilter.create('/apps/install', names).verify()
+
+        then:
+        noExceptionThrown()
+    }
+
+
+    def "works when the install root is the top of the repository"() {
+        when:
+        def filter = CoalescedBundleFilter.create('/', ['a.jar'])
+
+        then:
+        filter.includePattern == '/a\\.jar(/.*)?'
+        filter.contains('/a.jar')
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.lang.Unroll
+
+import java.util.zip.Deflater
+
+import static com.twcable.gradle.cqpackage.CompressionPolicy.Compression.STORED
+import static com.twcable.gradle.cqpackage.CompressionPolicy.Compression.deflated
+
+@Subject(CompressionPolicy)
+class CompressionPolicySpec extends Specification {
+
+    @Unroll
+    def "glob '#glob' matching '#path' is #matches"() {
+        expect:
+        CompressionPolicy.globPattern(glob).matcher(path).matches() == matches
+
+        where:
+        glob                  | path                               | matches
+        '**/*.jar'            | 'jcr_root/apps/install/a.jar'      | true
+        '**/*.jar'            | 'a.jar'                            | true
+        '**/*.jar'            | 'jcr_root/apps/install/A.JAR'      | true
+        '**/*.jar'            | 'jcr_root/apps/install/a.jar.txt'  | false
+        'jcr_root/apps/*.xml' | 'jcr_root/apps/a.xml'              | true
+        'jcr_root/apps/*.xml' | 'jcr_root/apps/b/a.xml'            | false
+        'jcr_root/apps/**'    | 'jcr_root/apps/b/a.xml'            | true
+        'META-INF/?ault/**'   | 'META-INF/vault/filter.xml'        | true
+        'a+b.txt'             | 'aab.txt'                          | false
+    }
+
+
+    def "the first rule that matches wins"() {
+        given:
+        def policy = CompressionPolicy.withDefaults()
+        policy.deflate(9, 'jcr_root/**/*.xml')
+        policy.store('jcr_root/content/**')
+
+        expect:
+        policy.compressionFor('jcr_root/apps/install/a.jar', { null }) == STORED
+        policy.compressionFor('jcr_root/content/.content.xml', { null }) == deflated(9)
+        policy.compressionFor('jcr_root/content/a.txt', { null }) == STORED
+        policy.compressionFor('jcr_root/apps/a.txt', { null }) == deflated(Deflater.DEFAULT_COMPRESSION)
+    }
+
+
+    def "auto stores entries that do not get smaller"() {
+        given:
+        def policy = new CompressionPolicy()
+        policy.auto('**')
+        def random = new byte[10000]
+        new Random(42).nextBytes(random)
+
+        expect:
+        policy.compressionFor('random.bin', { random }) == STORED
+        policy.compressionFor('text.txt', { ('text ' * 2000).bytes }) == deflated(Deflater.DEFAULT_COMPRESSION)
+        policy.compressionFor('empty.txt', { new byte[0] }) == STORED
+    }
+
+
+    def "auto keeps how unchanged content was compressed without sampling it again"() {
+        given:
+        def policy = CompressionPolicy.withDefaults()
+        policy.auto('**')
+        def sampled = 0
+        def sample = { sampled++; ('text ' * 2000).bytes }
+
+        expect:
+        policy.compressionFor('text.txt', sample, STORED) == STORED
+        policy.compressionFor('text.txt', sample, deflated(Deflater.DEFAULT_COMPRESSION)) == deflated(Deflater.DEFAULT_COMPRESSION)
+        sampled == 0
+
+        and: "a compression that sampling would not give is ignored"
+        policy.compressionFor('text.txt', sample, deflated(9)) == deflated(Deflater.DEFAULT_COMPRESSION)
+        sampled == 1
+
+        and: "rules that do not sample are still followed"
+        policy.compressionFor('a.jar', sample, deflated(Deflater.DEFAULT_COMPRESSION)) == STORED
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import org.gradle.api.GradleException
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.lang.Unroll
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@Subject(ConcurrentServerRunner)
+class ConcurrentServerRunnerSpec extends Specification {
+
+    @Unroll
+    def "results are in server order with parallelism #parallelism"() {
+        def servers = (1..5).collect { server("server${it}") }
+
+        when:
+        def results = new ConcurrentServerRunner(parallelism).run(servers, { SlingServerConfiguration sc ->
+            Thread.sleep(50 - sc.name[-1].toInteger() * 10) // later servers finish first
+            return sc.name
+        } as ConcurrentServerRunner.ServerAction<String>)
+
+        then:
+        results.collect { it.value } == ['server1', 'server2', 'server3', 'server4', 'server5']
+
+        where:
+        parallelism << [1, 2, 5, 10]
+    }
+
+
+    def "actually runs concurrently"() {
+        def servers = (1..3).collect { server("server${it}") }
+        def latch = new CountDownLatch(3)
+
+        when:
+        def results = new ConcurrentServerRunner(3).run(servers, { SlingServerConfiguration sc ->
+            latch.countDown()
+            // would time out if the servers were done one at a time
+            return latch.await(5, TimeUnit.SECONDS)
+        } as ConcurrentServerRunner.ServerAction<Boolean>)
+
+        then:
+        results.every { it.value }
+    }
+
+
+    def "stops starting new servers once the predicate matches"() {
+        def servers = (1..5).collect { server("server${it}") }
+        def count = new AtomicInteger()
+
+        when:
+        def results = ConcurrentServerRunner.SEQUENTIAL.run(servers, { SlingServerConfiguration sc ->
+            count.incrementAndGet()
+            return sc.name == 'server2' ? Status.UNKNOWN : Status.OK
+        } as ConcurrentServerRunner.ServerAction<Status>, { Status s -> s != Status.OK })
+
+        then:
+        count.get() == 2
+        results.collect { it.value } == [Status.OK, Status.UNKNOWN]
+    }
+
+
+    def "rethrows the exception from a server"() {
+        def servers = (1..4).collect { server("server${it}") }
+
+        when:
+        new ConcurrentServerRunner(2).run(servers, { SlingServerConfiguration sc ->
+            if (sc.name == 'server1') throw new GradleException("bad ${sc.name}")
+            return sc.name
+        } as ConcurrentServerRunner.ServerAction<String>)
+
+        then:
+        def exp = thrown(GradleException)
+        exp.message == 'bad server1'
+    }
+
+
+    def "status aggregation"() {
+        expect:
+        CqPackageHelper.and(first, second) == result
+
+        where:
+        first                                 | second                                | result
+        Status.OK                             | Status.OK                             | Status.OK
+        Status.OK                             | Status.SERVER_TIMEOUT                 | Status.OK
+        Status.OK                             | PackageStatus.NO_PACKAGE              | PackageStatus.NO_PACKAGE
+        Status.OK                             | PackageStatus.UNRESOLVED_DEPENDENCIES | PackageStatus.UNRESOLVED_DEPENDENCIES
+        PackageStatus.UNRESOLVED_DEPENDENCIES | PackageStatus.NO_PACKAGE              | PackageStatus.UNRESOLVED_DEPENDENCIES
+        null                                  | Status.OK                             | Status.OK
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static SlingServerConfiguration server(String serverName) {
+        return new SlingServerConfiguration().with {
+            name = serverName
+            machineName = serverName
+            active = true
+            it
+        }
+    }
+
+}
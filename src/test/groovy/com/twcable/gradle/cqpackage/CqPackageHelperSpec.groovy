@@ -27,6 +27,8 @@ import com.twcable.gradle.sling.osgi.BundleState
 import com.twcable.gradle.sling.osgi.SlingBundleConfiguration
 import com.twcable.gradle.sling.osgi.SlingBundleSupport
 import com.twcable.gradle.sling.osgi.SlingProjectBundleConfiguration
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
 import groovy.json.JsonBuilder
 import groovy.transform.TypeChecked
 import nebula.test.ProjectSpec
@@ -36,12 +38,26 @@ import org.apache.jackrabbit.vault.packaging.VaultPackage
 import org.gradle.api.GradleException
 import org.gradle.api.plugins.JavaPlugin
 import spock.lang.Subject
+import spock.lang.Unroll
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.BooleanSupplier
+import java.util.jar.Attributes
+import java.util.jar.JarFile
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 
 import static com.twcable.gradle.sling.osgi.BundleState.ACTIVE
 import static com.twcable.gradle.sling.osgi.BundleState.FRAGMENT
 import static com.twcable.gradle.sling.osgi.BundleState.INSTALLED
 import static com.twcable.gradle.sling.osgi.BundleState.RESOLVED
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND
 import static java.net.HttpURLConnection.HTTP_OK
 
 @SuppressWarnings(["GroovyAssignabilityCheck", "GroovyAccessibility", "GroovyPointlessBoolean"])
@@ -138,6 +154,62 @@ class CqPackageHelperSpec extends ProjectSpec {
     }
 
 
+    def "a delta is not uninstalled, and creating it does not change the reference"() {
+        given:
+        def deltaTask = createdDelta('a', 'a, changed')
+        cqPackageHelper.deltaPackageTask = deltaTask
+
+        when:
+        cqPackageHelper.uninstallPackage(slingPackageSupportFactory)
+
+        then:
+        0 * slingSupport.doPost(_, _)
+        deltaTask.referencePackage.bytes != deltaTask.packageFile.bytes
+    }
+
+
+    def "installing a delta on every server removes the old deltas and updates the reference"() {
+        given:
+        def deltaTask = createdDelta('a', 'a, changed')
+        cqPackageHelper.deltaPackageTask = deltaTask
+        def deltaName = cqPackageHelper.packageName
+        def oldDeltaName = DeltaPackage.deltaName(project.name, '11111111', '22222222')
+        def json = new JsonBuilder(PackageServerFixture.packageList(
+            PackageFixture.of("twc/test:${project.name}:1.0"),
+            PackageFixture.of("twc/test:${oldDeltaName}:1.0"),
+            PackageFixture.of("twc/test:${deltaName}:1.0")))
+        _ * slingSupport.doGet(_) >> { new HttpResponse(HTTP_OK, json.toString()) }
+
+        when:
+        cqPackageHelper.installPackage(slingPackageSupportFactory)
+
+        then:
+        1 * slingSupport.doPost({ it.toString().contains(deltaName) }, _) >> PackageServerFixture.successfulInstallPackage()
+        1 * slingSupport.doPost({ it.toString().contains(oldDeltaName) }, _) >> PackageServerFixture.successfulDeletePackage()
+        0 * slingSupport.doPost(_, _)
+        deltaTask.referencePackage.bytes == deltaTask.packageFile.bytes
+    }
+
+
+    def "the reference is not updated when the delta could not be installed everywhere"() {
+        given:
+        def deltaTask = createdDelta('a', 'a, changed')
+        deltaTask.removeOldDeltas = false
+        cqPackageHelper.deltaPackageTask = deltaTask
+        def json = new JsonBuilder(PackageServerFixture.packageList(cqPackageHelper.packageName))
+        _ * slingSupport.doGet(_) >> { new HttpResponse(HTTP_OK, json.toString()) }
+        def referenceBytes = deltaTask.referencePackage.bytes
+
+        when:
+        cqPackageHelper.installPackage(slingPackageSupportFactory)
+
+        then:
+        _ * slingSupport.doPost(_, _) >> new HttpResponse(HTTP_CLIENT_TIMEOUT, 'timed out')
+        deltaTask.referencePackage.bytes == referenceBytes
+        deltaTask.referencePackage.bytes != deltaTask.packageFile.bytes
+    }
+
+
     def "upload package, package exists"() {
         System.setProperty('package', projectDir.absolutePath)
 
@@ -312,6 +384,291 @@ class CqPackageHelperSpec extends ProjectSpec {
         resp.body ==~ /Not all bundles .* are ACTIVE.*/
     }
 
+
+    def "validate all bundles: asks about each bundle"() {
+        given:
+        3 * slingSupport.doGet({ URI uri -> uri.path.endsWith('/bundles/a.b.json') }) >>> [
+            okResp(BundleStateIndexSpec.bundlesJson('a.b': RESOLVED)),
+            okResp(BundleStateIndexSpec.bundlesJson('a.b': RESOLVED)),
+            okResp(BundleStateIndexSpec.bundlesJson('a.b': ACTIVE))
+        ]
+        2 * slingSupport.doGet({ URI uri -> uri.path.endsWith('/bundles/c.d.json') }) >>> [
+            new HttpResponse(HTTP_NOT_FOUND, ''),
+            okResp(BundleStateIndexSpec.bundlesJson('c.d': FRAGMENT))
+        ]
+
+        when:
+        def resp = CqPackageHelper.validateAllBundles(['a.b', 'c.d'], slingSupport,
+            PollingPolicy.fixed(10), null, 5, 1)
+
+        then:
+        resp.code == HTTP_OK
+    }
+
+
+    def "validate all bundles: asks about the bundles with the same threads each time"() {
+        given:
+        final threads = Collections.synchronizedSet(new HashSet<Thread>())
+        final states = ['a.b': [RESOLVED, RESOLVED, ACTIVE], 'c.d': [RESOLVED, ACTIVE]]
+        slingSupport.doGet(_) >> { URI uri ->
+            threads.add(Thread.currentThread())
+            final symbolicName = uri.path.tokenize('/')[-1] - '.json'
+            okResp(BundleStateIndexSpec.bundlesJson((symbolicName): states[symbolicName].remove(0)))
+        }
+
+        when:
+        def resp = CqPackageHelper.validateAllBundles(['a.b', 'c.d'], slingSupport,
+            PollingPolicy.fixed(10), null, 5, 2)
+
+        then:
+        resp.code == HTTP_OK
+        states.values().every { it.isEmpty() }
+        (threads - Thread.currentThread()).size() <= 2
+    }
+
+
+    @Unroll
+    def "validate all bundles: there is nothing to wait for without any bundles (perBundlePollingLimit #limit)"() {
+        when:
+        def resp = CqPackageHelper.validateAllBundles([], slingSupport, PollingPolicy.fixed(10), null, limit, 1)
+
+        then:
+        0 * slingSupport.doGet(_)
+        resp.code == HTTP_OK
+
+        where:
+        limit << [0, 5]
+    }
+
+
+    def "validate all bundles: stops polling once cancelled"() {
+        given:
+        int polls = 0
+        2 * slingSupport.doGet(bundleServerConf.bundlesControlUri) >> {
+            polls++
+            bundlesResp(bundleConfiguration, RESOLVED)
+        }
+
+        when:
+        def resp = CqPackageHelper.validateAllBundles([symbolicName], slingSupport,
+            PollingPolicy.fixed(10), null, 0, 1, Long.MAX_VALUE, { polls >= 2 } as BooleanSupplier)
+
+        then:
+        resp.code == HTTP_CLIENT_TIMEOUT
+    }
+
+
+    def "validate all bundles: gives up at the deadline"() {
+        given:
+        1 * slingSupport.doGet(bundleServerConf.bundlesControlUri) >> bundlesResp(bundleConfiguration, RESOLVED)
+
+        when:
+        def resp = CqPackageHelper.validateAllBundles([symbolicName], slingSupport,
+            PollingPolicy.fixed(10), null, 0, 1, System.currentTimeMillis(), { false } as BooleanSupplier)
+
+        then:
+        resp.code == HTTP_INTERNAL_ERROR
+    }
+
+
+    def "validating the bundles asks the servers at the same time"() {
+        given:
+        cqPackageHelper.serverParallelism = 2
+        cqPackageHelper.perBundlePollingLimit = 0
+        symbolicName = 'a.b'
+        def bothAsked = new CountDownLatch(2)
+        def together = new CopyOnWriteArrayList<Boolean>()
+        def servers = (1..2).collect {
+            httpServer { URI uri ->
+                bothAsked.countDown()
+                together << bothAsked.await(5, TimeUnit.SECONDS)
+                return bundlesResp(bundleConfiguration, ACTIVE)
+            }
+        }
+        useServers(servers)
+
+        when:
+        def resp = cqPackageHelper.validateBundles(project.files(bundleJar('a.b')))
+
+        then:
+        resp.code == HTTP_OK
+        together == [true, true]
+
+        cleanup:
+        servers*.stop(0)
+    }
+
+
+    def "a server whose bundles fail to start stops the others from waiting"() {
+        given:
+        cqPackageHelper.serverParallelism = 2
+        cqPackageHelper.perBundlePollingLimit = 0
+        cqPackageHelper.validationTimeoutMs = 10_000
+        symbolicName = 'a.b'
+        def failing = httpServer { URI uri -> new HttpResponse(HTTP_INTERNAL_ERROR, 'broken') }
+        def waiting = httpServer { URI uri -> bundlesResp(bundleConfiguration, RESOLVED) }
+        useServers([failing, waiting])
+        def start = System.currentTimeMillis()
+
+        when:
+        def resp = cqPackageHelper.validateBundles(project.files(bundleJar('a.b')))
+
+        then:
+        resp.code == HTTP_INTERNAL_ERROR
+        System.currentTimeMillis() - start < 5_000
+
+        cleanup:
+        [failing, waiting]*.stop(0)
+    }
+
+
+    def "a server with inactive bundles fails validation every time it is asked"() {
+        given:
+        cqPackageHelper.perBundlePollingLimit = 0
+        cqPackageHelper.validationTimeoutMs = 300
+        symbolicName = 'a.b'
+        def server = httpServer { URI uri -> bundlesResp(bundleConfiguration, RESOLVED) }
+        useServers([server])
+
+        when:
+        def first = cqPackageHelper.validateBundles(project.files(bundleJar('a.b')))
+        def second = cqPackageHelper.validateBundles(project.files(bundleJar('a.b')))
+
+        then:
+        first.code == HTTP_INTERNAL_ERROR
+        second.code == HTTP_INTERNAL_ERROR
+        cqPackageHelper.serverHealth.state('server0') == ServerHealthRegistry.State.CLOSED
+
+        cleanup:
+        server.stop(0)
+    }
+
+
+    def "downloading the package from a server gives up at the deadline"() {
+        given:
+        cqPackageHelper.validationTimeoutMs = 500
+        cqPackageHelper.symbolicNamesCacheSize = 0
+        def json = new JsonBuilder(PackageServerFixture.packageList(project.name)).toString()
+        def stalled = new CountDownLatch(1)
+        def server = httpServer { URI uri ->
+            if (uri.path.endsWith('download.jsp')) stalled.await(10, TimeUnit.SECONDS)
+            return okResp(json)
+        }
+        useServers([server])
+        def start = System.currentTimeMillis()
+
+        when:
+        def resp = cqPackageHelper.validateRemoteBundles()
+
+        then:
+        resp.code == HTTP_INTERNAL_ERROR
+        resp.body.contains('in time')
+        System.currentTimeMillis() - start < 5_000
+
+        cleanup:
+        stalled.countDown()
+        server.stop(0)
+    }
+
+
+    def "a rollout stops after a wave whose bundles could not be checked"() {
+        given:
+        System.setProperty('package', projectDir.absolutePath)
+
+        def secondSupport = Mock(SlingSupport)
+        def secondServer = new SlingServerConfiguration().with {
+            name = 'second'
+            machineName = 'second'
+            active = true
+            it
+        }
+        slingServersConfiguration.servers.put(secondServer.name, secondServer)
+        def factory = new SimpleSlingPackageSupportFactory({ SlingServerConfiguration serverConf ->
+            serverConf.name == 'second' ? secondSupport : slingSupport
+        })
+
+        def json = new JsonBuilder(PackageServerFixture.packageList(project.name)).toString()
+        slingSupport.doGet({ URI uri -> uri.path.contains('/bundles/') }) >> new HttpResponse(HTTP_CLIENT_TIMEOUT, 'timed out')
+        slingSupport.doGet(_) >> okResp(json)
+        slingSupport.doPost(_, _) >> okResp('{"success": true, "msg": "done"}')
+
+        cqPackageHelper.packageManager = Mock(PackageManager) {
+            open(_) >> {
+                return Mock(VaultPackage) {
+                    getId() >> new PackageId("", project.name, "1.2.3")
+                }
+            }
+        }
+
+        when:
+        cqPackageHelper.rolloutPackage(factory, new RolloutPlan(canaryServers: 1, waveSize: 1), ['a.b'])
+
+        then:
+        def exp = thrown(GradleException)
+        exp.message.contains('after wave 1')
+        cqPackageHelper.rolloutWaves*.bundlesActive == [false]
+        0 * secondSupport._
+
+        cleanup:
+        System.clearProperty('package')
+    }
+
+
+    def "uninstall all bundles as a batch"() {
+        given:
+        cqPackageHelper.batchBundleUninstalls = true
+        cqPackageHelper.bundleParallelism = 2
+
+        when:
+        def resp = cqPackageHelper.uninstallAllBundles(['a.b', 'c.d', 'keep.me'], slingSupport, { it != 'keep.me' })
+
+        then:
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/a.b') }, [action: 'stop']) >> okResp('{}')
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/c.d') }, [action: 'stop']) >> okResp('{}')
+
+        then:
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/a.b') }, [action: 'uninstall']) >> okResp('{}')
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/c.d') }, [action: 'uninstall']) >>
+            new HttpResponse(HTTP_NOT_FOUND, '')
+
+        then:
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles') }, [action: 'refreshPackages']) >> okResp('{}')
+
+        and:
+        resp.code == HTTP_OK
+    }
+
+
+    def "a batch is not uninstalled if stopping fails"() {
+        given:
+        cqPackageHelper.batchBundleUninstalls = true
+
+        when:
+        def resp = cqPackageHelper.uninstallAllBundles(['a.b', 'c.d'], slingSupport, { true })
+
+        then:
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/a.b') }, [action: 'stop']) >>
+            new HttpResponse(HTTP_INTERNAL_ERROR, 'failed')
+        1 * slingSupport.doPost({ URI uri -> uri.path.endsWith('/bundles/c.d') }, [action: 'stop']) >> okResp('{}')
+        0 * slingSupport.doPost(_, [action: 'uninstall'])
+        0 * slingSupport.doPost(_, [action: 'refreshPackages'])
+
+        and:
+        resp.code == HTTP_INTERNAL_ERROR
+    }
+
+    def "symbolic names are read from the package as a stream"() {
+        def packageBytes = zipBytes([
+            'META-INF/vault/filter.xml'             : '<workspaceFilter/>'.bytes,
+            'jcr_root/apps/install/bundle.jar'      : jarBytes(true, 'b.c.d.e'),
+            'jcr_root/apps/install/late.jar'        : jarBytes(false, 'f.g.h'),
+            'jcr_root/apps/install/not-a-bundle.jar': jarBytes(true, null)
+        ])
+
+        expect:
+        CqPackageHelper.symbolicNames(new ByteArrayInputStream(packageBytes), 'test.zip') == ['b.c.d.e', 'f.g.h']
+    }
+
     // **********************************************************************
     //
     // HELPER METHODS
@@ -349,6 +706,104 @@ class CqPackageHelperSpec extends ProjectSpec {
     }
 
 
+    /**
+     * An HTTP server on a free local port that answers every request with "respond"
+     */
+    static HttpServer httpServer(Closure<HttpResponse> respond) {
+        def server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext('/') { HttpExchange exchange ->
+            try {
+                def resp = respond(exchange.requestURI)
+                def body = resp.body.getBytes('UTF-8')
+                exchange.sendResponseHeaders(resp.code, body.length)
+                exchange.responseBody.write(body)
+            }
+            finally {
+                exchange.close()
+            }
+        }
+        server.start()
+        return server
+    }
+
+    /**
+     * Replaces the configured servers with ones for "httpServers"
+     */
+    void useServers(List<HttpServer> httpServers) {
+        slingServersConfiguration.servers.clear()
+        httpServers.eachWithIndex { HttpServer httpServer, int i ->
+            def serverConf = new SlingServerConfiguration().with {
+                name = "server${i}"
+                machineName = 'localhost'
+                port = httpServer.address.port
+                maxWaitMs = 10_000
+                retryWaitMs = 10
+                active = true
+                it
+            }
+            slingServersConfiguration.servers.put(serverConf.name, serverConf)
+        }
+    }
+
+
+    File bundleJar(String symbolicName) {
+        def file = new File(projectDir, "${symbolicName}.jar")
+        file.bytes = jarBytes(true, symbolicName)
+        return file
+    }
+
+
+    /**
+     * A delta of the project's package that has been created against a reference, where "referenceText" and
+     * "packageText" are the content of a file in them
+     */
+    CreateDeltaPackageTask createdDelta(String referenceText, String packageText) {
+        def deltaTask = project.tasks.create('createDeltaPackage', CreateDeltaPackageTask)
+        def projectPackage = { String text ->
+            zipBytes(['META-INF/vault/properties.xml': DeltaPackageSpec.propertiesXml(project.name),
+                      'META-INF/vault/filter.xml'    : '<workspaceFilter version="1.0"/>'.bytes,
+                      'jcr_root/apps/site/a.jsp'     : text.bytes])
+        }
+        deltaTask.packageFile = new File(projectDir, 'package.zip')
+        deltaTask.packageFile.bytes = projectPackage(packageText)
+        deltaTask.referencePackage = new File(projectDir, 'reference.zip')
+        deltaTask.referencePackage.bytes = projectPackage(referenceText)
+        deltaTask.createDelta()
+        return deltaTask
+    }
+
+
+    static byte[] zipBytes(Map<String, byte[]> entries) {
+        def out = new ByteArrayOutputStream()
+        new ZipOutputStream(out).withCloseable { ZipOutputStream zip ->
+            entries.each { name, content ->
+                zip.putNextEntry(new ZipEntry(name))
+                zip.write(content)
+                zip.closeEntry()
+            }
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * A jar with a manifest having "symbolicName" (if not null), either at the start of the jar (as
+     * {@link java.util.jar.JarOutputStream} writes it) or after the classes
+     */
+    static byte[] jarBytes(boolean manifestFirst, String symbolicName) {
+        def manifest = new Manifest()
+        manifest.mainAttributes.put(Attributes.Name.MANIFEST_VERSION, '1.0')
+        if (symbolicName != null) manifest.mainAttributes.putValue('Bundle-SymbolicName', symbolicName)
+        def manifestOut = new ByteArrayOutputStream()
+        manifest.write(manifestOut)
+
+        def classes = ['a/b/C.class': 'not really a class'.bytes]
+        return manifestFirst ?
+            zipBytes([(JarFile.MANIFEST_NAME): manifestOut.toByteArray()] + classes) :
+            zipBytes(classes + [(JarFile.MANIFEST_NAME): manifestOut.toByteArray()])
+    }
+
+
     SlingSupport mockSlingSupport() {
         return Mock(SlingSupport) {
             getServerConf() >> bundleServerConf.serverConf
@@ -61,8 +61,8 @@ class CqPackagePluginSpec extends PluginProjectSpec {
 
         where:
         taskName           | mustRunAfterTaskNames
-        'uninstallPackage' | ['uninstallBundles']
-        'uploadPackage'    | ['createPackage', 'uninstallPackage']
+        'uninstallPackage' | ['uninstallBundles', 'createPackage']
+        'uploadPackage'    | ['createPackage', 'uninstallPackage', 'createDeltaPackage']
         'installPackage'   | ['uploadPackage', 'uninstallPackage']
     }
 
@@ -190,6 +190,110 @@ class CreatePackageTaskSpec extends ProjectSpec {
         '/my/app/root/'    | '/my/app/root'
     }
 
+
+    def "only the project properties that the package metadata refers to are expanded"() {
+        given:
+        def createPackage = project.createPackage as CreatePackageTask
+        project.ext.unrelated = 'something'
+        def propertiesXml = new File(contentDir(project), "META-INF/vault/properties.xml")
+        propertiesXml.parentFile.mkdirs()
+        propertiesXml.text = '<entry key="version">${version}</entry><entry key="name">$name</entry>'
+
+        expect:
+        createPackage.expandProperties == [name: project.name, version: '2.3.4']
+        createPackage.expandPropertyValues == [name: project.name, version: '2.3.4']
+    }
+
+
+    def "the values dereferenced from a project in the package metadata are inputs"() {
+        given:
+        def createPackage = project.createPackage as CreatePackageTask
+        project.ext.buildNumber = '42'
+        def propertiesXml = new File(contentDir(project), "META-INF/vault/properties.xml")
+        propertiesXml.parentFile.mkdirs()
+        propertiesXml.text = '<entry key="version">${project.version}</entry>' +
+            '<entry key="build">${rootProject.findProperty("buildNumber")}</entry>'
+
+        when:
+        def values = createPackage.expandPropertyValues
+
+        then:
+        values['project.version'] == '2.3.4'
+        values['rootProject.buildNumber'] == '42'
+        !values.containsKey('project')
+        !values.containsKey('rootProject')
+
+        when:
+        project.version = '2.3.5'
+
+        then:
+        createPackage.expandPropertyValues['project.version'] == '2.3.5'
+    }
+
+
+    @Unroll
+    def "template '#template' refers to property paths #paths"() {
+        expect:
+        CreatePackageTask.templatePropertyPaths(template) == paths as Set
+
+        where:
+        template                                      | paths
+        '$version and ${group}'                       | ['version', 'group']
+        '${project.version} $rootProject.name.'       | ['project.version', 'rootProject.name']
+        '${ project . findProperty("buildNumber") }'  | ['project.findProperty', 'buildNumber']
+    }
+
+
+    @Unroll
+    def "template '#template' refers to #names"() {
+        expect:
+        CreatePackageTask.templateReferences(template) == names as Set
+
+        where:
+        template                                    | names
+        'plain text'                                | []
+        '$version and ${group}'                     | ['version', 'group']
+        '${version.toUpperCase()}'                  | ['version', 'toUpperCase']
+        '<%= description %> <% if (a) { %>b<% } %>' | ['description', 'if', 'a']
+    }
+
+
+    def "the entries keep the timestamps of their files by default"() {
+        given:
+        def createPackage = project.createPackage as CreatePackageTask
+        createPackage.addNoBundles()
+        def afile = new File(contentDir(project), "afile.txt")
+        afile.lastModified = 1_500_000_000_000L
+
+        when:
+        execute(createPackage)
+        def zipFile = new ZipFile(createPackage.archivePath)
+        def time = zipFile.getEntry("afile.txt").time
+        zipFile.close()
+
+        then:
+        createPackage.preserveFileTimestamps
+        time == afile.lastModified()
+    }
+
+
+    def "building the package again gives the same bytes without the file timestamps"() {
+        given:
+        def createPackage = project.createPackage as CreatePackageTask
+        createPackage.addNoBundles()
+        createPackage.preserveFileTimestamps = false
+
+        when:
+        execute(createPackage)
+        def firstBytes = createPackage.archivePath.bytes
+        new File(contentDir(project), "afile.txt").lastModified = System.currentTimeMillis() - 60000
+        createPackage.archivePath.delete()
+        execute(createPackage)
+
+        then:
+        createPackage.archivePath.bytes == firstBytes
+    }
+
     // **********************************************************************
     //
     // HELPER METHODS
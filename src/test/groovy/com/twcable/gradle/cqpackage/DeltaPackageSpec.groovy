@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.lang.Unroll
+
+import java.util.zip.ZipFile
+
+@Subject(DeltaPackage)
+class DeltaPackageSpec extends Specification {
+    File directory = File.createTempDir()
+
+
+    def cleanup() {
+        directory.deleteDir()
+    }
+
+
+    def "only changed and added content is in the delta"() {
+        given:
+        def reference = packageFile('reference.zip', [
+            'jcr_root/apps/site/a.jsp'              : 'a',
+            'jcr_root/apps/site/b.jsp'              : 'b',
+            'jcr_root/apps/site/old.jsp'            : 'old',
+            'jcr_root/apps/site/comp/.content.xml'  : docView(''),
+            'jcr_root/apps/install/bundle-1.0.jar'  : 'bundle',
+        ])
+        def pkg = packageFile('package.zip', [
+            'jcr_root/apps/site/a.jsp'              : 'a',
+            'jcr_root/apps/site/b.jsp'              : 'b, changed',
+            'jcr_root/apps/site/c.jsp'              : 'c',
+            'jcr_root/apps/site/comp/.content.xml'  : docView('', 'jcr:title="new"'),
+            'jcr_root/apps/install/bundle-1.0.jar'  : 'bundle',
+        ])
+        def deltaFile = new File(directory, 'delta.zip')
+
+        when:
+        def delta = DeltaPackage.create(pkg, reference, deltaFile)
+
+        then:
+        delta.changedEntries == ['jcr_root/apps/site/b.jsp', 'jcr_root/apps/site/comp/.content.xml']
+        delta.addedEntries == ['jcr_root/apps/site/c.jsp']
+        delta.removedEntries == ['jcr_root/apps/site/old.jsp']
+        delta.deletedPaths == ['/apps/site/old.jsp']
+
+        def entries = zipEntries(deltaFile)
+        entries.keySet() == ['META-INF/vault/properties.xml', 'META-INF/vault/filter.xml',
+                             'jcr_root/apps/site/b.jsp', 'jcr_root/apps/site/c.jsp',
+                             'jcr_root/apps/site/comp/.content.xml'] as Set
+
+        def filter = new XmlSlurper().parseText(entries['META-INF/vault/filter.xml'])
+        filter.filter*.@root*.text() == ['/apps/site/b.jsp', '/apps/site/c.jsp', '/apps/site/comp', '/apps/site/old.jsp']
+        filter.filter.find { it.@root.text() == '/apps/site/comp' }.include*.@pattern*.text() ==
+            ['/apps/site/comp']
+
+        def properties = new Properties()
+        properties.loadFromXML(new ByteArrayInputStream(entries['META-INF/vault/properties.xml'].getBytes('UTF-8')))
+        properties.getProperty('name') == DeltaPackage.deltaName('testpackage', PackageDigest.digest(reference), PackageDigest.digest(pkg))
+        DeltaPackage.packageName(deltaFile) == properties.getProperty('name')
+    }
+
+
+    def "the same package gives a different delta against a different reference"() {
+        given:
+        def pkg = packageFile('package.zip', ['jcr_root/apps/site/a.jsp': 'a, changed again'])
+        def firstReference = packageFile('first.zip', ['jcr_root/apps/site/a.jsp': 'a'])
+        def secondReference = packageFile('second.zip', ['jcr_root/apps/site/a.jsp': 'a, changed'])
+
+        when:
+        DeltaPackage.create(pkg, firstReference, new File(directory, 'first-delta.zip'))
+        DeltaPackage.create(pkg, secondReference, new File(directory, 'second-delta.zip'))
+        def firstName = DeltaPackage.packageName(new File(directory, 'first-delta.zip'))
+        def secondName = DeltaPackage.packageName(new File(directory, 'second-delta.zip'))
+
+        then:
+        firstName != secondName
+        firstName.startsWith(DeltaPackage.deltaPrefix('testpackage'))
+        secondName.startsWith(DeltaPackage.deltaPrefix('testpackage'))
+    }
+
+
+    def "a changed .content.xml covers the nodes it has inline"() {
+        given:
+        def reference = packageFile('reference.zip', [
+            'jcr_root/apps/site/comp/_cq_dialog/.content.xml'   : docView('<content><items><title/></items></content>'),
+            'jcr_root/apps/site/comp/comp.html'                 : 'html',
+        ])
+        def pkg = packageFile('package.zip', [
+            'jcr_root/apps/site/comp/_cq_dialog/.content.xml'   : docView('<content><items><title/><_x0031_st/></items></content>'),
+            'jcr_root/apps/site/comp/comp.html'                 : 'html',
+        ])
+        def deltaFile = new File(directory, 'delta.zip')
+
+        when:
+        DeltaPackage.create(pkg, reference, deltaFile)
+
+        then:
+        def entries = zipEntries(deltaFile)
+        entries.keySet() == ['META-INF/vault/properties.xml', 'META-INF/vault/filter.xml',
+                             'jcr_root/apps/site/comp/_cq_dialog/.content.xml'] as Set
+
+        def filter = new XmlSlurper().parseText(entries['META-INF/vault/filter.xml'])
+        filter.filter*.@root*.text() == ['/apps/site/comp/cq:dialog']
+        filter.filter.include*.@pattern*.text() ==
+            ['/apps/site/comp/cq:dialog', '/apps/site/comp/cq:dialog/content(/.*)?']
+    }
+
+
+    def "what is under a changed .content.xml's inline nodes is in the delta even if it did not change"() {
+        given:
+        def asset = [
+            'jcr_root/content/dam/site/a.jpg/_jcr_content/renditions/original'                  : 'jpeg',
+            'jcr_root/content/dam/site/a.jpg/_jcr_content/renditions/original.dir/.content.xml' : docView(''),
+            'jcr_root/content/dam/site/b.jpg/.content.xml'                                       : docView(''),
+        ]
+        def reference = packageFile('reference.zip', asset + [
+            'jcr_root/content/dam/site/a.jpg/.content.xml': docView('<jcr:content><metadata/><renditions/></jcr:content>'),
+        ])
+        def pkg = packageFile('package.zip', asset + [
+            'jcr_root/content/dam/site/a.jpg/.content.xml': docView('<jcr:content><metadata dc:title="A"/><renditions/></jcr:content>'),
+        ])
+        def deltaFile = new File(directory, 'delta.zip')
+
+        when:
+        def delta = DeltaPackage.create(pkg, reference, deltaFile)
+
+        then:
+        delta.changedEntries == ['jcr_root/content/dam/site/a.jpg/.content.xml']
+
+        def entries = zipEntries(deltaFile)
+        entries.keySet() == ['META-INF/vault/properties.xml', 'META-INF/vault/filter.xml',
+                             'jcr_root/content/dam/site/a.jpg/.content.xml',
+                             'jcr_root/content/dam/site/a.jpg/_jcr_content/renditions/original',
+                             'jcr_root/content/dam/site/a.jpg/_jcr_content/renditions/original.dir/.content.xml'] as Set
+
+        def filter = new XmlSlurper().parseText(entries['META-INF/vault/filter.xml'])
+        filter.filter*.@root*.text() == ['/content/dam/site/a.jpg']
+        filter.filter.include*.@pattern*.text() ==
+            ['/content/dam/site/a\\.jpg', '/content/dam/site/a\\.jpg/jcr:content(/.*)?']
+    }
+
+
+    def "without a reference the whole package is used"() {
+        given:
+        def pkg = packageFile('package.zip', ['jcr_root/apps/site/a.jsp': 'a'])
+        def deltaFile = new File(directory, 'delta.zip')
+
+        when:
+        def delta = DeltaPackage.create(pkg, new File(directory, 'missing.zip'), deltaFile)
+
+        then:
+        delta.full
+        deltaFile.bytes == pkg.bytes
+    }
+
+
+    def "a folder is not removed while there is still content in it"() {
+        given:
+        def reference = packageFile('reference.zip', [
+            'jcr_root/apps/site/.content.xml'   : '<jcr:root/>',
+            'jcr_root/apps/site/a.jsp'          : 'a',
+            'jcr_root/apps/gone/.content.xml'   : '<jcr:root/>',
+        ])
+        def pkg = packageFile('package.zip', ['jcr_root/apps/site/a.jsp': 'a'])
+
+        when:
+        def delta = DeltaPackage.create(pkg, reference, new File(directory, 'delta.zip'))
+
+        then:
+        delta.deletedPaths == ['/apps/gone']
+    }
+
+
+    @Unroll
+    def "repository path for #entryName"() {
+        expect:
+        DeltaPackage.jcrPath(entryName) == jcrPath
+
+        where:
+        entryName                                       | jcrPath
+        'jcr_root/apps/site/a.jsp'                      | '/apps/site/a.jsp'
+        'jcr_root/apps/site/.content.xml'               | '/apps/site'
+        'jcr_root/content/page/_jcr_content/.content.xml' | '/content/page/jcr:content'
+        'jcr_root/apps/site/a.jsp.dir/.content.xml'     | '/apps/site/a.jsp'
+        'jcr_root/apps/__private/a.jsp'                 | '/apps/_private/a.jsp'
+        'jcr_root/apps/a%3ab.txt'                       | '/apps/a:b.txt'
+        'jcr_root/.content.xml'                         | '/'
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    File packageFile(String name, Map<String, String> content) {
+        Map<String, byte[]> entries = [
+            'META-INF/vault/properties.xml'             : propertiesXml('testpackage'),
+            'META-INF/vault/filter.xml'                 : '<workspaceFilter version="1.0"/>'.bytes,
+            'META-INF/vault/definition/.content.xml'    : '<jcr:root/>'.bytes,
+        ]
+        content.each { path, text -> entries[path] = text.bytes }
+
+        def file = new File(directory, name)
+        file.bytes = CqPackageHelperSpec.zipBytes(entries)
+        return file
+    }
+
+
+    static String docView(String inlineNodes, String properties = '') {
+        return '<?xml version="1.0" encoding="UTF-8"?>' +
+            '<jcr:root xmlns:jcr="http://www.jcp.org/jcr/1.0" xmlns:dc="http://purl.org/dc/elements/1.1/" ' +
+            "jcr:primaryType=\"nt:unstructured\" ${properties}>${inlineNodes}</jcr:root>"
+    }
+
+
+    static byte[] propertiesXml(String packageName) {
+        def properties = new Properties()
+        properties.setProperty('name', packageName)
+        properties.setProperty('version', '1.0')
+        def out = new ByteArrayOutputStream()
+        properties.storeToXML(out, null, 'UTF-8')
+        return out.toByteArray()
+    }
+
+
+    static Map<String, String> zipEntries(File file) {
+        def zip = new ZipFile(file)
+        try {
+            return zip.entries().toList().collectEntries { [it.name, zip.getInputStream(it).getText('UTF-8')] }
+        }
+        finally {
+            zip.close()
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.json.JsonSlurper
+import org.gradle.testfixtures.ProjectBuilder
+import spock.lang.Specification
+import spock.lang.Subject
+
+@Subject(DeploymentReport)
+class DeploymentReportSpec extends Specification {
+    File directory = File.createTempDir()
+
+
+    def cleanup() {
+        directory.deleteDir()
+    }
+
+
+    def "phases are totalled by server"() {
+        def pollStats = [
+            new PollStats('list packages', 'author', 1, 0, 20, true),
+            new PollStats('install', 'author', 3, 200, 900, true),
+            new PollStats('list packages', 'author', 2, 100, 150, true),
+            new PollStats('bundles active', 'publisher', 5, 4000, 5000, false),
+        ]
+        def requests = [author   : [requests: 6L, timeouts: 0L, retries: 1L, bytesSent: 100L, bytesReceived: 2000L, requestMs: 300L],
+                        publisher: [requests: 0L, timeouts: 0L, retries: 0L, bytesSent: 0L, bytesReceived: 0L, requestMs: 0L]]
+
+        when:
+        def report = DeploymentReport.report(':installPackage', 0, 6000, true, pollStats, requests, [])
+
+        then:
+        report.task == ':installPackage'
+        report.servers.author.phases['list packages'] ==
+            [count: 2L, elapsedMs: 170L, polls: 3L, waitedMs: 100L, gaveUp: 0L]
+        report.servers.author.requests.retries == 1L
+        report.servers.author.requests.bytesReceived == 2000L
+        report.servers.publisher.phases['bundles active'].gaveUp == 1L
+        !report.servers.publisher.containsKey('requests')
+    }
+
+
+    def "percentiles are kept across runs"() {
+        when:
+        (1..10).each { int run ->
+            def pollStats = [new PollStats('install', 'author', 1, 0, run * 100, true)]
+            DeploymentReport.write(directory, 'installPackage', new File(directory, 'history/installPackage-history.json'),
+                DeploymentReport.report(':installPackage', 0, run * 1000, true, pollStats, [:], []))
+        }
+        def report = new JsonSlurper().parse(new File(directory, 'installPackage.json')) as Map
+
+        then:
+        report.elapsedMs == 10_000
+        report.percentiles.runs == 10
+        report.percentiles.elapsedMs == [p50: 5000, p90: 9000, p99: 10_000]
+        report.percentiles.phases['author/install'] == [p50: 500, p90: 900, p99: 1000]
+    }
+
+
+    def "history is limited"() {
+        when:
+        (DeploymentReport.MAX_HISTORY + 5).times {
+            DeploymentReport.write(directory, 'uploadPackage', new File(directory, 'uploadPackage-history.json'),
+                DeploymentReport.report(':uploadPackage', 0, 10, true, [], [:], []))
+        }
+
+        then:
+        (new JsonSlurper().parse(new File(directory, 'uploadPackage-history.json')) as List).size() == DeploymentReport.MAX_HISTORY
+    }
+
+
+    def "the history of a task is named by its path"() {
+        expect:
+        DeploymentReport.historyFile(directory, taskPath) == new File(directory, fileName)
+
+        where:
+        taskPath                  | fileName
+        ':installPackage'         | 'installPackage-history.json'
+        ':sub:proj:uploadPackage' | 'sub-proj-uploadPackage-history.json'
+    }
+
+
+    def "the history is kept outside of the build directory unless it is set"() {
+        given:
+        def project = ProjectBuilder.builder().withProjectDir(directory).build()
+        def helper = new CqPackageHelper(project)
+        def defaultDir = helper.deploymentHistoryDir
+
+        when:
+        helper.deploymentHistoryDir = new File(directory, 'ci-cache')
+
+        then:
+        !defaultDir.toPath().startsWith(project.buildDir.toPath())
+        helper.deploymentHistoryDir == new File(directory, 'ci-cache')
+    }
+
+}
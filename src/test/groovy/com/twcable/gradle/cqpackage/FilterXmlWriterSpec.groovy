@@ -228,6 +228,56 @@ class FilterXmlWriterSpec extends Specification {
     }
 
 
+    def "writes the XML the same way XmlNodePrinter does"() {
+        given:
+        def before = '''\
+            <?xml version="1.0" encoding="UTF-8"?>
+            <!-- the filters -->
+            <workspaceFilter version="1.0">
+                <filter root="/apps/stuff"><include pattern="/apps/stuff/.*" /></filter>
+                <filter root="/etc/a&amp;b"></filter>
+            </workspaceFilter>
+            '''.stripIndent()
+        def writer = new StringWriter()
+
+        when:
+        new FilterXmlWriter(new StringReader(before), FilterDefinition.create([new File('a.jar'), new File('b.jar')]),
+            '/apps/install', writer).run()
+
+        then:
+        writer.toString() == '''\
+            <workspaceFilter version="1.0">
+              <filter root="/apps/stuff">
+                <include pattern="/apps/stuff/.*"/>
+              </filter>
+              <filter root="/etc/a&amp;b"/>
+              <filter root="/apps/install/a.jar"/>
+              <filter root="/apps/install/b.jar"/>
+            </workspaceFilter>
+            '''.stripIndent()
+    }
+
+
+    def "can give the bundles a single filter"() {
+        given:
+        def writer = new StringWriter()
+
+        when:
+        new FilterXmlWriter(new StringReader('<workspaceFilter version="1.0"><filter root="/apps/stuff"/></workspaceFilter>'),
+            FilterDefinition.create([new File('a.jar'), new File('b.jar')]), '/apps/install', writer, true).run()
+
+        then:
+        writer.toString() == '''\
+            <workspaceFilter version="1.0">
+              <filter root="/apps/stuff"/>
+              <filter root="/apps/install">
+                <include pattern="/apps/install/(?:a\\.jar|b\\.jar)(/.*)?"/>
+              </filter>
+            </workspaceFilter>
+            '''.stripIndent()
+    }
+
+
     static Project simpleProject() {
         Project rootProject = createCqPackageProject('2.3.4', '/apps/install')
         rootProject.verifyBundles.enabled = false
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import org.gradle.testfixtures.ProjectBuilder
+import spock.lang.Specification
+import spock.lang.Subject
+
+@Subject(HttpClientPool)
+class HttpClientPoolSpec extends Specification {
+    HttpClientPool pool = new HttpClientPool()
+
+
+    def cleanup() {
+        pool.close()
+    }
+
+
+    def "one pool for the whole build"() {
+        def rootProject = ProjectBuilder.builder().build()
+        def subProject = ProjectBuilder.builder().withParent(rootProject).build()
+
+        expect:
+        HttpClientPool.forProject(subProject).is(HttpClientPool.forProject(rootProject))
+        rootProject.extensions.getByName(HttpClientPool.NAME).is(HttpClientPool.forProject(rootProject))
+    }
+
+
+    def "clients are shared by server"() {
+        expect:
+        pool.clientFor(server("author", 4502)).is(pool.clientFor(server("author-again", 4502)))
+        !pool.clientFor(server("author", 4502)).is(pool.clientFor(server("publisher", 4503)))
+    }
+
+
+    def "creates pooled SlingSupport"() {
+        def serverConf = server("author", 4502)
+
+        when:
+        def slingSupport = pool.create(serverConf)
+
+        then:
+        slingSupport instanceof PooledSlingSupport
+        slingSupport.serverConf.is(serverConf)
+    }
+
+
+    def "can not be used once closed"() {
+        when:
+        pool.close()
+        pool.clientFor(server("author", 4502))
+
+        then:
+        thrown IllegalStateException
+    }
+
+    def "counts what goes over the network to each server"() {
+        given:
+        def response = 'HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok'
+        def serverSocket = new ServerSocket(0)
+        def serverThread = Thread.start {
+            serverSocket.accept().withCloseable { Socket socket ->
+                def reader = new BufferedReader(new InputStreamReader(socket.inputStream, 'US-ASCII'))
+                while (reader.readLine()) {}
+                socket.outputStream.write(response.getBytes('US-ASCII'))
+                socket.outputStream.flush()
+            }
+        }
+        def serverConf = server("author", serverSocket.localPort)
+
+        when:
+        def resp = pool.create(serverConf).doGet(new URI("http://localhost:${serverSocket.localPort}/x"))
+        serverThread.join(5000)
+        def stats = pool.requestStats(serverConf)
+
+        then:
+        resp.body == 'ok'
+        stats.requests == 1
+        stats.bytesReceived == response.length()
+        stats.bytesSent > 'GET /x HTTP/1.1\r\n\r\n'.length()
+
+        cleanup:
+        serverSocket.close()
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static SlingServerConfiguration server(String serverName, int serverPort) {
+        return new SlingServerConfiguration().with {
+            name = serverName
+            machineName = 'localhost'
+            port = serverPort
+            active = true
+            it
+        }
+    }
+
+}
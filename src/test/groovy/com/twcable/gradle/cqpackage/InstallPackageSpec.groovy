@@ -15,10 +15,13 @@
  */
 package com.twcable.gradle.cqpackage
 
+import com.twcable.gradle.http.HttpResponse
+import org.apache.jackrabbit.vault.packaging.PackageId
 import spock.lang.Unroll
 
 import static com.twcable.gradle.cqpackage.PackageStatus.NO_PACKAGE
 import static com.twcable.gradle.cqpackage.PackageStatus.OK
+import static java.net.HttpURLConnection.HTTP_OK
 
 @SuppressWarnings("GroovyAssignabilityCheck")
 class InstallPackageSpec extends AbstractPackageCommandSpec {
@@ -39,4 +42,25 @@ class InstallPackageSpec extends AbstractPackageCommandSpec {
         "froble"         | null    | "no package"        | NO_PACKAGE
     }
 
+
+    def "the package in its own group is installed when another group has one with the same name"() {
+        given:
+        slingSupport.doGet(_) >> new HttpResponse(HTTP_OK, '{"results":[' +
+            '{"name":"fakepackage","group":"other","version":"2.0","path":"/etc/packages/other/fakepackage-2.0.zip"},' +
+            '{"name":"fakepackage","group":"testing","version":"1.0","path":"/etc/packages/testing/fakepackage-1.0.zip"}]}')
+        URI postedUri = null
+        slingSupport.doPost(_, _) >> { URI uri, Map parts ->
+            postedUri = uri
+            new HttpResponse(HTTP_OK, '{"success": true, "msg": "Package installed"}')
+        }
+
+        when:
+        def retStatus = InstallPackage.install(new PackageId('testing', 'fakepackage', '1.0'),
+            slingPackageSupportFactory.create(slingServerConfiguration))
+
+        then:
+        retStatus == OK
+        postedUri.path.endsWith('/etc/packages/testing/fakepackage-1.0.zip')
+    }
+
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.http.HttpResponse
+import groovy.json.JsonBuilder
+import org.apache.jackrabbit.vault.packaging.PackageId
+
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
+import static java.net.HttpURLConnection.HTTP_OK
+
+@SuppressWarnings("GroovyAssignabilityCheck")
+class PackageListCacheSpec extends AbstractPackageCommandSpec {
+    PackageListCache cache = new PackageListCache()
+
+
+    def "listing is only retrieved once"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        1 * slingSupport.doGet(_) >> { new HttpResponse(HTTP_OK, json.toString()) }
+
+        when:
+        def first = ListPackages.listPackages(packageSupport())
+        def second = ListPackages.listPackages(packageSupport())
+
+        then:
+        first.value.collect { it.name } == ['cq-content', 'fakepackage']
+        second.value.collect { it.name } == ['cq-content', 'fakepackage']
+    }
+
+
+    def "failures are not cached"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        2 * slingSupport.doGet(_) >>> [new HttpResponse(HTTP_CLIENT_TIMEOUT, ""), new HttpResponse(HTTP_OK, json.toString())]
+
+        when:
+        def first = ListPackages.listPackages(packageSupport())
+        def second = ListPackages.listPackages(packageSupport())
+
+        then:
+        first.error == Status.SERVER_TIMEOUT
+        second.succeeded()
+    }
+
+
+    def "install invalidates the listing"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        2 * slingSupport.doGet(_) >> { new HttpResponse(HTTP_OK, json.toString()) }
+        1 * slingSupport.doPost(_, _) >> PackageServerFixture.successfulInstallPackage()
+
+        when:
+        def status = InstallPackage.install("fakepackage", packageSupport())
+        ListPackages.listPackages(packageSupport())
+
+        then:
+        status == Status.OK
+    }
+
+
+    def "delete removes the package from the listing"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        1 * slingSupport.doGet(_) >> { new HttpResponse(HTTP_OK, json.toString()) }
+        1 * slingSupport.doPost(_, _) >> PackageServerFixture.successfulDeletePackage()
+
+        when:
+        DeletePackage.delete("fakepackage", packageSupport())
+        def packageProps = RuntimePackageProperties.packageProperties(packageSupport(), PackageId.fromString("fakepackage"))
+
+        then:
+        packageProps.error == PackageStatus.NO_PACKAGE
+    }
+
+
+    def "looking up a package only asks for that package"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        1 * slingSupport.doGet({ URI uri -> uri.query == 'q=fakepackage' }) >> { new HttpResponse(HTTP_OK, json.toString()) }
+
+        when:
+        def packageProps = RuntimePackageProperties.packageProperties(packageSupport(), PackageId.fromString("fakepackage"))
+
+        then:
+        packageProps.value.name == 'fakepackage'
+    }
+
+
+    def "install invalidates the narrowed listings too"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        2 * slingSupport.doGet({ URI uri -> uri.query == 'q=fakepackage' }) >> { new HttpResponse(HTTP_OK, json.toString()) }
+        1 * slingSupport.doPost(_, _) >> PackageServerFixture.successfulInstallPackage()
+
+        when:
+        InstallPackage.install("fakepackage", packageSupport())
+        def packageProps = RuntimePackageProperties.packageProperties(packageSupport(), PackageId.fromString("fakepackage"))
+
+        then:
+        packageProps.succeeded()
+    }
+
+
+    def "looking up a package asks for every package unless narrowing is turned on"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        1 * slingSupport.doGet({ URI uri -> uri.query == null }) >> { new HttpResponse(HTTP_OK, json.toString()) }
+
+        when:
+        def packageSupport = slingPackageSupportFactory.create(slingServerConfiguration)
+        def packageProps = RuntimePackageProperties.packageProperties(packageSupport, PackageId.fromString("fakepackage"))
+
+        then:
+        !packageSupport.narrowPackageListQueries
+        packageProps.value.name == 'fakepackage'
+    }
+
+
+    def "a cached listing that only has the ids is retrieved again for a package's properties"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage"))
+        2 * slingSupport.doGet({ URI uri -> uri.query == null }) >> { new HttpResponse(HTTP_OK, json.toString()) }
+
+        when:
+        def packageSupport = packageSupport()
+        packageSupport.narrowPackageListQueries = false
+        def listing = ListPackages.packageListing(packageSupport).value
+        def packageProps = RuntimePackageProperties.packageProperties(packageSupport, PackageId.fromString("fakepackage"))
+        def again = RuntimePackageProperties.packageProperties(packageSupport, PackageId.fromString("fakepackage"))
+
+        then:
+        listing.packageIds.size() == 2
+        !listing.hasPropertiesOf('fakepackage')
+        packageProps.value.name == 'fakepackage'
+        again.value.is(packageProps.value)
+    }
+
+
+    SlingPackageSupport packageSupport() {
+        def packageSupport = slingPackageSupportFactory.create(slingServerConfiguration)
+        packageSupport.packageListCache = cache
+        packageSupport.narrowPackageListQueries = true
+        return packageSupport
+    }
+
+}
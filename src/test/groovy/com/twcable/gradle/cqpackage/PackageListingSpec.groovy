@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import groovy.json.JsonBuilder
+import org.apache.jackrabbit.vault.packaging.PackageId
+import spock.lang.Specification
+import spock.lang.Subject
+
+@Subject(PackageListing)
+class PackageListingSpec extends Specification {
+
+    def "scans the package ids without building the properties"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage")).toString()
+
+        when:
+        def listing = PackageListing.parse(json)
+
+        then:
+        listing.size() == 2
+        listing.packageIds == [PackageId.fromString("day/cq550/product:cq-content:5.5.0.20120220"),
+                               PackageId.fromString("twc/test:fakepackage:1.0.1-SNAPSHOT")]
+        listing.entries.every { it.packageProperties == null }
+        !listing.hasPropertiesOf('fakepackage')
+    }
+
+
+    def "only keeps the properties of the packages asked for"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage")).toString()
+
+        when:
+        def listing = PackageListing.parse(json, ['fakepackage'] as Set)
+        def props = listing.find(PackageId.fromString("twc/test:fakepackage:1.0.1-SNAPSHOT"))
+
+        then:
+        props.name == 'fakepackage'
+        props.id.group == 'twc/test'
+        listing.entries[0].packageProperties == null
+        listing.entries[1].packageProperties.is(props)
+        listing.hasPropertiesOf('fakepackage')
+        !listing.hasPropertiesOf('cq-content')
+    }
+
+
+    def "the properties of a package that were not kept are not made up"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage")).toString()
+        def listing = PackageListing.parse(json, ['fakepackage'] as Set)
+
+        when:
+        listing.find(PackageId.fromString("day/cq550/product:cq-content"))
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+
+    def "dependencies are parsed once into typed fields"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage")).toString()
+
+        when:
+        def props = PackageListing.parse(json, null).find(PackageId.fromString("day/cq550/product:cq-content:5.5.0"))
+
+        then:
+        props.dependencies.collect { it.toString() } == ["froblez", "day/cq550/product:groblez"]
+        props.resolvedDependencies.collect { it.toString() } == ["day/cq550/product:groblez"]
+        props.hasUnresolvedDependencies()
+        props.dependencies.is(props.dependencies)
+    }
+
+
+    def "skips nested values and handles escapes"() {
+        def json = '''{
+            "filter": {"results": [{"name": "not-a-package"}]},
+            "results": [
+                {"filter": [{"root": "/a\\"b]}", "rules": []}], "name": "pkg\\u0041", "group": "my/group",
+                 "screenshots": [], "size": 12, "hasSnapshot": false, "version": null},
+                {"name": "other", "group": "g", "version": "1.0"}
+            ],
+            "total": 2
+        }'''
+
+        when:
+        def listing = PackageListing.parse(json, null)
+
+        then:
+        listing.entries.collect { it.name } == ['pkgA', 'other']
+        listing.entries[0].group == 'my/group'
+        listing.entries[0].version == ''
+        listing.find(PackageId.fromString("my/group:pkgA")).getProperty('filter') == '[{"root":"/a\\"b]}","rules":[]}]'
+    }
+
+
+    def "lookups by id, group and latest version"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList(
+            PackageFixture.of("twc/test:fakepackage:1.0.2"),
+            PackageFixture.of("twc/test:fakepackage:1.0.10"),
+            PackageFixture.of("twc/other:fakepackage:2.0.0")
+        )).toString()
+        def listing = PackageListing.parse(json, ['fakepackage'] as Set)
+
+        expect:
+        listing.find(PackageId.fromString(packageId))?.id?.toString() == found
+
+        where:
+        packageId                       | found
+        "twc/test:fakepackage:1.0.2"    | "twc/test:fakepackage:1.0.2"
+        "twc/test:fakepackage"          | "twc/test:fakepackage:1.0.10"
+        "twc/test:fakepackage:9.9.9"    | "twc/test:fakepackage:1.0.10"
+        "fakepackage"                   | "twc/other:fakepackage:2.0.0"
+        "twc/other:fakepackage"         | "twc/other:fakepackage:2.0.0"
+        "twc/missing:fakepackage"       | null
+        "twc/test:otherpackage"         | null
+    }
+
+
+    def "exact and group lookups"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList(
+            PackageFixture.of("twc/test:fakepackage:1.0.2"),
+            PackageFixture.of("twc/other:fakepackage:2.0.0")
+        )).toString()
+        def listing = PackageListing.parse(json, ['fakepackage'] as Set)
+
+        expect:
+        listing.get(PackageId.fromString("twc/test:fakepackage:1.0.2")).id.versionString == '1.0.2'
+        listing.get(PackageId.fromString("twc/test:fakepackage:2.0.0")) == null
+        listing.find("twc/other", "fakepackage").collect { it.version } == ['2.0.0']
+        listing.find("", "fakepackage").size() == 2
+        listing.latest("twc/test", "fakepackage").id.versionString == '1.0.2'
+    }
+
+
+    def "without removes the matching package"() {
+        def json = new JsonBuilder(PackageServerFixture.packageList("fakepackage")).toString()
+
+        when:
+        def listing = PackageListing.parse(json, ['fakepackage'] as Set).without(PackageId.fromString("twc/test:fakepackage:1.0.1-SNAPSHOT"))
+
+        then:
+        listing.size() == 1
+        listing.find(PackageId.fromString("twc/test:fakepackage")) == null
+        listing.hasPropertiesOf('fakepackage')
+    }
+
+
+    def "malformed json"() {
+        when:
+        PackageListing.parse('{"results": [{"name": "pkg"')
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+}
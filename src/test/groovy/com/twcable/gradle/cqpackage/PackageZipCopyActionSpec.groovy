@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import org.gradle.api.file.RelativePath
+import org.gradle.api.internal.file.copy.CopyActionProcessingStream
+import org.gradle.api.internal.file.copy.CopyActionProcessingStreamAction
+import org.gradle.api.internal.file.copy.FileCopyDetailsInternal
+import org.gradle.api.internal.file.copy.ZipCopyAction
+import spock.lang.Specification
+import spock.lang.Subject
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+import static com.twcable.gradle.cqpackage.DeltaPackageSpec.zipEntries
+
+@Subject(PackageZipCopyAction)
+class PackageZipCopyActionSpec extends Specification {
+    File directory = File.createTempDir()
+    File zipFile = new File(directory, 'package.zip')
+
+
+    def cleanup() {
+        directory.deleteDir()
+    }
+
+
+    def "unchanged entries are copied from the last package"() {
+        given:
+        write(true, ['jcr_root/a.txt': 'a' * 1000, 'jcr_root/b.txt': 'b' * 1000])
+
+        when:
+        def action = write(true, ['jcr_root/a.txt': 'a' * 1000, 'jcr_root/b.txt': 'changed'])
+
+        then:
+        action.reusedEntries == 1
+        action.compressedEntries == 1
+        zipEntries(zipFile) == ['jcr_root/a.txt': 'a' * 1000, 'jcr_root/b.txt': 'changed']
+    }
+
+
+    def "compressing with more than one thread gives the same zip"() {
+        given:
+        Map<String, String> entries = (1..50).collectEntries { ["jcr_root/file${it}.txt".toString(), "content ${it} " * it] }
+        def oneThread = new File(directory, 'one-thread.zip')
+
+        when:
+        write(false, entries, 1)
+        zipFile.renameTo(oneThread)
+        write(false, entries, 4)
+
+        then:
+        zipFile.bytes == oneThread.bytes
+        zipEntries(zipFile).keySet().toList() == entries.keySet().toList()
+    }
+
+
+    def "every entry is compressed when it is not incremental"() {
+        given:
+        write(false, ['jcr_root/a.txt': 'a' * 1000])
+
+        when:
+        def action = write(false, ['jcr_root/a.txt': 'a' * 1000])
+
+        then:
+        action.reusedEntries == 0
+        action.compressedEntries == 1
+        !PackageEntryManifest.sidecar(zipFile).exists()
+    }
+
+
+    def "entries are compressed as the policy says"() {
+        given:
+        def policy = CompressionPolicy.withDefaults()
+        policy.deflate(9, 'jcr_root/**/*.xml')
+
+        when:
+        def action = write(false, ['jcr_root/apps/install/bundle.jar': 'j' * 1000,
+                                   'jcr_root/apps/.content.xml'      : 'x' * 1000,
+                                   'jcr_root/apps/readme.txt'        : 't' * 1000], 1, policy)
+
+        then:
+        action.storedEntries == 1
+        action.compressedEntries == 2
+        methods() == ['jcr_root/apps/install/bundle.jar': ZipEntry.STORED,
+                      'jcr_root/apps/.content.xml'      : ZipEntry.DEFLATED,
+                      'jcr_root/apps/readme.txt'        : ZipEntry.DEFLATED]
+        zipEntries(zipFile)['jcr_root/apps/install/bundle.jar'] == 'j' * 1000
+    }
+
+
+    def "an entry is compressed again when the policy for it changes"() {
+        given:
+        write(true, ['jcr_root/a.jar': 'a' * 1000])
+
+        when:
+        def action = write(true, ['jcr_root/a.jar': 'a' * 1000], 1, CompressionPolicy.withDefaults())
+
+        then:
+        action.reusedEntries == 0
+        action.storedEntries == 1
+        methods() == ['jcr_root/a.jar': ZipEntry.STORED]
+    }
+
+
+    def "entries have a fixed timestamp when the file timestamps are not preserved"() {
+        when:
+        write(false, ['jcr_root/a.txt': 'a', 'jcr_root/b.txt': 'b'])
+        def zip = new ZipFile(zipFile)
+        def times = zip.entries().toList()*.time
+        zip.close()
+
+        then:
+        times == [ZipCopyAction.CONSTANT_TIME_FOR_ZIP_ENTRIES] * 2
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    PackageZipCopyAction write(boolean incremental, Map<String, String> entries, int threads = 1,
+                               CompressionPolicy policy = CompressionPolicy.uniform(ZipEntry.DEFLATED)) {
+        def action = new PackageZipCopyAction(zipFile, policy, incremental, threads, false)
+        action.execute({ CopyActionProcessingStreamAction streamAction ->
+            entries.each { name, text -> streamAction.processFile(fileDetails(name, text)) }
+        } as CopyActionProcessingStream)
+        return action
+    }
+
+
+    Map<String, Integer> methods() {
+        def zip = new ZipFile(zipFile)
+        try {
+            return zip.entries().toList().collectEntries { [it.name, it.method] } as Map<String, Integer>
+        }
+        finally {
+            zip.close()
+        }
+    }
+
+
+    FileCopyDetailsInternal fileDetails(String name, String text) {
+        def bytes = text.getBytes('UTF-8')
+        return Stub(FileCopyDetailsInternal) {
+            getRelativePath() >> RelativePath.parse(true, name)
+            isDirectory() >> false
+            getSize() >> (long)bytes.length
+            getLastModified() >> 1000L
+            getMode() >> 0644
+            copyTo(_ as OutputStream) >> { OutputStream out -> out.write(bytes); true }
+        }
+    }
+
+}
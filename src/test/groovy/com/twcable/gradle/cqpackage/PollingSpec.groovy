@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import spock.lang.Specification
+import spock.lang.Subject
+
+@Subject(Polling)
+class PollingSpec extends Specification {
+
+    def "polls until ready and records how it went"() {
+        def stats = []
+        int polls = 0
+
+        when:
+        def result = Polling.poll('install', 'author', 1_000, PollingPolicy.fixed(5), stats, { polls < 3 }, { polls++ })
+
+        then:
+        polls == 3
+        result.polls == 3
+        result.waitedMs == 10
+        result.ready
+        stats == [result]
+    }
+
+
+    def "gives up after the maximum wait"() {
+        when:
+        def result = Polling.poll('install', 'author', 50, PollingPolicy.fixed(20), null, { true }, {})
+
+        then:
+        !result.ready
+        result.polls >= 2
+        result.waitedMs <= 50
+    }
+
+
+    def "always polls at least once"() {
+        int polls = 0
+
+        when:
+        def result = Polling.poll('install', 'author', 0, PollingPolicy.fixed(20), null, { polls == 0 }, { polls++ })
+
+        then:
+        polls == 1
+        result.ready
+    }
+
+
+    def "backoff retries quickly and then waits exponentially longer, up to the max"() {
+        def policy = PollingPolicy.backoff().with {
+            firstRetryMs = 50
+            initialDelayMs = 100
+            multiplier = 2
+            maxDelayMs = 1_000
+            jitter = 0
+            it
+        }
+
+        expect:
+        (1..7).collect { policy.delayMs(it) } == [50L, 100L, 200L, 400L, 800L, 1_000L, 1_000L]
+    }
+
+
+    def "backoff jitter stays within bounds"() {
+        def policy = PollingPolicy.backoff().with {
+            initialDelayMs = 1_000
+            maxDelayMs = 10_000
+            jitter = 0.2
+            it
+        }
+
+        expect:
+        (1..100).collect { policy.delayMs(2) }.every { it >= 800 && it <= 1_200 }
+    }
+
+}
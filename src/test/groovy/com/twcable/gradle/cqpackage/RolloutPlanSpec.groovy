@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.lang.Unroll
+
+@Subject(RolloutPlan)
+class RolloutPlanSpec extends Specification {
+
+    @Unroll
+    def "splits #count servers into waves: canary #canary, size #size, percent #percent"() {
+        def plan = new RolloutPlan(canaryServers: canary, waveSize: size, wavePercent: percent)
+
+        expect:
+        plan.waves(servers(count)).collect { it*.name } == waves
+
+        where:
+        count | canary | size | percent | waves
+        5     | 1      | 2    | 25      | [['s1'], ['s2', 's3'], ['s4', 's5']]
+        5     | 0      | 2    | 25      | [['s1', 's2'], ['s3', 's4'], ['s5']]
+        8     | 1      | 0    | 25      | [['s1'], ['s2', 's3'], ['s4', 's5'], ['s6', 's7'], ['s8']]
+        3     | 1      | 0    | 10      | [['s1'], ['s2'], ['s3']]
+        2     | 3      | 1    | 25      | [['s1', 's2']]
+        0     | 1      | 1    | 25      | []
+    }
+
+
+    def "a percentage must be given when there is no wave size"() {
+        when:
+        new RolloutPlan(waveSize: 0, wavePercent: 0).waves(servers(3))
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static List<SlingServerConfiguration> servers(int count) {
+        if (count == 0) return []
+        return (1..count).collect { int i ->
+            new SlingServerConfiguration().with {
+                name = "s${i}".toString()
+                machineName = 'localhost'
+                port = 4502 + i
+                active = true
+                it
+            }
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.sling.SlingServerConfiguration
+import spock.lang.Specification
+import spock.lang.Subject
+
+import static com.twcable.gradle.cqpackage.ServerHealthRegistry.State.CLOSED
+import static com.twcable.gradle.cqpackage.ServerHealthRegistry.State.HALF_OPEN
+import static com.twcable.gradle.cqpackage.ServerHealthRegistry.State.OPEN
+
+@Subject(ServerHealthRegistry)
+class ServerHealthRegistrySpec extends Specification {
+    ServerHealthRegistry registry = new ServerHealthRegistry()
+
+
+    def "opens after enough failures in a row"() {
+        def server = server("publisher", 4503)
+        registry.failureThreshold = 2
+
+        when:
+        registry.recordFailure(server)
+
+        then:
+        registry.state("publisher") == CLOSED
+        registry.allowRequest(server)
+        server.active
+
+        when:
+        registry.recordFailure(server)
+
+        then:
+        registry.state("publisher") == OPEN
+        !registry.allowRequest(server)
+        !server.active
+    }
+
+
+    def "an open server is tried again once"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 0
+        registry.recordFailure(server)
+
+        when:
+        def allowed = registry.allowRequest(server)
+        registry.openMs = 60_000
+
+        then:
+        allowed
+        registry.state("publisher") == HALF_OPEN
+        server.active
+        !allowRequestFromAnotherThread(server)
+    }
+
+
+    def "the caller trying a server again can keep using it"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 0
+        registry.recordFailure(server)
+        registry.allowRequest(server)
+
+        when:
+        def again = registry.allowRequest(server)
+        registry.release(server)
+
+        then:
+        again
+        registry.state("publisher") == HALF_OPEN
+    }
+
+
+    def "a request that is given back lets the next caller try the server"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 60_000
+        registry.recordFailure(server)
+        registry.openMs = 0
+        registry.allowRequest(server)
+        registry.openMs = 60_000
+
+        when:
+        registry.release(server)
+
+        then:
+        registry.state("publisher") == OPEN
+        !server.active
+        allowRequestFromAnotherThread(server)
+        server.active
+    }
+
+
+    def "releasing after recording how it went changes nothing"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 0
+        registry.recordFailure(server)
+        registry.allowRequest(server)
+        registry.recordSuccess(server)
+
+        when:
+        registry.release(server)
+
+        then:
+        registry.state("publisher") == CLOSED
+        server.active
+    }
+
+
+    def "another caller tries the server if the last one never said how it went"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 0
+        registry.recordFailure(server)
+
+        expect:
+        registry.allowRequest(server)
+        allowRequestFromAnotherThread(server)
+    }
+
+
+    def "a server that answers the retry is closed again"() {
+        def server = server("publisher", 4503)
+        registry.openMs = 0
+        registry.recordFailure(server)
+        registry.allowRequest(server)
+
+        when:
+        registry.recordSuccess(server)
+
+        then:
+        registry.state("publisher") == CLOSED
+        registry.allowRequest(server)
+    }
+
+
+    def "a server that was not active is never made active"() {
+        def server = server("publisher", 4503)
+        server.active = false
+        registry.openMs = 0
+        registry.recordFailure(server)
+
+        expect:
+        registry.allowRequest(server)
+        !server.active
+    }
+
+
+    def "a server that can not be reached is opened by the probe"() {
+        def pool = new HttpClientPool()
+        def server = server("nothing-there", 1)
+
+        when:
+        registry.probe([server], pool)
+
+        then:
+        !registry.allowRequest(server)
+        registry.state("nothing-there") == OPEN
+        !server.active
+
+        cleanup:
+        pool.close()
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    boolean allowRequestFromAnotherThread(SlingServerConfiguration server) {
+        boolean allowed = false
+        def thread = Thread.start { allowed = registry.allowRequest(server) }
+        thread.join()
+        return allowed
+    }
+
+
+    static SlingServerConfiguration server(String serverName, int serverPort) {
+        return new SlingServerConfiguration().with {
+            name = serverName
+            machineName = 'localhost'
+            port = serverPort
+            active = true
+            it
+        }
+    }
+
+}
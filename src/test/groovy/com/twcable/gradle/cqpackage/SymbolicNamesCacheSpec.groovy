@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import org.apache.jackrabbit.vault.packaging.PackageId
+import spock.lang.Specification
+import spock.lang.Subject
+
+import java.util.concurrent.Callable
+
+@Subject(SymbolicNamesCache)
+class SymbolicNamesCacheSpec extends Specification {
+    File directory = File.createTempDir()
+
+
+    def cleanup() {
+        directory.deleteDir()
+    }
+
+
+    def "package is only scanned once"() {
+        def cache = new SymbolicNamesCache(directory, 10)
+        def loader = Mock(Callable)
+
+        when:
+        def first = cache.symbolicNames(packageInfo("1.0.1", 20), loader)
+        def second = cache.symbolicNames(packageInfo("1.0.1", 20), loader)
+
+        then:
+        1 * loader.call() >> ['b.c.d.e', 'f.g.h']
+        first == ['b.c.d.e', 'f.g.h']
+        second == first
+    }
+
+
+    def "names are remembered across builds"() {
+        def loader = Mock(Callable)
+
+        when:
+        new SymbolicNamesCache(directory, 10).symbolicNames(packageInfo("1.0.1", 20), loader)
+        def names = new SymbolicNamesCache(directory, 10).symbolicNames(packageInfo("1.0.1", 20), loader)
+
+        then:
+        1 * loader.call() >> ['b.c.d.e']
+        names == ['b.c.d.e']
+    }
+
+
+    def "a different build of the package is scanned again"() {
+        def cache = new SymbolicNamesCache(directory, 10)
+        def loader = Mock(Callable)
+
+        when:
+        cache.symbolicNames(packageInfo("1.0.1", 20), loader)
+        def names = cache.symbolicNames(packageInfo("1.0.1", 21), loader)
+
+        then:
+        2 * loader.call() >>> [['b.c.d.e'], ['b.c.d.e', 'f.g.h']]
+        names == ['b.c.d.e', 'f.g.h']
+    }
+
+
+    def "least recently used packages are forgotten"() {
+        def cache = new SymbolicNamesCache(directory, 2)
+
+        when:
+        cache.symbolicNames(packageInfo("1.0.1", 20), { ['a'] } as Callable)
+        directory.listFiles()*.setLastModified(System.currentTimeMillis() - 60_000)
+        cache.symbolicNames(packageInfo("1.0.2", 20), { ['b'] } as Callable)
+        cache.symbolicNames(packageInfo("1.0.3", 20), { ['c'] } as Callable)
+
+        then:
+        directory.listFiles().length == 2
+        directory.listFiles()*.readLines()*.get(1).sort() == ['b', 'c']
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static RuntimePackageProperties packageInfo(String version, int size) {
+        def fixture = PackageFixture.of(PackageId.fromString("twc/test:fakepackage:${version}")).size(size)
+        return RuntimePackageProperties.fromJson(PackageServerFixture.toMap(fixture))
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014-2017 Time Warner Cable, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twcable.gradle.cqpackage
+
+import com.twcable.gradle.http.HttpResponse
+import groovy.json.JsonBuilder
+import org.apache.jackrabbit.vault.packaging.PackageId
+import spock.lang.Subject
+
+import static java.net.HttpURLConnection.HTTP_CREATED
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND
+import static java.net.HttpURLConnection.HTTP_OK
+
+@Subject(UnchangedPackages)
+class UnchangedPackagesSpec extends AbstractPackageCommandSpec {
+    static final PackageId PACKAGE_ID = PackageId.fromString("twc/test:fakepackage:1.0.1")
+
+    File packageFile = fakePackageFile()
+
+
+    def cleanup() {
+        packageFile.delete()
+        new File(packageFile.path + PackageDigest.SIDECAR_EXTENSION).delete()
+    }
+
+
+    def "digest is remembered until the file changes"() {
+        def sidecar = new File(packageFile.path + PackageDigest.SIDECAR_EXTENSION)
+
+        when:
+        def first = PackageDigest.digest(packageFile)
+
+        then:
+        first == PackageDigest.compute(packageFile)
+        sidecar.readLines()[0] == first
+
+        when:
+        sidecar.text = "remembered\n${packageFile.length()} ${packageFile.lastModified()}\n"
+
+        then:
+        PackageDigest.digest(packageFile) == 'remembered'
+
+        when:
+        packageFile.bytes = "a different package".bytes
+
+        then:
+        PackageDigest.digest(packageFile) == PackageDigest.compute(packageFile)
+    }
+
+
+    def "unchanged when the same package is installed with the same digest"() {
+        def digest = PackageDigest.digest(packageFile)
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('list.jsp') }) >> listing(packageFile.length(), true)
+        1 * slingSupport.doGet({ URI uri -> uri.path.endsWith('/jcr:content/vlt:definition.json') }) >>
+            new HttpResponse(HTTP_OK, "{\"${UnchangedPackages.DIGEST_PROPERTY}\": \"${digest}\"}")
+
+        expect:
+        UnchangedPackages.isUnchanged(packageFile, PACKAGE_ID, digest, packageSupport())
+    }
+
+
+    def "changed when the stored digest is different"() {
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('list.jsp') }) >> listing(packageFile.length(), true)
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('/jcr:content/vlt:definition.json') }) >>
+            new HttpResponse(HTTP_OK, "{\"${UnchangedPackages.DIGEST_PROPERTY}\": \"abc123\"}")
+
+        expect:
+        !UnchangedPackages.isUnchanged(packageFile, PACKAGE_ID, PackageDigest.digest(packageFile), packageSupport())
+    }
+
+
+    def "changed when there is no stored digest"() {
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('list.jsp') }) >> listing(packageFile.length(), true)
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('/jcr:content/vlt:definition.json') }) >>
+            new HttpResponse(HTTP_NOT_FOUND, "")
+
+        expect:
+        !UnchangedPackages.isUnchanged(packageFile, PACKAGE_ID, PackageDigest.digest(packageFile), packageSupport())
+    }
+
+
+    def "changed without asking for the digest when the size or installation are different"() {
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('list.jsp') }) >> listing(size, installed)
+        0 * slingSupport.doGet({ URI uri -> uri.path.endsWith('/jcr:content/vlt:definition.json') })
+
+        expect:
+        !UnchangedPackages.isUnchanged(packageFile, PACKAGE_ID, PackageDigest.digest(packageFile), packageSupport())
+
+        where:
+        size | installed
+        1    | true
+        20   | false
+    }
+
+
+    def "changed when the server has a different version"() {
+        slingSupport.doGet({ URI uri -> uri.path.endsWith('list.jsp') }) >> listing(packageFile.length(), true)
+        0 * slingSupport.doGet({ URI uri -> uri.path.endsWith('/jcr:content/vlt:definition.json') })
+
+        expect:
+        !UnchangedPackages.isUnchanged(packageFile, PackageId.fromString("twc/test:fakepackage:1.0.2"),
+            PackageDigest.digest(packageFile), packageSupport())
+    }
+
+
+    def "digest is stored on the package's definition"() {
+        slingSupport.doGet(_) >> listing(packageFile.length(), false)
+        1 * slingSupport.doPost({ URI uri -> uri.path == '/etc/packages/twc/test/fakepackage-1.0.1.zip/jcr:content/vlt:definition' },
+            [(UnchangedPackages.DIGEST_PROPERTY): 'abc123']) >> new HttpResponse(HTTP_CREATED, "")
+
+        expect:
+        UnchangedPackages.recordDigest(PACKAGE_ID, 'abc123', packageSupport())
+    }
+
+    // **********************************************************************
+    //
+    // HELPER METHODS
+    //
+    // **********************************************************************
+
+    static File fakePackageFile() {
+        def file = File.createTempFile("fakepackage", ".zip")
+        file.bytes = "not really a package".bytes
+        return file
+    }
+
+
+    static HttpResponse listing(long size, boolean installed) {
+        def fixture = PackageFixture.of(PACKAGE_ID).size(size as int)
+        def packageMap = PackageServerFixture.toMap(fixture)
+        packageMap.path = '/etc/packages/twc/test/fakepackage-1.0.1.zip'
+        if (!installed) packageMap.remove('lastUnpacked')
+        return new HttpResponse(HTTP_OK, new JsonBuilder([results: [packageMap], total: 1]).toString())
+    }
+
+
+    SlingPackageSupport packageSupport() {
+        return slingPackageSupportFactory.create(slingServerConfiguration)
+    }
+
+}
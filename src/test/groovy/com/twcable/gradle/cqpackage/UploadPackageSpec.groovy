@@ -15,10 +15,14 @@
  */
 package com.twcable.gradle.cqpackage
 
+import com.twcable.gradle.http.HttpResponse
+import com.twcable.gradle.sling.SlingServerConfiguration
 import org.apache.jackrabbit.vault.packaging.impl.PackageManagerImpl
 import spock.lang.Unroll
 
 import static com.twcable.gradle.cqpackage.PackageStatus.OK
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT
+import static java.net.HttpURLConnection.HTTP_OK
 
 @SuppressWarnings("GroovyAssignabilityCheck")
 class UploadPackageSpec extends AbstractPackageCommandSpec {
@@ -39,4 +43,93 @@ class UploadPackageSpec extends AbstractPackageCommandSpec {
         "testpackage"    | true    | "Package installed" | OK
     }
 
+
+
+    def "sends the package again after a timeout"() {
+        def packageFile = new File(CqPackageHelperSpec.class.classLoader.getResource("testpackage-1.0.1.zip").getFile())
+        slingSupport.doGet(_) >> new HttpResponse(HTTP_OK, '{"results":[{"name":"testpackage","group":"testing"}]}')
+        2 * slingSupport.doPost(_, _) >>> [new HttpResponse(HTTP_CLIENT_TIMEOUT, ""), PackageServerFixture.successfulPackageUpload()]
+
+        when:
+        def result = UploadPackage.upload(packageFile, false, slingPackageSupportFactory.create(slingServerConfiguration),
+            new PackageManagerImpl(), 3, null)
+
+        then:
+        result.status == OK
+    }
+
+
+    def "does not send the package again if it made it to the server"() {
+        def packageFile = new File(CqPackageHelperSpec.class.classLoader.getResource("testpackage-1.0.1.zip").getFile())
+        slingSupport.doGet(_) >> new HttpResponse(HTTP_OK,
+            "{\"results\":[{\"name\":\"testpackage\",\"group\":\"testing\",\"version\":\"1.0.1\",\"size\":${packageFile.length()}}]}")
+        1 * slingSupport.doPost(_, _) >> new HttpResponse(HTTP_CLIENT_TIMEOUT, "")
+
+        when:
+        def result = UploadPackage.upload(packageFile, false, slingPackageSupportFactory.create(slingServerConfiguration),
+            new PackageManagerImpl(), 3, null)
+
+        then:
+        result.status == OK
+    }
+
+
+    def "gives up after the last attempt"() {
+        def packageFile = new File(CqPackageHelperSpec.class.classLoader.getResource("testpackage-1.0.1.zip").getFile())
+        slingSupport.doGet(_) >> new HttpResponse(HTTP_OK, '{"results":[]}')
+        2 * slingSupport.doPost(_, _) >> new HttpResponse(HTTP_CLIENT_TIMEOUT, "")
+
+        when:
+        def result = UploadPackage.upload(packageFile, false, slingPackageSupportFactory.create(slingServerConfiguration),
+            new PackageManagerImpl(), 2, null)
+
+        then:
+        result.status == Status.SERVER_TIMEOUT
+    }
+
+
+    def "does not bring back a server that is not responding"() {
+        def packageFile = new File(CqPackageHelperSpec.class.classLoader.getResource("testpackage-1.0.1.zip").getFile())
+        slingSupport.doGet(_) >> new HttpResponse(HTTP_OK, '{"results":[]}')
+        0 * slingSupport.doPost(_, _)
+        def serverConf = new SlingServerConfiguration().with {
+            maxWaitMs = 1_000
+            retryWaitMs = 10
+            active = true
+            machineName = 'test'
+            it
+        }
+        def packageSupport = slingPackageSupportFactory.create(serverConf)
+        packageSupport.serverHealth = new ServerHealthRegistry()
+        packageSupport.serverHealth.recordFailure(serverConf)
+
+        when:
+        def result = UploadPackage.upload(packageFile, false, packageSupport, new PackageManagerImpl(), 3, null)
+
+        then:
+        result.status == Status.SERVER_TIMEOUT
+        !packageSupport.active
+    }
+
+
+    def "progress reporting"() {
+        def progress = new UploadProgress("server1", 3 * 1024 * 1024, null)
+        def out = new ByteArrayOutputStream()
+        def file = File.createTempFile("upload", ".zip")
+        file.bytes = new byte[1024 * 1024]
+
+        when:
+        progress.body(file).writeTo(out)
+        progress.finished()
+
+        then:
+        out.size() == 1024 * 1024
+        progress.bytesSent == 1024 * 1024
+        progress.attempts == 1
+        progress.describe().startsWith("1.0/3.0 MB, ")
+
+        cleanup:
+        file.delete()
+    }
+
 }